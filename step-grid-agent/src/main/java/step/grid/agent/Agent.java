@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import step.grid.Token;
 import step.grid.agent.conf.AgentConf;
 import step.grid.agent.conf.AgentForkerConfiguration;
+import step.grid.agent.conf.FileDownloadConfiguration;
 import step.grid.agent.conf.TokenConf;
 import step.grid.agent.conf.TokenGroupConf;
 import step.grid.agent.forker.AgentForker;
@@ -37,6 +38,7 @@ import step.grid.app.configuration.ConfigurationParser;
 import step.grid.app.server.BaseServer;
 import step.grid.bootstrap.BootstrapManager;
 import step.grid.contextbuilder.ApplicationContextBuilder;
+import step.grid.contextbuilder.ExecutionContextCacheConfiguration;
 import step.grid.filemanager.FileManagerClient;
 import step.grid.filemanager.FileManagerClientImpl;
 import step.grid.filemanager.FileManagerConfiguration;
@@ -75,8 +77,10 @@ public class Agent extends BaseServer implements AutoCloseable {
     private final long gracefulShutdownTimeout;
     private final RegistrationClient registrationClient;
     private final FileManagerClient fileManagerClient;
+    private final PeerFileServer peerFileServer;
     private final ApplicationContextBuilder applicationContextBuilder;
     private final BootstrapManager bootstrapManager;
+    private final PackagePrefetcher packagePrefetcher;
     private final ExecutorService executor;
     private final AgentForker agentForker;
     private volatile boolean stopped = false;
@@ -148,18 +152,28 @@ public class Agent extends BaseServer implements AutoCloseable {
 
         registrationClient = new RegistrationClient(gridUrl, fileServerHost,
             agentConf.getGridConnectTimeout(), agentConf.getGridReadTimeout(),
-            agentConf.getGridMaxRetries(), agentConf.getGridRetryDelayMs(), agentConf.getGridSecurity());
+            agentConf.getGridMaxRetries(), agentConf.getGridRetryDelayMs(), agentConf.getGridSecurity(), agentConf.getFileDownloadConfiguration());
+        registrationClient.setAgentId(id);
 
 
         fileManagerClient = initFileManager(registrationClient, agentConf.getWorkingDir(), agentConf.getFileManagerConfiguration());
+        FileDownloadConfiguration fileDownloadConfiguration = agentConf.getFileDownloadConfiguration();
+        peerFileServer = fileDownloadConfiguration.isEnablePeerDownloads() ? new PeerFileServer(fileManagerClient, fileDownloadConfiguration.getMaxConcurrentPeerUploads()) : null;
 
         agentTokenServices = new AgentTokenServices(fileManagerClient);
         agentTokenServices.setAgentProperties(agentConf.getProperties());
+        agentTokenServices.setMessageHandlerPoolConfiguration(agentConf.getMessageHandlerPoolConfiguration());
         //Create and set the application context builder used by agentTokenServices
-        applicationContextBuilder = new ApplicationContextBuilder(agentConf.getExecutionContextCacheConfiguration());
+        ExecutionContextCacheConfiguration executionContextCacheConfiguration = agentConf.getExecutionContextCacheConfiguration();
+        if (executionContextCacheConfiguration.getExtractedArtifactCacheFolder() == null) {
+            // Keep the extracted packages next to the file manager cache to reuse them after restarts
+            executionContextCacheConfiguration.setExtractedArtifactCacheFolder(Optional.ofNullable(agentConf.getWorkingDir()).orElse(".") + "/extractedartifacts");
+        }
+        applicationContextBuilder = new ApplicationContextBuilder(executionContextCacheConfiguration);
         agentTokenServices.setApplicationContextBuilder(applicationContextBuilder);
 
         bootstrapManager = new BootstrapManager(agentTokenServices, true);
+        packagePrefetcher = new PackagePrefetcher(bootstrapManager, agentConf.getPrefetchThreads());
 
         buildTokenList(agentConf);
 
@@ -329,6 +343,13 @@ public class Agent extends BaseServer implements AutoCloseable {
         return agentTokenServices;
     }
 
+    /**
+     * @return the server of the file versions to the other agents or null if the peer distribution is disabled
+     */
+    protected PeerFileServer getPeerFileServer() {
+        return peerFileServer;
+    }
+
     public AgentForker getAgentForker() {
         return agentForker;
     }
@@ -380,6 +401,8 @@ public class Agent extends BaseServer implements AutoCloseable {
                 logger.info("Shutting down token executor...");
                 executor.shutdownNow();
             }
+
+            packagePrefetcher.close();
         }
     }
 
@@ -435,6 +458,10 @@ public class Agent extends BaseServer implements AutoCloseable {
         return bootstrapManager;
     }
 
+    public PackagePrefetcher getPackagePrefetcher() {
+        return packagePrefetcher;
+    }
+
     public ExecutorService getTokenExecutor() {
         return executor;
     }
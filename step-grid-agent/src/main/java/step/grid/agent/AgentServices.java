@@ -22,10 +22,12 @@ import jakarta.annotation.PostConstruct;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.glassfish.jersey.server.CloseableService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import step.grid.Token;
@@ -34,11 +36,18 @@ import step.grid.agent.tokenpool.*;
 import step.grid.agent.tokenpool.AgentTokenPool.InvalidTokenIdException;
 import step.grid.bootstrap.BootstrapManager;
 import step.grid.contextbuilder.ApplicationContextBuilderException;
+import step.grid.filemanager.ByteRange;
 import step.grid.filemanager.ControllerCallTimeout;
+import step.grid.filemanager.FileManagerClient;
 import step.grid.filemanager.FileManagerException;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
 import step.grid.io.*;
 import step.grid.security.Secured;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -84,7 +93,11 @@ public class AgentServices extends AbstractGridServices {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/token/{id}/process")
-    public OutputMessage process(@PathParam("id") String tokenId, final InputMessage message) {
+    public OutputMessage process(@PathParam("id") String tokenId, @HeaderParam(OutputMessage.ATTACHMENT_ENCODING_HEADER) String attachmentEncoding, final InputMessage message) {
+        return applyAttachmentEncoding(process(tokenId, message), attachmentEncoding);
+    }
+
+    OutputMessage process(String tokenId, final InputMessage message) {
         try {
             final AgentTokenWrapper tokenWrapper = tokenPool.getTokenForExecution(tokenId);
             if (tokenWrapper != null) {
@@ -103,6 +116,7 @@ public class AgentServices extends AbstractGridServices {
                         public OutputMessage call() throws Exception {
                             try {
                                 context.t = Thread.currentThread();
+                                resolvePayloadReference(message);
                                 agent.getAgentTokenServices().getApplicationContextBuilder().resetContext();
                                 return bootstrapManager.runBootstraped(tokenWrapper, message);
                             } catch (ApplicationContextBuilderException e) {
@@ -172,6 +186,7 @@ public class AgentServices extends AbstractGridServices {
             }
         }
         try {
+            resolvePayloadReference(message);
             return forkedAgent.delegateExecution(message);
         } finally {
             if (closeForkedAgentAfterCall) {
@@ -182,6 +197,23 @@ public class AgentServices extends AbstractGridServices {
         }
     }
 
+    /**
+     * Replaces the reference to a payload offloaded by the client to the file manager by the payload itself.
+     * The payload file remains in the cache of the agent and is only transferred once
+     */
+    private void resolvePayloadReference(InputMessage message) throws FileManagerException, IOException {
+        if (message.getPayloadReference() != null) {
+            FileManagerClient fileManagerClient = agent.getAgentTokenServices().getFileManagerClient();
+            FileVersion fileVersion = fileManagerClient.requestFileVersion(message.getPayloadReference(), true);
+            try {
+                message.setPayloadJson(Files.readString(fileVersion.getFile().toPath(), StandardCharsets.UTF_8));
+                message.setPayloadReference(null);
+            } finally {
+                fileManagerClient.releaseFileVersion(fileVersion);
+            }
+        }
+    }
+
     private static Map<String, String> buildAgentAndTokenPropertyMap(AgentTokenWrapper tokenWrapper) {
         Map<String, String> allProperties = new HashMap<>();
         if (tokenWrapper.getServices().getAgentProperties() != null) {
@@ -281,6 +313,50 @@ public class AgentServices extends AbstractGridServices {
         return agent.getTokens();
     }
 
+    @Secured
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("/prefetch")
+    public Response prefetch(List<PrefetchRequest> requests) {
+        if (agentForker != null) {
+            // The forked agents use their own file manager and context builder
+            return Response.status(Response.Status.BAD_REQUEST).entity("Prefetching isn't supported when the agent forker is enabled").build();
+        }
+        if (requests == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("The list of prefetch requests is missing").build();
+        }
+        try {
+            agent.getPackagePrefetcher().prefetch(requests);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        return Response.noContent().build();
+    }
+
+    @Secured
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/prefetch/status")
+    public List<PrefetchStatus> getPrefetchStatus() {
+        return agent.getPackagePrefetcher().getStatuses();
+    }
+
+    /**
+     * Serves a file version of the cache of the agent to another agent, when the peer distribution is enabled.
+     * See {@link PeerFileServer}
+     */
+    @Secured
+    @GET
+    @Path("/file/{id}/{version}")
+    public Response getFile(@PathParam("id") String id, @PathParam("version") String version, @HeaderParam(ByteRange.RANGE_HEADER) String range,
+                            @Context HttpServletResponse servletResponse, @Context CloseableService closeableService) throws IOException {
+        PeerFileServer peerFileServer = agent.getPeerFileServer();
+        if (peerFileServer == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("The peer distribution is disabled").type(MediaType.TEXT_PLAIN).build();
+        }
+        return peerFileServer.serve(new FileVersionId(id, version), range, servletResponse, closeableService);
+    }
+
     @Secured
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
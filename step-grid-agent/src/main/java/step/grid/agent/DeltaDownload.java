@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import jakarta.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.agent.conf.FileDownloadConfiguration;
+import step.grid.filemanager.BlobStore;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.ControllerCallException;
+import step.grid.filemanager.FileChecksum;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+import step.grid.filemanager.ZipManifest;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download of a new version of a directory or zip file based on a previous version of the same file held by the agent.
+ * The grid stores both as zip and describes their entries in a {@link ZipManifest}. Only the data of the entries that
+ * differ from the previous version is transferred, using range requests. Nearby ranges are merged into one request.
+ * <ul>
+ * <li>Directories are assembled file by file. The files whose content hash is unchanged are linked from the previous
+ * version. The other ones are extracted from the transferred data and verified against their content hash.</li>
+ * <li>Zip files are reassembled byte by byte. The compressed data of the unchanged entries is copied from the previous
+ * version and the rest of the file is transferred. The result is verified against the checksum of the new version.</li>
+ * </ul>
+ */
+class DeltaDownload {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaDownload.class);
+
+    // Ranges separated by less than this gap are transferred in one request, as are zip entries smaller than it
+    private static final long MAX_RANGE_GAP = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    private final FileVersionId fileVersionId;
+    private final ZipManifest manifest;
+    private final FileVersion previousFileVersion;
+    private final File file;
+    private final FileDownloadConfiguration configuration;
+    private final ExecutorService executorService;
+    private final FileVersionDownload.FileVersionRequester requester;
+    private final AtomicLong transferredBytes = new AtomicLong();
+
+    DeltaDownload(FileVersionId fileVersionId, ZipManifest manifest, FileVersion previousFileVersion, File file,
+                  FileDownloadConfiguration configuration, ExecutorService executorService, FileVersionDownload.FileVersionRequester requester) {
+        this.fileVersionId = fileVersionId;
+        this.manifest = manifest;
+        this.previousFileVersion = previousFileVersion;
+        this.file = file;
+        this.configuration = configuration;
+        this.executorService = executorService;
+        this.requester = requester;
+    }
+
+    FileVersion download() throws Exception {
+        if (manifest.isDirectory()) {
+            downloadDirectory();
+        } else {
+            downloadZipFile();
+        }
+        return new FileVersion(file, fileVersionId, manifest.isDirectory());
+    }
+
+    /**
+     * @return the number of bytes transferred from the grid
+     */
+    long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    private void downloadDirectory() throws Exception {
+        Path target = file.toPath();
+        Path previous = previousFileVersion.getFile().toPath();
+        Files.createDirectories(target);
+        // The files of the previous version are hashed in parallel
+        List<Future<ZipManifest.Entry>> futures = new ArrayList<>();
+        for (ZipManifest.Entry entry : manifest.getEntries()) {
+            Path entryTarget = resolve(target, entry.getName());
+            if (entry.getName().endsWith("/")) {
+                Files.createDirectories(entryTarget);
+            } else {
+                futures.add(executorService.submit(() -> reuseFile(entry, resolve(previous, entry.getName()), entryTarget) ? null : entry));
+            }
+        }
+        List<ZipManifest.Entry> changedEntries = new ArrayList<>();
+        for (ZipManifest.Entry changedEntry : waitForAll(futures)) {
+            if (changedEntry != null) {
+                changedEntries.add(changedEntry);
+            }
+        }
+
+        changedEntries.sort(Comparator.comparingLong(ZipManifest.Entry::getDataOffset));
+        List<List<ZipManifest.Entry>> groups = new ArrayList<>();
+        List<ZipManifest.Entry> group = null;
+        long groupStart = 0;
+        long groupEnd = 0;
+        for (ZipManifest.Entry entry : changedEntries) {
+            long start = entry.getDataOffset();
+            long end = start + entry.getCompressedSize();
+            if (group == null || start - groupEnd > MAX_RANGE_GAP || end - groupStart > configuration.getChunkSize()) {
+                group = new ArrayList<>();
+                groups.add(group);
+                groupStart = start;
+            }
+            group.add(entry);
+            groupEnd = end;
+        }
+        List<Future<Void>> transfers = new ArrayList<>();
+        for (List<ZipManifest.Entry> entries : groups) {
+            transfers.add(executorService.submit(() -> {
+                transferEntries(entries, target);
+                return null;
+            }));
+        }
+        waitForAll(transfers);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Transferred {} of {} entries of {} in {} requests", changedEntries.size(), manifest.getEntries().size(), fileVersionId, groups.size());
+        }
+    }
+
+    private boolean reuseFile(ZipManifest.Entry entry, Path previousFile, Path targetFile) throws IOException {
+        if (entry.getContentHash() != null && Files.isRegularFile(previousFile) && Files.size(previousFile) == entry.getSize()
+            && entry.getContentHash().equals(FileChecksum.compute(previousFile.toFile()))) {
+            Files.createDirectories(targetFile.getParent());
+            BlobStore.link(previousFile.toFile(), targetFile.toFile());
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void transferEntries(List<ZipManifest.Entry> entries, Path target) throws Exception {
+        long start = entries.get(0).getDataOffset();
+        ZipManifest.Entry last = entries.get(entries.size() - 1);
+        long length = last.getDataOffset() + last.getCompressedSize() - start;
+        try (InputStream data = requestRange(start, length)) {
+            long position = start;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (ZipManifest.Entry entry : entries) {
+                data.skipNBytes(entry.getDataOffset() - position);
+                Path entryTarget = resolve(target, entry.getName());
+                Files.createDirectories(entryTarget.getParent());
+                MessageDigest digest = FileChecksum.newMessageDigest();
+                try (InputStream content = ZipManifest.newContentInputStream(new BoundedInputStream(data, entry.getCompressedSize()), entry.getMethod());
+                     OutputStream out = new DigestOutputStream(Files.newOutputStream(entryTarget), digest)) {
+                    int read;
+                    while ((read = content.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                String contentHash = FileChecksum.toString(digest);
+                if (!contentHash.equals(entry.getContentHash())) {
+                    throw new IOException("Content hash mismatch for entry " + entry.getName() + " of " + fileVersionId);
+                }
+                position = entry.getDataOffset() + entry.getCompressedSize();
+            }
+        }
+    }
+
+    private void downloadZipFile() throws Exception {
+        File previousFile = previousFileVersion.getFile();
+        Map<String, List<ZipManifest.Entry>> previousEntries = new HashMap<>();
+        for (ZipManifest.Entry entry : ZipManifest.readEntries(previousFile)) {
+            previousEntries.computeIfAbsent(getEntryKey(entry), k -> new ArrayList<>()).add(entry);
+        }
+
+        // Find the compressed data that can be copied from the previous version, comparing the hashes of the candidates only
+        List<ZipManifest.Entry> reusedEntries = new ArrayList<>();
+        Map<ZipManifest.Entry, ZipManifest.Entry> reusedPreviousEntries = new HashMap<>();
+        Map<ZipManifest.Entry, String> previousHashes = new HashMap<>();
+        for (ZipManifest.Entry entry : manifest.getEntries()) {
+            if (entry.getCompressedSize() < MAX_RANGE_GAP) {
+                continue;
+            }
+            for (ZipManifest.Entry candidate : previousEntries.getOrDefault(getEntryKey(entry), List.of())) {
+                String previousHash = previousHashes.get(candidate);
+                if (previousHash == null) {
+                    previousHash = ZipManifest.computeDataHash(previousFile, candidate);
+                    previousHashes.put(candidate, previousHash);
+                }
+                if (previousHash.equals(entry.getDataHash())) {
+                    reusedEntries.add(entry);
+                    reusedPreviousEntries.put(entry, candidate);
+                    break;
+                }
+            }
+        }
+        reusedEntries.sort(Comparator.comparingLong(ZipManifest.Entry::getDataOffset));
+
+        // The rest of the file is transferred in ranges of at most one chunk
+        List<ByteRange> ranges = new ArrayList<>();
+        long position = 0;
+        for (ZipManifest.Entry entry : reusedEntries) {
+            addRanges(ranges, position, entry.getDataOffset());
+            position = entry.getDataOffset() + entry.getCompressedSize();
+        }
+        addRanges(ranges, position, manifest.getLength());
+
+        File partialFile = new File(file.getPath() + PARTIAL_FILE_SUFFIX);
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw")) {
+                randomAccessFile.setLength(manifest.getLength());
+            }
+            List<Future<Void>> futures = new ArrayList<>();
+            for (ByteRange range : ranges) {
+                futures.add(executorService.submit(() -> {
+                    transferRange(range, partialFile);
+                    return null;
+                }));
+            }
+            try (FileChannel source = FileChannel.open(previousFile.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE)) {
+                for (ZipManifest.Entry entry : reusedEntries) {
+                    copy(source, reusedPreviousEntries.get(entry).getDataOffset(), target, entry.getDataOffset(), entry.getCompressedSize());
+                }
+            } finally {
+                waitForAll(futures);
+            }
+
+            String checksum = FileChecksum.compute(partialFile);
+            if (!checksum.equals(manifest.getChecksum())) {
+                throw new IOException("Checksum mismatch for " + fileVersionId + ": expected " + manifest.getChecksum() + " but was " + checksum);
+            }
+            if (!partialFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + partialFile + " to " + file);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reused {} of {} entries of {} and transferred the rest in {} requests", reusedEntries.size(), manifest.getEntries().size(), fileVersionId, ranges.size());
+            }
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    private static String getEntryKey(ZipManifest.Entry entry) {
+        return entry.getCompressedSize() + ":" + entry.getCrc() + ":" + entry.getMethod();
+    }
+
+    private void addRanges(List<ByteRange> ranges, long start, long end) {
+        for (long offset = start; offset < end; offset += configuration.getChunkSize()) {
+            ranges.add(new ByteRange(offset, Math.min(configuration.getChunkSize(), end - offset)));
+        }
+    }
+
+    private void transferRange(ByteRange range, File partialFile) throws Exception {
+        try (InputStream data = requestRange(range.getOffset(), range.getLength());
+             FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE)) {
+            long position = range.getOffset();
+            long end = position + range.getLength();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (position < end && (read = data.read(buffer, 0, (int) Math.min(buffer.length, end - position))) >= 0) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+            if (position < end) {
+                throw new IOException("Range " + range.toRange() + " of " + fileVersionId + " ended prematurely");
+            }
+        }
+    }
+
+    private static void copy(FileChannel source, long sourceOffset, FileChannel target, long targetOffset, long length) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            source.position(sourceOffset + copied);
+            long transferred = target.transferFrom(source, targetOffset + copied, length - copied);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of " + source);
+            }
+            copied += transferred;
+        }
+    }
+
+    private InputStream requestRange(long offset, long length) throws Exception {
+        ByteRange expectedRange = new ByteRange(offset, length);
+        Response response = requester.request(expectedRange.toRange(), null);
+        try {
+            if (response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                throw new ControllerCallException(new IOException("Unexpected status " + response.getStatus() + " for the range " + expectedRange.toRange() + " of " + fileVersionId));
+            }
+            ByteRange range = ByteRange.parseContentRange(response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+            if (range == null || range.getOffset() != offset || range.getLength() != length) {
+                throw new IOException("Unexpected Content-Range header in the HTTP response: " + response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+            }
+            transferredBytes.addAndGet(length);
+            return (InputStream) response.getEntity();
+        } catch (Exception e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    private static Path resolve(Path folder, String entryName) throws IOException {
+        Path path = folder.resolve(entryName).normalize();
+        if (!path.startsWith(folder.normalize())) {
+            throw new IOException("Invalid zip entry " + entryName);
+        }
+        return path;
+    }
+
+    private static <T> List<T> waitForAll(List<Future<T>> futures) throws Exception {
+        // Wait for all the tasks before reporting the first failure, so that no task is left writing files
+        List<T> results = new ArrayList<>();
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Reads a part of the underlying stream, leaving it open
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
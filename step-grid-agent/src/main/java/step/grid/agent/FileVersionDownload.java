@@ -0,0 +1,511 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import ch.exense.commons.io.FileHelper;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.agent.conf.FileDownloadConfiguration;
+import step.grid.filemanager.BlobStore;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.ControllerCallException;
+import step.grid.filemanager.ControllerCallTimeout;
+import step.grid.filemanager.DirectoryPackaging;
+import step.grid.filemanager.FileChecksum;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+import step.grid.filemanager.LocalContent;
+import step.grid.filemanager.ZipManifest;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Download of a {@link FileVersion} from the grid performed by the {@link RegistrationClient}.
+ * <p>Files larger than one chunk are downloaded in chunks using HTTP range requests. The chunks are fetched
+ * in parallel and written to a preallocated file. As the state of the download is kept between the attempts,
+ * a retry only fetches the chunks that haven't been completely received. The complete file is finally verified
+ * against the checksum returned by the grid. If the grid doesn't support range requests, the file is
+ * downloaded in a single request and verified against the same checksum while it is received.</p>
+ * <p>If the agent already holds the same content under another {@link FileVersionId}, as identified by the checksum
+ * returned in the first response, this content is reused and the rest of the transfer is skipped.</p>
+ * <p>If the agent holds a previous version of the same directory or zip file, only the entries that changed are
+ * transferred based on the {@link ZipManifest} of the new version. See {@link DeltaDownload}. Any failure of the delta
+ * transfer falls back to the download of the whole file.</p>
+ */
+class FileVersionDownload {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileVersionDownload.class);
+
+    private static final Pattern FILENAME_PATTERN = Pattern.compile(".*filename = (.+?);.*");
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @FunctionalInterface
+    interface FileVersionRequester {
+
+        /**
+         * @param range   the value of the header "Range" or null to request the whole file
+         * @param ifRange the value of the header "If-Range". Can be null
+         * @return the response of the grid
+         */
+        Response request(String range, String ifRange) throws ControllerCallException, ControllerCallTimeout;
+    }
+
+    @FunctionalInterface
+    interface ManifestRequester {
+
+        /**
+         * @return the {@link ZipManifest} of the file version or null if the file version isn't stored as zip
+         */
+        ZipManifest request() throws ControllerCallException, ControllerCallTimeout;
+    }
+
+    private final FileVersionId fileVersionId;
+    private final File container;
+    private final FileDownloadConfiguration configuration;
+    private final ExecutorService executorService;
+    private final FileVersionRequester requester;
+    private final ManifestRequester manifestRequester;
+    private final LocalContent localContent;
+
+    // State of the chunked download, initialized by the first response and kept between the attempts
+    private File file;
+    private boolean isDirectory;
+    private File partialFile;
+    private long totalLength;
+    private String entityTag;
+    private String checksum;
+    private int chunkCount;
+    private final BitSet completedChunks = new BitSet();
+    private boolean deltaAttempted;
+    // Set when a chunk response shows that the file version changed, aborting the other chunks of the attempt
+    private volatile boolean representationChanged;
+
+    FileVersionDownload(FileVersionId fileVersionId, File container, FileDownloadConfiguration configuration,
+                        ExecutorService executorService, FileVersionRequester requester, ManifestRequester manifestRequester,
+                        LocalContent localContent) {
+        this.fileVersionId = fileVersionId;
+        this.container = container;
+        this.configuration = configuration;
+        this.executorService = executorService;
+        this.requester = requester;
+        this.manifestRequester = manifestRequester;
+        this.localContent = localContent;
+    }
+
+    /**
+     * Performs an attempt to download the file version. This method can be called again after a failure
+     * to resume the download
+     *
+     * @return the downloaded {@link FileVersion}
+     */
+    FileVersion download() throws Exception {
+        long t1 = System.currentTimeMillis();
+        if (partialFile == null && !deltaAttempted) {
+            // The delta transfer is attempted once, the retries perform a regular download
+            deltaAttempted = true;
+            FileVersion fileVersion = downloadDelta();
+            if (fileVersion != null) {
+                return fileVersion;
+            }
+        }
+        if (partialFile == null) {
+            String firstChunkRange = configuration.isEnableChunkedDownloads() ? new ByteRange(0, configuration.getChunkSize()).toRange() : null;
+            Response response = requester.request(firstChunkRange, null);
+            if (response.getStatus() == Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode()) {
+                // Empty file
+                response.close();
+                response = requester.request(null, null);
+            }
+            try {
+                int status = response.getStatus();
+                if (status != Response.Status.OK.getStatusCode() && status != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                    throw newServerError(response);
+                }
+                parseContentDisposition(response);
+                String contentChecksum = response.getHeaderString(FileChecksum.CHECKSUM_HEADER);
+                if (localContent != null && contentChecksum != null) {
+                    localContent.setChecksum(contentChecksum);
+                    if (reuseLocalContent(contentChecksum)) {
+                        return new FileVersion(file, fileVersionId, isDirectory);
+                    }
+                }
+                if (status == Response.Status.OK.getStatusCode()) {
+                    // Chunked downloads are disabled or ranges aren't supported by the server
+                    return saveEntireFile(response);
+                }
+                initializeChunkedDownload(response);
+                writeChunk(0, response);
+            } finally {
+                response.close();
+            }
+        }
+
+        downloadMissingChunks();
+        verifyChecksum();
+
+        if (isDirectory) {
+            // The complete package is available locally, its entries can be extracted in parallel
+            new DirectoryPackaging(configuration.getExtraction()).unzip(partialFile, file);
+            partialFile.delete();
+        } else if (!partialFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + partialFile + " to " + file);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Downloaded {} in {} chunks in {}ms to {}", fileVersionId, chunkCount, System.currentTimeMillis() - t1, file.getAbsoluteFile());
+        }
+        return new FileVersion(file, fileVersionId, isDirectory);
+    }
+
+    private FileVersion downloadDelta() {
+        if (!configuration.isEnableDeltaDownloads() || manifestRequester == null || localContent == null) {
+            return null;
+        }
+        FileVersion previousFileVersion = localContent.getPreviousFileVersion(fileVersionId);
+        if (previousFileVersion == null) {
+            return null;
+        }
+        long t1 = System.currentTimeMillis();
+        try {
+            if (!previousFileVersion.isDirectory() && !ZipManifest.isZip(previousFileVersion.getFile())) {
+                return null;
+            }
+            ZipManifest manifest = manifestRequester.request();
+            if (manifest == null || manifest.isDirectory() != previousFileVersion.isDirectory()) {
+                return null;
+            }
+            file = new File(container, manifest.getFileName());
+            isDirectory = manifest.isDirectory();
+            localContent.setChecksum(manifest.getChecksum());
+            if (reuseLocalContent(manifest.getChecksum())) {
+                return new FileVersion(file, fileVersionId, isDirectory);
+            }
+            DeltaDownload deltaDownload = new DeltaDownload(fileVersionId, manifest, previousFileVersion, file, configuration, executorService, requester);
+            FileVersion fileVersion = deltaDownload.download();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Downloaded {} based on {} in {}ms, transferring {} of {} bytes", fileVersionId, previousFileVersion.getVersionId(),
+                    System.currentTimeMillis() - t1, deltaDownload.getTransferredBytes(), manifest.getLength());
+            }
+            return fileVersion;
+        } catch (Exception e) {
+            logger.warn("Delta download of {} based on {} failed. Downloading the whole file", fileVersionId, previousFileVersion.getVersionId(), e);
+            if (file != null) {
+                if (file.isDirectory()) {
+                    FileHelper.deleteFolder(file);
+                } else {
+                    file.delete();
+                }
+            }
+            return null;
+        }
+    }
+
+    private Exception newServerError(Response response) {
+        if (response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            // The server is overloaded: the request is retried after a delay
+            return new ControllerCallException(new IOException("The server is unavailable to serve " + fileVersionId));
+        }
+        String error = response.readEntity(String.class);
+        return new RuntimeException("Unexpected server error: " + error);
+    }
+
+    private void parseContentDisposition(Response response) {
+        String contentDisposition = response.getHeaderString("content-disposition");
+        if (contentDisposition != null) {
+            isDirectory = contentDisposition.contains("type = dir");
+            Matcher m = FILENAME_PATTERN.matcher(contentDisposition);
+            if (m.find()) {
+                file = new File(container + "/" + m.group(1));
+            } else {
+                throw new RuntimeException("Unable to find filename in header: " + contentDisposition);
+            }
+        } else {
+            throw new RuntimeException("No content-disposition header found in the HTTP response");
+        }
+    }
+
+    private boolean reuseLocalContent(String contentChecksum) {
+        FileVersion localFileVersion = localContent.getFileVersion(contentChecksum);
+        if (localFileVersion == null || localFileVersion.isDirectory() != isDirectory) {
+            return false;
+        }
+        try {
+            if (isDirectory) {
+                copyDirectory(localFileVersion.getFile().toPath(), file.toPath());
+            } else {
+                BlobStore.link(localFileVersion.getFile(), file);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reused the content of {} for {}", localFileVersion.getVersionId(), fileVersionId);
+            }
+            return true;
+        } catch (IOException e) {
+            // The local file version might have been removed in the meantime
+            logger.warn("Unable to reuse the content of {} for {}. Downloading it", localFileVersion.getVersionId(), fileVersionId, e);
+            if (file.isDirectory()) {
+                FileHelper.deleteFolder(file);
+            } else {
+                file.delete();
+            }
+            return false;
+        }
+    }
+
+    private static void copyDirectory(Path source, Path target) throws IOException {
+        try (Stream<Path> walk = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                Path targetPath = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(targetPath);
+                } else {
+                    Files.copy(path, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private FileVersion saveEntireFile(Response response) throws IOException, ControllerCallException {
+        String expectedChecksum = response.getHeaderString(FileChecksum.CHECKSUM_HEADER);
+        MessageDigest messageDigest = FileChecksum.newMessageDigest();
+        InputStream in = new DigestInputStream((InputStream) response.getEntity(), messageDigest);
+        long t2 = System.currentTimeMillis();
+        if (isDirectory) {
+            // Extract the entries while the package is being received. The extraction stops at the central directory
+            // of the package, which is part of the checksum: the stream is kept open to read it afterwards
+            FileHelper.unzip(new FilterInputStream(in) {
+                @Override
+                public void close() {
+                }
+            }, file);
+            in.transferTo(OutputStream.nullOutputStream());
+        } else {
+            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))) {
+                FileHelper.copy(in, bos, 1024);
+            }
+        }
+        if (expectedChecksum != null) {
+            String actualChecksum = FileChecksum.toString(messageDigest);
+            if (!expectedChecksum.equals(actualChecksum)) {
+                if (isDirectory) {
+                    FileHelper.deleteFolder(file);
+                } else {
+                    file.delete();
+                }
+                throw new ControllerCallException(new IOException("Checksum mismatch for " + fileVersionId + ": expected " + expectedChecksum + " but was " + actualChecksum));
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Uncompressed file " + fileVersionId + " in " + (System.currentTimeMillis() - t2) + "ms to " + file.getAbsoluteFile());
+        }
+        return new FileVersion(file, fileVersionId, isDirectory);
+    }
+
+    private void initializeChunkedDownload(Response response) throws IOException {
+        totalLength = ByteRange.parseContentRangeTotalLength(response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+        if (totalLength < 0) {
+            throw new RuntimeException("Invalid Content-Range header in the HTTP response: " + response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+        }
+        entityTag = response.getHeaderString(HttpHeaders.ETAG);
+        checksum = response.getHeaderString(FileChecksum.CHECKSUM_HEADER);
+        chunkCount = (int) ((totalLength + configuration.getChunkSize() - 1) / configuration.getChunkSize());
+        completedChunks.clear();
+        partialFile = new File(file.getPath() + PARTIAL_FILE_SUFFIX);
+        // Preallocate the file to let the chunks be written at their position in any order
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw")) {
+            randomAccessFile.setLength(totalLength);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Downloading {} of {} bytes in {} chunks", fileVersionId, totalLength, chunkCount);
+        }
+    }
+
+    private ByteRange getChunkRange(int chunk) {
+        long offset = (long) chunk * configuration.getChunkSize();
+        return new ByteRange(offset, Math.min(configuration.getChunkSize(), totalLength - offset));
+    }
+
+    private void downloadMissingChunks() throws Exception {
+        representationChanged = false;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (!isCompleted(chunk)) {
+                int chunkToDownload = chunk;
+                futures.add(executorService.submit(() -> {
+                    if (!representationChanged) {
+                        downloadChunk(chunkToDownload);
+                    }
+                    return null;
+                }));
+            }
+        }
+        // Wait for all the chunks, keeping the completed ones for the next attempt in case of failure
+        Exception failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } else {
+                    logger.debug("Additional chunk download failure for {}", fileVersionId, e.getCause());
+                }
+            }
+        }
+        if (representationChanged) {
+            // The chunks downloaded so far cannot be used anymore. No other chunk is being written at this point
+            reset();
+            throw new ControllerCallException(new IOException("The file version " + fileVersionId + " changed during its download"));
+        }
+        if (failure != null) {
+            logger.warn("Download of {} failed after {} of {} chunks", fileVersionId, getCompletedChunkCount(), chunkCount);
+            throw failure;
+        }
+    }
+
+    private void downloadChunk(int chunk) throws Exception {
+        Response response = requester.request(getChunkRange(chunk).toRange(), entityTag);
+        try {
+            int status = response.getStatus();
+            if (status == Response.Status.OK.getStatusCode()) {
+                // The server doesn't consider the representation downloaded so far as current anymore. The download
+                // is reset once the other chunks have been aborted
+                representationChanged = true;
+                throw new ControllerCallException(new IOException("The file version " + fileVersionId + " changed during its download"));
+            } else if (status != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                throw newServerError(response);
+            }
+            writeChunk(chunk, response);
+        } finally {
+            response.close();
+        }
+    }
+
+    private void writeChunk(int chunk, Response response) throws ControllerCallException, IOException {
+        ByteRange expectedRange = getChunkRange(chunk);
+        ByteRange range = ByteRange.parseContentRange(response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+        if (range == null || range.getOffset() != expectedRange.getOffset() || range.getLength() != expectedRange.getLength()) {
+            throw new RuntimeException("Unexpected Content-Range header in the HTTP response: " + response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+        }
+        File target = getPartialFile();
+        if (target == null) {
+            throw new ControllerCallException(new IOException("The download of " + fileVersionId + " has been reset"));
+        }
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+             InputStream in = (InputStream) response.getEntity()) {
+            long position = range.getOffset();
+            long end = position + range.getLength();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (position < end && !representationChanged && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) >= 0) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+            if (representationChanged) {
+                throw new ControllerCallException(new IOException("The download of chunk " + chunk + " of " + fileVersionId + " has been aborted"));
+            }
+            if (position < end) {
+                throw new EOFException("Chunk " + chunk + " of " + fileVersionId + " ended after " + (position - range.getOffset()) + " of " + range.getLength() + " bytes");
+            }
+        } catch (IOException e) {
+            // Network errors while reading the content are retried
+            throw new ControllerCallException(e);
+        }
+        markCompleted(chunk);
+    }
+
+    private void verifyChecksum() throws Exception {
+        if (checksum != null) {
+            String actualChecksum = FileChecksum.compute(partialFile);
+            if (!checksum.equals(actualChecksum)) {
+                // The chunks cannot be trusted anymore: the next attempt restarts from scratch
+                reset();
+                throw new ControllerCallException(new IOException("Checksum mismatch for " + fileVersionId + ": expected " + checksum + " but was " + actualChecksum));
+            }
+        }
+    }
+
+    private synchronized void reset() {
+        if (partialFile != null) {
+            partialFile.delete();
+            partialFile = null;
+        }
+        completedChunks.clear();
+        // No chunk is being written anymore: the next attempt starts with a new representation
+        representationChanged = false;
+    }
+
+    /**
+     * Deletes the files written by the previous attempts, for downloads that won't be resumed
+     */
+    void discard() {
+        reset();
+        if (file != null) {
+            if (file.isDirectory()) {
+                FileHelper.deleteFolder(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized File getPartialFile() {
+        return partialFile;
+    }
+
+    private synchronized boolean isCompleted(int chunk) {
+        return completedChunks.get(chunk);
+    }
+
+    private synchronized void markCompleted(int chunk) {
+        completedChunks.set(chunk);
+    }
+
+    synchronized int getCompletedChunkCount() {
+        return completedChunks.cardinality();
+    }
+}
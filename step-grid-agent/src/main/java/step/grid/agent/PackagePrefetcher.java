@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import step.grid.bootstrap.BootstrapManager;
+import step.grid.io.PrefetchRequest;
+import step.grid.io.PrefetchStatus;
+import step.grid.threads.NamedThreadFactory;
+
+/**
+ * Fetches handler packages and builds their contexts in the background ahead of their first use
+ * in order to remove the download, extraction and class loading from the first keyword call
+ */
+public class PackagePrefetcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackagePrefetcher.class);
+
+    private static final int MAX_STATUSES = 1000;
+
+    private final BootstrapManager bootstrapManager;
+    private final ExecutorService executor;
+    private final Map<String, PrefetchStatus> statuses = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PrefetchStatus> eldest) {
+            return size() > MAX_STATUSES;
+        }
+    };
+
+    public PackagePrefetcher(BootstrapManager bootstrapManager, int threads) {
+        this.bootstrapManager = bootstrapManager;
+        this.executor = Executors.newFixedThreadPool(threads, NamedThreadFactory.create("agent-package-prefetch"));
+    }
+
+    /**
+     * Schedules the prefetch of the requested packages. Packages that are already prefetched or being prefetched are skipped
+     *
+     * @param requests the packages to be prefetched
+     * @throws IllegalArgumentException if any of the requests is invalid. In this case none of the requests is scheduled
+     */
+    public void prefetch(List<PrefetchRequest> requests) {
+        // Validate all the requests before scheduling any of them
+        for (PrefetchRequest request : requests) {
+            if (request == null || request.getHandlerPackage() == null) {
+                throw new IllegalArgumentException("The handler package of the prefetch request is missing");
+            }
+        }
+        for (PrefetchRequest request : requests) {
+            String key = request.getHandlerPackage().getFileId() + "_" + request.getHandlerPackage().getVersion() + "_" + request.getHandler();
+            PrefetchStatus status;
+            synchronized (statuses) {
+                PrefetchStatus existingStatus = statuses.get(key);
+                if (existingStatus != null && existingStatus.getState() != PrefetchStatus.State.FAILED) {
+                    continue;
+                }
+                status = new PrefetchStatus(request.getHandlerPackage(), request.getHandler(), PrefetchStatus.State.PENDING);
+                statuses.put(key, status);
+            }
+            executor.submit(() -> prefetch(request, status));
+        }
+    }
+
+    private void prefetch(PrefetchRequest request, PrefetchStatus status) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Prefetching handler package {} with handler {}", request.getHandlerPackage(), request.getHandler());
+        }
+        long start = System.currentTimeMillis();
+        updateStatus(status, PrefetchStatus.State.RUNNING, null, 0);
+        try {
+            bootstrapManager.prefetch(request.getHandlerPackage(), request.getHandler());
+            updateStatus(status, PrefetchStatus.State.COMPLETED, null, System.currentTimeMillis() - start);
+        } catch (Throwable e) {
+            logger.warn("Error while prefetching handler package {}", request.getHandlerPackage(), e);
+            updateStatus(status, PrefetchStatus.State.FAILED, e.getMessage() != null ? e.getMessage() : e.toString(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private void updateStatus(PrefetchStatus status, PrefetchStatus.State state, String error, long duration) {
+        synchronized (statuses) {
+            status.setState(state);
+            status.setError(error);
+            status.setDuration(duration);
+        }
+    }
+
+    /**
+     * @return a copy of the status of the prefetch requests received by this agent
+     */
+    public List<PrefetchStatus> getStatuses() {
+        synchronized (statuses) {
+            List<PrefetchStatus> result = new ArrayList<>();
+            for (PrefetchStatus status : statuses.values()) {
+                PrefetchStatus copy = new PrefetchStatus(status.getHandlerPackage(), status.getHandler(), status.getState());
+                copy.setError(status.getError());
+                copy.setDuration(status.getDuration());
+                result.add(copy);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
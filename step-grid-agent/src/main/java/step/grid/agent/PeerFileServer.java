@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.glassfish.jersey.server.CloseableService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.app.server.ReleasingStreamingOutput;
+import step.grid.app.server.ZeroCopyFileStreamingOutput;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.FileManagerClient;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the file versions of the cache of the agent to the other agents, when the peer distribution of the file
+ * versions is enabled. Only files are served, directories are always downloaded from the grid.
+ * <p>The number of concurrent uploads is bounded. The requests exceeding it are rejected with the status 503,
+ * letting the downloading agent try another peer or the grid. As the downloading agent verifies the content against
+ * the checksum provided by the grid, no checksum is returned by this server.</p>
+ */
+class PeerFileServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerFileServer.class);
+
+    // Interval at which the file versions are advertised again even if they didn't change
+    private static final long ADVERTISEMENT_REFRESH_INTERVAL_MS = 60_000;
+
+    private final FileManagerClient fileManagerClient;
+    private final Semaphore uploadPermits;
+    private final AtomicLong uploadCount = new AtomicLong();
+    // Guarded by this
+    private Set<FileVersionId> lastAdvertisedFileVersions;
+    private long lastAdvertisementTime;
+
+    PeerFileServer(FileManagerClient fileManagerClient, int maxConcurrentUploads) {
+        this.fileManagerClient = fileManagerClient;
+        this.uploadPermits = new Semaphore(maxConcurrentUploads);
+    }
+
+    /**
+     * @return the file versions that can be served to the other agents
+     */
+    List<FileVersionId> getAdvertisedFileVersions() {
+        return fileManagerClient.listCachedFileVersions().stream().filter(fileVersion -> !fileVersion.isDirectory())
+            .map(FileVersion::getVersionId).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the file versions to be advertised with the next registration or null if they didn't change since the
+     * last advertisement. They are nevertheless advertised periodically, so that a grid that lost them, after a restart
+     * for instance, learns them again
+     */
+    synchronized List<FileVersionId> nextAdvertisement() {
+        List<FileVersionId> fileVersions = getAdvertisedFileVersions();
+        Set<FileVersionId> fileVersionSet = new HashSet<>(fileVersions);
+        long now = System.currentTimeMillis();
+        if (fileVersionSet.equals(lastAdvertisedFileVersions) && now - lastAdvertisementTime < ADVERTISEMENT_REFRESH_INTERVAL_MS) {
+            return null;
+        }
+        lastAdvertisedFileVersions = fileVersionSet;
+        lastAdvertisementTime = now;
+        return fileVersions;
+    }
+
+    /**
+     * Forces the advertisement of the file versions with the next registration, after the failure of the last one
+     */
+    synchronized void resetAdvertisement() {
+        lastAdvertisedFileVersions = null;
+    }
+
+    /**
+     * @param closeableService the closeable service of the request, releasing the upload permit and the file if the
+     *                         response isn't written
+     */
+    Response serve(FileVersionId fileVersionId, String range, HttpServletResponse servletResponse, CloseableService closeableService) throws IOException {
+        if (!uploadPermits.tryAcquire()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Rejecting the download of {} as the maximum number of concurrent uploads is reached", fileVersionId);
+            }
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Maximum number of concurrent uploads reached").type(MediaType.TEXT_PLAIN).build();
+        }
+        boolean streaming = false;
+        try {
+            FileVersion fileVersion = fileManagerClient.getCachedFileVersion(fileVersionId);
+            if (fileVersion == null) {
+                return Response.status(Response.Status.NOT_FOUND).entity("The file version " + fileVersionId + " isn't available").type(MediaType.TEXT_PLAIN).build();
+            }
+            FileChannel channel;
+            try {
+                if (fileVersion.isDirectory()) {
+                    return Response.status(Response.Status.NOT_FOUND).entity("The file version " + fileVersionId + " is a directory").type(MediaType.TEXT_PLAIN).build();
+                }
+                // The channel remains readable if the file version is removed from the cache during the upload
+                channel = FileChannel.open(fileVersion.getFile().toPath(), StandardOpenOption.READ);
+            } finally {
+                fileManagerClient.releaseFileVersion(fileVersion);
+            }
+            try {
+                long fileLength = channel.size();
+                ByteRange byteRange = ByteRange.parse(range, fileLength);
+                Response.ResponseBuilder responseBuilder;
+                if (byteRange != null) {
+                    responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT)
+                        .header(ByteRange.CONTENT_RANGE_HEADER, byteRange.toContentRange(fileLength));
+                } else {
+                    byteRange = new ByteRange(0, fileLength);
+                    responseBuilder = Response.ok();
+                }
+                ReleasingStreamingOutput boundedFileStream = new ReleasingStreamingOutput(
+                    new ZeroCopyFileStreamingOutput(channel, byteRange.getOffset(), byteRange.getLength(), servletResponse), () -> {
+                    try {
+                        channel.close();
+                    } finally {
+                        uploadPermits.release();
+                    }
+                });
+                streaming = true;
+                closeableService.add(boundedFileStream);
+                uploadCount.incrementAndGet();
+                return responseBuilder.entity(boundedFileStream).type(MediaType.APPLICATION_OCTET_STREAM)
+                    .header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength())
+                    .header(ByteRange.ACCEPT_RANGES_HEADER, ByteRange.BYTES_UNIT)
+                    .header("content-disposition", "attachment; filename = " + fileVersion.getFile().getName() + "; type = file")
+                    .tag(new EntityTag(fileVersionId.getFileId() + "_" + fileVersionId.getVersion())).build();
+            } catch (ByteRange.UnsatisfiableRangeException e) {
+                long fileLength = channel.size();
+                channel.close();
+                return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).entity(e.getMessage()).type(MediaType.TEXT_PLAIN)
+                    .header(ByteRange.CONTENT_RANGE_HEADER, ByteRange.toUnsatisfiedContentRange(fileLength)).build();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } finally {
+            if (!streaming) {
+                uploadPermits.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of uploads to other agents started by this server
+     */
+    long getUploadCount() {
+        return uploadCount.get();
+    }
+}
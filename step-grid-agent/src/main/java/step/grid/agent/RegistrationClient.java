@@ -18,7 +18,6 @@
  ******************************************************************************/
 package step.grid.agent;
 
-import ch.exense.commons.io.FileHelper;
 import ch.exense.commons.resilience.RetryHelper;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
@@ -32,18 +31,17 @@ import org.glassfish.jersey.jackson.internal.jackson.jaxrs.json.JacksonJsonProvi
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import step.grid.Token;
+import step.grid.agent.conf.FileDownloadConfiguration;
 import step.grid.client.security.JwtTokenGenerator;
 import step.grid.filemanager.*;
 import step.grid.security.SymmetricSecurityConfiguration;
+import step.grid.threads.NamedThreadFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -68,8 +66,18 @@ public class RegistrationClient implements FileVersionProvider {
     int maxRetries;
     int retryDelayMs;
 
+    private final FileDownloadConfiguration fileDownloadConfiguration;
+    private final ExecutorService downloadExecutor;
+    private volatile String agentId;
+
     public RegistrationClient(String registrationServer, String fileServer, int connectionTimeout, int callTimeout,
                               int maxRetries, int retryDelayMs, SymmetricSecurityConfiguration gridSecurityConfiguration) {
+        this(registrationServer, fileServer, connectionTimeout, callTimeout, maxRetries, retryDelayMs, gridSecurityConfiguration, new FileDownloadConfiguration());
+    }
+
+    public RegistrationClient(String registrationServer, String fileServer, int connectionTimeout, int callTimeout,
+                              int maxRetries, int retryDelayMs, SymmetricSecurityConfiguration gridSecurityConfiguration,
+                              FileDownloadConfiguration fileDownloadConfiguration) {
         super();
         this.registrationServer = registrationServer;
         this.fileServer = fileServer;
@@ -80,6 +88,8 @@ public class RegistrationClient implements FileVersionProvider {
         this.connectionTimeout = connectionTimeout;
         this.maxRetries = maxRetries;
         this.retryDelayMs = retryDelayMs;
+        this.fileDownloadConfiguration = fileDownloadConfiguration;
+        this.downloadExecutor = Executors.newFixedThreadPool(fileDownloadConfiguration.getParallelism(), NamedThreadFactory.create("agent-file-download", true));
 
         jwtTokenGenerator = JwtTokenGenerator.initializeJwtTokenGenerator(gridSecurityConfiguration, "registration client");
     }
@@ -101,19 +111,41 @@ public class RegistrationClient implements FileVersionProvider {
         }
     }
 
+    /**
+     * @param agentId the id of the agent, sent to the grid with the file requests to let it order them fairly across agents
+     */
+    public void setAgentId(String agentId) {
+        this.agentId = agentId;
+    }
+
     public Invocation.Builder withAuthentication(Invocation.Builder requestBuilder) {
         return JwtTokenGenerator.withAuthentication(jwtTokenGenerator, requestBuilder);
     }
 
     public void close() {
+        downloadExecutor.shutdownNow();
         client.close();
     }
 
     @Override
     public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container) throws FileManagerException {
+        return saveFileVersionTo(fileVersionId, container, null);
+    }
+
+    @Override
+    public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container, LocalContent localContent) throws FileManagerException {
+        if (fileDownloadConfiguration.isEnablePeerDownloads()) {
+            FileVersion fileVersion = downloadFromPeers(fileVersionId, container, localContent);
+            if (fileVersion != null) {
+                return fileVersion;
+            }
+        }
+        // The state of the download is kept between the retries to resume it
+        FileVersionDownload download = new FileVersionDownload(fileVersionId, container, fileDownloadConfiguration, downloadExecutor,
+            (range, ifRange) -> requestFileVersion(fileVersionId, range, ifRange), () -> requestManifest(fileVersionId), localContent);
         try {
             return RetryHelper.executeWithRetryOnExceptions(
-                () -> downloadAndSaveFileVersion(fileVersionId, container),
+                download::download,
                 maxRetries,
                 retryDelayMs,
                 RETRY_FOR_EXCEPTIONS,
@@ -124,10 +156,86 @@ public class RegistrationClient implements FileVersionProvider {
         }
     }
 
-    private FileVersion downloadAndSaveFileVersion(FileVersionId fileVersionId, File container) throws Exception {
-        Response response;
+    /**
+     * Tries to download a file version from the peers hinted by the grid, verifying the downloaded content against the
+     * checksum provided by the grid
+     *
+     * @return the downloaded {@link FileVersion} or null if it couldn't be downloaded from any peer
+     */
+    private FileVersion downloadFromPeers(FileVersionId fileVersionId, File container, LocalContent localContent) {
+        if (localContent != null && fileDownloadConfiguration.isEnableDeltaDownloads() && localContent.getPreviousFileVersion(fileVersionId) != null) {
+            // The delta download from the grid is preferred
+            return null;
+        }
+        FileVersionPeers peers;
+        try {
+            peers = requestPeers(fileVersionId);
+        } catch (ControllerCallException e) {
+            logger.warn("Unable to request the peers holding {}. Downloading it from the grid", fileVersionId, e);
+            return null;
+        }
+        if (peers == null || peers.getChecksum() == null || peers.getPeerUrls() == null || peers.getPeerUrls().isEmpty()) {
+            return null;
+        }
+        if (localContent != null && localContent.getFileVersion(peers.getChecksum()) != null) {
+            // The content is already held locally and will be reused by the download from the grid
+            return null;
+        }
+        for (String peerUrl : peers.getPeerUrls()) {
+            long t1 = System.currentTimeMillis();
+            FileVersionDownload download = new FileVersionDownload(fileVersionId, container, fileDownloadConfiguration, downloadExecutor,
+                (range, ifRange) -> requestFileVersionFromPeer(peerUrl, fileVersionId, range, ifRange), null, null);
+            try {
+                FileVersion fileVersion = download.download();
+                String checksum = fileVersion.isDirectory() ? null : FileChecksum.compute(fileVersion.getFile());
+                if (peers.getChecksum().equals(checksum)) {
+                    if (localContent != null) {
+                        localContent.setChecksum(checksum);
+                    }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Downloaded {} from the peer {} in {}ms", fileVersionId, peerUrl, System.currentTimeMillis() - t1);
+                    }
+                    return fileVersion;
+                }
+                logger.warn("The content of {} downloaded from the peer {} doesn't match the checksum {}", fileVersionId, peerUrl, peers.getChecksum());
+            } catch (Exception e) {
+                logger.warn("Unable to download {} from the peer {}", fileVersionId, peerUrl, e);
+            }
+            download.discard();
+        }
+        logger.warn("Unable to download {} from any of the peers {}. Downloading it from the grid", fileVersionId, peers.getPeerUrls());
+        return null;
+    }
+
+    private FileVersionPeers requestPeers(FileVersionId fileVersionId) throws ControllerCallException {
+        try (Response response = withAuthentication(client.target(fileServer + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion() + "/peers").request())
+            .property(ClientProperties.READ_TIMEOUT, callTimeout)
+            .property(ClientProperties.CONNECT_TIMEOUT, connectionTimeout).get()) {
+            return response.getStatus() == Response.Status.OK.getStatusCode() ? response.readEntity(FileVersionPeers.class) : null;
+        } catch (ProcessingException e) {
+            throw new ControllerCallException(e);
+        }
+    }
+
+    private Response requestFileVersionFromPeer(String peerUrl, FileVersionId fileVersionId, String range, String ifRange) throws ControllerCallException {
+        try {
+            return withAuthentication(client.target(peerUrl + "/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion()).request())
+                .header(ByteRange.RANGE_HEADER, range)
+                .header(ByteRange.IF_RANGE_HEADER, ifRange)
+                .property(ClientProperties.READ_TIMEOUT, callTimeout)
+                .property(ClientProperties.CONNECT_TIMEOUT, connectionTimeout).get();
+        } catch (ProcessingException e) {
+            throw new ControllerCallException(e);
+        }
+    }
+
+    private Response requestFileVersion(FileVersionId fileVersionId, String range, String ifRange) throws ControllerCallException, ControllerCallTimeout {
         try {
-            response = withAuthentication(client.target(fileServer + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion()).request()).property(ClientProperties.READ_TIMEOUT, callTimeout)
+            return withAuthentication(client.target(fileServer + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion()).request())
+                .header(AgentTypes.AGENT_ID_HEADER, agentId)
+                .header(ByteRange.RANGE_HEADER, range)
+                .header(ByteRange.IF_RANGE_HEADER, ifRange)
+                .property(ClientProperties.READ_TIMEOUT, callTimeout)
                 .property(ClientProperties.CONNECT_TIMEOUT, connectionTimeout).get();
         } catch (ProcessingException e) {
             Throwable cause = e.getCause();
@@ -142,38 +250,16 @@ public class RegistrationClient implements FileVersionProvider {
                 throw new ControllerCallException(e);
             }
         }
-        if (response.getStatus() != 200) {
-            String error = response.readEntity(String.class);
-            throw new RuntimeException("Unexpected server error: " + error);
-        } else {
-            InputStream in = (InputStream) response.getEntity();
-            String contentDisposition = response.getHeaderString("content-disposition");
-            if (contentDisposition != null) {
-                boolean isDirectory = contentDisposition.contains("type = dir");
-                Matcher m = Pattern.compile(".*filename = (.+?);.*").matcher(contentDisposition);
-                if (m.find()) {
-                    String filename = m.group(1);
-
-                    long t2 = System.currentTimeMillis();
-                    File file = new File(container + "/" + filename);
-                    if (isDirectory) {
-                        FileHelper.unzip(in, file);
-                    } else {
-                        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))) {
-                            FileHelper.copy(in, bos, 1024);
-                        }
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Uncompressed file " + fileVersionId + " in " + (System.currentTimeMillis() - t2) + "ms to " + file.getAbsoluteFile());
-                    }
+    }
 
-                    return new FileVersion(file, fileVersionId, isDirectory);
-                } else {
-                    throw new RuntimeException("Unable to find filename in header: " + contentDisposition);
-                }
-            } else {
-                throw new RuntimeException("No content-disposition header found in the HTTP response");
-            }
+    private ZipManifest requestManifest(FileVersionId fileVersionId) throws ControllerCallException {
+        try (Response response = withAuthentication(client.target(fileServer + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion() + "/manifest").request())
+            .property(ClientProperties.READ_TIMEOUT, callTimeout)
+            .property(ClientProperties.CONNECT_TIMEOUT, connectionTimeout).get()) {
+            // The grid doesn't provide manifests for the files that aren't zip archives
+            return response.getStatus() == Response.Status.OK.getStatusCode() ? response.readEntity(ZipManifest.class) : null;
+        } catch (ProcessingException e) {
+            throw new ControllerCallException(e);
         }
     }
 
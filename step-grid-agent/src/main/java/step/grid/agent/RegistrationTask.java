@@ -41,14 +41,23 @@ public class RegistrationTask extends TimerTask {
 
     @Override
     public void run() {
-        boolean agentRegistered;
+        boolean agentRegistered = false;
+        PeerFileServer peerFileServer = agent.getPeerFileServer();
         try {
             RegistrationMessage message = new RegistrationMessage(new AgentRef(agent.getId(), agent.getAgentUrl(), AgentTypes.AGENT_TYPE), agent.getTokens());
+            if (peerFileServer != null) {
+                // Only sent if they changed since the last registration
+                message.setFileVersions(peerFileServer.nextAdvertisement());
+            }
             logger.debug("Sending registration message " + message.toString());
             agentRegistered = client.sendRegistrationMessage(message);
             agent.setRegistered(agentRegistered);
         } catch (Exception e) {
             logger.error("An unexpected error occurred while registering the adapter.", e);
+        } finally {
+            if (!agentRegistered && peerFileServer != null) {
+                peerFileServer.resetAdvertisement();
+            }
         }
     }
 
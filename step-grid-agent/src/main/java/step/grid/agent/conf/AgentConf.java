@@ -18,6 +18,7 @@
  ******************************************************************************/
 package step.grid.agent.conf;
 
+import step.grid.agent.handler.MessageHandlerPoolConfiguration;
 import step.grid.app.configuration.AppConfiguration;
 import step.grid.contextbuilder.ExecutionContextCacheConfiguration;
 import step.grid.filemanager.FileManagerConfiguration;
@@ -51,10 +52,16 @@ public class AgentConf extends AppConfiguration {
 
     FileManagerConfiguration fileManagerConfiguration = new FileManagerConfiguration();
 
+    FileDownloadConfiguration fileDownloadConfiguration = new FileDownloadConfiguration();
+
     ExecutionContextCacheConfiguration executionContextCacheConfiguration = new ExecutionContextCacheConfiguration();
 
     boolean exposeAgentControlServices = false;
 
+    int prefetchThreads = 2;
+
+    MessageHandlerPoolConfiguration messageHandlerPoolConfiguration = new MessageHandlerPoolConfiguration();
+
     AgentForkerConfiguration agentForker;
 
     SymmetricSecurityConfiguration gridSecurity;
@@ -190,6 +197,33 @@ public class AgentConf extends AppConfiguration {
         this.executionContextCacheConfiguration = executionContextCacheConfiguration;
     }
 
+    /**
+     * @return the number of threads used to prefetch handler packages. See {@link step.grid.agent.PackagePrefetcher}
+     */
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    public FileDownloadConfiguration getFileDownloadConfiguration() {
+        return fileDownloadConfiguration;
+    }
+
+    public void setFileDownloadConfiguration(FileDownloadConfiguration fileDownloadConfiguration) {
+        this.fileDownloadConfiguration = fileDownloadConfiguration;
+    }
+
+    public MessageHandlerPoolConfiguration getMessageHandlerPoolConfiguration() {
+        return messageHandlerPoolConfiguration;
+    }
+
+    public void setMessageHandlerPoolConfiguration(MessageHandlerPoolConfiguration messageHandlerPoolConfiguration) {
+        this.messageHandlerPoolConfiguration = messageHandlerPoolConfiguration;
+    }
+
     public boolean isExposeAgentControlServices() {
         return exposeAgentControlServices;
     }
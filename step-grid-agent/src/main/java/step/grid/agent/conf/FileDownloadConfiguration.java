@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent.conf;
+
+import step.grid.filemanager.DirectoryPackagingConfiguration;
+
+/**
+ * Configuration of the download of the file versions from the grid (or grid proxy) by the agent
+ */
+public class FileDownloadConfiguration {
+
+    /**
+     * If files larger than one chunk should be downloaded in chunks using HTTP range requests. Chunked downloads
+     * are fetched in parallel, resumed from the last completed chunk on retry and verified against the checksum
+     * provided by the grid
+     */
+    private boolean enableChunkedDownloads = true;
+    /**
+     * The size in bytes of the chunks
+     */
+    private int chunkSize = 8 * 1024 * 1024;
+    /**
+     * The maximum number of chunks downloaded in parallel by the agent
+     */
+    private int parallelism = 4;
+    /**
+     * The extraction of the directory packages downloaded in chunks
+     */
+    private DirectoryPackagingConfiguration extraction = new DirectoryPackagingConfiguration();
+    /**
+     * If new versions of directories and zip files should be downloaded as delta of the previous version held by
+     * the agent. Only the entries that changed are then transferred. The download falls back to a full download
+     * if the delta cannot be applied
+     */
+    private boolean enableDeltaDownloads = true;
+    /**
+     * If the agent should take part in the peer distribution of the file versions. The agent then advertises the files
+     * it holds to the grid, serves them to the other agents and downloads new file versions from the peers hinted
+     * by the grid before falling back to the grid. Requires the peer distribution to be enabled on the grid
+     */
+    private boolean enablePeerDownloads = false;
+    /**
+     * The maximum number of file versions served concurrently by the agent to the other agents
+     */
+    private int maxConcurrentPeerUploads = 4;
+
+    public boolean isEnableChunkedDownloads() {
+        return enableChunkedDownloads;
+    }
+
+    public void setEnableChunkedDownloads(boolean enableChunkedDownloads) {
+        this.enableChunkedDownloads = enableChunkedDownloads;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public DirectoryPackagingConfiguration getExtraction() {
+        return extraction;
+    }
+
+    public void setExtraction(DirectoryPackagingConfiguration extraction) {
+        this.extraction = extraction;
+    }
+
+    public boolean isEnableDeltaDownloads() {
+        return enableDeltaDownloads;
+    }
+
+    public void setEnableDeltaDownloads(boolean enableDeltaDownloads) {
+        this.enableDeltaDownloads = enableDeltaDownloads;
+    }
+
+    public boolean isEnablePeerDownloads() {
+        return enablePeerDownloads;
+    }
+
+    public void setEnablePeerDownloads(boolean enablePeerDownloads) {
+        this.enablePeerDownloads = enablePeerDownloads;
+    }
+
+    public int getMaxConcurrentPeerUploads() {
+        return maxConcurrentPeerUploads;
+    }
+
+    public void setMaxConcurrentPeerUploads(int maxConcurrentPeerUploads) {
+        this.maxConcurrentPeerUploads = maxConcurrentPeerUploads;
+    }
+}
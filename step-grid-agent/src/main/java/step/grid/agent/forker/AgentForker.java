@@ -262,7 +262,7 @@ public class AgentForker implements AutoCloseable {
             }
 
             logger.info("Calling forked agent {}...", id);
-            return gridClient.call(tokenHandle.getID(), message.getPayload(), message.getHandler(), message.getHandlerPackage(), message.getProperties(), callTimeout);
+            return gridClient.callWithRawPayload(tokenHandle.getID(), message.getPayloadJson(), message.getHandler(), message.getHandlerPackage(), message.getProperties(), callTimeout);
         }
 
         public void interruptExecution() {
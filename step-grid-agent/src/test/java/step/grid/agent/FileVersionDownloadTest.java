@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import ch.exense.commons.io.FileHelper;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.GridImpl;
+import step.grid.agent.conf.FileDownloadConfiguration;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.ControllerCallException;
+import step.grid.filemanager.FileChecksum;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+import step.grid.filemanager.FileManagerClientImpl;
+import step.grid.filemanager.FileManagerConfiguration;
+import step.grid.filemanager.LocalContent;
+import step.grid.filemanager.ZipManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FileVersionDownloadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileVersionDownloadTest.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String ENTITY_TAG = "\"f1_1\"";
+
+    private final FileVersionId fileVersionId = new FileVersionId("f1", "1");
+    private byte[] content;
+    private File container;
+    private ExecutorService executorService;
+    private FileDownloadConfiguration configuration;
+
+    // Behavior of the simulated file server
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final Set<Long> failingChunkOffsets = ConcurrentHashMap.newKeySet();
+    private volatile boolean supportRanges = true;
+    private volatile boolean unavailable = false;
+    private volatile String checksum;
+    private volatile String entityTag = ENTITY_TAG;
+    private volatile boolean changeEntityTagAfterFirstRequest = false;
+
+    @Before
+    public void before() throws Exception {
+        // Not a multiple of the chunk size
+        content = new byte[16 * CHUNK_SIZE + 1000];
+        new Random(0).nextBytes(content);
+        File contentFile = FileHelper.createTempFile();
+        Files.write(contentFile.toPath(), content);
+        checksum = FileChecksum.compute(contentFile);
+        contentFile.delete();
+
+        container = FileHelper.createTempFolder();
+        executorService = Executors.newFixedThreadPool(4);
+        configuration = new FileDownloadConfiguration();
+        configuration.setChunkSize(CHUNK_SIZE);
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+        FileHelper.deleteFolder(container);
+    }
+
+    @Test
+    public void testChunkedDownload() throws Exception {
+        FileVersion fileVersion = newDownload().download();
+        assertDownloaded(fileVersion);
+        assertEquals(17, requestCount.get());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        failingChunkOffsets.add(5L * CHUNK_SIZE);
+        failingChunkOffsets.add(11L * CHUNK_SIZE);
+        FileVersionDownload download = newDownload();
+        assertThrows(ControllerCallException.class, download::download);
+        assertEquals(15, download.getCompletedChunkCount());
+
+        // Only the 2 missing chunks are downloaded again
+        requestCount.set(0);
+        FileVersion fileVersion = download.download();
+        assertDownloaded(fileVersion);
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        String validChecksum = checksum;
+        checksum = "invalid";
+        FileVersionDownload download = newDownload();
+        ControllerCallException exception = assertThrows(ControllerCallException.class, download::download);
+        assertTrue(exception.getCause().getMessage().contains("Checksum mismatch"));
+        // The partial file cannot be trusted and has been deleted
+        assertEquals(0, container.list().length);
+
+        // The next attempt restarts from scratch
+        checksum = validChecksum;
+        requestCount.set(0);
+        assertDownloaded(download.download());
+        assertEquals(17, requestCount.get());
+    }
+
+    @Test
+    public void testRepresentationChangedDuringDownload() throws Exception {
+        changeEntityTagAfterFirstRequest = true;
+        FileVersionDownload download = newDownload();
+        ControllerCallException exception = assertThrows(ControllerCallException.class, download::download);
+        assertTrue(exception.getCause().getMessage().contains("changed during its download"));
+        // The other chunks have been aborted before deleting the partial file, which isn't recreated by them
+        assertEquals(0, download.getCompletedChunkCount());
+        assertEquals(0, container.list().length);
+
+        // The next attempt restarts from scratch
+        requestCount.set(0);
+        assertDownloaded(download.download());
+        assertEquals(17, requestCount.get());
+    }
+
+    @Test
+    public void testServerUnavailable() throws Exception {
+        unavailable = true;
+        FileVersionDownload download = newDownload();
+        // The rejection of the request by an overloaded server is retryable
+        assertThrows(ControllerCallException.class, download::download);
+        unavailable = false;
+        assertDownloaded(download.download());
+    }
+
+    @Test
+    public void testServerWithoutRangeSupport() throws Exception {
+        supportRanges = false;
+        assertDownloaded(newDownload().download());
+        assertEquals(1, requestCount.get());
+    }
+
+    @Test
+    public void testChecksumMismatchWithoutRangeSupport() throws Exception {
+        supportRanges = false;
+        String validChecksum = checksum;
+        checksum = "invalid";
+        FileVersionDownload download = newDownload();
+        ControllerCallException exception = assertThrows(ControllerCallException.class, download::download);
+        assertTrue(exception.getCause().getMessage().contains("Checksum mismatch"));
+        // The corrupted file has been deleted
+        assertEquals(0, container.list().length);
+
+        checksum = validChecksum;
+        assertDownloaded(download.download());
+    }
+
+    @Test
+    public void testChunkedDownloadsDisabled() throws Exception {
+        configuration.setEnableChunkedDownloads(false);
+        assertDownloaded(newDownload().download());
+        assertEquals(1, requestCount.get());
+    }
+
+    @Test
+    public void testLocalContentReuse() throws Exception {
+        File localFolder = FileHelper.createTempFolder();
+        try {
+            File localFile = new File(localFolder, "local.bin");
+            Files.write(localFile.toPath(), content);
+            FileVersion localFileVersion = new FileVersion(localFile, new FileVersionId("local", "1"), false);
+            AtomicReference<String> reportedChecksum = new AtomicReference<>();
+            LocalContent localContent = new LocalContent() {
+                @Override
+                public FileVersion getFileVersion(String contentChecksum) {
+                    return contentChecksum.equals(checksum) ? localFileVersion : null;
+                }
+
+                @Override
+                public void setChecksum(String contentChecksum) {
+                    reportedChecksum.set(contentChecksum);
+                }
+            };
+            FileVersionDownload download = new FileVersionDownload(fileVersionId, container, configuration, executorService, this::serve, null, localContent);
+            assertDownloaded(download.download());
+            assertEquals(checksum, reportedChecksum.get());
+            // Only the first chunk has been requested
+            assertEquals(1, requestCount.get());
+        } finally {
+            FileHelper.deleteFolder(localFolder);
+        }
+    }
+
+    @Test
+    public void testChunkedDownloadFromGrid() throws Exception {
+        File gridFolder = FileHelper.createTempFolder();
+        File contentFile = new File(FileHelper.createTempFolder(), "file.bin");
+        Files.write(contentFile.toPath(), content);
+        GridImpl grid = new GridImpl(gridFolder, 0, new GridImpl.GridImplConfig());
+        grid.start();
+        RegistrationClient registrationClient = null;
+        try {
+            FileVersion registeredFileVersion = grid.registerFile(contentFile, true);
+            String gridUrl = "http://localhost:" + grid.getServerPort();
+            registrationClient = new RegistrationClient(gridUrl, gridUrl, 3000, 10000, 1, 100, null, configuration);
+            assertDownloaded(registrationClient.saveFileVersionTo(registeredFileVersion.getVersionId(), container));
+        } finally {
+            if (registrationClient != null) {
+                registrationClient.close();
+            }
+            grid.stop();
+            FileHelper.deleteFolder(gridFolder);
+            FileHelper.deleteFolder(contentFile.getParentFile());
+        }
+    }
+
+    @Test
+    public void testDeltaDownloadOfZipFile() throws Exception {
+        File localFolder = FileHelper.createTempFolder();
+        try {
+            Random random = new Random(0);
+            byte[][] entries = new byte[8][];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = new byte[4 * CHUNK_SIZE];
+                random.nextBytes(entries[i]);
+            }
+            File previousFile = new File(localFolder, "previous.zip");
+            writeZip(previousFile, entries);
+            // The new version differs by one entry
+            random.nextBytes(entries[3]);
+            File newFile = new File(localFolder, "file.bin");
+            writeZip(newFile, entries);
+            content = Files.readAllBytes(newFile.toPath());
+            checksum = FileChecksum.compute(newFile);
+            ZipManifest manifest = ZipManifest.read(newFile);
+            manifest.setChecksum(checksum);
+
+            FileVersion previousFileVersion = new FileVersion(previousFile, new FileVersionId("f1", "0"), false);
+            FileVersionDownload download = new FileVersionDownload(fileVersionId, container, configuration, executorService, this::serve,
+                () -> manifest, newPreviousVersionContent(previousFileVersion));
+            assertDownloaded(download.download());
+            // Only the changed entry and the zip headers have been transferred
+            assertTrue(servedBytes.get() < 2 * entries[3].length);
+        } finally {
+            FileHelper.deleteFolder(localFolder);
+        }
+    }
+
+    @Test
+    public void testDeltaDownloadFallback() throws Exception {
+        File localFolder = FileHelper.createTempFolder();
+        try {
+            File previousFile = new File(localFolder, "previous.zip");
+            writeZip(previousFile, new byte[][]{content});
+            ZipManifest manifest = ZipManifest.read(previousFile);
+            // Invalid manifest: the delta transfer fails and the whole file is downloaded
+            manifest.setFileName("file.bin");
+            manifest.setChecksum(checksum);
+            FileVersion previousFileVersion = new FileVersion(previousFile, new FileVersionId("f1", "0"), false);
+            FileVersionDownload download = new FileVersionDownload(fileVersionId, container, configuration, executorService, this::serve,
+                () -> manifest, newPreviousVersionContent(previousFileVersion));
+            assertDownloaded(download.download());
+        } finally {
+            FileHelper.deleteFolder(localFolder);
+        }
+    }
+
+    @Test
+    public void testDeltaDownloadOfDirectoryFromGrid() throws Exception {
+        File gridFolder = FileHelper.createTempFolder();
+        File sourceFolder = FileHelper.createTempFolder();
+        File clientFolder = FileHelper.createTempFolder();
+        GridImpl grid = new GridImpl(gridFolder, 0, new GridImpl.GridImplConfig());
+        grid.start();
+        RegistrationClient registrationClient = null;
+        FileManagerClientImpl fileManagerClient = null;
+        try {
+            File directory = new File(sourceFolder, "lib");
+            directory.mkdirs();
+            Random random = new Random(0);
+            for (int i = 0; i < 10; i++) {
+                byte[] jar = new byte[1024 * 1024 + random.nextInt(1024 * 1024)];
+                random.nextBytes(jar);
+                Files.write(new File(directory, "lib" + i + ".jar").toPath(), jar);
+            }
+            String gridUrl = "http://localhost:" + grid.getServerPort();
+            registrationClient = new RegistrationClient(gridUrl, gridUrl, 3000, 10000, 1, 100, null, configuration);
+            fileManagerClient = new FileManagerClientImpl(clientFolder, registrationClient, new FileManagerConfiguration());
+
+            FileVersion previousFileVersion = grid.registerFile(directory, true);
+            long t1 = System.currentTimeMillis();
+            File previousFolder = fileManagerClient.requestFileVersion(previousFileVersion.getVersionId(), true).getFile();
+            long fullDownloadDuration = System.currentTimeMillis() - t1;
+
+            byte[] changedJar = new byte[1024 * 1024];
+            random.nextBytes(changedJar);
+            Files.write(new File(directory, "lib3.jar").toPath(), changedJar);
+            // Ensure that the new version differs from the previous one
+            new File(directory, "lib3.jar").setLastModified(System.currentTimeMillis() + 10000);
+            FileVersion newFileVersion = grid.registerFile(directory, true);
+            assertNotEquals(previousFileVersion.getVersionId(), newFileVersion.getVersionId());
+            t1 = System.currentTimeMillis();
+            File newFolder = fileManagerClient.requestFileVersion(newFileVersion.getVersionId(), true).getFile();
+            long deltaDownloadDuration = System.currentTimeMillis() - t1;
+            logger.info("Downloaded the first version in {}ms and the second one in {}ms", fullDownloadDuration, deltaDownloadDuration);
+
+            for (int i = 0; i < 10; i++) {
+                Path path = new File(newFolder, "lib" + i + ".jar").toPath();
+                assertArrayEquals(Files.readAllBytes(new File(directory, "lib" + i + ".jar").toPath()), Files.readAllBytes(path));
+                // The unchanged files have been reused from the previous version
+                assertEquals(i != 3, Files.isSameFile(path, new File(previousFolder, "lib" + i + ".jar").toPath()));
+            }
+        } finally {
+            if (fileManagerClient != null) {
+                fileManagerClient.close();
+            }
+            if (registrationClient != null) {
+                registrationClient.close();
+            }
+            grid.stop();
+            FileHelper.deleteFolder(gridFolder);
+            FileHelper.deleteFolder(sourceFolder);
+            FileHelper.deleteFolder(clientFolder);
+        }
+    }
+
+    private static LocalContent newPreviousVersionContent(FileVersion previousFileVersion) {
+        return new LocalContent() {
+            @Override
+            public FileVersion getFileVersion(String contentChecksum) {
+                return null;
+            }
+
+            @Override
+            public void setChecksum(String contentChecksum) {
+            }
+
+            @Override
+            public FileVersion getPreviousFileVersion(FileVersionId fileVersionId) {
+                return previousFileVersion;
+            }
+        };
+    }
+
+    private static void writeZip(File file, byte[][] entries) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < entries.length; i++) {
+                zip.putNextEntry(new ZipEntry("entry" + i + ".bin"));
+                zip.write(entries[i]);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private void assertDownloaded(FileVersion fileVersion) throws Exception {
+        assertEquals(new File(container, "file.bin"), fileVersion.getFile());
+        assertFalse(fileVersion.isDirectory());
+        assertArrayEquals(content, Files.readAllBytes(fileVersion.getFile().toPath()));
+        // Only the data file remains in the container
+        assertEquals(1, container.list().length);
+    }
+
+    private FileVersionDownload newDownload() {
+        return new FileVersionDownload(fileVersionId, container, configuration, executorService, this::serve, null, null);
+    }
+
+    /**
+     * Simulates the responses of the file service of the grid
+     */
+    private Response serve(String range, String ifRange) throws ControllerCallException {
+        String currentEntityTag = entityTag;
+        if (requestCount.incrementAndGet() == 1 && changeEntityTagAfterFirstRequest) {
+            entityTag = "\"f1_2\"";
+        }
+        if (unavailable) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Maximum number of queued file transfers reached").build();
+        }
+        ByteRange byteRange = null;
+        if (supportRanges && (ifRange == null || ifRange.equals(currentEntityTag))) {
+            try {
+                byteRange = ByteRange.parse(range, content.length);
+            } catch (ByteRange.UnsatisfiableRangeException e) {
+                return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).build();
+            }
+        }
+        Response.ResponseBuilder builder;
+        if (byteRange != null) {
+            if (failingChunkOffsets.remove(byteRange.getOffset())) {
+                throw new ControllerCallException(new SocketException("Connection reset"));
+            }
+            servedBytes.addAndGet(byteRange.getLength());
+            builder = Response.status(Response.Status.PARTIAL_CONTENT)
+                .header(ByteRange.CONTENT_RANGE_HEADER, byteRange.toContentRange(content.length))
+                .entity(new ByteArrayInputStream(content, (int) byteRange.getOffset(), (int) byteRange.getLength()));
+        } else {
+            servedBytes.addAndGet(content.length);
+            builder = Response.ok(new ByteArrayInputStream(content));
+        }
+        return builder.header(HttpHeaders.ETAG, currentEntityTag)
+            .header(FileChecksum.CHECKSUM_HEADER, checksum)
+            .header("content-disposition", "attachment; filename = file.bin; type = file").build();
+    }
+}
@@ -20,6 +20,7 @@ package step.grid.agent;
 
 import java.util.Map;
 
+import step.grid.agent.handler.MessageHandlerPoolConfiguration;
 import step.grid.contextbuilder.ApplicationContextBuilder;
 import step.grid.filemanager.FileManagerClient;
 
@@ -31,6 +32,8 @@ public class AgentTokenServices {
 
     ApplicationContextBuilder applicationContextBuilder;
 
+    MessageHandlerPoolConfiguration messageHandlerPoolConfiguration = new MessageHandlerPoolConfiguration();
+
     public AgentTokenServices(FileManagerClient fileManagerClient) {
         super();
 
@@ -56,4 +59,12 @@ public class AgentTokenServices {
     public void setApplicationContextBuilder(ApplicationContextBuilder applicationContextBuilder) {
         this.applicationContextBuilder = applicationContextBuilder;
     }
+
+    public MessageHandlerPoolConfiguration getMessageHandlerPoolConfiguration() {
+        return messageHandlerPoolConfiguration;
+    }
+
+    public void setMessageHandlerPoolConfiguration(MessageHandlerPoolConfiguration messageHandlerPoolConfiguration) {
+        this.messageHandlerPoolConfiguration = messageHandlerPoolConfiguration;
+    }
 }
@@ -23,4 +23,9 @@ public class AgentTypes {
     public static final String AGENT_TYPE_KEY = "$agenttype";
     public static final String AGENT_TYPE = "default";
 
+    /**
+     * Name of the HTTP header identifying the agent in its requests to the grid
+     */
+    public static final String AGENT_ID_HEADER = "X-Agent-Id";
+
 }
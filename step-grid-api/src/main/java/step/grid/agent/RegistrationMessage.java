@@ -20,8 +20,11 @@ package step.grid.agent;
 
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import step.grid.AgentRef;
 import step.grid.Token;
+import step.grid.filemanager.FileVersionId;
 
 public class RegistrationMessage {
 
@@ -29,6 +32,14 @@ public class RegistrationMessage {
 
     private List<Token> tokens;
 
+    /**
+     * The file versions held by the agent that other agents can download from it. Only sent by the agents
+     * taking part in the peer distribution of the file versions, and only if they changed since their last
+     * registration. The grid keeps the file versions previously advertised by the agent otherwise
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<FileVersionId> fileVersions;
+
     public RegistrationMessage() {
         super();
     }
@@ -55,4 +66,12 @@ public class RegistrationMessage {
         this.tokens = tokens;
     }
 
+    public List<FileVersionId> getFileVersions() {
+        return fileVersions;
+    }
+
+    public void setFileVersions(List<FileVersionId> fileVersions) {
+        this.fileVersions = fileVersions;
+    }
+
 }
@@ -19,13 +19,20 @@
 package step.grid.agent.handler;
 
 import java.net.MalformedURLException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import step.grid.agent.AgentTokenServices;
+import step.grid.agent.tokenpool.AgentTokenWrapper;
+import step.grid.io.InputMessage;
+import step.grid.io.OutputMessage;
 
 public class MessageHandlerPool implements AutoCloseable {
 
@@ -33,38 +40,78 @@ public class MessageHandlerPool implements AutoCloseable {
 
     private final AgentTokenServices tokenServices;
 
-    private Map<String, MessageHandler> pool = new HashMap<>();
+    private final MessageHandlerPoolConfiguration configuration;
+
+    // The handlers are created only once per classname and concurrently to the creation of other handlers
+    private final Map<String, CompletableFuture<MessageHandler>> pool = new ConcurrentHashMap<>();
 
     public MessageHandlerPool(AgentTokenServices tokenServices) {
         super();
         this.tokenServices = tokenServices;
+        MessageHandlerPoolConfiguration configuration = tokenServices != null ? tokenServices.getMessageHandlerPoolConfiguration() : null;
+        this.configuration = configuration != null ? configuration : new MessageHandlerPoolConfiguration();
     }
 
     public MessageHandler get(String handlerClassname) throws Exception {
         return get(handlerClassname, Thread.currentThread().getContextClassLoader());
     }
 
-    public synchronized MessageHandler get(String handlerClassname, ClassLoader classLoader) throws Exception {
-        MessageHandler handler = pool.get(handlerClassname);
-
-        if (handler == null) {
-            handler = createHandler(handlerClassname, classLoader);
-            pool.put(handlerClassname, handler);
+    /**
+     * @param handlerClassname the classname of the handler
+     * @param classLoader      the class loader used to load the handler class when it is requested for the first time
+     * @return the shared instance of the handler or, for handlers pooled as non thread-safe, a handler that checks out
+     * an instance of the pool for each execution
+     * @throws Exception
+     */
+    public MessageHandler get(String handlerClassname, ClassLoader classLoader) throws Exception {
+        CompletableFuture<MessageHandler> handlerFuture = pool.get(handlerClassname);
+        if (handlerFuture == null) {
+            CompletableFuture<MessageHandler> newHandlerFuture = new CompletableFuture<>();
+            handlerFuture = pool.putIfAbsent(handlerClassname, newHandlerFuture);
+            if (handlerFuture == null) {
+                handlerFuture = newHandlerFuture;
+                try {
+                    newHandlerFuture.complete(createPoolEntry(handlerClassname, classLoader));
+                } catch (Throwable e) {
+                    // Remove the failed future to allow subsequent calls to retry
+                    pool.remove(handlerClassname, newHandlerFuture);
+                    newHandlerFuture.completeExceptionally(e);
+                }
+            }
+        }
+        try {
+            return handlerFuture.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
         }
-
-        return handler;
     }
 
-    private MessageHandler createHandler(String handlerClassname, ClassLoader classLoader) throws ReflectiveOperationException, MalformedURLException,
-        ClassNotFoundException, InstantiationException, IllegalAccessException {
-        MessageHandler handler;
-        try {
-            Class<?> class_ = classLoader.loadClass(handlerClassname);
-            handler = newInstance(class_);
-        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-            throw e;
+    private MessageHandler createPoolEntry(String handlerClassname, ClassLoader classLoader) throws ReflectiveOperationException, MalformedURLException {
+        Class<?> class_ = classLoader.loadClass(handlerClassname);
+        if (configuration.isEnablePooling() && isNonThreadSafe(class_)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Pooling up to {} instances of the non thread-safe handler {}", configuration.getMaxInstancesPerHandler(), handlerClassname);
+            }
+            return new PooledMessageHandler(class_, configuration.getMaxInstancesPerHandler());
+        } else {
+            return createHandler(class_);
         }
+    }
 
+    private boolean isNonThreadSafe(Class<?> class_) {
+        return class_.isAnnotationPresent(NonThreadSafe.class) ||
+                (configuration.getNonThreadSafeHandlers() != null && configuration.getNonThreadSafeHandlers().contains(class_.getName()));
+    }
+
+    private MessageHandler createHandler(Class<?> class_) throws ReflectiveOperationException {
+        MessageHandler handler = newInstance(class_);
         if (handler instanceof AgentContextAware && tokenServices != null) {
             ((AgentContextAware) handler).init(tokenServices);
         }
@@ -81,13 +128,68 @@ public class MessageHandlerPool implements AutoCloseable {
         }
     }
 
+    /**
+     * Bounded pool of instances of a non thread-safe handler. Each execution checks out an instance that
+     * is returned to the pool after the execution. Instances are created lazily
+     */
+    private class PooledMessageHandler implements MessageHandler {
+
+        private final Class<?> handlerClass;
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<MessageHandler> idleInstances = new ConcurrentLinkedDeque<>();
+        private final ConcurrentLinkedDeque<MessageHandler> allInstances = new ConcurrentLinkedDeque<>();
+
+        private PooledMessageHandler(Class<?> handlerClass, int maxInstances) throws ReflectiveOperationException {
+            this.handlerClass = handlerClass;
+            this.permits = new Semaphore(Math.max(1, maxInstances));
+            // Create a first instance eagerly to report instantiation errors on first use
+            MessageHandler handler = createHandler(handlerClass);
+            allInstances.add(handler);
+            idleInstances.push(handler);
+        }
+
+        @Override
+        public OutputMessage handle(AgentTokenWrapper token, InputMessage message) throws Exception {
+            permits.acquire();
+            try {
+                MessageHandler handler = idleInstances.poll();
+                if (handler == null) {
+                    handler = createHandler(handlerClass);
+                    allInstances.add(handler);
+                }
+                try {
+                    return handler.handle(token, message);
+                } finally {
+                    // The most recently used instance is reused first to keep its caches warm
+                    idleInstances.push(handler);
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            for (MessageHandler handler : allInstances) {
+                try {
+                    handler.close();
+                } catch (Exception e) {
+                    logger.error("Unable to close an instance of the message handler {}", handlerClass.getName(), e);
+                }
+            }
+        }
+    }
+
     @Override
     public void close() throws Exception {
         pool.forEach((k, v) -> {
-            try {
-                v.close();
-            } catch (Exception e) {
-                logger.error("Unable to close the message handler {}", k, e);
+            MessageHandler handler = v.isDone() && !v.isCompletedExceptionally() ? v.join() : null;
+            if (handler != null) {
+                try {
+                    handler.close();
+                } catch (Exception e) {
+                    logger.error("Unable to close the message handler {}", k, e);
+                }
             }
         });
     }
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageHandlerPoolConfiguration {
+
+    private boolean enablePooling = false;
+
+    private List<String> nonThreadSafeHandlers = new ArrayList<>();
+
+    private int maxInstancesPerHandler = Runtime.getRuntime().availableProcessors();
+
+    public MessageHandlerPoolConfiguration() {
+    }
+
+    /**
+     * @return whether the handlers annotated with {@link NonThreadSafe} or listed in {@link #getNonThreadSafeHandlers()}
+     * should be instantiated once per concurrent execution. If disabled, a single instance of each handler is shared
+     * by all executions
+     */
+    public boolean isEnablePooling() {
+        return enablePooling;
+    }
+
+    public void setEnablePooling(boolean enablePooling) {
+        this.enablePooling = enablePooling;
+    }
+
+    /**
+     * @return the classnames of the handlers to be considered as non thread-safe in addition to the ones annotated with {@link NonThreadSafe}
+     */
+    public List<String> getNonThreadSafeHandlers() {
+        return nonThreadSafeHandlers;
+    }
+
+    public void setNonThreadSafeHandlers(List<String> nonThreadSafeHandlers) {
+        this.nonThreadSafeHandlers = nonThreadSafeHandlers;
+    }
+
+    /**
+     * @return the maximum number of instances of a non thread-safe handler. Executions wait for an instance to be
+     * returned to the pool when this number is reached
+     */
+    public int getMaxInstancesPerHandler() {
+        return maxInstancesPerHandler;
+    }
+
+    public void setMaxInstancesPerHandler(int maxInstancesPerHandler) {
+        this.maxInstancesPerHandler = maxInstancesPerHandler;
+    }
+}
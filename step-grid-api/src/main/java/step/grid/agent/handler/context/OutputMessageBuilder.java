@@ -18,19 +18,17 @@
  ******************************************************************************/
 package step.grid.agent.handler.context;
 
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import step.grid.io.Attachment;
-import step.grid.io.AttachmentHelper;
+import step.grid.io.BinaryAttachment;
 import step.grid.io.OutputMessage;
+import step.grid.io.PayloadHelper;
 
 /**
  * A builder for OutputMessage instances.
@@ -47,7 +45,7 @@ public class OutputMessageBuilder {
     public OutputMessageBuilder() {
         super();
 
-        payload = new ObjectMapper().createObjectNode();
+        payload = PayloadHelper.createObjectNode();
     }
 
     public ObjectNode getPayload() {
@@ -132,10 +130,16 @@ public class OutputMessageBuilder {
     }
 
     /**
+     * Sets the payload of this output as raw JSON. The JSON is only checked to be
+     * well-formed and passed through to the {@link OutputMessage} without building its tree
      *
-     * @param payloadJson the payload of this output.
+     * @param payloadJson the payload of this output as valid JSON.
+     * @throws RuntimeException if the payload isn't a single well-formed JSON value
      */
     public void setPayloadJson(String payloadJson) {
+        if (payloadJson != null) {
+            PayloadHelper.validate(payloadJson);
+        }
         this.payloadJson = payloadJson;
     }
 
@@ -149,6 +153,17 @@ public class OutputMessageBuilder {
         attachments.addAll(attachments);
     }
 
+    /**
+     * Adds a binary attachment to the output. The content is transferred as Base64
+     * to the clients supporting it instead of hex
+     *
+     * @param name    the name of the attachment
+     * @param content the content of the attachment
+     */
+    public void addAttachment(String name, byte[] content) {
+        addAttachment(new BinaryAttachment(name, content));
+    }
+
     /**
      * Adds an attachment to the output
      *
@@ -172,30 +187,18 @@ public class OutputMessageBuilder {
      */
     public OutputMessage build() {
         OutputMessage message = new OutputMessage();
-        JsonNode result;
         if (payloadJson == null) {
-            result = payload;
+            message.setPayload(payload);
         } else {
-            ObjectMapper mapper = new ObjectMapper();
-
-            try {
-                result = mapper.reader().readTree(payloadJson);
-            } catch (IOException e) {
-                throw new RuntimeException("Error while parsing json " + payloadJson, e);
-            }
-            ;
+            message.setPayloadJson(payloadJson);
         }
-        message.setPayload(result);
         message.setAttachments(attachments);
         return message;
     }
 
     private Attachment generateAttachmentForException(Throwable e) {
-        Attachment attachment = new Attachment();
-        attachment.setName("exception.log");
         StringWriter w = new StringWriter();
         e.printStackTrace(new PrintWriter(w));
-        attachment.setHexContent(AttachmentHelper.getHex(w.toString().getBytes()));
-        return attachment;
+        return new BinaryAttachment("exception.log", w.toString().getBytes());
     }
 }
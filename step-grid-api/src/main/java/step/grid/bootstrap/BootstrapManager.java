@@ -26,6 +26,7 @@ import step.grid.agent.handler.MessageHandler;
 import step.grid.agent.handler.MessageHandlerPool;
 import step.grid.agent.tokenpool.AgentTokenWrapper;
 import step.grid.contextbuilder.ApplicationContextBuilder;
+import step.grid.contextbuilder.ApplicationContextControl;
 import step.grid.contextbuilder.RemoteApplicationContextFactory;
 import step.grid.filemanager.FileManagerClient;
 import step.grid.filemanager.FileVersionId;
@@ -58,15 +59,38 @@ public class BootstrapManager {
         return contextBuilder.runInContext(new Callable<OutputMessage>() {
             @Override
             public OutputMessage call() throws Exception {
-                ApplicationContextBuilder.ApplicationContext currentContext = contextBuilder.getCurrentContext();
-                MessageHandlerPool handlerPool = (MessageHandlerPool) currentContext.computeObjectToBeClosedWithContextIfAbsent("handlerPool",
-                    k -> new MessageHandlerPool(agentTokenServices));
-                MessageHandler handler = handlerPool.get(handlerClass);
+                MessageHandler handler = getHandlerPool().get(handlerClass);
                 return handler.handle(token, message);
             }
         });
     }
 
+    /**
+     * Fetches the handler package and builds its context ahead of its first use by {@link #runBootstraped(AgentTokenWrapper, InputMessage)}.
+     * The context isn't cleanable, like the contexts of handler packages built when processing messages, and thus
+     * remains cached after this call
+     *
+     * @param handlerPackage the handler package to be prefetched
+     * @param handlerClass   the classname of the handler to be instantiated in the context of the package. Might be null
+     * @throws Exception
+     */
+    public void prefetch(FileVersionId handlerPackage, String handlerClass) throws Exception {
+        contextBuilder.resetContext();
+        try (ApplicationContextControl ignored = contextBuilder.pushContext(new RemoteApplicationContextFactory(fileManager, handlerPackage, false), false)) {
+            if (handlerClass != null) {
+                contextBuilder.runInContext(() -> getHandlerPool().get(handlerClass));
+            }
+        } finally {
+            contextBuilder.resetContext();
+        }
+    }
+
+    private MessageHandlerPool getHandlerPool() {
+        ApplicationContextBuilder.ApplicationContext currentContext = contextBuilder.getCurrentContext();
+        return (MessageHandlerPool) currentContext.computeObjectToBeClosedWithContextIfAbsent("handlerPool",
+            k -> new MessageHandlerPool(agentTokenServices));
+    }
+
     public OutputMessage runBootstraped(AgentTokenWrapper token, InputMessage message) throws IOException, Exception {
         return runBootstraped(token, message, message.getHandler(), message.getHandlerPackage());
 
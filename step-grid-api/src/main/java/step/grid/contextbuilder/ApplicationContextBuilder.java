@@ -23,11 +23,20 @@ import org.slf4j.LoggerFactory;
 import step.grid.filemanager.FileManagerException;
 import step.grid.threads.NamedThreadFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -72,6 +81,16 @@ public class ApplicationContextBuilder implements AutoCloseable {
     private ScheduledExecutorService scheduledPool;
     private ScheduledFuture<?> future;
     private final ExecutionContextCacheConfiguration executionContextCacheConfiguration;
+    private final ClassLoaderCaches classLoaderCaches;
+    private final int maxCachedContexts;
+    private final long maxCachedContextsEstimatedSize;
+    private final Object evictionLock = new Object();
+    // The number and estimated size of the cleanable contexts, maintained when they are built and closed to check the capacity without browsing the tree
+    private final AtomicInteger cachedContextCount = new AtomicInteger();
+    private final AtomicLong cachedContextsEstimatedSize = new AtomicLong();
+    // Orders the accesses to the contexts for the LRU eviction independently of the clock resolution
+    private final AtomicLong accessSequence = new AtomicLong();
+    private final ApplicationContextEvictionStatistics evictionStatistics = new ApplicationContextEvictionStatistics();
 
     protected class Branch {
 
@@ -123,10 +142,18 @@ public class ApplicationContextBuilder implements AutoCloseable {
 
     public class ApplicationContext {
 
+        // Usage count of a context that has been closed and cannot be used anymore
+        private static final int CLOSED = -1;
+
         private final AtomicInteger usage = new AtomicInteger(0);
 
         private volatile long lastUsage = System.currentTimeMillis();
 
+        private volatile long lastAccess = accessSequence.incrementAndGet();
+
+        // The size of the libraries of the class loader used to estimate the footprint of the context. See estimateSize()
+        private volatile long estimatedSize;
+
         private final String applicationContextId;
 
         private final ApplicationContext parentContext;
@@ -135,7 +162,8 @@ public class ApplicationContextBuilder implements AutoCloseable {
 
         private ApplicationContextFactory descriptor;
 
-        private Map<String, ApplicationContext> childContexts = new ConcurrentHashMap<>();
+        // The child contexts are created only once per key and concurrently to the creation of other keys
+        private Map<String, CompletableFuture<ApplicationContext>> childContexts = new ConcurrentHashMap<>();
 
         private ConcurrentHashMap<String, ContextObjectWrapper> contextObjects = new ConcurrentHashMap<>();
         protected final boolean cleanable;
@@ -147,6 +175,10 @@ public class ApplicationContextBuilder implements AutoCloseable {
             this.parentContext = parentContext;
             this.cleanable = cleanable;
             buildClassLoader(parentContext);
+            if (cleanable) {
+                cachedContextCount.incrementAndGet();
+                cachedContextsEstimatedSize.addAndGet(estimatedSize);
+            }
         }
 
         protected ApplicationContext(ClassLoader classLoader, String applicationContextId) {
@@ -192,34 +224,65 @@ public class ApplicationContextBuilder implements AutoCloseable {
         public void registerUsage() {
             usage.incrementAndGet();
             lastUsage = System.currentTimeMillis();
+            lastAccess = accessSequence.incrementAndGet();
         }
 
-        public void releaseUsage() {
-            synchronized (ApplicationContextBuilder.this) {
-                int currentUsage = usage.decrementAndGet();
-                lastUsage = System.currentTimeMillis();
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Release usage of application context {}. new usage {}", applicationContextId, currentUsage);
+        /**
+         * Registers a usage of this context unless it has been closed concurrently
+         *
+         * @return true if the usage has been registered, false if this context has been closed
+         */
+        private boolean tryRegisterUsage() {
+            int currentUsage;
+            do {
+                currentUsage = usage.get();
+                if (currentUsage == CLOSED) {
+                    return false;
                 }
-                if (currentUsage == 0 && cleanable && cleanupTTLMilliseconds == 0) {
+            } while (!usage.compareAndSet(currentUsage, currentUsage + 1));
+            lastUsage = System.currentTimeMillis();
+            lastAccess = accessSequence.incrementAndGet();
+            return true;
+        }
+
+        public void releaseUsage() {
+            int currentUsage = usage.decrementAndGet();
+            lastUsage = System.currentTimeMillis();
+            lastAccess = accessSequence.incrementAndGet();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Release usage of application context {}. new usage {}", applicationContextId, currentUsage);
+            }
+            if (currentUsage == 0 && cleanable) {
+                if (cleanupTTLMilliseconds == 0) {
                     closeAndCleanupFromParent();
+                } else {
+                    // The context might have been kept above capacity because it was in use
+                    evictIfRequired();
                 }
             }
         }
 
-        private void closeAndCleanupFromParent() {
+        private boolean closeAndCleanupFromParent() {
             if (logger.isTraceEnabled()) {
                 logger.trace("Closing of application context {} and removing it from parent {} started", applicationContextId,
                     (parentContext != null) ? parentContext.applicationContextId : "no parent");
             }
-            boolean closed = _close();
+            // The usage might have been registered again concurrently in which case the context remains open
+            boolean closed = close(false);
             if (closed && parentContext != null) {
-                parentContext.childContexts.remove(this.applicationContextId);
+                parentContext.removeChildContext(this);
             }
+            return closed;
+        }
+
+        private void removeChildContext(ApplicationContext childContext) {
+            // Only remove the entry if it hasn't been replaced by a new context in the meantime
+            childContexts.computeIfPresent(childContext.applicationContextId, (k, f) -> getIfBuilt(f) == childContext ? null : f);
         }
 
         public ApplicationContext getChildContext(String applicationContextId) {
-            return childContexts.get(applicationContextId);
+            CompletableFuture<ApplicationContext> future = childContexts.get(applicationContextId);
+            return future != null ? getIfBuilt(future) : null;
         }
 
         public boolean containsChildContextKey(String applicationContextId) {
@@ -227,11 +290,12 @@ public class ApplicationContextBuilder implements AutoCloseable {
         }
 
         public void putChildContext(String applicationContextId, ApplicationContext applicationContext) {
-            childContexts.put(applicationContextId, applicationContext);
+            childContexts.put(applicationContextId, CompletableFuture.completedFuture(applicationContext));
         }
 
         private void buildClassLoader(ApplicationContext parentContext) throws FileManagerException {
-            ClassLoader classLoader = descriptor.buildClassLoader(parentContext.classLoader);
+            ClassLoader classLoader = descriptor.buildClassLoader(parentContext.classLoader, classLoaderCaches);
+            estimatedSize = estimateSize(classLoader);
             if (logger.isTraceEnabled()) {
                 logger.trace("Loading classloader for {} in application context builder {}", descriptor.getId(), this);
             }
@@ -244,37 +308,66 @@ public class ApplicationContextBuilder implements AutoCloseable {
         /**
          * Method used by descriptor with descriptor.requiresReload() returning true, no implementation exists as of now
          * Legacy implementation was building a new class loader, replacing the current one and clearing the contextObject map
-         * With new implementation, it now close first the current classloader and close the contextObject
-         * the method aims to recreate the class loader which now required to clean up the previous
+         * With new implementation, it closes the child contexts, the previous class loader and the context objects
+         * <p>
+         * The context is reloaded in place: it must be called while holding a usage of this context and is never
+         * marked as closed, so that concurrent pushes keep using this context instead of building a duplicate
+         * and the cleanup job doesn't close it while it is being reloaded
          *
          * @param descriptor
          * @param parentContext
          * @throws FileManagerException
          */
         public void reloadContext(ApplicationContextFactory descriptor, ApplicationContext parentContext) throws FileManagerException {
-            //Start by cleaning previous context
-            close();
-            this.descriptor = descriptor;
-            ClassLoader classLoader = descriptor.buildClassLoader(parentContext.classLoader);
+            //Start by closing the child contexts which are built on top of the previous class loader
+            childContexts.entrySet().removeIf(childAppContextEntry -> {
+                ApplicationContext childContext = getIfBuilt(childAppContextEntry.getValue());
+                return childContext != null && childContext.close();
+            });
+            ClassLoader classLoader = descriptor.buildClassLoader(parentContext.classLoader, classLoaderCaches);
             if (logger.isDebugEnabled()) {
                 logger.debug("Loading classloader for {} in application context builder {}", descriptor.getId(), this);
             }
-            this.classLoader = classLoader;
+            ApplicationContextFactory previousDescriptor = this.descriptor;
             closeContextObjects();
             contextObjects.clear();
+            closeClassLoader();
+            if (previousDescriptor != null) {
+                previousDescriptor.onClassLoaderClosed();
+            }
+            this.descriptor = descriptor;
+            this.classLoader = classLoader;
+            long previousEstimatedSize = estimatedSize;
+            estimatedSize = estimateSize(classLoader);
+            if (cleanable) {
+                cachedContextsEstimatedSize.addAndGet(estimatedSize - previousEstimatedSize);
+            }
         }
 
         public boolean _close() {
+            return close(true);
+        }
+
+        private boolean close(boolean logErrorIfInUse) {
             boolean result;
             if (logger.isDebugEnabled()) {
                 logger.debug("Starting cleanup of application context {}", applicationContextId);
             }
             int currentUsage = usage.get();
-            if (currentUsage != 0) {
-                logger.error("Cleanup requested while the application context {} is still in use, usage count: {}", applicationContextId, currentUsage);
+            if (currentUsage == CLOSED) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("The application context {} has already been closed", applicationContextId);
+                }
+                return true;
+            } else if (currentUsage > 0) {
+                logUsageOnClose(logErrorIfInUse, currentUsage);
                 result = false;
             } else if (!childContexts.isEmpty()) {
-                logger.error("Cleanup requested while the application context still has child context still in use, usage count: {}, child contexts: {}", currentUsage, childContexts);
+                logger.error("Cleanup requested while the application context still has child context still in use, usage count: {}, child contexts: {}", currentUsage, childContexts.keySet());
+                result = false;
+            } else if (!markAsClosed()) {
+                // A usage has been registered concurrently
+                logUsageOnClose(logErrorIfInUse, usage.get());
                 result = false;
             } else if (descriptor != null) {
                 if (logger.isDebugEnabled()) {
@@ -294,10 +387,31 @@ public class ApplicationContextBuilder implements AutoCloseable {
             }
             if (result) {
                 closeContextObjects();
+                if (cleanable) {
+                    cachedContextCount.decrementAndGet();
+                    cachedContextsEstimatedSize.addAndGet(-estimatedSize);
+                }
             }
             return result;
         }
 
+        private boolean markAsClosed() {
+            if (parentContext == null) {
+                // Root contexts are never removed and can therefore be reused after closing
+                return true;
+            } else {
+                return usage.compareAndSet(0, CLOSED);
+            }
+        }
+
+        private void logUsageOnClose(boolean logErrorIfInUse, int currentUsage) {
+            if (logErrorIfInUse) {
+                logger.error("Cleanup requested while the application context {} is still in use, usage count: {}", applicationContextId, currentUsage);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("The application context {} is in use again and won't be closed, usage count: {}", applicationContextId, currentUsage);
+            }
+        }
+
         private void closeContextObjects() {
             if (logger.isDebugEnabled()) {
                 logger.debug("Closing application context objects...");
@@ -311,7 +425,8 @@ public class ApplicationContextBuilder implements AutoCloseable {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Closing application child context {}", childAppContextEntry.getKey());
                 }
-                return childAppContextEntry.getValue().close();
+                ApplicationContext childContext = getIfBuilt(childAppContextEntry.getValue());
+                return childContext != null && childContext.close();
             });
             return _close();
         }
@@ -322,10 +437,11 @@ public class ApplicationContextBuilder implements AutoCloseable {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Cleaning application child context {} if eligible", childAppContextEntry.getKey());
                 }
-                return childAppContextEntry.getValue().cleanup(cleanupTime);
+                ApplicationContext childContext = getIfBuilt(childAppContextEntry.getValue());
+                return childContext != null && childContext.cleanup(cleanupTime);
             });
             if (childContexts.isEmpty() && usage.get() == 0 && (cleanupTTLMilliseconds == 0 || (cleanupTime - lastUsage) > cleanupTTLMilliseconds)) {
-                return _close();
+                return close(false);
             } else {
                 return false;
             }
@@ -393,9 +509,27 @@ public class ApplicationContextBuilder implements AutoCloseable {
         this.executionContextCacheConfiguration = executionContextCacheConfiguration;
         //We're using here the time unit from configuration which is Minutes by default but can be overridden for junit test
         this.cleanupTTLMilliseconds = executionContextCacheConfiguration.getConfigurationTimeUnit().toMillis(executionContextCacheConfiguration.getCleanupTimeToLiveMinutes());
+        ExtractedArtifactCache extractedArtifactCache = createExtractedArtifactCache(executionContextCacheConfiguration);
+        SharedLibraryLayers sharedLibraryLayers = executionContextCacheConfiguration.isEnableSharedLibraryLayers() ? new SharedLibraryLayers(extractedArtifactCache) : null;
+        this.classLoaderCaches = new ClassLoaderCaches(extractedArtifactCache, sharedLibraryLayers);
+        this.maxCachedContexts = executionContextCacheConfiguration.getMaxCachedContexts();
+        long maxCachedContextsEstimatedSizeMb = executionContextCacheConfiguration.getMaxCachedContextsEstimatedSizeMb();
+        this.maxCachedContextsEstimatedSize = maxCachedContextsEstimatedSizeMb >= 0 ? maxCachedContextsEstimatedSizeMb * 1024 * 1024 : -1;
         scheduleCleanupJob();
     }
 
+    private static ExtractedArtifactCache createExtractedArtifactCache(ExecutionContextCacheConfiguration configuration) {
+        String cacheFolder = configuration.getExtractedArtifactCacheFolder();
+        if (cacheFolder != null) {
+            try {
+                return new ExtractedArtifactCache(new File(cacheFolder), configuration.getExtractedArtifactCacheMaxSizeMb() * 1024 * 1024);
+            } catch (IOException e) {
+                logger.error("Unable to initialize the extracted artifact cache in {}. Artifacts will be extracted to temporary folders", cacheFolder, e);
+            }
+        }
+        return null;
+    }
+
     public ExecutionContextCacheConfiguration getApplicationContextConfiguration() {
         return executionContextCacheConfiguration;
     }
@@ -467,51 +601,106 @@ public class ApplicationContextBuilder implements AutoCloseable {
      * @throws ApplicationContextBuilderException
      */
     public ApplicationContextControl pushContext(String branchName, ApplicationContextFactory descriptor, boolean cleanable) throws ApplicationContextBuilderException {
-        synchronized (this) {
-            String contextKey = descriptor.getId();
-            if (logger.isTraceEnabled()) {
-                logger.trace("Pushing context {} to branch {}", contextKey, branchName);
+        String contextKey = descriptor.getId();
+        if (logger.isTraceEnabled()) {
+            logger.trace("Pushing context {} to branch {}", contextKey, branchName);
+        }
+        ThreadLocal<ApplicationContext> branchCurrentContext = getBranch(branchName).getCurrentContexts();
+        ApplicationContext parentContext = branchCurrentContext.get();
+        if (parentContext == null) {
+            throw new RuntimeException("The current context is null. This should never occur");
+        }
+
+        ApplicationContext context;
+        do {
+            boolean created = false;
+            CompletableFuture<ApplicationContext> contextFuture = parentContext.childContexts.get(contextKey);
+            if (contextFuture == null) {
+                CompletableFuture<ApplicationContext> newContextFuture = new CompletableFuture<>();
+                contextFuture = parentContext.childContexts.putIfAbsent(contextKey, newContextFuture);
+                if (contextFuture == null) {
+                    contextFuture = newContextFuture;
+                    buildContext(newContextFuture, descriptor, parentContext, contextKey, cleanable);
+                    created = true;
+                }
             }
-            ThreadLocal<ApplicationContext> branchCurrentContext = getBranch(branchName).getCurrentContexts();
-            ApplicationContext parentContext = branchCurrentContext.get();
-            if (parentContext == null) {
-                throw new RuntimeException("The current context is null. This should never occur");
+
+            // Wait for the context to be built if another thread is building it
+            context = awaitContext(contextFuture);
+            if (!context.tryRegisterUsage()) {
+                // The context has been closed concurrently. Remove it to create a new one
+                parentContext.removeChildContext(context);
+                context = null;
+            } else if (!created) {
+                // The usage is registered before reloading to prevent the context from being closed meanwhile
+                reloadContextIfRequired(context, descriptor, parentContext, contextKey);
             }
+            if (created) {
+                // The new context is in use and thus excluded from the eviction
+                evictIfRequired();
+            }
+        } while (context == null);
 
-            ApplicationContext context;
-            if (!parentContext.containsChildContextKey(contextKey)) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Context {} doesn't exist on branch {}. Creating new context", contextKey, branchName);
-                }
+        branchCurrentContext.set(context);
+        return new ApplicationContextControl(context);
+    }
 
-                try {
-                    context = new ApplicationContext(descriptor, parentContext, contextKey, cleanable);
-                } catch (FileManagerException e) {
-                    throw new ApplicationContextBuilderException(e);
-                }
-                parentContext.putChildContext(contextKey, context);
+    private void buildContext(CompletableFuture<ApplicationContext> contextFuture, ApplicationContextFactory descriptor, ApplicationContext parentContext, String contextKey, boolean cleanable) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Context {} doesn't exist. Creating new context", contextKey);
+        }
+        try {
+            contextFuture.complete(new ApplicationContext(descriptor, parentContext, contextKey, cleanable));
+        } catch (Throwable e) {
+            // Remove the failed future to allow subsequent calls to retry
+            parentContext.childContexts.remove(contextKey, contextFuture);
+            contextFuture.completeExceptionally(e);
+        }
+    }
+
+    private static ApplicationContext awaitContext(CompletableFuture<ApplicationContext> contextFuture) throws ApplicationContextBuilderException {
+        try {
+            return contextFuture.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileManagerException) {
+                throw new ApplicationContextBuilderException(cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             } else {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Context {} existing on branch. Reusing it.", contextKey);
-                }
-                context = parentContext.getChildContext(contextKey);
-                try {
-                    if (descriptor.requiresReload()) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("Context {} requires reload. Reloading...", contextKey);
-                        }
-                        context.reloadContext(descriptor, context);
+                throw e;
+            }
+        }
+    }
+
+    private void reloadContextIfRequired(ApplicationContext context, ApplicationContextFactory descriptor, ApplicationContext parentContext, String contextKey) throws ApplicationContextBuilderException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Context {} existing on branch. Reusing it.", contextKey);
+        }
+        try {
+            if (descriptor.requiresReload()) {
+                synchronized (context) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Context {} requires reload. Reloading...", contextKey);
                     }
-                } catch (FileManagerException e) {
-                    throw new ApplicationContextBuilderException(e);
+                    context.reloadContext(descriptor, parentContext);
                 }
             }
-            context.registerUsage();
-            branchCurrentContext.set(context);
-            return new ApplicationContextControl(context);
+        } catch (FileManagerException e) {
+            context.releaseUsage();
+            throw new ApplicationContextBuilderException(e);
+        } catch (RuntimeException | Error e) {
+            context.releaseUsage();
+            throw e;
         }
     }
 
+    private static ApplicationContext getIfBuilt(CompletableFuture<ApplicationContext> contextFuture) {
+        return contextFuture.isDone() && !contextFuture.isCompletedExceptionally() ? contextFuture.join() : null;
+    }
+
     public ApplicationContext getCurrentContext() {
         return getCurrentContext(MASTER);
     }
@@ -570,13 +759,106 @@ public class ApplicationContextBuilder implements AutoCloseable {
     }
 
     protected void cleanup(long cleanupTime) {
-        synchronized (this) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Cleaning up all application contexts");
+        }
+        //The full tree of application context can be browsed from the master branch root context
+        getBranch(MASTER).cleanup(cleanupTime);
+    }
+
+    /**
+     * @return the statistics of the capacity-bounded eviction of the contexts
+     */
+    public ApplicationContextEvictionStatistics getEvictionStatistics() {
+        return evictionStatistics;
+    }
+
+    private boolean isCapacityExceeded() {
+        return (maxCachedContexts >= 0 && cachedContextCount.get() > maxCachedContexts) ||
+                (maxCachedContextsEstimatedSize >= 0 && cachedContextsEstimatedSize.get() > maxCachedContextsEstimatedSize);
+    }
+
+    /**
+     * Evicts the least recently used cleanable contexts that aren't in use as long as the capacity defined by
+     * {@link ExecutionContextCacheConfiguration#getMaxCachedContexts()} and {@link ExecutionContextCacheConfiguration#getMaxCachedContextsEstimatedSizeMb()}
+     * is exceeded. The lock is only taken and the tree only browsed when the capacity is actually exceeded
+     */
+    protected void evictIfRequired() {
+        if (!isCapacityExceeded()) {
+            return;
+        }
+        synchronized (evictionLock) {
+            // The capacity might have been freed by a concurrent eviction
+            if (!isCapacityExceeded()) {
+                return;
+            }
+            List<ApplicationContext> contexts = new ArrayList<>();
+            //The full tree of application contexts can be browsed from the master branch root context
+            collectCleanableContexts(getBranch(MASTER).rootContext, contexts);
+
+            contexts.sort(Comparator.comparingLong(c -> c.lastAccess));
+            boolean evicted;
+            do {
+                evicted = false;
+                // Parent contexts become eligible once their children have been evicted
+                Iterator<ApplicationContext> iterator = contexts.iterator();
+                while (iterator.hasNext()) {
+                    ApplicationContext context = iterator.next();
+                    if (context.usage.get() == 0 && context.childContexts.isEmpty() && context.closeAndCleanupFromParent()) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Evicted application context {} with an estimated size of {} bytes", context.applicationContextId, context.estimatedSize);
+                        }
+                        iterator.remove();
+                        evicted = true;
+                        evictionStatistics.addEviction(context.estimatedSize);
+                        if (!isCapacityExceeded()) {
+                            return;
+                        }
+                    }
+                }
+            } while (evicted);
+
+            evictionStatistics.incrementFailedEvictions();
             if (logger.isDebugEnabled()) {
-                logger.debug("Cleaning up all application contexts");
+                logger.debug("The capacity of the application context cache remains exceeded with {} contexts and an estimated size of {} bytes as all remaining contexts are in use", cachedContextCount.get(), cachedContextsEstimatedSize.get());
+            }
+        }
+    }
+
+    private void collectCleanableContexts(ApplicationContext context, List<ApplicationContext> contexts) {
+        for (CompletableFuture<ApplicationContext> childContextFuture : context.childContexts.values()) {
+            ApplicationContext childContext = getIfBuilt(childContextFuture);
+            if (childContext != null) {
+                if (childContext.cleanable) {
+                    contexts.add(childContext);
+                }
+                collectCleanableContexts(childContext, contexts);
+            }
+        }
+    }
+
+    /**
+     * Estimates the footprint of a context by the size of the libraries of its own {@link URLClassLoader}. The
+     * libraries of the {@link SharedLibraryLayers} aren't included as they are shared by several contexts and outlive
+     * them, and neither is the {@link PackageIndex} whose footprint is negligible compared to the libraries
+     *
+     * @param classLoader the class loader of the context
+     * @return the estimated size in bytes
+     */
+    private static long estimateSize(ClassLoader classLoader) {
+        long size = 0;
+        if (classLoader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                if ("file".equals(url.getProtocol())) {
+                    try {
+                        size += new File(url.toURI()).length();
+                    } catch (URISyntaxException | IllegalArgumentException e) {
+                        // Ignore the libraries whose size cannot be determined
+                    }
+                }
             }
-            //The full tree of application context can be browsed from the master branch root context
-            getBranch(MASTER).cleanup(cleanupTime);
         }
+        return size;
     }
 
     /**
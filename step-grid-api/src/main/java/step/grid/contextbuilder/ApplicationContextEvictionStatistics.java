@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the capacity-bounded eviction of the contexts of an {@link ApplicationContextBuilder}.
+ * See {@link ExecutionContextCacheConfiguration#getMaxCachedContexts()}
+ */
+public class ApplicationContextEvictionStatistics {
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedEstimatedSize = new AtomicLong();
+    private final AtomicLong failedEvictions = new AtomicLong();
+
+    protected void addEviction(long estimatedSize) {
+        evictions.incrementAndGet();
+        evictedEstimatedSize.addAndGet(estimatedSize);
+    }
+
+    protected void incrementFailedEvictions() {
+        failedEvictions.incrementAndGet();
+    }
+
+    /**
+     * @return the number of contexts evicted because the capacity of the cache was exceeded
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the total estimated size in bytes of the evicted contexts
+     */
+    public long getEvictedEstimatedSize() {
+        return evictedEstimatedSize.get();
+    }
+
+    /**
+     * @return the number of times the capacity of the cache remained exceeded after eviction because all
+     * the remaining contexts were in use
+     */
+    public long getFailedEvictions() {
+        return failedEvictions.get();
+    }
+}
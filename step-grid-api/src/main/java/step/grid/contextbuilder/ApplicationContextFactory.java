@@ -46,5 +46,18 @@ public abstract class ApplicationContextFactory {
      */
     public abstract ClassLoader buildClassLoader(ClassLoader parentClassLoader) throws FileManagerException;
 
+    /**
+     * Builds the {@link ClassLoader} of the context identified by the ID generated by getId() using the provided
+     * caches. Factories that don't extract artifacts don't need to override this method
+     *
+     * @param parentClassLoader the parent classloader to be used
+     * @param caches            the caches of the {@link ApplicationContextBuilder}
+     * @return the {@link ClassLoader} instance built
+     * @throws FileManagerException
+     */
+    public ClassLoader buildClassLoader(ClassLoader parentClassLoader, ClassLoaderCaches caches) throws FileManagerException {
+        return buildClassLoader(parentClassLoader);
+    }
+
     public abstract void onClassLoaderClosed();
 }
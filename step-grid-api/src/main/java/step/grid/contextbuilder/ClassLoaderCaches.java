@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+/**
+ * The caches shared by the {@link ApplicationContextFactory} instances of an {@link ApplicationContextBuilder}
+ * to build their class loaders. Each cache is optional and might be null if disabled
+ */
+public class ClassLoaderCaches {
+
+    private final ExtractedArtifactCache extractedArtifactCache;
+    private final SharedLibraryLayers sharedLibraryLayers;
+
+    public ClassLoaderCaches(ExtractedArtifactCache extractedArtifactCache, SharedLibraryLayers sharedLibraryLayers) {
+        this.extractedArtifactCache = extractedArtifactCache;
+        this.sharedLibraryLayers = sharedLibraryLayers;
+    }
+
+    /**
+     * @return the cache of extracted artifacts or null if disabled
+     */
+    public ExtractedArtifactCache getExtractedArtifactCache() {
+        return extractedArtifactCache;
+    }
+
+    /**
+     * @return the shared library layers or null if the layered class loading is disabled
+     */
+    public SharedLibraryLayers getSharedLibraryLayers() {
+        return sharedLibraryLayers;
+    }
+}
@@ -30,6 +30,16 @@ public class ExecutionContextCacheConfiguration {
 
     private long cleanupFrequencyMinutes = 60;
 
+    private String extractedArtifactCacheFolder;
+
+    private long extractedArtifactCacheMaxSizeMb = 1024;
+
+    private boolean enableSharedLibraryLayers = false;
+
+    private int maxCachedContexts = -1;
+
+    private long maxCachedContextsEstimatedSizeMb = -1;
+
     public ExecutionContextCacheConfiguration() {
     }
 
@@ -66,6 +76,67 @@ public class ExecutionContextCacheConfiguration {
         this.cleanupFrequencyMinutes = cleanupFrequencyMinutes;
     }
 
+    /**
+     * @return the folder in which the artifacts extracted to build the class loaders (unzipped packages, extracted resources)
+     * are cached. If null, artifacts are extracted to temporary folders each time a class loader is built. See {@link ExtractedArtifactCache}
+     */
+    public String getExtractedArtifactCacheFolder() {
+        return extractedArtifactCacheFolder;
+    }
+
+    public void setExtractedArtifactCacheFolder(String extractedArtifactCacheFolder) {
+        this.extractedArtifactCacheFolder = extractedArtifactCacheFolder;
+    }
+
+    /**
+     * @return the size in MB above which unused extracted artifacts are evicted from the {@link ExtractedArtifactCache}
+     */
+    public long getExtractedArtifactCacheMaxSizeMb() {
+        return extractedArtifactCacheMaxSizeMb;
+    }
+
+    public void setExtractedArtifactCacheMaxSizeMb(long extractedArtifactCacheMaxSizeMb) {
+        this.extractedArtifactCacheMaxSizeMb = extractedArtifactCacheMaxSizeMb;
+    }
+
+    /**
+     * @return whether the libraries common to several packages should be loaded once in a shared class loader layer.
+     * See {@link SharedLibraryLayers}
+     */
+    public boolean isEnableSharedLibraryLayers() {
+        return enableSharedLibraryLayers;
+    }
+
+    public void setEnableSharedLibraryLayers(boolean enableSharedLibraryLayers) {
+        this.enableSharedLibraryLayers = enableSharedLibraryLayers;
+    }
+
+    /**
+     * @return the maximum number of cleanable contexts kept in the cache. When exceeded, the least recently used contexts
+     * that aren't in use are evicted immediately regardless of the TTL. -1 for no limit
+     */
+    public int getMaxCachedContexts() {
+        return maxCachedContexts;
+    }
+
+    public void setMaxCachedContexts(int maxCachedContexts) {
+        this.maxCachedContexts = maxCachedContexts;
+    }
+
+    /**
+     * @return the maximum estimated size in MB of the cleanable contexts kept in the cache. The size of a context is estimated
+     * by the size of the libraries of its own class loader, which drives its metaspace and heap footprint. The libraries of the
+     * shared library layers, which are shared across contexts, aren't included. When exceeded, the least
+     * recently used contexts that aren't in use are evicted immediately regardless of the TTL. -1 for no limit
+     */
+    public long getMaxCachedContextsEstimatedSizeMb() {
+        return maxCachedContextsEstimatedSizeMb;
+    }
+
+    public void setMaxCachedContextsEstimatedSizeMb(long maxCachedContextsEstimatedSizeMb) {
+        this.maxCachedContextsEstimatedSizeMb = maxCachedContextsEstimatedSizeMb;
+    }
+
     public TimeUnit getConfigurationTimeUnit() {
         return configurationTimeUnit;
     }
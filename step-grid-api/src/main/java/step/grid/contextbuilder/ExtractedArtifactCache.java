@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.exense.commons.io.FileHelper;
+
+/**
+ * Cache of extracted artifacts (unzipped packages, extracted resources) used to build class loaders.
+ * <p>
+ * Artifacts are identified by a key that has to change whenever the content of the artifact changes
+ * (like a {@link step.grid.filemanager.FileVersionId} or a content hash). Each artifact is extracted
+ * once to a staging folder and atomically published to the cache folder. Published artifacts are
+ * reused across rebuilds of the application contexts and across restarts.
+ * <p>
+ * Artifacts are reference counted: artifacts that aren't used anymore are evicted in least recently
+ * used order as soon as the total size of the cache exceeds the configured maximum size.
+ */
+public class ExtractedArtifactCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExtractedArtifactCache.class);
+
+    private static final String STAGING_FOLDER_PREFIX = ".staging-";
+
+    private final File cacheFolder;
+    private final long maxSizeBytes;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+
+    public interface Extractor {
+
+        /**
+         * Extracts the artifact to the provided folder
+         *
+         * @param targetFolder the empty folder to extract the artifact to
+         * @throws IOException
+         */
+        void extractTo(File targetFolder) throws IOException;
+    }
+
+    private static class Entry {
+
+        private final File folder;
+        private boolean published;
+        private boolean evicted;
+        private int references;
+        private long size;
+        private long lastAccess = System.currentTimeMillis();
+
+        private Entry(File folder) {
+            this.folder = folder;
+        }
+    }
+
+    /**
+     * @param cacheFolder  the folder in which the artifacts are extracted
+     * @param maxSizeBytes the size in bytes above which unused artifacts are evicted
+     * @throws IOException
+     */
+    public ExtractedArtifactCache(File cacheFolder, long maxSizeBytes) throws IOException {
+        this.cacheFolder = cacheFolder;
+        this.maxSizeBytes = maxSizeBytes;
+        Files.createDirectories(cacheFolder.toPath());
+        loadCache();
+    }
+
+    private void loadCache() throws IOException {
+        File[] files = cacheFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(STAGING_FOLDER_PREFIX)) {
+                    // Leftover of an extraction that has been interrupted
+                    FileHelper.deleteFolder(file);
+                } else if (file.isDirectory()) {
+                    Entry entry = new Entry(file);
+                    entry.published = true;
+                    entry.size = computeSize(file);
+                    entry.lastAccess = file.lastModified();
+                    entries.put(file.getName(), entry);
+                    totalSize.addAndGet(entry.size);
+                }
+            }
+        }
+        logger.info("Loaded {} extracted artifacts ({} bytes) from {}", entries.size(), totalSize.get(), cacheFolder.getAbsolutePath());
+        evictIfRequired();
+    }
+
+    /**
+     * Returns the folder containing the extracted artifact, extracting it first if it isn't cached yet.
+     * The artifact is guaranteed to remain in the cache until {@link #release(String)} is called
+     *
+     * @param key       the key identifying the content of the artifact
+     * @param extractor the extractor to be used if the artifact isn't cached
+     * @return the folder containing the extracted artifact
+     * @throws IOException if the extraction fails
+     */
+    public File acquire(String key, Extractor extractor) throws IOException {
+        String entryId = getEntryId(key);
+        while (true) {
+            Entry entry = entries.computeIfAbsent(entryId, k -> new Entry(new File(cacheFolder, k)));
+            synchronized (entry) {
+                if (entry.evicted) {
+                    continue;
+                }
+                if (!entry.published) {
+                    publish(key, entry, extractor);
+                }
+                entry.references++;
+                entry.lastAccess = System.currentTimeMillis();
+            }
+            evictIfRequired();
+            return entry.folder;
+        }
+    }
+
+    /**
+     * Releases an artifact previously acquired with {@link #acquire(String, Extractor)}
+     *
+     * @param key the key identifying the content of the artifact
+     */
+    public void release(String key) {
+        Entry entry = entries.get(getEntryId(key));
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.references > 0) {
+                    entry.references--;
+                    entry.lastAccess = System.currentTimeMillis();
+                } else {
+                    logger.warn("Release was called for the extracted artifact {} which isn't in use", key);
+                }
+            }
+            evictIfRequired();
+        } else {
+            logger.warn("Release was called for the extracted artifact {} which isn't in the cache", key);
+        }
+    }
+
+    private void publish(String key, Entry entry, Extractor extractor) throws IOException {
+        if (!entry.folder.exists()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Extracting artifact {} to {}", key, entry.folder);
+            }
+            File stagingFolder = new File(cacheFolder, STAGING_FOLDER_PREFIX + UUID.randomUUID());
+            try {
+                Files.createDirectories(stagingFolder.toPath());
+                extractor.extractTo(stagingFolder);
+                moveAtomically(stagingFolder.toPath(), entry.folder.toPath());
+            } finally {
+                if (stagingFolder.exists()) {
+                    FileHelper.deleteFolder(stagingFolder);
+                }
+            }
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Reusing artifact {} extracted to {}", key, entry.folder);
+        }
+        entry.size = computeSize(entry.folder);
+        entry.published = true;
+        totalSize.addAndGet(entry.size);
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        // The staging folder is located in the cache folder and thus on the same file store as the target
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (Files.isDirectory(target)) {
+                // The artifact has been published concurrently by another process sharing the cache folder
+                if (logger.isDebugEnabled()) {
+                    logger.debug("The artifact {} has already been published", target);
+                }
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private void evictIfRequired() {
+        if (totalSize.get() <= maxSizeBytes) {
+            return;
+        }
+        synchronized (this) {
+            List<Entry> candidates = new ArrayList<>(entries.values());
+            candidates.sort(Comparator.comparingLong(e -> e.lastAccess));
+            for (Entry entry : candidates) {
+                if (totalSize.get() <= maxSizeBytes) {
+                    break;
+                }
+                synchronized (entry) {
+                    if (entry.published && !entry.evicted && entry.references == 0) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Evicting extracted artifact {} ({} bytes)", entry.folder, entry.size);
+                        }
+                        entry.evicted = true;
+                        entries.remove(entry.folder.getName(), entry);
+                        FileHelper.deleteFolder(entry.folder);
+                        totalSize.addAndGet(-entry.size);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the total size in bytes of the extracted artifacts
+     */
+    public long getSize() {
+        return totalSize.get();
+    }
+
+    private static long computeSize(File folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static String getEntryId(String key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * The packages contained in a jar and the packages referenced by its classes. The referenced packages are read
+ * from the constant pool of the class files: class entries and the type descriptors and signatures they contain.
+ * The class files that cannot be parsed are skipped and the jar is then flagged as not analyzed
+ */
+class JarDependencies {
+
+    private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+
+    private final Set<String> packages;
+    private final Set<String> referencedPackages;
+    private final boolean analyzed;
+
+    private JarDependencies(Set<String> packages, Set<String> referencedPackages, boolean analyzed) {
+        this.packages = packages;
+        this.referencedPackages = referencedPackages;
+        this.analyzed = analyzed;
+    }
+
+    /**
+     * @return the packages containing classes in path notation (i.e. "step/grid")
+     */
+    Set<String> getPackages() {
+        return packages;
+    }
+
+    /**
+     * @return the packages referenced by the classes of the jar in path notation (i.e. "step/grid")
+     */
+    Set<String> getReferencedPackages() {
+        return referencedPackages;
+    }
+
+    /**
+     * @return false if some class files of the jar couldn't be parsed, in which case the referenced packages are incomplete
+     */
+    boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    /**
+     * @param packages the packages to be checked in path notation
+     * @return true if the classes of this jar reference any of the provided packages
+     */
+    boolean references(Set<String> packages) {
+        return !Collections.disjoint(referencedPackages, packages);
+    }
+
+    static JarDependencies read(File file) throws IOException {
+        Set<String> packages = new HashSet<>();
+        Set<String> referencedPackages = new HashSet<>();
+        boolean analyzed = true;
+        try (JarFile jarFile = new JarFile(file, false)) {
+            Enumeration<? extends ZipEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".class") && !entry.isDirectory()) {
+                    packages.add(PackageIndex.getPackagePath(name));
+                    try (InputStream inputStream = jarFile.getInputStream(entry)) {
+                        readReferencedPackages(new DataInputStream(inputStream), referencedPackages);
+                    } catch (IOException e) {
+                        // Truncated or unsupported class file. It might still never be loaded
+                        analyzed = false;
+                    }
+                }
+            }
+        }
+        // The references within the jar itself are irrelevant
+        referencedPackages.removeAll(packages);
+        return new JarDependencies(packages, referencedPackages, analyzed);
+    }
+
+    private static void readReferencedPackages(DataInputStream input, Set<String> referencedPackages) throws IOException {
+        if (input.readInt() != CLASS_FILE_MAGIC) {
+            // Not a class file (i.e. a resource named *.class)
+            return;
+        }
+        // Minor and major versions
+        input.readInt();
+        int constantPoolCount = input.readUnsignedShort();
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = input.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8: descriptors and signatures contain the referenced types as L<name>;
+                    addDescriptorPackages(input.readUTF(), referencedPackages);
+                    break;
+                case 7: // Class: the name of the class entry is also an Utf8 entry, handled above
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    input.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    input.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    input.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    input.skipBytes(8);
+                    // 8-byte constants take two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+    }
+
+    private static void addDescriptorPackages(String value, Set<String> referencedPackages) {
+        if (value.indexOf('/') < 0) {
+            return;
+        }
+        if (value.indexOf(';') < 0) {
+            // Internal class name as referenced by the class entries (i.e. "step/grid/Grid")
+            addPackage(value, referencedPackages);
+            return;
+        }
+        int start = value.indexOf('L');
+        while (start >= 0) {
+            int end = value.indexOf(';', start);
+            int typeArguments = value.indexOf('<', start);
+            if (end < 0) {
+                return;
+            }
+            // Generic signatures contain type arguments before the end of the class type (i.e. Ljava/util/List<...>;)
+            int nameEnd = typeArguments >= 0 && typeArguments < end ? typeArguments : end;
+            addPackage(value.substring(start + 1, nameEnd), referencedPackages);
+            start = value.indexOf('L', nameEnd + 1);
+        }
+    }
+
+    private static void addPackage(String internalName, Set<String> referencedPackages) {
+        int lastSeparator = internalName.lastIndexOf('/');
+        if (lastSeparator > 0) {
+            referencedPackages.add(internalName.substring(0, lastSeparator));
+        }
+    }
+}
@@ -20,17 +20,65 @@ package step.grid.contextbuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ch.exense.commons.io.FileHelper;
 
 public class JavaLibrariesClassLoader extends URLClassLoader {
 
+    private static final Logger logger = LoggerFactory.getLogger(JavaLibrariesClassLoader.class);
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    // Null if the class path consists of a single jar or contains entries other than jars
+    private final PackageIndex packageIndex;
+    // The jars of the indexed class path, opened on first use. Classes and resources are both looked up in these jars,
+    // so that the jars aren't opened a second time by the URLClassLoader
+    private final ConcurrentHashMap<URL, JarFile> jarFiles = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
     public JavaLibrariesClassLoader(File file, ClassLoader parent) throws IOException {
-        super(getURLs(file, parent), parent);
+        this(file, null, parent);
+    }
+
+    /**
+     * @param file             the jar, zip or folder containing the libraries
+     * @param packageIndexFile the file to which the {@link PackageIndex} of the libraries is persisted. Might be null
+     * @param parent           the parent class loader
+     * @throws IOException
+     */
+    public JavaLibrariesClassLoader(File file, File packageIndexFile, ClassLoader parent) throws IOException {
+        this(getURLs(file, parent), packageIndexFile, parent);
+    }
+
+    /**
+     * @param urls             the libraries as returned by {@link #getURLs(File, ClassLoader)}
+     * @param packageIndexFile the file to which the {@link PackageIndex} of the libraries is persisted. Might be null
+     * @param parent           the parent class loader
+     * @throws IOException
+     */
+    public JavaLibrariesClassLoader(URL[] urls, File packageIndexFile, ClassLoader parent) throws IOException {
+        super(urls, parent);
+        packageIndex = urls.length > 1 ? PackageIndex.load(urls, packageIndexFile) : null;
     }
 
     public static URL[] getURLs(File file, ClassLoader parentClassLoader) throws IOException {
@@ -38,7 +86,7 @@ public class JavaLibrariesClassLoader extends URLClassLoader {
         if (file.isDirectory()) {
             urls = ClassPathHelper.forAllJarsInFolder(file);
         } else {
-            if (file.getName().endsWith(".zip")) {
+            if (isZip(file)) {
                 File tempFolder = unzip(file);
                 urls = ClassPathHelper.forAllJarsInFolder(tempFolder);
             } else {
@@ -75,6 +123,168 @@ public class JavaLibrariesClassLoader extends URLClassLoader {
         }
     }
 
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (packageIndex == null) {
+            return super.findClass(name);
+        }
+        String path = name.replace('.', '/').concat(".class");
+        URL[] jars = packageIndex.getJars(PackageIndex.getPackagePath(path));
+        if (jars != null) {
+            for (URL jar : jars) {
+                try {
+                    Class<?> clazz = defineClassFromJar(name, path, jar);
+                    if (clazz != null) {
+                        return clazz;
+                    }
+                } catch (IOException | URISyntaxException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    private Class<?> defineClassFromJar(String name, String path, URL jar) throws IOException, URISyntaxException {
+        JarFile jarFile = getJarFile(jar);
+        JarEntry entry = jarFile.getJarEntry(path);
+        if (entry == null) {
+            return null;
+        }
+        byte[] bytes;
+        try (InputStream inputStream = jarFile.getInputStream(entry)) {
+            bytes = inputStream.readAllBytes();
+        }
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot >= 0) {
+            definePackageIfAbsent(name.substring(0, lastDot), jarFile.getManifest(), jar);
+        }
+        // The code signers are only available after having read the entry
+        CodeSource codeSource = new CodeSource(jar, entry.getCodeSigners());
+        return defineClass(name, bytes, 0, bytes.length, codeSource);
+    }
+
+    private void definePackageIfAbsent(String packageName, Manifest manifest, URL jar) {
+        if (getDefinedPackage(packageName) == null) {
+            try {
+                if (manifest != null) {
+                    definePackage(packageName, manifest, jar);
+                } else {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                }
+            } catch (IllegalArgumentException e) {
+                // The package has been defined concurrently
+            }
+        }
+    }
+
+    private JarFile getJarFile(URL jar) throws IOException, URISyntaxException {
+        if (closed) {
+            throw new IOException("The class loader has been closed");
+        }
+        JarFile jarFile = jarFiles.get(jar);
+        if (jarFile == null) {
+            JarFile newJarFile = new JarFile(new File(jar.toURI()), true, ZipFile.OPEN_READ, JarFile.runtimeVersion());
+            jarFile = jarFiles.putIfAbsent(jar, newJarFile);
+            if (jarFile == null) {
+                jarFile = newJarFile;
+            } else {
+                newJarFile.close();
+            }
+            if (closed) {
+                // The jar file has been opened concurrently to the closing of the class loader
+                closeJarFiles();
+                throw new IOException("The class loader has been closed");
+            }
+        }
+        return jarFile;
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        Objects.requireNonNull(name);
+        if (packageIndex != null && !closed) {
+            URL[] jars = packageIndex.getJars(PackageIndex.getPackagePath(name));
+            if (jars != null) {
+                for (URL jar : jars) {
+                    try {
+                        JarFile jarFile = getJarFile(jar);
+                        JarEntry entry = jarFile.getJarEntry(name);
+                        if (entry != null) {
+                            // The stream is closed with the jar file when this class loader is closed
+                            return jarFile.getInputStream(entry);
+                        }
+                    } catch (IOException | URISyntaxException e) {
+                        logger.warn("Error while reading the resource {} from {}", name, jar, e);
+                    }
+                }
+            }
+        }
+        return super.getResourceAsStream(name);
+    }
+
+    @Override
+    public URL findResource(String name) {
+        if (packageIndex == null) {
+            return super.findResource(name);
+        }
+        List<URL> resources = findIndexedResources(name, true);
+        return resources.isEmpty() ? null : resources.get(0);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (packageIndex == null) {
+            return super.findResources(name);
+        }
+        return Collections.enumeration(findIndexedResources(name, false));
+    }
+
+    private List<URL> findIndexedResources(String name, boolean firstOnly) {
+        URL[] jars = packageIndex.getJars(PackageIndex.getPackagePath(name));
+        if (jars == null || closed) {
+            return List.of();
+        }
+        List<URL> resources = new ArrayList<>();
+        for (URL jar : jars) {
+            try {
+                if (getJarFile(jar).getJarEntry(name) != null) {
+                    resources.add(new URL("jar:" + jar + "!/" + name));
+                    if (firstOnly) {
+                        break;
+                    }
+                }
+            } catch (IOException | URISyntaxException e) {
+                logger.warn("Error while looking up the resource {} in {}", name, jar, e);
+            }
+        }
+        return resources;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        super.close();
+        closeJarFiles();
+    }
+
+    private void closeJarFiles() {
+        for (URL jar : jarFiles.keySet()) {
+            JarFile jarFile = jarFiles.remove(jar);
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException e) {
+                    logger.error("Error while closing jar file {}", jarFile.getName(), e);
+                }
+            }
+        }
+    }
+
+    protected static boolean isZip(File file) {
+        return file.getName().endsWith(".zip");
+    }
+
     protected static File unzip(File file) throws IOException {
         File tempFolder = FileHelper.createTempFolder();
         FileHelper.unzip(file, tempFolder);
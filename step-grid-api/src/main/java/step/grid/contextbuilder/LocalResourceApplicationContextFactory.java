@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
 import java.nio.file.Files;
 import java.util.List;
 
@@ -43,6 +44,8 @@ public class LocalResourceApplicationContextFactory extends ApplicationContextFa
 
     FileVersion localClassLoaderFolder;
     private File jar;
+    private ExtractedArtifactCache extractedArtifactCache;
+    private String extractedArtifactKey;
 
     public LocalResourceApplicationContextFactory(ClassLoader resourceClassLoader, String resourceName) {
         super();
@@ -62,19 +65,75 @@ public class LocalResourceApplicationContextFactory extends ApplicationContextFa
 
     @Override
     public ClassLoader buildClassLoader(ClassLoader parentClassLoader) {
-        jar = ResourceExtractor.extractResource(resourceClassLoader, resourceName);
+        return buildClassLoader(parentClassLoader, null);
+    }
+
+    @Override
+    public ClassLoader buildClassLoader(ClassLoader parentClassLoader, ClassLoaderCaches caches) {
+        ExtractedArtifactCache extractedArtifactCache = caches != null ? caches.getExtractedArtifactCache() : null;
+        File extractedJar;
+        String key = extractedArtifactCache != null ? getExtractedArtifactKey() : null;
+        if (key != null) {
+            try {
+                File folder = extractedArtifactCache.acquire(key, targetFolder -> {
+                    File extracted = ResourceExtractor.extractResource(resourceClassLoader, resourceName);
+                    Files.move(extracted.toPath(), new File(targetFolder, getFileName()).toPath());
+                });
+                this.extractedArtifactCache = extractedArtifactCache;
+                this.extractedArtifactKey = key;
+                extractedJar = new File(folder, getFileName());
+            } catch (IOException e) {
+                throw new RuntimeException("Error while extracting resource " + resourceName, e);
+            }
+        } else {
+            jar = ResourceExtractor.extractResource(resourceClassLoader, resourceName);
+            jar.deleteOnExit();
+            extractedJar = jar;
+        }
         if (logger.isDebugEnabled()) {
-            logger.debug("Creating URLClassLoader from extracted local resource file {}", jar.getAbsolutePath());
+            logger.debug("Creating URLClassLoader from extracted local resource file {}", extractedJar.getAbsolutePath());
         }
-        jar.deleteOnExit();
-        List<URL> urls = ClassPathHelper.forSingleFile(jar);
+        List<URL> urls = ClassPathHelper.forSingleFile(extractedJar);
         URL[] urlArray = urls.toArray(new URL[urls.size()]);
         URLClassLoader cl = new URLClassLoader(urlArray, parentClassLoader);
         return cl;
     }
 
+    /**
+     * @return a key identifying the content of the resource based on its location, size and modification date
+     * or null if they cannot be determined
+     */
+    private String getExtractedArtifactKey() {
+        URL resource = resourceClassLoader.getResource(resourceName);
+        if (resource == null) {
+            return null;
+        }
+        try {
+            URLConnection connection = resource.openConnection();
+            connection.setUseCaches(false);
+            long lastModified = connection.getLastModified();
+            long length = connection.getContentLengthLong();
+            connection.getInputStream().close();
+            if (lastModified <= 0 || length < 0) {
+                return null;
+            }
+            return "resource_" + resource + "_" + length + "_" + lastModified;
+        } catch (IOException e) {
+            logger.warn("Unable to determine the version of the resource {}. The resource will be extracted to a temporary file", resourceName, e);
+            return null;
+        }
+    }
+
+    private String getFileName() {
+        return new File(resourceName).getName();
+    }
+
     @Override
     public void onClassLoaderClosed() {
+        if (extractedArtifactKey != null) {
+            extractedArtifactCache.release(extractedArtifactKey);
+            extractedArtifactKey = null;
+        }
         if (jar != null) {
             try {
                 if (logger.isDebugEnabled()) {
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the packages (and resource folders) contained in a list of jars. It allows the {@link JavaLibrariesClassLoader}
+ * to look up classes and resources in the jars actually containing their package instead of probing each jar
+ * <p>
+ * The index can be persisted to a file from which it is reloaded as long as the indexed jars are unchanged
+ */
+public class PackageIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackageIndex.class);
+
+    public static final String INDEX_FILE_NAME = ".packageindex";
+
+    private static final String HEADER = "#step-package-index-v1";
+    private static final String MULTI_RELEASE_PREFIX = "META-INF/versions/";
+
+    private final URL[] jars;
+    private final Map<String, URL[]> packages;
+
+    private PackageIndex(URL[] jars, Map<String, URL[]> packages) {
+        this.jars = jars;
+        this.packages = packages;
+    }
+
+    /**
+     * Loads the index of the provided jars from the index file or builds it if the index file doesn't exist
+     * or is outdated
+     *
+     * @param jars      the URLs of the jars to be indexed in class path order
+     * @param indexFile the file the index is persisted to. Might be null if the index shouldn't be persisted
+     * @return the index or null if the URLs cannot be indexed (URLs other than jar files)
+     */
+    public static PackageIndex load(URL[] jars, File indexFile) {
+        List<File> jarFiles = new ArrayList<>();
+        for (URL jar : jars) {
+            File file = toFile(jar);
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+            jarFiles.add(file);
+        }
+
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                PackageIndex index = read(indexFile, jars, jarFiles);
+                if (index != null) {
+                    return index;
+                }
+            } catch (IOException e) {
+                logger.warn("Error while reading the package index {}. Rebuilding it", indexFile, e);
+            }
+        }
+
+        PackageIndex index;
+        try {
+            index = build(jars, jarFiles);
+        } catch (IOException e) {
+            logger.warn("Error while indexing the packages of {}. Falling back to unindexed class loading", Arrays.toString(jars), e);
+            return null;
+        }
+        if (indexFile != null) {
+            try {
+                index.write(indexFile, jarFiles);
+            } catch (IOException e) {
+                logger.warn("Error while persisting the package index {}", indexFile, e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param packagePath the package or resource folder in path notation (i.e. "step/grid")
+     * @return the jars containing the package in class path order or null if no jar contains it
+     */
+    public URL[] getJars(String packagePath) {
+        return packages.get(packagePath);
+    }
+
+    /**
+     * @param resourceName the name of a class file or resource
+     * @return the package or resource folder of the resource in path notation
+     */
+    public static String getPackagePath(String resourceName) {
+        String name = resourceName.endsWith("/") ? resourceName.substring(0, resourceName.length() - 1) : resourceName;
+        int lastSeparator = name.lastIndexOf('/');
+        return lastSeparator >= 0 ? name.substring(0, lastSeparator) : "";
+    }
+
+    private static PackageIndex build(URL[] jars, List<File> jarFiles) throws IOException {
+        long t1 = System.currentTimeMillis();
+        Map<String, Set<Integer>> packageJars = new HashMap<>();
+        for (int i = 0; i < jarFiles.size(); i++) {
+            try (JarFile jarFile = new JarFile(jarFiles.get(i), false)) {
+                int jarIndex = i;
+                jarFile.stream().map(ZipEntry::getName).forEach(name -> {
+                    packageJars.computeIfAbsent(getPackagePath(name), k -> new LinkedHashSet<>()).add(jarIndex);
+                    if (name.startsWith(MULTI_RELEASE_PREFIX)) {
+                        // Versioned entries of multi-release jars are looked up by their base name
+                        String versionedName = name.substring(MULTI_RELEASE_PREFIX.length());
+                        int versionSeparator = versionedName.indexOf('/');
+                        if (versionSeparator >= 0) {
+                            packageJars.computeIfAbsent(getPackagePath(versionedName.substring(versionSeparator + 1)), k -> new LinkedHashSet<>()).add(jarIndex);
+                        }
+                    }
+                });
+            }
+        }
+        PackageIndex index = new PackageIndex(jars, toJarUrls(jars, packageJars));
+        if (logger.isDebugEnabled()) {
+            logger.debug("Indexed {} packages of {} jars in {}ms", packageJars.size(), jars.length, System.currentTimeMillis() - t1);
+        }
+        return index;
+    }
+
+    private static Map<String, URL[]> toJarUrls(URL[] jars, Map<String, ? extends Iterable<Integer>> packageJars) {
+        Map<String, URL[]> packages = new HashMap<>();
+        packageJars.forEach((packagePath, jarIndexes) -> {
+            List<URL> urls = new ArrayList<>();
+            jarIndexes.forEach(i -> urls.add(jars[i]));
+            packages.put(packagePath, urls.toArray(new URL[0]));
+        });
+        return packages;
+    }
+
+    /**
+     * The index file lists the indexed jars (relative path, size and modification date) followed by
+     * the packages and the indexes of the jars containing them
+     */
+    private void write(File indexFile, List<File> jarFiles) throws IOException {
+        Path tempFile = indexFile.toPath().resolveSibling(indexFile.getName() + "." + UUID.randomUUID());
+        try {
+            Map<URL, Integer> jarIndexes = new HashMap<>();
+            for (int i = 0; i < jars.length; i++) {
+                jarIndexes.put(jars[i], i);
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                writer.write(Integer.toString(jarFiles.size()));
+                writer.newLine();
+                for (File jarFile : jarFiles) {
+                    writer.write(jarFile.length() + "\t" + jarFile.lastModified() + "\t" + getRelativePath(indexFile, jarFile));
+                    writer.newLine();
+                }
+                for (Map.Entry<String, URL[]> entry : packages.entrySet()) {
+                    StringBuilder line = new StringBuilder(entry.getKey());
+                    for (URL jar : entry.getValue()) {
+                        line.append('\t').append(jarIndexes.get(jar));
+                    }
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static PackageIndex read(File indexFile, URL[] jars, List<File> jarFiles) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine()) || !Integer.toString(jarFiles.size()).equals(reader.readLine())) {
+                return null;
+            }
+            for (File jarFile : jarFiles) {
+                String expected = jarFile.length() + "\t" + jarFile.lastModified() + "\t" + getRelativePath(indexFile, jarFile);
+                if (!expected.equals(reader.readLine())) {
+                    // The jars have changed since the creation of the index
+                    return null;
+                }
+            }
+            Map<String, List<Integer>> packageJars = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                List<Integer> jarIndexes = new ArrayList<>();
+                for (int i = 1; i < fields.length; i++) {
+                    jarIndexes.add(Integer.parseInt(fields[i]));
+                }
+                packageJars.put(fields[0], jarIndexes);
+            }
+            return new PackageIndex(jars, toJarUrls(jars, packageJars));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid package index " + indexFile, e);
+        }
+    }
+
+    private static String getRelativePath(File indexFile, File jarFile) {
+        return indexFile.getAbsoluteFile().getParentFile().toPath().relativize(jarFile.getAbsoluteFile().toPath()).toString();
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -20,7 +20,9 @@ package step.grid.contextbuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 
+import ch.exense.commons.io.FileHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import step.grid.filemanager.FileManagerClient;
@@ -37,6 +39,9 @@ public class RemoteApplicationContextFactory extends ApplicationContextFactory {
     protected final FileManagerClient fileManager;
     private FileVersion fileVersion;
     private final boolean cleanable;
+    private ExtractedArtifactCache extractedArtifactCache;
+    private String extractedArtifactKey;
+    private SharedLibraryLayers.Lease sharedLibraryLease;
 
     public RemoteApplicationContextFactory(FileManagerClient fileManager, FileVersionId remoteClassLoaderFolder, boolean cleanable) {
         super();
@@ -64,14 +69,53 @@ public class RemoteApplicationContextFactory extends ApplicationContextFactory {
 
     @Override
     public ClassLoader buildClassLoader(ClassLoader parentClassLoader) throws FileManagerException {
+        return buildClassLoader(parentClassLoader, null);
+    }
+
+    @Override
+    public ClassLoader buildClassLoader(ClassLoader parentClassLoader, ClassLoaderCaches caches) throws FileManagerException {
+        ExtractedArtifactCache extractedArtifactCache = caches != null ? caches.getExtractedArtifactCache() : null;
+        SharedLibraryLayers sharedLibraryLayers = caches != null ? caches.getSharedLibraryLayers() : null;
         fileVersion = requestLatestClassPathFolder();
         File file = fileVersion.getFile();
-        if (logger.isDebugEnabled()) {
-            logger.debug("Creating JavaLibrariesClassLoader for file {}", file.getAbsolutePath());
-        }
+        File packageIndexFile = null;
         try {
-            return new JavaLibrariesClassLoader(file, parentClassLoader);
+            if (extractedArtifactCache != null && JavaLibrariesClassLoader.isZip(file)) {
+                // The file version identifies the content of the package: it is only unzipped once
+                String key = "remote_" + getId();
+                file = extractedArtifactCache.acquire(key, targetFolder -> FileHelper.unzip(fileVersion.getFile(), targetFolder));
+                this.extractedArtifactCache = extractedArtifactCache;
+                this.extractedArtifactKey = key;
+                // The package index is persisted with the extracted package and thus built only once as well
+                packageIndexFile = new File(file, PackageIndex.INDEX_FILE_NAME);
+            } else if (extractedArtifactCache != null && file.isDirectory()) {
+                // The content of the file version mustn't be modified: the package index is persisted to a dedicated
+                // folder of the cache, which lives as long as the file version is in use
+                String key = "packageindex_" + getId();
+                File indexFolder = extractedArtifactCache.acquire(key, targetFolder -> {
+                });
+                this.extractedArtifactCache = extractedArtifactCache;
+                this.extractedArtifactKey = key;
+                packageIndexFile = new File(indexFolder, PackageIndex.INDEX_FILE_NAME);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Creating JavaLibrariesClassLoader for file {}", file.getAbsolutePath());
+            }
+            URL[] urls = JavaLibrariesClassLoader.getURLs(file, parentClassLoader);
+            if (sharedLibraryLayers != null && urls.length > 1) {
+                // The jars shared with other packages are loaded by a common parent layer
+                sharedLibraryLease = sharedLibraryLayers.acquire(parentClassLoader, urls);
+                URL[] packageJars = sharedLibraryLease.getPackageJars();
+                // The persisted package index only covers the full class path of the package
+                File index = packageJars.length == urls.length ? packageIndexFile : null;
+                return new JavaLibrariesClassLoader(packageJars, index, sharedLibraryLease.getParentClassLoader());
+            } else {
+                return new JavaLibrariesClassLoader(urls, packageIndexFile, parentClassLoader);
+            }
         } catch (IOException e) {
+            releaseSharedLibraryLease();
+            releaseExtractedArtifact();
+            fileManager.releaseFileVersion(fileVersion);
             throw new FileManagerException(fileVersion.getVersionId(), e);
         }
     }
@@ -81,7 +125,23 @@ public class RemoteApplicationContextFactory extends ApplicationContextFactory {
         if (logger.isDebugEnabled()) {
             logger.debug("Releasing file version {}.", fileVersion);
         }
+        releaseSharedLibraryLease();
+        releaseExtractedArtifact();
         fileManager.releaseFileVersion(fileVersion);
     }
 
+    private void releaseSharedLibraryLease() {
+        if (sharedLibraryLease != null) {
+            sharedLibraryLease.release();
+            sharedLibraryLease = null;
+        }
+    }
+
+    private void releaseExtractedArtifact() {
+        if (extractedArtifactKey != null) {
+            extractedArtifactCache.release(extractedArtifactKey);
+            extractedArtifactKey = null;
+        }
+    }
+
 }
@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.exense.commons.io.FileHelper;
+
+/**
+ * Shares the library jars that are common to several packages in reference counted class loaders.
+ * <p>
+ * The jars are identified by their content hash. When a package contains jars that are also contained in other
+ * packages built on the same parent class loader, these jars are loaded once in a shared layer placed between the
+ * parent class loader and the class loader of the package. The package specific jars remain in the class loader
+ * of the package.
+ * <p>
+ * As the classes of the shared layer cannot see the package specific classes, a common jar is only shared if none
+ * of the jars it depends on remain package specific. The dependencies are determined by the packages referenced
+ * by the classes of the jars. Common jars depending on package specific jars, directly or through other common
+ * jars, remain isolated in the class loader of the package. Dependencies that cannot be determined this way
+ * (i.e. classes loaded by name using reflection) aren't taken into account
+ */
+public class SharedLibraryLayers {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedLibraryLayers.class);
+
+    private final ExtractedArtifactCache extractedArtifactCache;
+
+    private static final int JAR_CACHE_SIZE = 10000;
+
+    // The content hash of the jars by path, size and modification date
+    private final Map<String, String> jarHashes = newJarCache();
+    // The dependencies of the jars by content hash
+    private final Map<String, JarDependencies> jarDependencies = newJarCache();
+    // The registered packages per parent class loader
+    private final Map<ClassLoader, Registrations> registrations = new IdentityHashMap<>();
+    private final Map<LayerKey, Layer> layers = new HashMap<>();
+
+    /**
+     * @param extractedArtifactCache the cache to which the shared jars are copied. If null, shared jars are copied
+     *                               to temporary folders
+     */
+    public SharedLibraryLayers(ExtractedArtifactCache extractedArtifactCache) {
+        this.extractedArtifactCache = extractedArtifactCache;
+    }
+
+    private static <V> Map<String, V> newJarCache() {
+        // Bounded as the jars of all the package versions loaded over time would otherwise be kept
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > JAR_CACHE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * The class loader hierarchy to be used to load a package. {@link #release()} has to be called as soon as
+     * the class loader of the package has been closed
+     */
+    public class Lease {
+
+        private final ClassLoader parentClassLoader;
+        private final URL[] packageJars;
+        private final Set<String> packageJarHashes;
+        private final Layer layer;
+        private boolean released;
+
+        private Lease(ClassLoader parentClassLoader, URL[] packageJars, Set<String> packageJarHashes, Layer layer) {
+            this.parentClassLoader = parentClassLoader;
+            this.packageJars = packageJars;
+            this.packageJarHashes = packageJarHashes;
+            this.layer = layer;
+        }
+
+        /**
+         * @return the class loader to be used as parent of the package class loader: the shared layer if the
+         * package has jars in common with other packages or the original parent class loader
+         */
+        public ClassLoader getParentClassLoader() {
+            return layer != null ? layer.classLoader.join() : parentClassLoader;
+        }
+
+        /**
+         * @return the jars of the package that aren't loaded by the shared layer
+         */
+        public URL[] getPackageJars() {
+            return packageJars;
+        }
+
+        public void release() {
+            synchronized (SharedLibraryLayers.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                unregisterJars(parentClassLoader, packageJarHashes);
+                if (layer != null && --layer.references == 0) {
+                    layers.remove(layer.key, layer);
+                    layer.close();
+                }
+            }
+        }
+    }
+
+    private static class Registrations {
+
+        // The number of registrations of each distinct package identified by the hashes of its jars
+        private final Map<Set<String>, Integer> packages = new HashMap<>();
+        // The number of distinct packages containing each jar hash
+        private final Map<String, Integer> jarUsages = new HashMap<>();
+
+        private void register(Set<String> packageJarHashes) {
+            // A package registered several times (rebuilt or used by several contexts) counts once
+            if (packages.merge(packageJarHashes, 1, Integer::sum) == 1) {
+                packageJarHashes.forEach(hash -> jarUsages.merge(hash, 1, Integer::sum));
+            }
+        }
+
+        private void unregister(Set<String> packageJarHashes) {
+            Integer remaining = packages.computeIfPresent(packageJarHashes, (k, v) -> v > 1 ? v - 1 : null);
+            if (remaining == null) {
+                packageJarHashes.forEach(hash -> jarUsages.computeIfPresent(hash, (k, v) -> v > 1 ? v - 1 : null));
+            }
+        }
+
+        private boolean isShared(String jarHash) {
+            return jarUsages.getOrDefault(jarHash, 0) > 1;
+        }
+    }
+
+    private static class LayerKey {
+
+        private final ClassLoader parentClassLoader;
+        private final Set<String> jarHashes;
+
+        private LayerKey(ClassLoader parentClassLoader, Set<String> jarHashes) {
+            this.parentClassLoader = parentClassLoader;
+            this.jarHashes = jarHashes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LayerKey layerKey = (LayerKey) o;
+            return parentClassLoader == layerKey.parentClassLoader && jarHashes.equals(layerKey.jarHashes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(parentClassLoader), jarHashes);
+        }
+    }
+
+    private class Layer {
+
+        private final LayerKey key;
+        // The class loader is created by the first package using the layer, outside of the lock
+        private final CompletableFuture<JavaLibrariesClassLoader> classLoader = new CompletableFuture<>();
+        private final List<String> artifactKeys = new ArrayList<>();
+        private File tempFolder;
+        private int references;
+
+        private Layer(LayerKey key) {
+            this.key = key;
+        }
+
+        private void close() {
+            // The layer is only closed once all the packages using it have waited for its creation
+            JavaLibrariesClassLoader layerClassLoader = classLoader.isCompletedExceptionally() ? null : classLoader.getNow(null);
+            if (layerClassLoader != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Closing shared library layer {}", List.of(layerClassLoader.getURLs()));
+                }
+                try {
+                    layerClassLoader.close();
+                } catch (IOException e) {
+                    logger.error("Error while closing the class loader of the shared library layer", e);
+                }
+                releaseCopies(artifactKeys, tempFolder);
+            }
+        }
+    }
+
+    /**
+     * Registers a package and returns the class loader hierarchy to be used to load it
+     *
+     * @param parentClassLoader the parent class loader of the package
+     * @param jars              the jars of the package in class path order
+     * @return the {@link Lease} to be released when the class loader of the package is closed
+     * @throws IOException
+     */
+    public Lease acquire(ClassLoader parentClassLoader, URL[] jars) throws IOException {
+        // Hash the jars before acquiring the lock. The hashes are cached
+        List<String> hashes = new ArrayList<>();
+        for (URL jar : jars) {
+            hashes.add(getJarHash(jar));
+        }
+        Set<String> packageJarHashes = new LinkedHashSet<>(hashes);
+
+        boolean[] shared = new boolean[jars.length];
+        synchronized (this) {
+            Registrations parentRegistrations = registrations.computeIfAbsent(parentClassLoader, k -> new Registrations());
+            parentRegistrations.register(packageJarHashes);
+            for (int i = 0; i < jars.length; i++) {
+                shared[i] = parentRegistrations.isShared(hashes.get(i));
+            }
+        }
+
+        Layer layer = null;
+        boolean createLayer = false;
+        List<URL> sharedJars = new ArrayList<>();
+        List<String> sharedHashes = new ArrayList<>();
+        List<URL> packageJars = new ArrayList<>();
+        try {
+            // The dependencies of the jars are read outside of the lock
+            excludeJarsDependingOnPackageJars(jars, hashes, shared);
+
+            Set<String> sharedJarHashes = new TreeSet<>();
+            for (int i = 0; i < jars.length; i++) {
+                String hash = hashes.get(i);
+                if (shared[i]) {
+                    if (sharedJarHashes.add(hash)) {
+                        sharedJars.add(jars[i]);
+                        sharedHashes.add(hash);
+                    }
+                } else {
+                    packageJars.add(jars[i]);
+                }
+            }
+
+            if (!sharedJars.isEmpty()) {
+                LayerKey key = new LayerKey(parentClassLoader, sharedJarHashes);
+                synchronized (this) {
+                    layer = layers.get(key);
+                    if (layer == null) {
+                        layer = new Layer(key);
+                        layers.put(key, layer);
+                        createLayer = true;
+                    }
+                    layer.references++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                unregisterJars(parentClassLoader, packageJarHashes);
+            }
+            throw e;
+        }
+
+        Lease lease = new Lease(parentClassLoader, packageJars.toArray(new URL[0]), packageJarHashes, layer);
+        if (layer != null) {
+            // The jars are copied and the layer is created by the first package using it without holding the
+            // lock. The other packages using the same layer wait for its creation
+            if (createLayer) {
+                createLayer(layer, sharedJars, sharedHashes);
+            }
+            try {
+                layer.classLoader.join();
+            } catch (CompletionException e) {
+                lease.release();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw e;
+                }
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * Excludes the jars that depend on jars remaining in the class loader of the package from sharing, as the
+     * classes of a shared layer cannot see the classes of the package. The jars whose dependencies cannot be
+     * determined remain in the class loader of the package as well
+     */
+    private void excludeJarsDependingOnPackageJars(URL[] jars, List<String> hashes, boolean[] shared) throws IOException {
+        Set<String> packagePackages = new HashSet<>();
+        boolean hasSharedJars = false;
+        for (int i = 0; i < jars.length; i++) {
+            if (shared[i]) {
+                if (getJarDependencies(jars[i], hashes.get(i)).isAnalyzed()) {
+                    hasSharedJars = true;
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("The classes of the jar {} couldn't all be parsed. The jar won't be shared", jars[i]);
+                    }
+                    shared[i] = false;
+                }
+            }
+            if (!shared[i]) {
+                packagePackages.addAll(getJarDependencies(jars[i], hashes.get(i)).getPackages());
+            }
+        }
+        if (!hasSharedJars || packagePackages.isEmpty()) {
+            return;
+        }
+
+        boolean excluded;
+        do {
+            excluded = false;
+            // Excluding a jar might make the jars depending on it ineligible as well
+            for (int i = 0; i < jars.length; i++) {
+                if (shared[i]) {
+                    JarDependencies dependencies = getJarDependencies(jars[i], hashes.get(i));
+                    if (dependencies.references(packagePackages)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("The jar {} depends on package specific jars and won't be shared", jars[i]);
+                        }
+                        shared[i] = false;
+                        packagePackages.addAll(dependencies.getPackages());
+                        excluded = true;
+                    }
+                }
+            }
+        } while (excluded);
+    }
+
+    private void createLayer(Layer layer, List<URL> sharedJars, List<String> sharedHashes) {
+        // The shared jars are copied as the package they originate from might be deleted before the layer is closed
+        List<String> artifactKeys = layer.artifactKeys;
+        File tempFolder = null;
+        List<URL> urls = new ArrayList<>();
+        try {
+            tempFolder = extractedArtifactCache == null ? FileHelper.createTempFolder() : null;
+            layer.tempFolder = tempFolder;
+            for (int i = 0; i < sharedJars.size(); i++) {
+                File jarFile = toFile(sharedJars.get(i));
+                String hash = sharedHashes.get(i);
+                File target;
+                if (extractedArtifactCache != null) {
+                    String artifactKey = "jar_" + hash;
+                    File folder = extractedArtifactCache.acquire(artifactKey, targetFolder -> Files.copy(jarFile.toPath(), new File(targetFolder, jarFile.getName()).toPath()));
+                    artifactKeys.add(artifactKey);
+                    target = new File(folder, jarFile.getName());
+                } else {
+                    target = new File(tempFolder, hash + "_" + jarFile.getName());
+                    Files.copy(jarFile.toPath(), target.toPath());
+                }
+                urls.add(target.toURI().toURL());
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Creating shared library layer with {} jars: {}", urls.size(), urls);
+            }
+            layer.classLoader.complete(new JavaLibrariesClassLoader(urls.toArray(new URL[0]), null, layer.key.parentClassLoader));
+        } catch (IOException | RuntimeException | Error e) {
+            releaseCopies(artifactKeys, tempFolder);
+            synchronized (this) {
+                // Remove the failed layer so that subsequent packages retry to create it
+                layers.remove(layer.key, layer);
+            }
+            layer.classLoader.completeExceptionally(e);
+        }
+    }
+
+    private void releaseCopies(List<String> artifactKeys, File tempFolder) {
+        artifactKeys.forEach(key -> extractedArtifactCache.release(key));
+        if (tempFolder != null) {
+            FileHelper.deleteFolder(tempFolder);
+        }
+    }
+
+    private void unregisterJars(ClassLoader parentClassLoader, Set<String> packageJarHashes) {
+        Registrations parentRegistrations = registrations.get(parentClassLoader);
+        if (parentRegistrations != null) {
+            parentRegistrations.unregister(packageJarHashes);
+            if (parentRegistrations.packages.isEmpty()) {
+                registrations.remove(parentClassLoader);
+            }
+        }
+    }
+
+    private JarDependencies getJarDependencies(URL jar, String hash) throws IOException {
+        JarDependencies dependencies = jarDependencies.get(hash);
+        if (dependencies == null) {
+            dependencies = JarDependencies.read(toFile(jar));
+            jarDependencies.put(hash, dependencies);
+        }
+        return dependencies;
+    }
+
+    private String getJarHash(URL jar) throws IOException {
+        File file = toFile(jar);
+        String fileKey = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        String hash = jarHashes.get(fileKey);
+        if (hash == null) {
+            hash = computeHash(file);
+            jarHashes.put(fileKey, hash);
+        }
+        return hash;
+    }
+
+    private static String computeHash(File file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream inputStream = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File toFile(URL url) throws IOException {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Unsupported library URL " + url, e);
+        }
+    }
+}
@@ -24,14 +24,21 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import ch.exense.commons.io.FileHelper;
 import org.slf4j.Logger;
@@ -45,12 +52,29 @@ public class AbstractFileManager {
     protected static final String DIRECTORY_PROPERTY = "directory";
     protected static final String CLEANABLE_PROPERTY = "cleanable";
     protected static final String ORIGINAL_FILE_PATH_PROPERTY = "originalfile";
+    protected static final String CHECKSUM_PROPERTY = "checksum";
     protected static final String META_FILENAME = "filemanager.meta";
+    /**
+     * Prefix of the folders and files of the cache folder in which {@link FileVersion}s are staged before being moved to their container.
+     * These aren't part of the cache and are therefore ignored when loading it
+     */
+    protected static final String STAGING_FOLDER_PREFIX = ".staging-";
+    /**
+     * Prefix of the folders to which the containers of the evicted {@link FileVersion}s are moved before being deleted
+     */
+    protected static final String EVICTED_FOLDER_PREFIX = ".evicted-";
+    /**
+     * Name of the journal of the cache folder. The journal lists the {@link FileVersion}s of the cache and is used
+     * to load the cache at startup. The cache folder is only scanned if the journal is missing or cannot be read
+     */
+    protected static final String JOURNAL_FILENAME = ".journal";
     protected final File cacheFolder;
+    private final FileManagerJournal journal;
     protected ConcurrentHashMap<String, Map<FileVersionId, CachedFileVersion>> fileHandleCache = new ConcurrentHashMap<>();
     protected FileManagerConfiguration fileManagerConfiguration;
     private ScheduledExecutorService scheduledPool;
     private ScheduledFuture<?> future;
+    private final AtomicBoolean diskQuotaEnforcementScheduled = new AtomicBoolean();
     /**
      * This ReadWriteLock is used to synchronize operations on the whole fileHandleCache ({@link ConcurrentHashMap}).
      * Only the cleanup task use the write lock as it is removing entries while iterating over the map. All
@@ -61,6 +85,7 @@ public class AbstractFileManager {
     public AbstractFileManager(File cacheFolder, FileManagerConfiguration fileManagerConfiguration) {
         super();
         this.cacheFolder = cacheFolder;
+        this.journal = new FileManagerJournal(new File(cacheFolder, JOURNAL_FILENAME));
         this.fileManagerConfiguration = fileManagerConfiguration;
         scheduleCleanupJob();
     }
@@ -68,44 +93,105 @@ public class AbstractFileManager {
     protected void loadCache() {
         logger.info("Loading file manager client cache from data folder: " + cacheFolder.getAbsolutePath());
         if (cacheFolder.exists() && cacheFolder.isDirectory()) {
-            for (File file : cacheFolder.listFiles()) {
-                try {
-                    if (file.isDirectory()) {
-                        for (File container : file.listFiles()) {
-                            String fileId = file.getName();
-                            String version = container.getName();
-                            if (container.isDirectory()) {
-                                FileVersionId fileVersionId = new FileVersionId(fileId, version);
-
-                                Properties metaProperties = getMetaProperties(fileVersionId);
-                                boolean isDirectory = Boolean.parseBoolean(metaProperties.getProperty(DIRECTORY_PROPERTY));
-                                boolean isCleanable = Boolean.parseBoolean(metaProperties.getProperty(CLEANABLE_PROPERTY, "true"));
-                                String originalFilePath = metaProperties.getProperty(ORIGINAL_FILE_PATH_PROPERTY);
-
-                                if (originalFilePath != null) {
-                                    onFileLoad(originalFilePath, fileId);
-                                }
-
-                                File dataFile = getDataFile(fileVersionId);
-                                FileVersion fileVersion = new FileVersion(dataFile, fileVersionId, isDirectory);
-                                CachedFileVersion cachedFileVersion = new CachedFileVersion(fileVersion, isCleanable);
-                                logger.debug("Adding file to cache. file id: " + fileId + " and version " + version);
-
-                                Map<FileVersionId, CachedFileVersion> fileVersions = fileHandleCache.computeIfAbsent(fileId, f -> new ConcurrentHashMap<FileVersionId, CachedFileVersion>());
-                                fileVersions.put(fileVersionId, cachedFileVersion);
-                            } else {
-                                logger.error("The file " + file.getAbsolutePath() + " is not a directory!");
-                            }
-                        }
+            List<FileManagerJournal.Entry> entries = journal.load();
+            if (entries != null) {
+                loadCacheFromJournal(entries);
+            } else {
+                logger.info("No valid journal found in " + cacheFolder.getAbsolutePath() + ". Scanning the cache folder");
+                scanCache();
+            }
+        } else if (!cacheFolder.exists()) {
+            cacheFolder.mkdirs();
+            journal.reset(List.of());
+        }
+    }
+
+    private void loadCacheFromJournal(List<FileManagerJournal.Entry> entries) {
+        // Verify that the data files of the journal are still present. The containers may have been deleted manually
+        List<FileManagerJournal.Entry> validEntries = entries.parallelStream().filter(entry -> {
+            File dataFile = new File(getFileVersionCacheFolder(entry.getFileVersionId()), entry.getDataFileName());
+            if (dataFile.exists()) {
+                return true;
+            } else {
+                logger.warn("The data file " + dataFile.getAbsolutePath() + " of the journal doesn't exist. Ignoring it");
+                return false;
+            }
+        }).collect(Collectors.toList());
+        validEntries.forEach(this::addToCache);
+        if (validEntries.size() != entries.size()) {
+            journal.reset(validEntries);
+        }
+    }
+
+    private void scanCache() {
+        List<FileVersionId> fileVersionIds = new ArrayList<>();
+        for (File file : cacheFolder.listFiles()) {
+            // Hidden entries like the staging folders aren't file versions
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                for (File container : file.listFiles()) {
+                    if (container.isDirectory()) {
+                        fileVersionIds.add(new FileVersionId(file.getName(), container.getName()));
                     } else {
-                        logger.error("The file " + file.getAbsolutePath() + " is not a directory!");
+                        logger.error("The file " + container.getAbsolutePath() + " is not a directory!");
                     }
-                } catch (Exception e) {
-                    logger.error("Error while loading file manager client cache for file " + file.getAbsolutePath(), e);
+                }
+            } else {
+                logger.error("The file " + file.getAbsolutePath() + " is not a directory!");
+            }
+        }
+        // Parsing the meta files is the costly part of the scan and is therefore performed in parallel
+        List<FileManagerJournal.Entry> entries = fileVersionIds.parallelStream().map(fileVersionId -> {
+            try {
+                Properties metaProperties = getMetaProperties(fileVersionId);
+                boolean isDirectory = Boolean.parseBoolean(metaProperties.getProperty(DIRECTORY_PROPERTY));
+                boolean isCleanable = Boolean.parseBoolean(metaProperties.getProperty(CLEANABLE_PROPERTY, "true"));
+                String originalFilePath = metaProperties.getProperty(ORIGINAL_FILE_PATH_PROPERTY);
+                File dataFile = getDataFile(fileVersionId);
+                return new FileManagerJournal.Entry(fileVersionId, dataFile.getName(), isDirectory, isCleanable, originalFilePath, metaProperties.getProperty(CHECKSUM_PROPERTY));
+            } catch (Exception e) {
+                logger.error("Error while loading file manager client cache for file " + getFileVersionCacheFolder(fileVersionId).getAbsolutePath(), e);
+                return null;
+            }
+        }).filter(Objects::nonNull).collect(Collectors.toList());
+        entries.forEach(this::addToCache);
+        journal.reset(entries);
+    }
+
+    private void addToCache(FileManagerJournal.Entry entry) {
+        FileVersionId fileVersionId = entry.getFileVersionId();
+        String fileId = fileVersionId.getFileId();
+        if (entry.getRegistryIndex() != null) {
+            onFileLoad(entry.getRegistryIndex(), fileId);
+        }
+
+        File dataFile = new File(getFileVersionCacheFolder(fileVersionId), entry.getDataFileName());
+        FileVersion fileVersion = new FileVersion(dataFile, fileVersionId, entry.isDirectory());
+        CachedFileVersion cachedFileVersion = new CachedFileVersion(fileVersion, entry.isCleanable());
+        cachedFileVersion.setChecksum(entry.getChecksum());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding file to cache. file id: " + fileId + " and version " + fileVersionId.getVersion());
+        }
+
+        Map<FileVersionId, CachedFileVersion> fileVersions = fileHandleCache.computeIfAbsent(fileId, f -> new ConcurrentHashMap<FileVersionId, CachedFileVersion>());
+        fileVersions.put(fileVersionId, cachedFileVersion);
+    }
+
+    /**
+     * Deletes the leftovers of the staging and eviction interrupted by a previous shutdown
+     */
+    protected void deleteStagingFolders() {
+        File[] stagingFiles = cacheFolder.listFiles((dir, name) -> name.startsWith(STAGING_FOLDER_PREFIX) || name.startsWith(EVICTED_FOLDER_PREFIX));
+        if (stagingFiles != null) {
+            for (File stagingFile : stagingFiles) {
+                if (stagingFile.isDirectory()) {
+                    FileHelper.deleteFolder(stagingFile);
+                } else {
+                    stagingFile.delete();
                 }
             }
-        } else if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
         }
     }
 
@@ -133,6 +219,24 @@ public class AbstractFileManager {
         return container;
     }
 
+    /**
+     * Adds the {@link FileVersion} to the journal. This has to be done before its data file is moved to its container,
+     * so that no container is left unknown to the journal after a crash. The entries of the journal whose data file
+     * doesn't exist are dropped when loading it
+     */
+    protected void addToJournal(String registryIndex, CachedFileVersion cachedFileVersion) {
+        FileVersion fileVersion = cachedFileVersion.getFileVersion();
+        journal.add(new FileManagerJournal.Entry(fileVersion.getVersionId(), fileVersion.getFile().getName(), fileVersion.isDirectory(),
+            cachedFileVersion.isCleanable(), registryIndex, cachedFileVersion.getKnownChecksum()));
+    }
+
+    /**
+     * Removes the {@link FileVersion} added by {@link #addToJournal(String, CachedFileVersion)} if its container couldn't be created
+     */
+    protected void removeFromJournal(FileVersionId fileVersionId) {
+        journal.remove(fileVersionId);
+    }
+
     protected void createMetaFile(String registryIndex, CachedFileVersion cachedFileVersion) throws FileManagerException {
         FileVersion fileVersion = cachedFileVersion.getFileVersion();
         File metaFile = getMetaFile(fileVersion.getVersionId());
@@ -142,11 +246,16 @@ public class AbstractFileManager {
         if (registryIndex != null) {
             metaProperties.setProperty(ORIGINAL_FILE_PATH_PROPERTY, registryIndex);
         }
+        String checksum = cachedFileVersion.getKnownChecksum();
+        if (checksum != null) {
+            metaProperties.setProperty(CHECKSUM_PROPERTY, checksum);
+        }
         try (FileWriter writer = new FileWriter(metaFile)) {
             metaProperties.store(writer, "");
         } catch (IOException e) {
             throw new FileManagerException(fileVersion.getVersionId(), "Error while writing meta file '" + metaFile + "'", e);
         }
+        scheduleDiskQuotaEnforcement();
     }
 
     private Properties getMetaProperties(FileVersionId fileVersionId) throws IOException, FileNotFoundException {
@@ -185,7 +294,55 @@ public class AbstractFileManager {
     }
 
     protected boolean deleteFileVersionContainer(FileVersionId fileVersionId) {
-        return FileHelper.safeDeleteFolder(getContainerFolder(fileVersionId));
+        File evictedFolder = evictFileVersionContainer(fileVersionId);
+        if (evictedFolder != null) {
+            deleteEvictedFolder(evictedFolder);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Moves the container of a {@link FileVersion} out of the cache. Moving the container is cheap and is therefore
+     * performed while holding the cache locks. The returned folder is deleted afterwards, outside of these locks
+     *
+     * @param fileVersionId the id of the file version to be evicted
+     * @return the folder to be deleted or null if the container cannot be moved, typically because it is in use
+     */
+    protected File evictFileVersionContainer(FileVersionId fileVersionId) {
+        File container = getFileVersionCacheFolder(fileVersionId);
+        File evictedFolder = new File(cacheFolder, EVICTED_FOLDER_PREFIX + UUID.randomUUID());
+        if (container.exists()) {
+            try {
+                Files.move(container.toPath(), evictedFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Unable to move the file manager folder " + container, e);
+                }
+                return null;
+            }
+        }
+        journal.remove(fileVersionId);
+        return evictedFolder;
+    }
+
+    private void deleteEvictedFolder(File evictedFolder) {
+        if (evictedFolder.exists()) {
+            FileHelper.deleteFolder(evictedFolder);
+        }
+    }
+
+    private void deleteEvictedFolderAsync(File evictedFolder) {
+        if (scheduledPool != null) {
+            try {
+                scheduledPool.execute(() -> deleteEvictedFolder(evictedFolder));
+                return;
+            } catch (RejectedExecutionException e) {
+                // The file manager is being closed
+            }
+        }
+        deleteEvictedFolder(evictedFolder);
     }
 
     protected void releaseFileVersionFromCache(FileVersion fileVersion) {
@@ -221,8 +378,10 @@ public class AbstractFileManager {
                     logger.debug("Removing File version {} from cache", fileVersion);
                 }
                 if (fileVersion != null) {
-                    if (deleteFileVersionContainer(fileVersionId)) {
+                    File evictedFolder = evictFileVersionContainer(fileVersionId);
+                    if (evictedFolder != null) {
                         versionCache.remove(fileVersionId);
+                        deleteEvictedFolderAsync(evictedFolder);
                     } else {
                         logger.error("Cannot delete the file manager folder {}, skipping cleanup of this entry.", getContainerFolder(fileVersionId));
                     }
@@ -245,47 +404,148 @@ public class AbstractFileManager {
     }
 
     public void cleanupCache() {
-        try {
-            fileHandleCacheLock.writeLock().lock();
-            long cacheTTLms = getCacheTTLms();
-            final long fromLastAccessTime = System.currentTimeMillis() - (cacheTTLms);
-            logger.info("Starting cleanup of file manager. Removing cleanable files older than " + new Date(fromLastAccessTime));
-            AtomicInteger atomicInteger = new AtomicInteger();
-            Iterator<Map.Entry<String, Map<FileVersionId, CachedFileVersion>>> fileHandleCacheIterator = fileHandleCache.entrySet().iterator();
-            while (fileHandleCacheIterator.hasNext()) {
-                Map.Entry<String, Map<FileVersionId, CachedFileVersion>> fileHandleEntry = fileHandleCacheIterator.next();
-                String fileId = fileHandleEntry.getKey();
-                Map<FileVersionId, CachedFileVersion> versionCache = fileHandleEntry.getValue();
-                synchronized (versionCache) { //should not be required with the new ReadWriteLock but doesn't hurt
-                    Iterator<Map.Entry<FileVersionId, CachedFileVersion>> iterator = versionCache.entrySet().iterator();
-                    while (iterator.hasNext()) {
-                        Map.Entry<FileVersionId, CachedFileVersion> next = iterator.next();
-                        CachedFileVersion cachedFileVersion = next.getValue();
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Cache version {} found with cleanable: {}, lastAccessTime: {}, usageCount: {}", cachedFileVersion.getFileVersion(), cachedFileVersion.isCleanable(), new Date(cachedFileVersion.getLastAccessTime()), cachedFileVersion.getCurrentUsageCount());
-                        }
-                        if (cachedFileVersion.isCleanable() && cachedFileVersion.getLastAccessTime() < fromLastAccessTime
-                            && cachedFileVersion.getCurrentUsageCount() == 0) {
-                            if (deleteFileVersionContainer(next.getKey())) {
-                                iterator.remove();
-                                atomicInteger.incrementAndGet();
-                            } else {
-                                logger.error("Cannot delete the file manager folder {}, skipping cleanup of this entry.", getContainerFolder(next.getKey()));
-                            }
-                        }
+        long cacheTTLms = getCacheTTLms();
+        final long fromLastAccessTime = System.currentTimeMillis() - (cacheTTLms);
+        logger.info("Starting cleanup of file manager. Removing cleanable files older than " + new Date(fromLastAccessTime));
+        List<CachedFileVersion> expiredFileVersions = getCachedFileVersions(cachedFileVersion -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cache version {} found with cleanable: {}, lastAccessTime: {}, usageCount: {}", cachedFileVersion.getFileVersion(), cachedFileVersion.isCleanable(), new Date(cachedFileVersion.getLastAccessTime()), cachedFileVersion.getCurrentUsageCount());
+            }
+            return cachedFileVersion.isCleanable() && cachedFileVersion.getLastAccessTime() < fromLastAccessTime;
+        });
+        int removedCount = evict(expiredFileVersions, cachedFileVersion -> cachedFileVersion.getLastAccessTime() < fromLastAccessTime, cachedFileVersion -> {
+        });
+        logger.info("Cleanup of file manager completed. " + removedCount + " files removed.");
+        enforceDiskQuota();
+    }
+
+    /**
+     * Removes the least recently used cleanable file versions until the size of the cache is below {@link FileManagerConfiguration#getMaxCacheSizeBytes()}
+     */
+    public void enforceDiskQuota() {
+        long maxCacheSize = fileManagerConfiguration.getMaxCacheSizeBytes();
+        if (maxCacheSize <= 0) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<CachedFileVersion> fileVersions = getCachedFileVersions(cachedFileVersion -> true);
+        // The sizes are computed once per file version, outside of the cache locks
+        long cacheSize = fileVersions.stream().mapToLong(CachedFileVersion::getSize).sum();
+        AtomicLong excess = new AtomicLong(cacheSize - maxCacheSize);
+        if (excess.get() <= 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Size of the file manager cache {} is below the quota of {} bytes", cacheSize, maxCacheSize);
+            }
+            return;
+        }
+        // The last access times are captured as they might change while sorting
+        Map<CachedFileVersion, Long> lastAccessTimes = new HashMap<>();
+        fileVersions.stream().filter(CachedFileVersion::isCleanable).forEach(cachedFileVersion -> lastAccessTimes.put(cachedFileVersion, cachedFileVersion.getLastAccessTime()));
+        List<CachedFileVersion> leastRecentlyUsed = new ArrayList<>(lastAccessTimes.keySet());
+        leastRecentlyUsed.sort(Comparator.comparing(lastAccessTimes::get));
+        // The file versions accessed in the meantime aren't evicted
+        int removedCount = evict(leastRecentlyUsed, cachedFileVersion -> excess.get() > 0 && cachedFileVersion.getLastAccessTime() < startTime,
+            cachedFileVersion -> excess.addAndGet(-cachedFileVersion.getSize()));
+        logger.info("Size of the file manager cache " + cacheSize + " exceeded the quota of " + maxCacheSize + " bytes. " + removedCount + " least recently used files removed.");
+        if (excess.get() > 0) {
+            logger.warn("Size of the file manager cache still exceeds the quota by {} bytes. The remaining files are either in use or not cleanable", excess.get());
+        }
+    }
+
+    private void scheduleDiskQuotaEnforcement() {
+        if (scheduledPool != null && fileManagerConfiguration.getMaxCacheSizeBytes() > 0 && diskQuotaEnforcementScheduled.compareAndSet(false, true)) {
+            try {
+                scheduledPool.execute(() -> {
+                    diskQuotaEnforcementScheduled.set(false);
+                    try {
+                        enforceDiskQuota();
+                    } catch (Throwable e) {
+                        logger.error("Unhandled error while enforcing the disk quota of the file manager.", e);
                     }
-                    File fileCacheFolder = getFileCacheFolder(fileId);
-                    if (versionCache.isEmpty()) {
-                        if (fileCacheFolder.exists()) {
-                            FileHelper.deleteFolder(fileCacheFolder);
+                });
+            } catch (RejectedExecutionException e) {
+                // The file manager is being closed
+                diskQuotaEnforcementScheduled.set(false);
+            }
+        }
+    }
+
+    protected List<CachedFileVersion> getCachedFileVersions(Predicate<CachedFileVersion> filter) {
+        List<CachedFileVersion> result = new ArrayList<>();
+        try {
+            fileHandleCacheLock.readLock().lock();
+            for (Map<FileVersionId, CachedFileVersion> versionCache : fileHandleCache.values()) {
+                synchronized (versionCache) {
+                    versionCache.values().stream().filter(filter).forEach(result::add);
+                }
+            }
+        } finally {
+            fileHandleCacheLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Evicts the provided file versions by batches of {@link FileManagerConfiguration#getCleanupBatchSize()}. The write lock
+     * is only held while moving the containers of a batch out of the cache. They are deleted after releasing it
+     *
+     * @param candidates the file versions to be evicted
+     * @param condition  the condition to be fulfilled by each file version at the time of its eviction
+     * @param onEviction called for each evicted file version
+     * @return the number of evicted file versions
+     */
+    private int evict(List<CachedFileVersion> candidates, Predicate<CachedFileVersion> condition, Consumer<CachedFileVersion> onEviction) {
+        int batchSize = Math.max(1, fileManagerConfiguration.getCleanupBatchSize());
+        int removedCount = 0;
+        for (int i = 0; i < candidates.size(); i += batchSize) {
+            List<File> evictedFolders = new ArrayList<>();
+            try {
+                fileHandleCacheLock.writeLock().lock();
+                for (CachedFileVersion cachedFileVersion : candidates.subList(i, Math.min(i + batchSize, candidates.size()))) {
+                    // The file version might have been used since it has been selected
+                    if (cachedFileVersion.getCurrentUsageCount() == 0 && condition.test(cachedFileVersion)) {
+                        File evictedFolder = evictFromCache(cachedFileVersion);
+                        if (evictedFolder != null) {
+                            evictedFolders.add(evictedFolder);
+                            onEviction.accept(cachedFileVersion);
                         }
-                        fileHandleCacheIterator.remove();
                     }
                 }
+            } finally {
+                fileHandleCacheLock.writeLock().unlock();
             }
-            logger.info("Cleanup of file manager completed. " + atomicInteger.get() + " files removed.");
-        } finally {
-            fileHandleCacheLock.writeLock().unlock();
+            evictedFolders.forEach(this::deleteEvictedFolder);
+            removedCount += evictedFolders.size();
+        }
+        return removedCount;
+    }
+
+    private File evictFromCache(CachedFileVersion cachedFileVersion) {
+        FileVersionId fileVersionId = cachedFileVersion.getFileVersion().getVersionId();
+        String fileId = fileVersionId.getFileId();
+        Map<FileVersionId, CachedFileVersion> versionCache = fileHandleCache.get(fileId);
+        if (versionCache == null) {
+            return null;
+        }
+        synchronized (versionCache) { //should not be required with the new ReadWriteLock but doesn't hurt
+            // The file version might have been removed since it has been selected
+            if (versionCache.get(fileVersionId) != cachedFileVersion) {
+                return null;
+            }
+            File evictedFolder = evictFileVersionContainer(fileVersionId);
+            if (evictedFolder == null) {
+                logger.error("Cannot delete the file manager folder {}, skipping cleanup of this entry.", getFileVersionCacheFolder(fileVersionId));
+                return null;
+            }
+            versionCache.remove(fileVersionId);
+            if (versionCache.isEmpty()) {
+                File fileCacheFolder = getFileCacheFolder(fileId);
+                if (fileCacheFolder.exists()) {
+                    FileHelper.deleteFolder(fileCacheFolder);
+                }
+                fileHandleCache.remove(fileId);
+            }
+            return evictedFolder;
         }
     }
 
@@ -325,6 +585,7 @@ public class AbstractFileManager {
                 logger.error("Timeout occurred while stopping the file manager clean up task.");
             }
         }
+        journal.close();
     }
 
 }
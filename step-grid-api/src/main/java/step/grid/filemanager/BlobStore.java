@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store of the content of file versions. Each distinct content is stored once as blob, identified
+ * by its checksum (see {@link FileChecksum}), and deleted when the last file version referencing it is removed.
+ * <p>The file versions refer to the blobs through hard links, see {@link #link(File, File)}</p>
+ */
+public class BlobStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+
+    private final File folder;
+    // Guarded by this
+    private final Map<String, Integer> references = new HashMap<>();
+
+    public BlobStore(File folder) {
+        this.folder = folder;
+        folder.mkdirs();
+    }
+
+    /**
+     * Adds a reference to the provided content. The provided file is moved to the store if the content isn't
+     * stored yet or deleted otherwise. It therefore has to be located on the same file system as the store
+     *
+     * @param file     the file containing the content
+     * @param checksum the checksum of the content
+     * @return the blob containing the content
+     * @throws IOException
+     */
+    public synchronized File add(File file, String checksum) throws IOException {
+        File blob = getBlobFile(checksum);
+        if (blob.exists()) {
+            Files.delete(file.toPath());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Content {} already stored", checksum);
+            }
+        } else {
+            blob.getParentFile().mkdirs();
+            Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        references.merge(checksum, 1, Integer::sum);
+        return blob;
+    }
+
+    /**
+     * Adds a reference to a content already stored, typically when loading the file versions at startup
+     *
+     * @param checksum the checksum of the content
+     */
+    public synchronized void retain(String checksum) {
+        references.merge(checksum, 1, Integer::sum);
+    }
+
+    /**
+     * Removes a reference to the content and deletes it if it isn't referenced anymore
+     *
+     * @param checksum the checksum of the content
+     */
+    public synchronized void release(String checksum) {
+        Integer count = references.computeIfPresent(checksum, (k, v) -> v > 1 ? v - 1 : null);
+        if (count == null) {
+            File blob = getBlobFile(checksum);
+            try {
+                Files.deleteIfExists(blob.toPath());
+            } catch (IOException e) {
+                logger.error("Error while deleting blob " + blob, e);
+            }
+        }
+    }
+
+    /**
+     * @param checksum the checksum of the content
+     * @return the number of file versions referencing the content
+     */
+    public synchronized int getReferenceCount(String checksum) {
+        return references.getOrDefault(checksum, 0);
+    }
+
+    /**
+     * Deletes the blobs that aren't referenced, typically left by file versions removed
+     * while the references weren't tracked
+     */
+    public synchronized void deleteUnreferencedBlobs() {
+        List<Path> blobs;
+        try (Stream<Path> walk = Files.walk(folder.toPath())) {
+            blobs = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.error("Error while listing the blobs of " + folder, e);
+            return;
+        }
+        for (Path blob : blobs) {
+            if (!references.containsKey(blob.getFileName().toString())) {
+                try {
+                    Files.delete(blob);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Deleted unreferenced blob {}", blob);
+                    }
+                } catch (IOException e) {
+                    logger.error("Error while deleting blob " + blob, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Links the target to the blob. The blob is copied if the file system doesn't support hard links
+     *
+     * @param blob   the blob as returned by {@link #add(File, String)}
+     * @param target the file to be created
+     * @throws IOException
+     */
+    public static void link(File blob, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), blob.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unable to link {}. Copying it instead", blob, e);
+            }
+            Files.copy(blob.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private File getBlobFile(String checksum) {
+        return new File(folder, checksum.substring(0, 2) + "/" + checksum);
+    }
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+/**
+ * Single byte range of a file as requested with the HTTP header "Range"
+ * (<a href="https://www.rfc-editor.org/rfc/rfc9110#name-range-requests">RFC 9110</a>)
+ */
+public class ByteRange {
+
+    public static final String RANGE_HEADER = "Range";
+    public static final String IF_RANGE_HEADER = "If-Range";
+    public static final String CONTENT_RANGE_HEADER = "Content-Range";
+    public static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    public static final String BYTES_UNIT = "bytes";
+
+    private static final String BYTES_PREFIX = BYTES_UNIT + "=";
+
+    private final long offset;
+    private final long length;
+
+    public ByteRange(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLast() {
+        return offset + length - 1;
+    }
+
+    /**
+     * @return the value of the header "Range" requesting this range
+     */
+    public String toRange() {
+        return BYTES_PREFIX + offset + "-" + getLast();
+    }
+
+    /**
+     * @param totalLength the length of the complete file
+     * @return the value of the header "Content-Range" of a partial response for this range
+     */
+    public String toContentRange(long totalLength) {
+        return BYTES_UNIT + " " + offset + "-" + getLast() + "/" + totalLength;
+    }
+
+    /**
+     * @param totalLength the length of the complete file
+     * @return the value of the header "Content-Range" of a response to an unsatisfiable range request
+     */
+    public static String toUnsatisfiedContentRange(long totalLength) {
+        return BYTES_UNIT + " */" + totalLength;
+    }
+
+    /**
+     * Parses the value of the header "Range". Only single ranges are supported, requests for multiple
+     * ranges are served as a whole, which is allowed by the specification.
+     *
+     * @param rangeHeader the value of the header "Range". Can be null
+     * @param totalLength the length of the complete file
+     * @return the requested range or null if the complete file has to be served
+     * @throws UnsatisfiableRangeException if the requested range doesn't overlap the file
+     */
+    public static ByteRange parse(String rangeHeader, long totalLength) throws UnsatisfiableRangeException {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String value = rangeHeader.trim();
+        if (!value.startsWith(BYTES_PREFIX) || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring(BYTES_PREFIX.length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, separator).trim();
+            String last = spec.substring(separator + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the last n bytes of the file
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || totalLength == 0) {
+                    throw new UnsatisfiableRangeException();
+                }
+                long length = Math.min(suffixLength, totalLength);
+                return new ByteRange(totalLength - length, length);
+            } else {
+                long offset = Long.parseLong(first);
+                if (offset >= totalLength) {
+                    throw new UnsatisfiableRangeException();
+                }
+                long end = last.isEmpty() ? totalLength - 1 : Math.min(Long.parseLong(last), totalLength - 1);
+                if (end < offset) {
+                    // Syntactically invalid ranges are ignored
+                    return null;
+                }
+                return new ByteRange(offset, end - offset + 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the range of the value of the header "Content-Range" of a partial response
+     *
+     * @param contentRangeHeader the value of the header "Content-Range". Can be null
+     * @return the range contained in the response or null if the header is absent or invalid
+     */
+    public static ByteRange parseContentRange(String contentRangeHeader) {
+        long[] values = parseContentRangeValues(contentRangeHeader);
+        return values != null && values[1] >= values[0] ? new ByteRange(values[0], values[1] - values[0] + 1) : null;
+    }
+
+    /**
+     * Parses the complete length of the value of the header "Content-Range" of a partial response
+     *
+     * @param contentRangeHeader the value of the header "Content-Range". Can be null
+     * @return the length of the complete file or -1 if the header is absent or invalid
+     */
+    public static long parseContentRangeTotalLength(String contentRangeHeader) {
+        long[] values = parseContentRangeValues(contentRangeHeader);
+        return values != null ? values[2] : -1;
+    }
+
+    private static long[] parseContentRangeValues(String contentRangeHeader) {
+        if (contentRangeHeader == null) {
+            return null;
+        }
+        String value = contentRangeHeader.trim();
+        int separator = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (!value.startsWith(BYTES_UNIT + " ") || separator < 0 || slash < separator) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(value.substring(BYTES_UNIT.length() + 1, separator).trim()),
+                Long.parseLong(value.substring(separator + 1, slash).trim()),
+                Long.parseLong(value.substring(slash + 1).trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    public static class UnsatisfiableRangeException extends Exception {
+
+        public UnsatisfiableRangeException() {
+            super("The requested range is not satisfiable");
+        }
+    }
+}
@@ -3,7 +3,18 @@ package step.grid.filemanager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
 
 public class CachedFileVersion {
 
@@ -17,6 +28,14 @@ public class CachedFileVersion {
 
     private final AtomicInteger inUse = new AtomicInteger(0);
 
+    private volatile String checksum;
+
+    private final AtomicReference<CompletableFuture<String>> checksumComputation = new AtomicReference<>();
+
+    private volatile long size = -1;
+
+    private volatile Optional<ZipManifest> manifest;
+
     public CachedFileVersion(FileVersion fileVersion, boolean cleanable) {
         this.fileVersion = fileVersion;
         this.cleanable = cleanable;
@@ -55,4 +74,111 @@ public class CachedFileVersion {
     public int getCurrentUsageCount() {
         return inUse.get();
     }
+
+    /**
+     * @return the checksum of the content of this file version, computed on first call. See {@link FileChecksum}
+     * @throws IOException
+     */
+    public String getChecksum() throws IOException {
+        String checksum = this.checksum;
+        if (checksum == null) {
+            // Concurrent callers wait for a single computation
+            synchronized (this) {
+                if (this.checksum == null) {
+                    this.checksum = FileChecksum.compute(fileVersion.getFile());
+                }
+                checksum = this.checksum;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * @param executor the executor on which the checksum is computed if it isn't known yet
+     * @return a future of the checksum of the content of this file version, already completed if the checksum is known.
+     * The future is completed with null if the checksum cannot be computed
+     */
+    CompletableFuture<String> getChecksumAsync(Executor executor) {
+        String checksum = this.checksum;
+        if (checksum != null) {
+            return CompletableFuture.completedFuture(checksum);
+        }
+        CompletableFuture<String> newComputation = new CompletableFuture<>();
+        CompletableFuture<String> computation = checksumComputation.compareAndExchange(null, newComputation);
+        if (computation == null) {
+            computation = newComputation;
+            executor.execute(() -> {
+                try {
+                    newComputation.complete(getChecksum());
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error while computing the checksum of " + fileVersion, e);
+                    // Allow a later call to retry the computation
+                    checksumComputation.compareAndSet(newComputation, null);
+                    newComputation.complete(null);
+                }
+            });
+        }
+        return computation;
+    }
+
+    /**
+     * @param checksum the checksum of the content of this file version when it is already known, avoiding its computation
+     */
+    void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the checksum of the content of this file version if it is already known, null otherwise
+     */
+    String getKnownChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the size in bytes of the content of this file version, computed on first call
+     */
+    long getSize() {
+        long size = this.size;
+        if (size < 0) {
+            File file = fileVersion.getFile();
+            if (file.isDirectory()) {
+                try (Stream<Path> files = Files.walk(file.toPath())) {
+                    size = files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+                } catch (IOException | UncheckedIOException e) {
+                    logger.warn("Unable to compute the size of " + file, e);
+                    return 0;
+                }
+            } else {
+                size = file.length();
+            }
+            this.size = size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the manifest of the content of this file version, computed on first call, or null if the content isn't a zip. See {@link ZipManifest}
+     * @throws IOException
+     */
+    ZipManifest getManifest() throws IOException {
+        Optional<ZipManifest> manifest = this.manifest;
+        if (manifest == null) {
+            synchronized (this) {
+                if (this.manifest == null) {
+                    ZipManifest zipManifest;
+                    try {
+                        zipManifest = ZipManifest.read(fileVersion.getFile());
+                        zipManifest.setDirectory(fileVersion.isDirectory());
+                        zipManifest.setChecksum(getChecksum());
+                    } catch (ZipException e) {
+                        zipManifest = null;
+                    }
+                    this.manifest = Optional.ofNullable(zipManifest);
+                }
+                manifest = this.manifest;
+            }
+        }
+        return manifest.orElse(null);
+    }
 }
@@ -0,0 +1,612 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import step.grid.threads.NamedThreadFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Packaging of directory file versions as zip using multiple threads.
+ * <p>The files are split into blocks which are deflated in parallel, each block using the end of the previous one
+ * as dictionary, and concatenated into a single deflate stream per entry, as done by pigz. The resulting archive
+ * is a standard zip which can be read with {@link java.util.zip.ZipInputStream} while it is received.
+ * Alternatively the files can be stored without compression, see {@link DirectoryPackagingConfiguration#isStoreOnly()}.</p>
+ * <p>The extraction of packages is performed in parallel, one entry per thread.</p>
+ */
+public class DirectoryPackaging {
+
+    // Size of the blocks of the files deflated in parallel
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    // Size of the deflate window, the end of the previous block used as dictionary
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DirectoryPackagingConfiguration configuration;
+
+    public DirectoryPackaging(DirectoryPackagingConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Packages the content of the directory to the target zip file
+     *
+     * @param directory the directory to be packaged
+     * @param target    the zip file to be created
+     * @throws IOException
+     */
+    public void zip(File directory, File target) throws IOException {
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            zip(directory, outputStream);
+        }
+    }
+
+    /**
+     * Packages the content of the directory as zip to the provided stream. The stream isn't closed
+     *
+     * @param directory    the directory to be packaged
+     * @param outputStream the stream to write the zip to
+     * @throws IOException
+     */
+    public void zip(File directory, OutputStream outputStream) throws IOException {
+        Path root = directory.toPath();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(p -> !p.equals(root)).sorted().collect(Collectors.toList());
+        }
+
+        ExecutorService executorService = newExecutorService();
+        try {
+            ZipWriter zipWriter = new ZipWriter(outputStream);
+            // Bound the number of blocks held in memory
+            int maxPendingParts = configuration.getThreads() * 4;
+            Deque<EntryPart> pendingParts = new ArrayDeque<>();
+            for (Path path : paths) {
+                String name = root.relativize(path).toString().replace('\\', '/');
+                long time = Files.getLastModifiedTime(path).toMillis();
+                if (Files.isDirectory(path)) {
+                    pendingParts.add(new EntryPart(new Entry(name + "/", time, true, true), null, true, true));
+                } else if (configuration.isStoreOnly()) {
+                    Future<StoredContent> checksum = executorService.submit(() -> checksum(path));
+                    pendingParts.add(new EntryPart(new Entry(name, time, false, true), checksum, true, true));
+                } else {
+                    long size = Files.size(path);
+                    Entry entry = new Entry(name, time, false, false);
+                    // The sizes are only known once deflated: the local header announces zip64 for the files that require it
+                    entry.zip64 = size >= ZipWriter.ZIP64_MAGIC;
+                    long blockCount = Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                    for (long block = 0; block < blockCount; block++) {
+                        long blockIndex = block;
+                        boolean last = block == blockCount - 1;
+                        Future<DeflatedBlock> deflatedBlock = executorService.submit(() -> deflate(path, blockIndex, last));
+                        pendingParts.add(new EntryPart(entry, deflatedBlock, block == 0, last));
+                        while (pendingParts.size() > maxPendingParts) {
+                            zipWriter.write(pendingParts.poll());
+                        }
+                    }
+                }
+                while (pendingParts.size() > maxPendingParts) {
+                    zipWriter.write(pendingParts.poll());
+                }
+            }
+            while (!pendingParts.isEmpty()) {
+                zipWriter.write(pendingParts.poll());
+            }
+            zipWriter.finish();
+            outputStream.flush();
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Extracts the zip file to the target directory
+     *
+     * @param zipFile         the zip file to be extracted
+     * @param targetDirectory the directory to extract the zip file to
+     * @throws IOException
+     */
+    public void unzip(File zipFile, File targetDirectory) throws IOException {
+        Path target = targetDirectory.toPath().toAbsolutePath().normalize();
+        Files.createDirectories(target);
+        ExecutorService executorService = newExecutorService();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            List<Future<?>> futures = new ArrayList<>();
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    Path path = target.resolve(entry.getName()).normalize();
+                    if (!path.startsWith(target)) {
+                        throw new IOException("The entry " + entry.getName() + " of " + zipFile + " is outside of the target directory");
+                    }
+                    if (entry.isDirectory()) {
+                        Files.createDirectories(path);
+                    } else {
+                        Files.createDirectories(path.getParent());
+                        futures.add(executorService.submit(() -> {
+                            try (InputStream inputStream = zip.getInputStream(entry)) {
+                                Files.copy(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
+                            }
+                            return null;
+                        }));
+                    }
+                }
+            } finally {
+                // The zip file cannot be closed before all the extractions are completed
+                waitForAll(futures);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private ExecutorService newExecutorService() {
+        return Executors.newFixedThreadPool(Math.max(1, configuration.getThreads()), NamedThreadFactory.create("directory-packaging", true));
+    }
+
+    private static void waitForAll(List<Future<?>> futures) throws IOException {
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                getResult(future);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                    futures.forEach(f -> f.cancel(false));
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while packaging");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch (CancellationException e) {
+            throw new IOException("Packaging cancelled", e);
+        }
+    }
+
+    private static StoredContent checksum(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        if (Files.size(path) <= BLOCK_SIZE) {
+            // The content of the small files is kept for the copy to read them once
+            byte[] data = Files.readAllBytes(path);
+            crc.update(data);
+            return new StoredContent(path, crc.getValue(), data.length, data);
+        }
+        // The local header of stored entries precedes their content and has to contain their checksum
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return new StoredContent(path, crc.getValue(), size, null);
+    }
+
+    private DeflatedBlock deflate(Path path, long blockIndex, boolean last) throws IOException {
+        long start = blockIndex * BLOCK_SIZE;
+        int dictionaryLength = (int) Math.min(DICTIONARY_SIZE, start);
+        ByteBuffer buffer = ByteBuffer.allocate(dictionaryLength + BLOCK_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = start - dictionaryLength;
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            }
+        }
+        byte[] data = buffer.array();
+        int length = Math.max(0, buffer.position() - dictionaryLength);
+
+        Deflater deflater = new Deflater(configuration.getCompressionLevel(), true);
+        try {
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(data, 0, dictionaryLength);
+            }
+            deflater.setInput(data, dictionaryLength, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] output = new byte[BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(output);
+                    compressed.write(output, 0, count);
+                }
+            } else {
+                // Sync flush ends the block on a byte boundary, allowing the next block to be appended
+                int count;
+                do {
+                    count = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                    compressed.write(output, 0, count);
+                } while (count == output.length);
+            }
+            return new DeflatedBlock(data, dictionaryLength, length, compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static class Entry {
+
+        private final byte[] name;
+        private final long time;
+        private final boolean directory;
+        private final boolean stored;
+        private boolean zip64;
+        private final CRC32 crc = new CRC32();
+        private long crcValue;
+        private long size;
+        private long compressedSize;
+        private long offset;
+
+        private Entry(String name, long time, boolean directory, boolean stored) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.time = time;
+            this.directory = directory;
+            this.stored = stored;
+        }
+
+        private boolean hasDataDescriptor() {
+            return !stored;
+        }
+    }
+
+    private static class EntryPart {
+
+        private final Entry entry;
+        private final Future<?> content;
+        private final boolean first;
+        private final boolean last;
+
+        private EntryPart(Entry entry, Future<?> content, boolean first, boolean last) {
+            this.entry = entry;
+            this.content = content;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private static class StoredContent {
+
+        private final Path path;
+        private final long crc;
+        private final long size;
+        // The content of small files, null if it has to be read from the file
+        private final byte[] data;
+
+        private StoredContent(Path path, long crc, long size, byte[] data) {
+            this.path = path;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private static class DeflatedBlock {
+
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final byte[] compressed;
+
+        private DeflatedBlock(byte[] data, int offset, int length, byte[] compressed) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * Writes the zip format (<a href="https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT">APPNOTE</a>),
+     * including the zip64 extensions when required
+     */
+    private static class ZipWriter {
+
+        private static final long LOCAL_HEADER_SIGNATURE = 0x04034b50L;
+        private static final long DATA_DESCRIPTOR_SIGNATURE = 0x08074b50L;
+        private static final long CENTRAL_HEADER_SIGNATURE = 0x02014b50L;
+        private static final long ZIP64_END_SIGNATURE = 0x06064b50L;
+        private static final long ZIP64_LOCATOR_SIGNATURE = 0x07064b50L;
+        private static final long END_SIGNATURE = 0x06054b50L;
+        static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+        private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+        private static final int ZIP64_EXTRA_ID = 0x0001;
+        private static final int VERSION = 20;
+        private static final int VERSION_ZIP64 = 45;
+        private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+        private static final int FLAG_UTF8 = 0x0800;
+        private static final int METHOD_STORED = 0;
+        private static final int METHOD_DEFLATED = 8;
+        private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+        private final CountingOutputStream out;
+        private final List<Entry> entries = new ArrayList<>();
+
+        private ZipWriter(OutputStream outputStream) {
+            this.out = new CountingOutputStream(outputStream);
+        }
+
+        private void write(EntryPart part) throws IOException {
+            Entry entry = part.entry;
+            if (entry.directory) {
+                entry.offset = out.count;
+                writeLocalHeader(entry);
+            } else if (entry.stored) {
+                StoredContent content = (StoredContent) getResult(part.content);
+                entry.crcValue = content.crc;
+                entry.size = content.size;
+                entry.compressedSize = content.size;
+                entry.zip64 = content.size >= ZIP64_MAGIC;
+                entry.offset = out.count;
+                writeLocalHeader(entry);
+                copy(content);
+            } else {
+                if (part.first) {
+                    entry.offset = out.count;
+                    writeLocalHeader(entry);
+                }
+                DeflatedBlock block = (DeflatedBlock) getResult(part.content);
+                entry.crc.update(block.data, block.offset, block.length);
+                entry.size += block.length;
+                entry.compressedSize += block.compressed.length;
+                out.write(block.compressed);
+                if (part.last) {
+                    entry.crcValue = entry.crc.getValue();
+                    writeDataDescriptor(entry);
+                }
+            }
+            if (part.last) {
+                entries.add(entry);
+            }
+        }
+
+        private void copy(StoredContent content) throws IOException {
+            if (content.data != null) {
+                out.write(content.data);
+                return;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = content.size;
+            try (InputStream inputStream = Files.newInputStream(content.path)) {
+                while (remaining > 0) {
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("The file " + content.path + " changed during its packaging");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+
+        private void writeLocalHeader(Entry entry) throws IOException {
+            boolean zip64 = entry.zip64;
+            writeInt(LOCAL_HEADER_SIGNATURE);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(getFlags(entry));
+            writeShort(entry.stored ? METHOD_STORED : METHOD_DEFLATED);
+            writeInt(toDosTime(entry.time));
+            if (entry.hasDataDescriptor()) {
+                // The sizes follow in the data descriptor, using 8 bytes if announced by the zip64 extra field
+                writeInt(0);
+                writeInt(zip64 ? ZIP64_MAGIC : 0);
+                writeInt(zip64 ? ZIP64_MAGIC : 0);
+            } else {
+                writeInt(entry.crcValue);
+                writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+                writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+            }
+            writeShort(entry.name.length);
+            writeShort(zip64 ? 20 : 0);
+            out.write(entry.name);
+            if (zip64) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(16);
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+            }
+        }
+
+        private void writeDataDescriptor(Entry entry) throws IOException {
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(entry.crcValue);
+            if (entry.zip64 || entry.compressedSize >= ZIP64_MAGIC || entry.size >= ZIP64_MAGIC) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            } else {
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+        }
+
+        private void finish() throws IOException {
+            long centralDirectoryOffset = out.count;
+            for (Entry entry : entries) {
+                writeCentralHeader(entry);
+            }
+            long centralDirectorySize = out.count - centralDirectoryOffset;
+            int count = entries.size();
+            if (count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC) {
+                long zip64EndOffset = out.count;
+                writeInt(ZIP64_END_SIGNATURE);
+                writeLong(44);
+                writeShort(VERSION_ZIP64);
+                writeShort(VERSION_ZIP64);
+                writeInt(0);
+                writeInt(0);
+                writeLong(count);
+                writeLong(count);
+                writeLong(centralDirectorySize);
+                writeLong(centralDirectoryOffset);
+                writeInt(ZIP64_LOCATOR_SIGNATURE);
+                writeInt(0);
+                writeLong(zip64EndOffset);
+                writeInt(1);
+            }
+            writeInt(END_SIGNATURE);
+            writeShort(0);
+            writeShort(0);
+            writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+            writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+            writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+            writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+            writeShort(0);
+        }
+
+        private void writeCentralHeader(Entry entry) throws IOException {
+            List<Long> zip64Values = new ArrayList<>();
+            if (entry.size >= ZIP64_MAGIC) {
+                zip64Values.add(entry.size);
+            }
+            if (entry.compressedSize >= ZIP64_MAGIC) {
+                zip64Values.add(entry.compressedSize);
+            }
+            if (entry.offset >= ZIP64_MAGIC) {
+                zip64Values.add(entry.offset);
+            }
+            boolean zip64 = !zip64Values.isEmpty();
+            int version = zip64 ? VERSION_ZIP64 : VERSION;
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(version);
+            writeShort(version);
+            writeShort(getFlags(entry));
+            writeShort(entry.stored ? METHOD_STORED : METHOD_DEFLATED);
+            writeInt(toDosTime(entry.time));
+            writeInt(entry.crcValue);
+            writeInt(Math.min(entry.compressedSize, ZIP64_MAGIC));
+            writeInt(Math.min(entry.size, ZIP64_MAGIC));
+            writeShort(entry.name.length);
+            writeShort(zip64 ? 4 + 8 * zip64Values.size() : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(entry.directory ? DIRECTORY_ATTRIBUTE : 0);
+            writeInt(Math.min(entry.offset, ZIP64_MAGIC));
+            out.write(entry.name);
+            if (zip64) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(8 * zip64Values.size());
+                for (long value : zip64Values) {
+                    writeLong(value);
+                }
+            }
+        }
+
+        private static int getFlags(Entry entry) {
+            return FLAG_UTF8 | (entry.hasDataDescriptor() ? FLAG_DATA_DESCRIPTOR : 0);
+        }
+
+        private static long toDosTime(long time) {
+            LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+            int year = dateTime.getYear();
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return ((long) (year - 1980) << 25) | ((long) dateTime.getMonthValue() << 21) | ((long) dateTime.getDayOfMonth() << 16)
+                | ((long) dateTime.getHour() << 11) | ((long) dateTime.getMinute() << 5) | (dateTime.getSecond() >> 1);
+        }
+
+        private void writeShort(int value) throws IOException {
+            out.write(value & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+        }
+
+        private void writeInt(long value) throws IOException {
+            writeShort((int) (value & 0xFFFF));
+            writeShort((int) ((value >>> 16) & 0xFFFF));
+        }
+
+        private void writeLong(long value) throws IOException {
+            writeInt(value & 0xFFFFFFFFL);
+            writeInt(value >>> 32);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
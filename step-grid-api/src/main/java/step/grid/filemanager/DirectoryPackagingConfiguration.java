@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.util.zip.Deflater;
+
+/**
+ * Configuration of the packaging of directory file versions as zip. See {@link DirectoryPackaging}
+ */
+public class DirectoryPackagingConfiguration {
+
+    /**
+     * The number of threads used to compress and extract the packages
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /**
+     * If the files should be stored without compression. This is faster for content that is already compressed
+     * (archives, jars, images...) or when the network is faster than the compression
+     */
+    private boolean storeOnly = false;
+    /**
+     * The deflate compression level (0-9 or -1 for the default level)
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isStoreOnly() {
+        return storeOnly;
+    }
+
+    public void setStoreOnly(boolean storeOnly) {
+        this.storeOnly = storeOnly;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Checksum of the content of {@link FileVersion}s used to verify their integrity after transfer
+ */
+public class FileChecksum {
+
+    /**
+     * Name of the HTTP header containing the checksum of the file version served by the grid
+     */
+    public static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
+
+    private static final String ALGORITHM = "SHA-256";
+
+    public static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every implementation of the Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param file the file to compute the checksum of
+     * @return the hexadecimal representation of the checksum of the content of the file
+     * @throws IOException
+     */
+    public static String compute(File file) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+        return toString(messageDigest);
+    }
+
+    public static String toString(MessageDigest messageDigest) {
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+}
@@ -20,6 +20,7 @@ package step.grid.filemanager;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A file-based cache for {@link FileVersion} objects.
@@ -82,6 +83,34 @@ public interface FileManager extends AutoCloseable {
      */
     public FileVersion getFileVersion(FileVersionId fileVersionId) throws FileManagerException;
 
+    /**
+     * Get the checksum of the content of a specific version of a file. See {@link FileChecksum}
+     *
+     * @param fileVersionId the version of the File
+     * @return the checksum of the content of the version or <code>null</code> if the version isn't available
+     * @throws FileManagerException
+     */
+    public String getFileVersionChecksum(FileVersionId fileVersionId) throws FileManagerException;
+
+    /**
+     * Get the checksum of the content of a specific version of a file without waiting for its computation. The checksum
+     * of the versions registered without it is computed asynchronously. See {@link FileChecksum}
+     *
+     * @param fileVersionId the version of the File
+     * @return a future of the checksum of the content of the version, completed with <code>null</code> if it cannot
+     * be computed, or <code>null</code> if the version isn't available
+     */
+    public CompletableFuture<String> getFileVersionChecksumAsync(FileVersionId fileVersionId);
+
+    /**
+     * Get the manifest of a specific version of a file stored as zip. See {@link ZipManifest}
+     *
+     * @param fileVersionId the version of the File
+     * @return the manifest of the version or <code>null</code> if the version isn't available or isn't stored as zip
+     * @throws FileManagerException
+     */
+    public ZipManifest getFileVersionManifest(FileVersionId fileVersionId) throws FileManagerException;
+
     /**
      * Removes all cache entries of this cache
      */
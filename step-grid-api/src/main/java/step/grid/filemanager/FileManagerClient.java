@@ -18,6 +18,8 @@
  ******************************************************************************/
 package step.grid.filemanager;
 
+import java.util.List;
+
 /**
  * Interface for {@link FileManager} clients
  * <p>
@@ -46,6 +48,24 @@ public interface FileManagerClient extends AutoCloseable {
      */
     void releaseFileVersion(FileVersion fileVersion);
 
+    /**
+     * Returns a version of a file if it is present in the cache, without retrieving it otherwise. The returned
+     * {@link FileVersion} has to be released with {@link #releaseFileVersion(FileVersion)}
+     *
+     * @param fileVersionId the version of the File to be returned
+     * @return the cached {@link FileVersion} or <code>null</code> if the version isn't cached
+     */
+    default FileVersion getCachedFileVersion(FileVersionId fileVersionId) {
+        return null;
+    }
+
+    /**
+     * @return the {@link FileVersion}s currently present in the cache
+     */
+    default List<FileVersion> listCachedFileVersions() {
+        return List.of();
+    }
+
     /**
      * Delete a specific version of a file from the cache
      *
@@ -19,14 +19,32 @@
 package step.grid.filemanager;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.exense.commons.io.FileHelper;
+
 /**
  * Default implementation of {@link FileManagerClient} which delegates the retrieval of {@link FileVersion} to
  * a {@link FileVersionProvider}
+ * <p>The retrieval of a {@link FileVersion} absent of the cache is performed outside of any lock, in a staging
+ * folder, by the first requester. Concurrent requesters of the same {@link FileVersionId} wait for this single
+ * retrieval instead of performing their own one, while requests for cached versions are served without waiting.</p>
+ * <p>The cached versions are indexed by checksum of their content, allowing the {@link FileVersionProvider} to reuse
+ * their content for other {@link FileVersionId}s, see {@link LocalContent}.</p>
  *
  */
 public class FileManagerClientImpl extends AbstractFileManager implements FileManagerClient {
@@ -35,6 +53,10 @@ public class FileManagerClientImpl extends AbstractFileManager implements FileMa
 
     protected FileVersionProvider fileProvider;
 
+    private final ConcurrentHashMap<FileVersionId, CompletableFuture<Void>> pendingDownloads = new ConcurrentHashMap<>();
+    // The cached file versions by checksum of their content, see LocalContent
+    private final ConcurrentHashMap<String, FileVersionId> versionsByChecksum = new ConcurrentHashMap<>();
+
     /**
      * @param cacheFolder  the folder to be used to store the {@link FileVersion}s
      * @param fileProvider the file provider responsible for the retrieval of the {@link FileVersion} if absent of the cache
@@ -42,37 +64,204 @@ public class FileManagerClientImpl extends AbstractFileManager implements FileMa
     public FileManagerClientImpl(File cacheFolder, FileVersionProvider fileProvider, FileManagerConfiguration fileManagerConfiguration) {
         super(cacheFolder, fileManagerConfiguration);
         this.fileProvider = fileProvider;
+        deleteStagingFolders();
         loadCache();
+        fileHandleCache.values().forEach(versions -> versions.values().forEach(cachedFileVersion -> {
+            String checksum = cachedFileVersion.getKnownChecksum();
+            if (checksum != null) {
+                versionsByChecksum.put(checksum, cachedFileVersion.getFileVersion().getVersionId());
+            }
+        }));
     }
 
     @Override
     public FileVersion requestFileVersion(FileVersionId fileVersionId, boolean cleanableFromClientCache) throws FileManagerException {
+        while (true) {
+            FileVersion cachedFileVersion = getCachedFileVersionAndUpdateUsage(fileVersionId);
+            if (cachedFileVersion != null) {
+                return cachedFileVersion;
+            } else if (fileProvider == null) {
+                return null;
+            }
+
+            CompletableFuture<Void> newDownload = new CompletableFuture<>();
+            CompletableFuture<Void> pendingDownload = pendingDownloads.putIfAbsent(fileVersionId, newDownload);
+            if (pendingDownload == null) {
+                try {
+                    FileVersion fileVersion = downloadAndAddToCache(fileVersionId, cleanableFromClientCache);
+                    newDownload.complete(null);
+                    return fileVersion;
+                } catch (Throwable e) {
+                    // Errors are propagated to the concurrent requesters as well, which would otherwise wait forever
+                    newDownload.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    // Remove the download in any case: a failed download has to be retried by the next request
+                    pendingDownloads.remove(fileVersionId, newDownload);
+                }
+            } else {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Waiting for the pending download of {}", fileVersionId);
+                }
+                waitForPendingDownload(fileVersionId, pendingDownload);
+                // The file version has been added to the cache by the requester that performed the download.
+                // Loop to register the usage of this requester. In the unlikely case it has already been
+                // removed from the cache in between, the file version will be downloaded again
+            }
+        }
+    }
+
+    @Override
+    public FileVersion getCachedFileVersion(FileVersionId fileVersionId) {
+        return getCachedFileVersionAndUpdateUsage(fileVersionId);
+    }
+
+    @Override
+    public List<FileVersion> listCachedFileVersions() {
+        return getCachedFileVersions(cachedFileVersion -> true).stream().map(CachedFileVersion::getFileVersion).collect(Collectors.toList());
+    }
+
+    private FileVersion getCachedFileVersionAndUpdateUsage(FileVersionId fileVersionId) {
         try {
             fileHandleCacheLock.readLock().lock();
             Map<FileVersionId, CachedFileVersion> versionCache = getVersionMap(fileVersionId.getFileId());
             synchronized (versionCache) {
                 CachedFileVersion cachedFileVersion = versionCache.get(fileVersionId);
-                if (cachedFileVersion == null) {
-                    if (fileProvider != null) {
-                        File container = getContainerFolder(fileVersionId);
+                if (cachedFileVersion != null) {
+                    cachedFileVersion.updateUsage();
+                    return cachedFileVersion.getFileVersion();
+                } else {
+                    return null;
+                }
+            }
+        } finally {
+            fileHandleCacheLock.readLock().unlock();
+        }
+    }
+
+    private void waitForPendingDownload(FileVersionId fileVersionId, CompletableFuture<Void> pendingDownload) throws FileManagerException {
+        try {
+            pendingDownload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileManagerException(fileVersionId, "Interrupted while waiting for the download of " + fileVersionId, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileManagerException) {
+                throw (FileManagerException) cause;
+            } else {
+                throw new FileManagerException(fileVersionId, cause);
+            }
+        }
+    }
+
+    private FileVersion downloadAndAddToCache(FileVersionId fileVersionId, boolean cleanableFromClientCache) throws FileManagerException {
+        File staging = new File(cacheFolder, STAGING_FOLDER_PREFIX + UUID.randomUUID());
+        staging.mkdirs();
+        try {
+            long t1 = System.currentTimeMillis();
+            AtomicReference<String> checksum = new AtomicReference<>();
+            FileVersion downloadedFileVersion = fileProvider.saveFileVersionTo(fileVersionId, staging, new LocalContent() {
+                @Override
+                public FileVersion getFileVersion(String checksum) {
+                    return getCachedFileVersionByChecksum(checksum);
+                }
 
-                        long t1 = System.currentTimeMillis();
-                        FileVersion fileVersion = fileProvider.saveFileVersionTo(fileVersionId, container);
+                @Override
+                public void setChecksum(String value) {
+                    checksum.set(value);
+                }
+
+                @Override
+                public FileVersion getPreviousFileVersion(FileVersionId fileVersionId) {
+                    return getMostRecentlyUsedFileVersion(fileVersionId.getFileId());
+                }
+            });
+            if (logger.isDebugEnabled()) {
+                logger.debug("Downloaded {} in {}ms", fileVersionId, System.currentTimeMillis() - t1);
+            }
+
+            try {
+                fileHandleCacheLock.readLock().lock();
+                Map<FileVersionId, CachedFileVersion> versionCache = getVersionMap(fileVersionId.getFileId());
+                synchronized (versionCache) {
+                    CachedFileVersion cachedFileVersion = versionCache.get(fileVersionId);
+                    if (cachedFileVersion == null) {
+                        File container = getFileVersionCacheFolder(fileVersionId);
+                        if (container.exists()) {
+                            // Leftover of a file version that isn't part of the cache
+                            FileHelper.deleteFolder(container);
+                        }
+                        container.getParentFile().mkdirs();
+                        File file = new File(container, downloadedFileVersion.getFile().getName());
+                        FileVersion fileVersion = new FileVersion(file, fileVersionId, downloadedFileVersion.isDirectory());
                         cachedFileVersion = new CachedFileVersion(fileVersion, cleanableFromClientCache);
+                        cachedFileVersion.setChecksum(checksum.get());
+                        addToJournal(null, cachedFileVersion);
+                        try {
+                            Files.move(staging.toPath(), container.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                        } catch (IOException e) {
+                            removeFromJournal(fileVersionId);
+                            throw new FileManagerException(fileVersionId, "Error while moving the downloaded file version to " + container, e);
+                        }
                         createMetaFile(null, cachedFileVersion);
                         versionCache.put(fileVersionId, cachedFileVersion);
-                    } else {
-                        return null;
+                        if (checksum.get() != null) {
+                            versionsByChecksum.put(checksum.get(), fileVersionId);
+                        }
                     }
+                    cachedFileVersion.updateUsage();
+                    return cachedFileVersion.getFileVersion();
                 }
-                cachedFileVersion.updateUsage();
-                return cachedFileVersion.getFileVersion();
+            } finally {
+                fileHandleCacheLock.readLock().unlock();
+            }
+        } finally {
+            if (staging.exists()) {
+                FileHelper.deleteFolder(staging);
+            }
+        }
+    }
+
+    private FileVersion getMostRecentlyUsedFileVersion(String fileId) {
+        try {
+            fileHandleCacheLock.readLock().lock();
+            Map<FileVersionId, CachedFileVersion> versionCache = getVersionMap(fileId);
+            synchronized (versionCache) {
+                return versionCache.values().stream().max(Comparator.comparingLong(CachedFileVersion::getLastAccessTime))
+                    .map(CachedFileVersion::getFileVersion).orElse(null);
+            }
+        } finally {
+            fileHandleCacheLock.readLock().unlock();
+        }
+    }
+
+    private FileVersion getCachedFileVersionByChecksum(String checksum) {
+        FileVersionId fileVersionId = versionsByChecksum.get(checksum);
+        if (fileVersionId == null) {
+            return null;
+        }
+        try {
+            fileHandleCacheLock.readLock().lock();
+            Map<FileVersionId, CachedFileVersion> versionCache = getVersionMap(fileVersionId.getFileId());
+            synchronized (versionCache) {
+                CachedFileVersion cachedFileVersion = versionCache.get(fileVersionId);
+                return cachedFileVersion != null ? cachedFileVersion.getFileVersion() : null;
             }
         } finally {
             fileHandleCacheLock.readLock().unlock();
         }
     }
 
+    @Override
+    protected File evictFileVersionContainer(FileVersionId fileVersionId) {
+        File evictedFolder = super.evictFileVersionContainer(fileVersionId);
+        if (evictedFolder != null) {
+            versionsByChecksum.values().remove(fileVersionId);
+        }
+        return evictedFolder;
+    }
+
     @Override
     public void releaseFileVersion(FileVersion fileVersion) {
         releaseFileVersionFromCache(fileVersion);
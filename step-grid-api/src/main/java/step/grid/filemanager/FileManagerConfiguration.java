@@ -30,6 +30,10 @@ public class FileManagerConfiguration {
 
     private long cleanupFrequencyMinutes = 60;
 
+    private int cleanupBatchSize = 100;
+
+    private long maxCacheSizeBytes = 0;
+
     public FileManagerConfiguration() {
     }
 
@@ -66,6 +70,31 @@ public class FileManagerConfiguration {
         this.cleanupFrequencyMinutes = cleanupFrequencyMinutes;
     }
 
+    /**
+     * @return the maximum number of file versions removed from the cache at once by the cleanup. The requests to the cache
+     * are only blocked while a batch is removed from the cache. The files of the batch are deleted afterwards
+     */
+    public int getCleanupBatchSize() {
+        return cleanupBatchSize;
+    }
+
+    public void setCleanupBatchSize(int cleanupBatchSize) {
+        this.cleanupBatchSize = cleanupBatchSize;
+    }
+
+    /**
+     * @return the disk quota of the cache in bytes or 0 if the cache isn't limited. When the size of the cache exceeds the quota,
+     * the least recently used cleanable file versions are removed regardless of their TTL. The quota is enforced by the
+     * {@link AbstractFileManager#scheduleCleanupJob() cleanup job} and after each addition to the cache. It requires the cleanup to be enabled
+     */
+    public long getMaxCacheSizeBytes() {
+        return maxCacheSizeBytes;
+    }
+
+    public void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
+        this.maxCacheSizeBytes = maxCacheSizeBytes;
+    }
+
     public TimeUnit getConfigurationTimeUnit() {
         return configurationTimeUnit;
     }
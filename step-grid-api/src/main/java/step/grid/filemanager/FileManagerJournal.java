@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the file versions of a file manager cache. It allows the cache to be loaded at startup
+ * from a single file instead of scanning the containers and parsing their meta file.
+ * <p>Each record is prefixed by its length and CRC. A record that has only been partially written, typically
+ * because of a crash, ends the journal. The journal is compacted when the removed file versions make up most of it.</p>
+ * <p>The additions are forced to the storage device before returning, as the container of a file version is only
+ * published once it is known to the journal. This costs a sync per registered or downloaded file version, which is
+ * small compared to the writing of its content. The removals aren't forced: a removal lost in a crash leaves an entry
+ * whose data file doesn't exist anymore, which is dropped when loading the journal.</p>
+ */
+class FileManagerJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileManagerJournal.class);
+
+    private static final byte[] MAGIC = "STEPFMJ1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+    private final File file;
+    // The file versions present in the journal
+    private final Map<FileVersionId, Entry> entries = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int recordCount;
+
+    FileManagerJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the journal
+     *
+     * @return the file versions present in the journal or null if the journal doesn't exist or cannot be read
+     */
+    synchronized List<Entry> load() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = readChannel.size();
+            if (size > Integer.MAX_VALUE || size < MAGIC.length) {
+                logger.warn("Invalid size of the file manager journal {}", file);
+                return null;
+            }
+            // The journal is read at once. It isn't memory-mapped as mapped files cannot be replaced on all platforms
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                logger.warn("Invalid header of the file manager journal {}", file);
+                return null;
+            }
+            entries.clear();
+            recordCount = 0;
+            int validLength = buffer.position();
+            while (buffer.hasRemaining()) {
+                if (!readRecord(buffer)) {
+                    logger.warn("Truncated record found in the file manager journal {} at position {}. Ignoring the rest of the journal", file, validLength);
+                    break;
+                }
+                validLength = buffer.position();
+                recordCount++;
+            }
+            openChannel();
+            // Drop the partially written record if any
+            channel.truncate(validLength);
+            compactIfNeeded();
+            return new ArrayList<>(entries.values());
+        } catch (IOException e) {
+            logger.error("Error while reading the file manager journal " + file, e);
+            return null;
+        }
+    }
+
+    private boolean readRecord(ByteBuffer buffer) {
+        try {
+            int length = buffer.getInt();
+            long crc = buffer.getInt() & 0xFFFFFFFFL;
+            if (length < 0 || length > buffer.remaining()) {
+                return false;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 actualCrc = new CRC32();
+            actualCrc.update(payload);
+            if (actualCrc.getValue() != crc) {
+                return false;
+            }
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            byte type = record.get();
+            FileVersionId fileVersionId = new FileVersionId(readString(record), readString(record));
+            if (type == ADD) {
+                boolean directory = record.get() != 0;
+                boolean cleanable = record.get() != 0;
+                String dataFileName = readString(record);
+                String registryIndex = readString(record);
+                String checksum = readString(record);
+                entries.put(fileVersionId, new Entry(fileVersionId, dataFileName, directory, cleanable, registryIndex, checksum));
+            } else if (type == REMOVE) {
+                entries.remove(fileVersionId);
+            } else {
+                return false;
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the content of the journal by the provided file versions
+     *
+     * @param newEntries the file versions
+     */
+    synchronized void reset(Collection<Entry> newEntries) {
+        entries.clear();
+        newEntries.forEach(entry -> entries.put(entry.getFileVersionId(), entry));
+        rewrite();
+    }
+
+    synchronized void add(Entry entry) {
+        entries.put(entry.getFileVersionId(), entry);
+        append(entry, ADD, true);
+    }
+
+    synchronized void remove(FileVersionId fileVersionId) {
+        Entry entry = entries.remove(fileVersionId);
+        if (entry != null) {
+            append(entry, REMOVE, false);
+        }
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error while closing the file manager journal " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    private void append(Entry entry, byte type, boolean force) {
+        if (channel == null) {
+            // The journal has been disabled after an error
+            return;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.wrap(toRecord(entry, type));
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (force) {
+                channel.force(false);
+            }
+            recordCount++;
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.error("Error while writing to the file manager journal " + file + ". The cache will be scanned at next startup", e);
+            disable();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (recordCount > MIN_RECORDS_BEFORE_COMPACTION && recordCount > 2 * entries.size()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Compacting the file manager journal {} of {} records to {} records", file, recordCount, entries.size());
+            }
+            rewrite();
+        }
+    }
+
+    private void rewrite() {
+        close();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                content.write(MAGIC);
+                for (Entry entry : entries.values()) {
+                    content.write(toRecord(entry, ADD));
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+                while (buffer.hasRemaining()) {
+                    tempChannel.write(buffer);
+                }
+                // The new journal replaces the previous one: it has to be complete on the storage device beforehand
+                tempChannel.force(false);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordCount = entries.size();
+            openChannel();
+        } catch (IOException e) {
+            logger.error("Error while writing the file manager journal " + file + ". The cache will be scanned at next startup", e);
+            disable();
+        }
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private void disable() {
+        close();
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.error("Error while deleting the file manager journal " + file, e);
+        }
+    }
+
+    private static byte[] toRecord(Entry entry, byte type) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(payloadStream)) {
+            payload.writeByte(type);
+            writeString(payload, entry.getFileVersionId().getFileId());
+            writeString(payload, entry.getFileVersionId().getVersion());
+            if (type == ADD) {
+                payload.writeBoolean(entry.isDirectory());
+                payload.writeBoolean(entry.isCleanable());
+                writeString(payload, entry.getDataFileName());
+                writeString(payload, entry.getRegistryIndex());
+                writeString(payload, entry.getChecksum());
+            }
+        }
+        byte[] payloadBytes = payloadStream.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadBytes.length);
+        record.putInt(payloadBytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(payloadBytes);
+        return record.array();
+    }
+
+    private static void writeString(DataOutputStream outputStream, String value) throws IOException {
+        if (value == null) {
+            outputStream.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            outputStream.writeInt(bytes.length);
+            outputStream.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A file version of the journal
+     */
+    static class Entry {
+
+        private final FileVersionId fileVersionId;
+        private final String dataFileName;
+        private final boolean directory;
+        private final boolean cleanable;
+        private final String registryIndex;
+        private final String checksum;
+
+        Entry(FileVersionId fileVersionId, String dataFileName, boolean directory, boolean cleanable, String registryIndex, String checksum) {
+            this.fileVersionId = fileVersionId;
+            this.dataFileName = dataFileName;
+            this.directory = directory;
+            this.cleanable = cleanable;
+            this.registryIndex = registryIndex;
+            this.checksum = checksum;
+        }
+
+        FileVersionId getFileVersionId() {
+            return fileVersionId;
+        }
+
+        String getDataFileName() {
+            return dataFileName;
+        }
+
+        boolean isDirectory() {
+            return directory;
+        }
+
+        boolean isCleanable() {
+            return cleanable;
+        }
+
+        String getRegistryIndex() {
+            return registryIndex;
+        }
+
+        String getChecksum() {
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+/**
+ * Snapshot of the metrics of the serving of the file versions by the grid
+ */
+public class FileServingStatistics {
+
+    private int activeTransfers;
+    private int queueLength;
+    private long admittedRequests;
+    private long rejectedRequests;
+    private long coalescedRequests;
+    private long transferredBytes;
+    private long transferRate;
+    private long readBytes;
+    private long readRate;
+
+    public FileServingStatistics() {
+        super();
+    }
+
+    /**
+     * @return the number of file transfers currently in progress
+     */
+    public int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    public void setActiveTransfers(int activeTransfers) {
+        this.activeTransfers = activeTransfers;
+    }
+
+    /**
+     * @return the number of requests currently waiting for admission
+     */
+    public int getQueueLength() {
+        return queueLength;
+    }
+
+    public void setQueueLength(int queueLength) {
+        this.queueLength = queueLength;
+    }
+
+    /**
+     * @return the total number of requests admitted for transfer
+     */
+    public long getAdmittedRequests() {
+        return admittedRequests;
+    }
+
+    public void setAdmittedRequests(long admittedRequests) {
+        this.admittedRequests = admittedRequests;
+    }
+
+    /**
+     * @return the total number of requests rejected because the queue was full or the maximum wait time was exceeded
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    public void setRejectedRequests(long rejectedRequests) {
+        this.rejectedRequests = rejectedRequests;
+    }
+
+    /**
+     * @return the total number of requests served from the read of a concurrent identical request
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests;
+    }
+
+    public void setCoalescedRequests(long coalescedRequests) {
+        this.coalescedRequests = coalescedRequests;
+    }
+
+    /**
+     * @return the total number of bytes transferred
+     */
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public void setTransferredBytes(long transferredBytes) {
+        this.transferredBytes = transferredBytes;
+    }
+
+    /**
+     * @return the number of bytes transferred per second, averaged over the last seconds
+     */
+    public long getTransferRate() {
+        return transferRate;
+    }
+
+    public void setTransferRate(long transferRate) {
+        this.transferRate = transferRate;
+    }
+
+    /**
+     * @return the total number of bytes read from the files. It is lower than the number of transferred bytes when
+     * requests are coalesced
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    public void setReadBytes(long readBytes) {
+        this.readBytes = readBytes;
+    }
+
+    /**
+     * @return the number of bytes read from the files per second, averaged over the last seconds
+     */
+    public long getReadRate() {
+        return readRate;
+    }
+
+    public void setReadRate(long readRate) {
+        this.readRate = readRate;
+    }
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.util.List;
+
+/**
+ * The agents from which a {@link FileVersion} can be downloaded instead of the grid, as hinted by the grid to a
+ * downloading agent. The content downloaded from a peer has to be verified against the checksum returned by the grid
+ */
+public class FileVersionPeers {
+
+    private String checksum;
+
+    private List<String> peerUrls;
+
+    public FileVersionPeers() {
+        super();
+    }
+
+    public FileVersionPeers(String checksum, List<String> peerUrls) {
+        super();
+        this.checksum = checksum;
+        this.peerUrls = peerUrls;
+    }
+
+    /**
+     * @return the checksum of the content of the file version, see {@link FileChecksum}
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the URLs of the agents holding the file version
+     */
+    public List<String> getPeerUrls() {
+        return peerUrls;
+    }
+
+    public void setPeerUrls(List<String> peerUrls) {
+        this.peerUrls = peerUrls;
+    }
+}
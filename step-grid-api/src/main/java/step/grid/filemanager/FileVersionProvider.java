@@ -24,4 +24,17 @@ public interface FileVersionProvider {
 
     public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container) throws FileManagerException;
 
+    /**
+     * Saves the file version to the container, reusing the content held locally when possible
+     *
+     * @param fileVersionId the id of the file version to be saved
+     * @param container     the folder to save the file version to
+     * @param localContent  the content held locally
+     * @return the saved {@link FileVersion}
+     * @throws FileManagerException
+     */
+    default FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container, LocalContent localContent) throws FileManagerException {
+        return saveFileVersionTo(fileVersionId, container);
+    }
+
 }
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+/**
+ * Content of the file versions held locally by a {@link FileManagerClient}. It allows {@link FileVersionProvider}s
+ * to reuse the content of a file version held under another {@link FileVersionId} instead of transferring it again
+ */
+public interface LocalContent {
+
+    /**
+     * @param checksum the checksum of the content, see {@link FileChecksum}
+     * @return a file version held locally with this content or null if none
+     */
+    FileVersion getFileVersion(String checksum);
+
+    /**
+     * Reports the checksum of the content of the file version being saved, making it available for later reuses
+     *
+     * @param checksum the checksum of the content, see {@link FileChecksum}
+     */
+    void setChecksum(String checksum);
+
+    /**
+     * @param fileVersionId the id of the file version being saved
+     * @return the most recently used version of the same file held locally or null if none. Its content can be used
+     * as base for a delta transfer
+     */
+    default FileVersion getPreviousFileVersion(FileVersionId fileVersionId) {
+        return null;
+    }
+}
@@ -0,0 +1,486 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Manifest of a {@link FileVersion} stored as zip, i.e. a directory or a zip file. It lists the entries of the zip
+ * with their location and the hashes of their content. It allows agents holding a previous version of the file to
+ * only transfer the entries that changed.
+ */
+public class ZipManifest {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_LENGTH = 22;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private String fileName;
+    private boolean directory;
+    private long length;
+    private String checksum;
+    private List<Entry> entries = new ArrayList<>();
+
+    public ZipManifest() {
+        super();
+    }
+
+    /**
+     * Reads the entries of a zip file and computes the hashes of their content
+     *
+     * @param zipFile the zip file
+     * @return the manifest of the zip file
+     * @throws ZipException if the file isn't a valid zip file
+     * @throws IOException
+     */
+    public static ZipManifest read(File zipFile) throws IOException {
+        ZipManifest manifest = new ZipManifest();
+        manifest.setFileName(zipFile.getName());
+        manifest.setLength(zipFile.length());
+        List<Entry> entries = readEntries(zipFile);
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (Entry entry : entries) {
+                MessageDigest dataDigest = FileChecksum.newMessageDigest();
+                try (InputStream data = new DigestInputStream(newRangeInputStream(channel, entry.getDataOffset(), entry.getCompressedSize()), dataDigest)) {
+                    if (entry.getMethod() == ZipEntry.DEFLATED) {
+                        MessageDigest contentDigest = FileChecksum.newMessageDigest();
+                        try (InputStream content = newContentInputStream(data, entry.getMethod())) {
+                            int read;
+                            while ((read = content.read(buffer)) >= 0) {
+                                contentDigest.update(buffer, 0, read);
+                            }
+                        }
+                        entry.setContentHash(FileChecksum.toString(contentDigest));
+                    } else {
+                        while (data.read(buffer) >= 0) {
+                        }
+                    }
+                }
+                entry.setDataHash(FileChecksum.toString(dataDigest));
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    entry.setContentHash(entry.getDataHash());
+                }
+            }
+        }
+        manifest.setEntries(entries);
+        return manifest;
+    }
+
+    /**
+     * Reads the entries of a zip file without computing the hashes of their content
+     *
+     * @param zipFile the zip file
+     * @return the entries of the zip file
+     * @throws ZipException if the file isn't a valid zip file
+     * @throws IOException
+     */
+    public static List<Entry> readEntries(File zipFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int tailLength = (int) Math.min(size, END_LENGTH + 0xFFFF);
+            ByteBuffer tail = read(channel, size - tailLength, tailLength);
+            int end = -1;
+            for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new ZipException("No end of central directory found in " + zipFile);
+            }
+            long entryCount = tail.getShort(end + 10) & 0xFFFF;
+            long centralDirectorySize = tail.getInt(end + 12) & ZIP64_MAGIC;
+            long centralDirectoryOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+            if (entryCount == 0xFFFF || centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC) {
+                long locatorPosition = size - tailLength + end - 20;
+                ByteBuffer locator = read(channel, locatorPosition, 20);
+                if (locatorPosition < 0 || locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                    throw new ZipException("No zip64 end of central directory locator found in " + zipFile);
+                }
+                ByteBuffer zip64End = read(channel, locator.getLong(8), 56);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory in " + zipFile);
+                }
+                entryCount = zip64End.getLong(32);
+                centralDirectorySize = zip64End.getLong(40);
+                centralDirectoryOffset = zip64End.getLong(48);
+            }
+            if (centralDirectoryOffset < 0 || centralDirectorySize > Integer.MAX_VALUE || centralDirectoryOffset + centralDirectorySize > size) {
+                throw new ZipException("Invalid central directory in " + zipFile);
+            }
+
+            ByteBuffer centralDirectory = read(channel, centralDirectoryOffset, (int) centralDirectorySize);
+            List<Entry> entries = new ArrayList<>();
+            int position = 0;
+            for (long i = 0; i < entryCount; i++) {
+                if (position + CENTRAL_HEADER_LENGTH > centralDirectory.limit() || centralDirectory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid central directory header in " + zipFile);
+                }
+                Entry entry = new Entry();
+                entry.setMethod(centralDirectory.getShort(position + 10) & 0xFFFF);
+                entry.setCrc(centralDirectory.getInt(position + 16) & ZIP64_MAGIC);
+                long compressedSize = centralDirectory.getInt(position + 20) & ZIP64_MAGIC;
+                long uncompressedSize = centralDirectory.getInt(position + 24) & ZIP64_MAGIC;
+                int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+                int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+                int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+                long headerOffset = centralDirectory.getInt(position + 42) & ZIP64_MAGIC;
+                byte[] name = new byte[nameLength];
+                centralDirectory.get(position + CENTRAL_HEADER_LENGTH, name);
+                entry.setName(new String(name, StandardCharsets.UTF_8));
+
+                // The actual values of the fields set to the zip64 magic value are stored in the zip64 extra field
+                int extra = position + CENTRAL_HEADER_LENGTH + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = centralDirectory.getShort(extra) & 0xFFFF;
+                    int length = centralDirectory.getShort(extra + 2) & 0xFFFF;
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (uncompressedSize == ZIP64_MAGIC) {
+                            uncompressedSize = centralDirectory.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = centralDirectory.getLong(field);
+                            field += 8;
+                        }
+                        if (headerOffset == ZIP64_MAGIC) {
+                            headerOffset = centralDirectory.getLong(field);
+                        }
+                    }
+                    extra += 4 + length;
+                }
+                position = extraEnd + commentLength;
+
+                ByteBuffer localHeader = read(channel, headerOffset, LOCAL_HEADER_LENGTH);
+                if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid local header for entry " + entry.getName() + " in " + zipFile);
+                }
+                long dataOffset = headerOffset + LOCAL_HEADER_LENGTH + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+                if (dataOffset + compressedSize > size) {
+                    throw new ZipException("Invalid size for entry " + entry.getName() + " in " + zipFile);
+                }
+                entry.setHeaderOffset(headerOffset);
+                entry.setDataOffset(dataOffset);
+                entry.setCompressedSize(compressedSize);
+                entry.setSize(uncompressedSize);
+                entries.add(entry);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * @param file the file
+     * @return true if the file starts with the header of a zip entry
+     */
+    public static boolean isZip(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.size() >= LOCAL_HEADER_LENGTH && read(channel, 0, 4).getInt(0) == LOCAL_HEADER_SIGNATURE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the hash of the compressed data of an entry, as returned by {@link Entry#getDataHash()}
+     *
+     * @param zipFile the zip file containing the entry
+     * @param entry   the entry, as returned by {@link #readEntries(File)}
+     * @return the hash of the compressed data of the entry
+     * @throws IOException
+     */
+    public static String computeDataHash(File zipFile, Entry entry) throws IOException {
+        MessageDigest digest = FileChecksum.newMessageDigest();
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+             InputStream data = new DigestInputStream(newRangeInputStream(channel, entry.getDataOffset(), entry.getCompressedSize()), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (data.read(buffer) >= 0) {
+            }
+        }
+        return FileChecksum.toString(digest);
+    }
+
+    /**
+     * @param data   the compressed data of an entry
+     * @param method the compression method of the entry
+     * @return the stream of the uncompressed content of the entry
+     * @throws ZipException if the compression method isn't supported
+     */
+    public static InputStream newContentInputStream(InputStream data, int method) throws ZipException {
+        if (method == ZipEntry.STORED) {
+            return data;
+        } else if (method == ZipEntry.DEFLATED) {
+            return new RawInflaterInputStream(data);
+        } else {
+            throw new ZipException("Unsupported compression method " + method);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        if (position < 0) {
+            throw new ZipException("Invalid position " + position);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static InputStream newRangeInputStream(FileChannel channel, long offset, long length) {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of zip file");
+                }
+                position += read;
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Inflater of the raw deflated data of zip entries. As for the {@link java.util.zip.ZipFile}, a dummy byte is
+     * provided once the data has been consumed as the inflater might require it to detect the end of the data
+     */
+    private static class RawInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof;
+
+        private RawInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), BUFFER_SIZE);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of deflated data");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * @return true if the zip is the package of a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the length of the zip file in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * @return the checksum of the zip file. See {@link FileChecksum}
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * An entry of the zip file. Directory entries have a name ending with "/"
+     */
+    public static class Entry {
+
+        private String name;
+        private long headerOffset;
+        private long dataOffset;
+        private long compressedSize;
+        private long size;
+        private int method;
+        private long crc;
+        private String contentHash;
+        private String dataHash;
+
+        public Entry() {
+            super();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the offset of the local header of the entry in the zip file
+         */
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        public void setHeaderOffset(long headerOffset) {
+            this.headerOffset = headerOffset;
+        }
+
+        /**
+         * @return the offset of the compressed data of the entry in the zip file
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public void setDataOffset(long dataOffset) {
+            this.dataOffset = dataOffset;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public void setCompressedSize(long compressedSize) {
+            this.compressedSize = compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public void setMethod(int method) {
+            this.method = method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public void setCrc(long crc) {
+            this.crc = crc;
+        }
+
+        /**
+         * @return the hash of the uncompressed content of the entry. See {@link FileChecksum}
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public void setContentHash(String contentHash) {
+            this.contentHash = contentHash;
+        }
+
+        /**
+         * @return the hash of the compressed data of the entry as stored in the zip file. See {@link FileChecksum}
+         */
+        public String getDataHash() {
+            return dataHash;
+        }
+
+        public void setDataHash(String dataHash) {
+            this.dataHash = dataHash;
+        }
+    }
+}
@@ -17,6 +17,26 @@ public abstract class AbstractGridServices {
         return output;
     }
 
+    /**
+     * @param attachmentEncoding the attachment encoding supported by the client. See {@link OutputMessage#ATTACHMENT_ENCODING_HEADER}
+     */
+    protected OutputMessage handleUnexpectedError(Exception e, String attachmentEncoding) {
+        return applyAttachmentEncoding(handleUnexpectedError(e), attachmentEncoding);
+    }
+
+    /**
+     * Encodes the attachments of the output as supported by the client
+     *
+     * @param attachmentEncoding the value of the header {@link OutputMessage#ATTACHMENT_ENCODING_HEADER} sent by the client
+     */
+    protected OutputMessage applyAttachmentEncoding(OutputMessage output, String attachmentEncoding) {
+        if (output != null && !OutputMessage.ATTACHMENT_ENCODING_BASE64.equals(attachmentEncoding)) {
+            // Older clients only support hex encoded attachments
+            output.useHexAttachmentEncoding();
+        }
+        return output;
+    }
+
     protected OutputMessage newAgentErrorOutput(AgentError error, Attachment... attachments) {
         OutputMessage output = new OutputMessage();
         output.setAgentError(error);
@@ -29,22 +49,16 @@ public abstract class AbstractGridServices {
     }
 
     protected Attachment generateAttachmentForException(Throwable e) {
-        Attachment attachment = new Attachment();
-        attachment.setName("exception.log");
         StringWriter w = new StringWriter();
         e.printStackTrace(new PrintWriter(w));
-        attachment.setHexContent(AttachmentHelper.getHex(w.toString().getBytes()));
-        return attachment;
+        return new BinaryAttachment("exception.log", w.toString().getBytes());
     }
 
     protected Attachment generateAttachmentForStacktrace(String attachmentName, StackTraceElement[] e) {
-        Attachment attachment = new Attachment();
         StringWriter str = new StringWriter();
         PrintWriter w = new PrintWriter(str);
         for (StackTraceElement traceElement : e)
             w.println("\tat " + traceElement);
-        attachment.setName(attachmentName);
-        attachment.setHexContent(AttachmentHelper.getHex(str.toString().getBytes()));
-        return attachment;
+        return new BinaryAttachment(attachmentName, str.toString().getBytes());
     }
 }
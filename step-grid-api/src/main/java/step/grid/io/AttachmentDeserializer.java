@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Deserializes attachments transferred either as hex or as Base64. Base64 content is decoded
+ * directly from the stream into a {@link BinaryAttachment}.
+ */
+public class AttachmentDeserializer extends JsonDeserializer<Attachment> {
+
+    public static final String BASE64_CONTENT = "base64Content";
+
+    @Override
+    public Attachment deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        ObjectNode fields = ctxt.getNodeFactory().objectNode();
+        byte[] content = null;
+
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            token = p.nextToken();
+        }
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            token = p.nextToken();
+            if (BASE64_CONTENT.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+                content = p.getBinaryValue();
+            } else {
+                fields.set(fieldName, p.readValueAsTree());
+            }
+        }
+
+        Attachment attachment = content != null ? new BinaryAttachment(null, content) : new Attachment();
+        // Apply the other fields of the attachment
+        PayloadHelper.getObjectMapper().readerForUpdating(attachment).readValue(fields);
+        return attachment;
+    }
+}
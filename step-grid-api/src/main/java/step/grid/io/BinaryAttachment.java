@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * An {@link Attachment} holding its content as byte array. The content is transferred as Base64
+ * to clients supporting it (see {@link OutputMessage#ATTACHMENT_ENCODING_HEADER}) and as hex to
+ * the other ones. The hex representation is only computed if it is requested.
+ */
+public class BinaryAttachment extends Attachment {
+
+    @JsonIgnore
+    private byte[] content;
+
+    @JsonIgnore
+    private boolean hexEncoding = false;
+
+    public BinaryAttachment() {
+        super();
+    }
+
+    public BinaryAttachment(String name, byte[] content) {
+        super();
+        setName(name);
+        this.content = content;
+    }
+
+    /**
+     * @return the content of this attachment
+     */
+    @JsonIgnore
+    public byte[] getContent() {
+        if (content == null) {
+            String hexContent = super.getHexContent();
+            return hexContent != null ? AttachmentHelper.hexStringToByteArray(hexContent) : null;
+        }
+        return content;
+    }
+
+    public void setContent(byte[] content) {
+        this.content = content;
+        super.setHexContent(null);
+    }
+
+    @JsonIgnore
+    @Override
+    public String getHexContent() {
+        String hexContent = super.getHexContent();
+        if (hexContent == null && content != null) {
+            return AttachmentHelper.getHex(content);
+        }
+        return hexContent;
+    }
+
+    @Override
+    public void setHexContent(String hexContent) {
+        super.setHexContent(hexContent);
+        this.content = null;
+    }
+
+    /**
+     * Forces the serialization of the content as hex for clients that don't support Base64
+     */
+    @JsonIgnore
+    public void setHexEncoding(boolean hexEncoding) {
+        this.hexEncoding = hexEncoding;
+    }
+
+    @JsonProperty("hexContent")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String getSerializableHexContent() {
+        return (hexEncoding || content == null) ? getHexContent() : null;
+    }
+
+    @JsonProperty(AttachmentDeserializer.BASE64_CONTENT)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private byte[] getSerializableContent() {
+        // byte arrays are serialized as Base64 by Jackson
+        return hexEncoding ? null : content;
+    }
+}
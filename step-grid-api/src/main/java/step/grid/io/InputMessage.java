@@ -20,7 +20,12 @@ package step.grid.io;
 
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.util.RawValue;
 
 import step.grid.filemanager.FileVersionId;
 
@@ -34,8 +39,15 @@ public class InputMessage {
 
     private int callTimeout;
 
+    @JsonIgnore
     private JsonNode payload;
 
+    @JsonIgnore
+    private String payloadJson;
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private FileVersionId payloadReference;
+
     public InputMessage() {
         super();
     }
@@ -52,14 +64,61 @@ public class InputMessage {
     }
 
     /**
-     * @return the payload of this message as {@link JsonNode}
+     * @return the payload of this message as {@link JsonNode}. If the payload has been set or received
+     * as raw JSON, it is parsed on first access
      */
+    @JsonIgnore
     public JsonNode getPayload() {
+        if (payload == null && payloadJson != null) {
+            payload = PayloadHelper.readTree(payloadJson);
+        }
         return payload;
     }
 
-    public void setPayload(JsonNode argument) {
-        this.payload = argument;
+    public void setPayload(JsonNode payload) {
+        this.payload = payload;
+        this.payloadJson = null;
+    }
+
+    /**
+     * @return the payload of this message as raw JSON
+     */
+    @JsonIgnore
+    public String getPayloadJson() {
+        if (payload != null) {
+            // The tree might have been modified after its creation
+            return PayloadHelper.writeValueAsString(payload);
+        }
+        return payloadJson;
+    }
+
+    /**
+     * Sets the payload of this message as raw JSON. The payload is passed through as is and only
+     * parsed if it is accessed via {@link #getPayload()}
+     *
+     * @param payloadJson the payload as valid JSON
+     */
+    public void setPayloadJson(String payloadJson) {
+        this.payloadJson = payloadJson;
+        this.payload = null;
+    }
+
+    @JsonProperty("payload")
+    private Object getSerializablePayload() {
+        if (payload != null) {
+            return payload;
+        } else if (payloadJson != null) {
+            return new RawValue(payloadJson);
+        } else {
+            return null;
+        }
+    }
+
+    @JsonProperty("payload")
+    @JsonDeserialize(using = RawJsonDeserializer.class)
+    private void setSerializablePayload(String payloadJson) {
+        // Explicit nulls are kept as JSON null like for JsonNode properties
+        setPayloadJson(payloadJson != null ? payloadJson : "null");
     }
 
     /**
@@ -95,5 +154,17 @@ public class InputMessage {
         this.handlerPackage = handlerPackage;
     }
 
+    /**
+     * @return the handle to the file containing the payload of this message if the payload has been
+     * offloaded to the file manager. Optional.
+     */
+    public FileVersionId getPayloadReference() {
+        return payloadReference;
+    }
+
+    public void setPayloadReference(FileVersionId payloadReference) {
+        this.payloadReference = payloadReference;
+    }
+
 
 }
@@ -21,12 +21,26 @@ package step.grid.io;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.util.RawValue;
 
 public class OutputMessage {
 
+    /**
+     * Header used by clients to declare the encodings they support for the content of attachments
+     */
+    public static final String ATTACHMENT_ENCODING_HEADER = "X-Step-Attachment-Encoding";
+    public static final String ATTACHMENT_ENCODING_BASE64 = "base64";
+
+    @JsonIgnore
     private JsonNode payload;
 
+    @JsonIgnore
+    private String payloadJson;
+
     private AgentError agentError;
 
     private List<Attachment> attachments;
@@ -47,14 +61,61 @@ public class OutputMessage {
     }
 
     /**
-     * @return the payload of this output message as {@link JsonNode}
+     * @return the payload of this output message as {@link JsonNode}. If the payload has been set or received
+     * as raw JSON, it is parsed on first access
      */
+    @JsonIgnore
     public JsonNode getPayload() {
+        if (payload == null && payloadJson != null) {
+            payload = PayloadHelper.readTree(payloadJson);
+        }
         return payload;
     }
 
     public void setPayload(JsonNode payload) {
         this.payload = payload;
+        this.payloadJson = null;
+    }
+
+    /**
+     * @return the payload of this output message as raw JSON
+     */
+    @JsonIgnore
+    public String getPayloadJson() {
+        if (payload != null) {
+            // The tree might have been modified after its creation
+            return PayloadHelper.writeValueAsString(payload);
+        }
+        return payloadJson;
+    }
+
+    /**
+     * Sets the payload of this output message as raw JSON. The payload is passed through as is and only
+     * parsed if it is accessed via {@link #getPayload()}
+     *
+     * @param payloadJson the payload as valid JSON
+     */
+    public void setPayloadJson(String payloadJson) {
+        this.payloadJson = payloadJson;
+        this.payload = null;
+    }
+
+    @JsonProperty("payload")
+    private Object getSerializablePayload() {
+        if (payload != null) {
+            return payload;
+        } else if (payloadJson != null) {
+            return new RawValue(payloadJson);
+        } else {
+            return null;
+        }
+    }
+
+    @JsonProperty("payload")
+    @JsonDeserialize(using = RawJsonDeserializer.class)
+    private void setSerializablePayload(String payloadJson) {
+        // Explicit nulls are kept as JSON null like for JsonNode properties
+        setPayloadJson(payloadJson != null ? payloadJson : "null");
     }
 
     public boolean addAttachment(Attachment arg0) {
@@ -71,7 +132,17 @@ public class OutputMessage {
         return attachments;
     }
 
+    @JsonDeserialize(contentUsing = AttachmentDeserializer.class)
     public void setAttachments(List<Attachment> attachments) {
         this.attachments = attachments;
     }
+
+    /**
+     * Forces the serialization of the content of the {@link BinaryAttachment}s as hex for clients that don't support Base64
+     */
+    public void useHexAttachmentEncoding() {
+        if (attachments != null) {
+            attachments.stream().filter(a -> a instanceof BinaryAttachment).forEach(a -> ((BinaryAttachment) a).setHexEncoding(true));
+        }
+    }
 }
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import step.grid.filemanager.FileVersionId;
+
+/**
+ * Requests an agent to fetch a handler package and to build its context ahead of its first use
+ */
+public class PrefetchRequest {
+
+    private FileVersionId handlerPackage;
+
+    private String handler;
+
+    public PrefetchRequest() {
+        super();
+    }
+
+    public PrefetchRequest(FileVersionId handlerPackage, String handler) {
+        super();
+        this.handlerPackage = handlerPackage;
+        this.handler = handler;
+    }
+
+    public FileVersionId getHandlerPackage() {
+        return handlerPackage;
+    }
+
+    public void setHandlerPackage(FileVersionId handlerPackage) {
+        this.handlerPackage = handlerPackage;
+    }
+
+    /**
+     * @return the classname of the handler to be instantiated in the context of the package or null if the
+     * package should only be fetched and its context built
+     */
+    public String getHandler() {
+        return handler;
+    }
+
+    public void setHandler(String handler) {
+        this.handler = handler;
+    }
+}
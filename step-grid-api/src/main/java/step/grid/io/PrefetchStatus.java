@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import step.grid.filemanager.FileVersionId;
+
+/**
+ * The status of a {@link PrefetchRequest} on an agent
+ */
+public class PrefetchStatus {
+
+    public enum State {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private FileVersionId handlerPackage;
+
+    private String handler;
+
+    private State state;
+
+    private String error;
+
+    private long duration;
+
+    public PrefetchStatus() {
+        super();
+    }
+
+    public PrefetchStatus(FileVersionId handlerPackage, String handler, State state) {
+        super();
+        this.handlerPackage = handlerPackage;
+        this.handler = handler;
+        this.state = state;
+    }
+
+    public FileVersionId getHandlerPackage() {
+        return handlerPackage;
+    }
+
+    public void setHandlerPackage(FileVersionId handlerPackage) {
+        this.handlerPackage = handlerPackage;
+    }
+
+    public String getHandler() {
+        return handler;
+    }
+
+    public void setHandler(String handler) {
+        this.handler = handler;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the error message if the prefetch failed
+     */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return the duration of the prefetch in ms once completed or failed
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import step.grid.agent.AgentTokenServices;
+import step.grid.agent.tokenpool.AgentTokenWrapper;
+import step.grid.io.InputMessage;
+import step.grid.io.OutputMessage;
+
+public class MessageHandlerPoolTest {
+
+    private static final AtomicInteger instances = new AtomicInteger();
+    private static final Set<MessageHandler> usedInstances = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger concurrentUsageViolations = new AtomicInteger();
+
+    public static class ThreadSafeHandler implements MessageHandler {
+
+        public ThreadSafeHandler() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public OutputMessage handle(AgentTokenWrapper token, InputMessage message) {
+            return new OutputMessage();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @NonThreadSafe
+    public static class NonThreadSafeHandler implements MessageHandler {
+
+        private final AtomicInteger usage = new AtomicInteger();
+
+        public NonThreadSafeHandler() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public OutputMessage handle(AgentTokenWrapper token, InputMessage message) throws Exception {
+            usedInstances.add(this);
+            if (usage.incrementAndGet() > 1) {
+                concurrentUsageViolations.incrementAndGet();
+            }
+            Thread.sleep(10);
+            usage.decrementAndGet();
+            return new OutputMessage();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testConcurrentGet() throws Exception {
+        instances.set(0);
+        try (MessageHandlerPool pool = new MessageHandlerPool(null)) {
+            List<MessageHandler> handlers = runConcurrently(20, () -> pool.get(ThreadSafeHandler.class.getName()));
+            // The handler is instantiated once and shared
+            Assert.assertEquals(1, instances.get());
+            handlers.forEach(h -> Assert.assertSame(handlers.get(0), h));
+        }
+        try (MessageHandlerPool pool = new MessageHandlerPool(null)) {
+            Assert.assertThrows(ClassNotFoundException.class, () -> pool.get("invalid.Handler"));
+        }
+    }
+
+    @Test
+    public void testPooling() throws Exception {
+        instances.set(0);
+        usedInstances.clear();
+        concurrentUsageViolations.set(0);
+        AgentTokenServices tokenServices = new AgentTokenServices(null);
+        MessageHandlerPoolConfiguration configuration = new MessageHandlerPoolConfiguration();
+        configuration.setEnablePooling(true);
+        configuration.setMaxInstancesPerHandler(3);
+        tokenServices.setMessageHandlerPoolConfiguration(configuration);
+        try (MessageHandlerPool pool = new MessageHandlerPool(tokenServices)) {
+            runConcurrently(10, () -> {
+                for (int i = 0; i < 5; i++) {
+                    pool.get(NonThreadSafeHandler.class.getName()).handle(null, null);
+                }
+                return null;
+            });
+            // Each instance is used by one execution at a time and the number of instances is bounded
+            Assert.assertEquals(0, concurrentUsageViolations.get());
+            Assert.assertTrue(instances.get() <= 3);
+            Assert.assertTrue(usedInstances.size() > 1);
+        }
+
+        // Without pooling, a single instance is shared
+        instances.set(0);
+        try (MessageHandlerPool pool = new MessageHandlerPool(new AgentTokenServices(null))) {
+            Assert.assertTrue(pool.get(NonThreadSafeHandler.class.getName()) instanceof NonThreadSafeHandler);
+            Assert.assertEquals(1, instances.get());
+        }
+    }
+
+    private static <T> List<T> runConcurrently(int threads, Callable<T> callable) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(() -> {
+                    start.await();
+                    return callable.call();
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+}
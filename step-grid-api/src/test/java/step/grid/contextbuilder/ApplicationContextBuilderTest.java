@@ -18,11 +18,18 @@
  ******************************************************************************/
 package step.grid.contextbuilder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -162,6 +169,210 @@ public class ApplicationContextBuilderTest {
         Assert.assertEquals(0, onCloseCalls.get());
     }
 
+    @Test
+    public void testConcurrentPush() throws Exception {
+        ExecutionContextCacheConfiguration executionContextCacheConfiguration = new ExecutionContextCacheConfiguration();
+        ApplicationContextBuilder builder = new ApplicationContextBuilder(executionContextCacheConfiguration);
+        ExecutorService executorService = Executors.newFixedThreadPool(5);
+        try {
+            CountDownLatch slowContextLatch = new CountDownLatch(1);
+            AtomicInteger slowContextBuilds = new AtomicInteger();
+            ApplicationContextFactory slowContextFactory = new ApplicationContextFactory() {
+                @Override
+                public boolean requiresReload() {
+                    return false;
+                }
+
+                @Override
+                public String getId() {
+                    return "file://slowContext";
+                }
+
+                @Override
+                public ClassLoader buildClassLoader(ClassLoader parentClassLoader) throws FileManagerException {
+                    slowContextBuilds.incrementAndGet();
+                    try {
+                        // Simulates the download of a package
+                        slowContextLatch.await();
+                        return new URLClassLoader(new URL[]{new URL(getId())}, parentClassLoader);
+                    } catch (InterruptedException | MalformedURLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                @Override
+                public void onClassLoaderClosed() {
+                }
+            };
+
+            List<Future<ClassLoader>> slowPushes = new LinkedList<>();
+            for (int i = 0; i < 3; i++) {
+                slowPushes.add(executorService.submit(() -> pushContextAndGetClassLoader(builder, slowContextFactory)));
+            }
+
+            // Other contexts can be built while the slow context is being built
+            Future<ClassLoader> otherPush = executorService.submit(() -> pushContextAndGetClassLoader(builder, newApplicationContextFactory("file://otherContext")));
+            Assert.assertEquals(new URL("file://otherContext"), ((URLClassLoader) otherPush.get(10, TimeUnit.SECONDS)).getURLs()[0]);
+
+            slowContextLatch.countDown();
+            ClassLoader slowContextClassLoader = slowPushes.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<ClassLoader> slowPush : slowPushes) {
+                // The slow context has been built once and is shared by all threads
+                Assert.assertSame(slowContextClassLoader, slowPush.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, slowContextBuilds.get());
+        } finally {
+            executorService.shutdownNow();
+            builder.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentPushAndReload() throws Exception {
+        ExecutionContextCacheConfiguration executionContextCacheConfiguration = new ExecutionContextCacheConfiguration();
+        executionContextCacheConfiguration.setEnableCleanup(false);
+        ApplicationContextBuilder builder = new ApplicationContextBuilder(executionContextCacheConfiguration);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            AtomicInteger openClassLoaders = new AtomicInteger();
+            ApplicationContextFactory reloadingContextFactory = new ApplicationContextFactory() {
+                @Override
+                public boolean requiresReload() {
+                    return true;
+                }
+
+                @Override
+                public String getId() {
+                    return "file://reloadingContext";
+                }
+
+                @Override
+                public ClassLoader buildClassLoader(ClassLoader parentClassLoader) throws FileManagerException {
+                    try {
+                        openClassLoaders.incrementAndGet();
+                        return new URLClassLoader(new URL[]{new URL(getId())}, parentClassLoader) {
+                            @Override
+                            public void close() throws IOException {
+                                openClassLoaders.decrementAndGet();
+                                super.close();
+                            }
+                        };
+                    } catch (MalformedURLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                @Override
+                public void onClassLoaderClosed() {
+                }
+            };
+
+            List<Future<?>> pushes = new LinkedList<>();
+            for (int i = 0; i < 8; i++) {
+                pushes.add(executorService.submit(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        builder.resetContext();
+                        ApplicationContext rootContext = builder.getCurrentContext();
+                        try (ApplicationContextControl ignored = builder.pushContext(reloadingContextFactory, true)) {
+                            // The pushed context is the one registered in its parent and not an orphaned duplicate
+                            Assert.assertSame(builder.getCurrentContext(), rootContext.getChildContext("file://reloadingContext"));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> push : pushes) {
+                push.get(1, TimeUnit.MINUTES);
+            }
+
+            // The context has been reloaded in place: a single context and class loader exist for the key
+            builder.resetContext();
+            Assert.assertNotNull(builder.getCurrentContext().getChildContext("file://reloadingContext"));
+            Assert.assertEquals(1, openClassLoaders.get());
+        } finally {
+            executorService.shutdownNow();
+            builder.close();
+        }
+    }
+
+    @Test
+    public void testMaxCachedContexts() throws Exception {
+        ExecutionContextCacheConfiguration executionContextCacheConfiguration = new ExecutionContextCacheConfiguration();
+        executionContextCacheConfiguration.setEnableCleanup(false);
+        executionContextCacheConfiguration.setMaxCachedContexts(2);
+        try (ApplicationContextBuilder builder = new ApplicationContextBuilder(executionContextCacheConfiguration)) {
+            pushAndReleaseContext(builder, "file://context1");
+            pushAndReleaseContext(builder, "file://context2");
+            // Use context1 again to make context2 the least recently used
+            pushAndReleaseContext(builder, "file://context1");
+            Assert.assertEquals(0, onCloseCalls.get());
+
+            pushAndReleaseContext(builder, "file://context3");
+            Assert.assertEquals(1, onCloseCalls.get());
+            ApplicationContext rootContext = builder.getCurrentContext();
+            Assert.assertNotNull(rootContext.getChildContext("file://context1"));
+            Assert.assertNull(rootContext.getChildContext("file://context2"));
+            Assert.assertEquals(1, builder.getEvictionStatistics().getEvictions());
+
+            // Contexts in use aren't evicted
+            try (ApplicationContextControl context4 = pushContext(builder, "file://context4");
+                 ApplicationContextControl context5 = pushContext(builder, "file://context5")) {
+                Assert.assertEquals(3, onCloseCalls.get());
+                try (ApplicationContextControl context6 = pushContext(builder, "file://context6")) {
+                    Assert.assertEquals(3, onCloseCalls.get());
+                    Assert.assertEquals(1, builder.getEvictionStatistics().getFailedEvictions());
+                }
+                // The capacity is enforced as soon as a context isn't in use anymore
+                Assert.assertEquals(4, onCloseCalls.get());
+            }
+            Assert.assertEquals(4, builder.getEvictionStatistics().getEvictions());
+        }
+    }
+
+    @Test
+    public void testMaxCachedContextsEstimatedSize() throws Exception {
+        ExecutionContextCacheConfiguration executionContextCacheConfiguration = new ExecutionContextCacheConfiguration();
+        executionContextCacheConfiguration.setEnableCleanup(false);
+        executionContextCacheConfiguration.setMaxCachedContextsEstimatedSizeMb(1);
+        File library1 = createLibrary(600 * 1024);
+        File library2 = createLibrary(600 * 1024);
+        try (ApplicationContextBuilder builder = new ApplicationContextBuilder(executionContextCacheConfiguration)) {
+            pushAndReleaseContext(builder, library1.toURI().toString());
+            Assert.assertEquals(0, onCloseCalls.get());
+            pushAndReleaseContext(builder, library2.toURI().toString());
+            Assert.assertEquals(1, onCloseCalls.get());
+            Assert.assertEquals(600 * 1024, builder.getEvictionStatistics().getEvictedEstimatedSize());
+        } finally {
+            library1.delete();
+            library2.delete();
+        }
+    }
+
+    private static File createLibrary(long size) throws IOException {
+        File library = File.createTempFile("library", ".jar");
+        try (RandomAccessFile file = new RandomAccessFile(library, "rw")) {
+            file.setLength(size);
+        }
+        return library;
+    }
+
+    private void pushAndReleaseContext(ApplicationContextBuilder builder, String id) throws Exception {
+        pushContext(builder, id).close();
+        builder.resetContext();
+    }
+
+    private ApplicationContextControl pushContext(ApplicationContextBuilder builder, String id) throws ApplicationContextBuilderException {
+        builder.resetContext();
+        return builder.pushContext(newApplicationContextFactory(id), true);
+    }
+
+    private ClassLoader pushContextAndGetClassLoader(ApplicationContextBuilder builder, ApplicationContextFactory factory) throws Exception {
+        builder.resetContext();
+        try (ApplicationContextControl ignored = builder.pushContext(factory, false)) {
+            return builder.getCurrentContext().getClassLoader();
+        }
+    }
+
     private ApplicationContextFactory newApplicationContextFactory(String id) {
         return new ApplicationContextFactory() {
 
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.exense.commons.io.FileHelper;
+
+public class ExtractedArtifactCacheTest {
+
+    @Test
+    public void testReuse() throws IOException {
+        File cacheFolder = FileHelper.createTempFolder();
+        try {
+            AtomicInteger extractions = new AtomicInteger();
+            ExtractedArtifactCache.Extractor extractor = targetFolder -> {
+                extractions.incrementAndGet();
+                Files.writeString(new File(targetFolder, "lib.jar").toPath(), "content");
+            };
+
+            ExtractedArtifactCache cache = new ExtractedArtifactCache(cacheFolder, Long.MAX_VALUE);
+            File folder1 = cache.acquire("artifact1", extractor);
+            File folder2 = cache.acquire("artifact1", extractor);
+            Assert.assertEquals(folder1, folder2);
+            Assert.assertEquals(1, extractions.get());
+            Assert.assertEquals("content", Files.readString(new File(folder1, "lib.jar").toPath()));
+            cache.release("artifact1");
+            cache.release("artifact1");
+
+            // Leftover of an interrupted extraction
+            File stagingFolder = new File(cacheFolder, ".staging-test");
+            stagingFolder.mkdirs();
+
+            // The extracted artifact is reused after a restart
+            cache = new ExtractedArtifactCache(cacheFolder, Long.MAX_VALUE);
+            Assert.assertFalse(stagingFolder.exists());
+            Assert.assertEquals(folder1, cache.acquire("artifact1", extractor));
+            Assert.assertEquals(1, extractions.get());
+            Assert.assertEquals(7, cache.getSize());
+        } finally {
+            FileHelper.deleteFolder(cacheFolder);
+        }
+    }
+
+    @Test
+    public void testFailedExtraction() throws IOException {
+        File cacheFolder = FileHelper.createTempFolder();
+        try {
+            ExtractedArtifactCache cache = new ExtractedArtifactCache(cacheFolder, Long.MAX_VALUE);
+            Assert.assertThrows(IOException.class, () -> cache.acquire("artifact1", targetFolder -> {
+                throw new IOException("Extraction failed");
+            }));
+            // Nothing has been published
+            Assert.assertArrayEquals(new File[0], cacheFolder.listFiles());
+
+            File folder = cache.acquire("artifact1", targetFolder -> Files.writeString(new File(targetFolder, "lib.jar").toPath(), "content"));
+            Assert.assertTrue(new File(folder, "lib.jar").exists());
+        } finally {
+            FileHelper.deleteFolder(cacheFolder);
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        File cacheFolder = FileHelper.createTempFolder();
+        try {
+            ExtractedArtifactCache.Extractor extractor = targetFolder -> Files.write(new File(targetFolder, "lib.jar").toPath(), new byte[100]);
+            ExtractedArtifactCache cache = new ExtractedArtifactCache(cacheFolder, 250);
+
+            File folder1 = cache.acquire("artifact1", extractor);
+            File folder2 = cache.acquire("artifact2", extractor);
+            cache.release("artifact2");
+            File folder3 = cache.acquire("artifact3", extractor);
+
+            // The unused artifact has been evicted, the artifacts in use are kept even if the cache is full
+            Assert.assertTrue(folder1.exists());
+            Assert.assertFalse(folder2.exists());
+            Assert.assertTrue(folder3.exists());
+            Assert.assertEquals(200, cache.getSize());
+
+            File folder4 = cache.acquire("artifact4", extractor);
+            Assert.assertEquals(300, cache.getSize());
+            cache.release("artifact1");
+            // The least recently used artifact is evicted first
+            Assert.assertFalse(folder1.exists());
+            Assert.assertTrue(folder4.exists());
+            Assert.assertEquals(200, cache.getSize());
+        } finally {
+            FileHelper.deleteFolder(cacheFolder);
+        }
+    }
+}
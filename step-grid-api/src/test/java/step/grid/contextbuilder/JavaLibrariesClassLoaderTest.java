@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.exense.commons.io.FileHelper;
+
+public class JavaLibrariesClassLoaderTest {
+
+    public static class Library {
+    }
+
+    @Test
+    public void testPackageIndex() throws Exception {
+        File folder = FileHelper.createTempFolder();
+        try {
+            String libraryClassFile = Library.class.getName().replace('.', '/') + ".class";
+            byte[] libraryClass;
+            try (InputStream inputStream = Library.class.getClassLoader().getResourceAsStream(libraryClassFile)) {
+                libraryClass = inputStream.readAllBytes();
+            }
+            createJar(new File(folder, "lib1.jar"), libraryClassFile, libraryClass);
+            createJar(new File(folder, "lib2.jar"), "resources/resource.txt", "content".getBytes(StandardCharsets.UTF_8));
+
+            File indexFile = new File(folder, PackageIndex.INDEX_FILE_NAME);
+            try (JavaLibrariesClassLoader classLoader = new JavaLibrariesClassLoader(folder, indexFile, null)) {
+                assertClassLoader(classLoader);
+            }
+            Assert.assertTrue(indexFile.exists());
+
+            // The persisted index is reused
+            long indexLastModified = indexFile.lastModified();
+            try (JavaLibrariesClassLoader classLoader = new JavaLibrariesClassLoader(folder, indexFile, null)) {
+                assertClassLoader(classLoader);
+            }
+            Assert.assertEquals(indexLastModified, indexFile.lastModified());
+
+            // The index is rebuilt if the jars change (the size of the new jar differs)
+            createJar(new File(folder, "lib2.jar"), "resources/resource2.txt", "content".getBytes(StandardCharsets.UTF_8));
+            try (JavaLibrariesClassLoader classLoader = new JavaLibrariesClassLoader(folder, indexFile, null)) {
+                Assert.assertNull(classLoader.getResource("resources/resource.txt"));
+                Assert.assertNotNull(classLoader.getResource("resources/resource2.txt"));
+            }
+        } finally {
+            FileHelper.deleteFolder(folder);
+        }
+    }
+
+    private static void assertClassLoader(JavaLibrariesClassLoader classLoader) throws Exception {
+        Class<?> libraryClass = classLoader.loadClass(Library.class.getName());
+        Assert.assertSame(classLoader, libraryClass.getClassLoader());
+        Assert.assertNotSame(Library.class, libraryClass);
+        Assert.assertEquals(Library.class.getPackageName(), libraryClass.getPackage().getName());
+        Assert.assertTrue(libraryClass.getProtectionDomain().getCodeSource().getLocation().getPath().endsWith("lib1.jar"));
+        Assert.assertThrows(ClassNotFoundException.class, () -> classLoader.loadClass("step.grid.contextbuilder.Missing"));
+        Assert.assertThrows(ClassNotFoundException.class, () -> classLoader.loadClass("unknown.Missing"));
+
+        try (InputStream inputStream = classLoader.getResourceAsStream("resources/resource.txt")) {
+            Assert.assertEquals("content", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        Assert.assertTrue(classLoader.getResource("resources/resource.txt").toString().endsWith("lib2.jar!/resources/resource.txt"));
+        Assert.assertEquals(1, Collections.list(classLoader.getResources("resources/resource.txt")).size());
+        Assert.assertNull(classLoader.getResource("resources/missing.txt"));
+        Assert.assertNull(classLoader.getResource("unknown/missing.txt"));
+    }
+
+    private static void createJar(File jar, String entryName, byte[] content) throws IOException {
+        Files.deleteIfExists(jar.toPath());
+        try (JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(jar))) {
+            outputStream.putNextEntry(new JarEntry(entryName));
+            outputStream.write(content);
+            outputStream.closeEntry();
+        }
+    }
+}
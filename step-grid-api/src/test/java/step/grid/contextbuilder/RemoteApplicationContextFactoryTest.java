@@ -19,12 +19,17 @@
 package step.grid.contextbuilder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import ch.exense.commons.io.FileHelper;
 import step.grid.filemanager.FileManagerClient;
 import step.grid.filemanager.FileManagerException;
 import step.grid.filemanager.FileVersion;
@@ -92,4 +97,46 @@ public class RemoteApplicationContextFactoryTest {
 
     }
 
+    @Test
+    public void testPackageIndexOfDirectory() throws Exception {
+        File folder = FileHelper.createTempFolder();
+        File cacheFolder = FileHelper.createTempFolder();
+        try {
+            createJar(new File(folder, "lib1.jar"), "lib1/resource.txt");
+            createJar(new File(folder, "lib2.jar"), "lib2/resource.txt");
+            TestFileManagerClient fileManagerClient = new TestFileManagerClient() {
+                @Override
+                public FileVersion requestFileVersion(FileVersionId fileVersionId, boolean cleanable) throws FileManagerException {
+                    usage.incrementAndGet();
+                    return new FileVersion(folder, fileVersionId, true);
+                }
+            };
+            ExtractedArtifactCache extractedArtifactCache = new ExtractedArtifactCache(cacheFolder, Long.MAX_VALUE);
+            RemoteApplicationContextFactory factory = new RemoteApplicationContextFactory(fileManagerClient, new FileVersionId("id1", "1"), true);
+            try (JavaLibrariesClassLoader cl = (JavaLibrariesClassLoader) factory.buildClassLoader(this.getClass().getClassLoader(),
+                new ClassLoaderCaches(extractedArtifactCache, null))) {
+                Assert.assertNotNull(cl.getResource("lib2/resource.txt"));
+            }
+            factory.onClassLoaderClosed();
+            Assert.assertEquals(0, fileManagerClient.usage.get());
+
+            // The index is persisted to the cache and not to the file version
+            Assert.assertFalse(new File(folder, PackageIndex.INDEX_FILE_NAME).exists());
+            File[] artifacts = cacheFolder.listFiles();
+            Assert.assertEquals(1, artifacts.length);
+            Assert.assertTrue(new File(artifacts[0], PackageIndex.INDEX_FILE_NAME).exists());
+        } finally {
+            FileHelper.deleteFolder(folder);
+            FileHelper.deleteFolder(cacheFolder);
+        }
+    }
+
+    private static void createJar(File jar, String entryName) throws IOException {
+        try (JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(jar))) {
+            outputStream.putNextEntry(new JarEntry(entryName));
+            outputStream.write(entryName.getBytes(StandardCharsets.UTF_8));
+            outputStream.closeEntry();
+        }
+    }
+
 }
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.contextbuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.exense.commons.io.FileHelper;
+
+public class SharedLibraryLayersTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedLibraryLayersTest.class);
+
+    private static final int PACKAGE_COUNT = 5;
+
+    private File folder;
+
+    @Before
+    public void before() throws IOException {
+        folder = FileHelper.createTempFolder();
+    }
+
+    @After
+    public void after() {
+        FileHelper.deleteFolder(folder);
+    }
+
+    @Test
+    public void testSharedLayer() throws Exception {
+        ExtractedArtifactCache extractedArtifactCache = new ExtractedArtifactCache(new File(folder, "cache"), Long.MAX_VALUE);
+        SharedLibraryLayers sharedLibraryLayers = new SharedLibraryLayers(extractedArtifactCache);
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+
+        SharedLibraryLayers.Lease lease1 = sharedLibraryLayers.acquire(parent, createPackage("package1"));
+        // The first package doesn't share any jar yet
+        Assert.assertSame(parent, lease1.getParentClassLoader());
+        Assert.assertEquals(4, lease1.getPackageJars().length);
+
+        URL[] package2 = createPackage("package2");
+        SharedLibraryLayers.Lease lease2 = sharedLibraryLayers.acquire(parent, package2);
+        SharedLibraryLayers.Lease lease3 = sharedLibraryLayers.acquire(parent, createPackage("package3"));
+        // The jackson jars are shared, the package specific jar isn't
+        Assert.assertEquals(1, lease2.getPackageJars().length);
+        Assert.assertTrue(lease2.getPackageJars()[0].getPath().endsWith("package2/specific.jar"));
+        Assert.assertNotSame(parent, lease2.getParentClassLoader());
+        Assert.assertSame(lease2.getParentClassLoader(), lease3.getParentClassLoader());
+
+        // Registering the same package again doesn't make its specific jar shared
+        SharedLibraryLayers.Lease lease2bis = sharedLibraryLayers.acquire(parent, package2);
+        Assert.assertEquals(1, lease2bis.getPackageJars().length);
+        Assert.assertSame(lease2.getParentClassLoader(), lease2bis.getParentClassLoader());
+        lease2bis.release();
+
+        try (JavaLibrariesClassLoader classLoader2 = new JavaLibrariesClassLoader(lease2.getPackageJars(), null, lease2.getParentClassLoader());
+             JavaLibrariesClassLoader classLoader3 = new JavaLibrariesClassLoader(lease3.getPackageJars(), null, lease3.getParentClassLoader())) {
+            Class<?> objectMapper = classLoader2.loadClass(ObjectMapper.class.getName());
+            Assert.assertSame(objectMapper, classLoader3.loadClass(ObjectMapper.class.getName()));
+            Assert.assertSame(lease2.getParentClassLoader(), objectMapper.getClassLoader());
+            Assert.assertNotSame(ObjectMapper.class, objectMapper);
+            Assert.assertNotNull(classLoader2.getResource("package2.txt"));
+            Assert.assertNull(classLoader3.getResource("package2.txt"));
+        }
+
+        // The shared jars are copied to the cache and remain referenced as long as the layer is in use
+        long cacheSize = extractedArtifactCache.getSize();
+        Assert.assertTrue(cacheSize > 0);
+        lease2.release();
+        lease1.release();
+        // Releasing twice has no effect
+        lease2.release();
+        Assert.assertEquals(cacheSize, extractedArtifactCache.getSize());
+        JavaLibrariesClassLoader layer = (JavaLibrariesClassLoader) lease3.getParentClassLoader();
+        lease3.release();
+        // The layer has been closed
+        Assert.assertNull(layer.findResource("com/fasterxml/jackson/databind/ObjectMapper.class"));
+
+        // A package registered after the release of all the others doesn't share anything
+        SharedLibraryLayers.Lease lease4 = sharedLibraryLayers.acquire(parent, createPackage("package4"));
+        Assert.assertSame(parent, lease4.getParentClassLoader());
+        lease4.release();
+    }
+
+    @Test
+    public void testSharedJarDependingOnPackageJar() throws Exception {
+        SharedLibraryLayers sharedLibraryLayers = new SharedLibraryLayers(null);
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+
+        // jackson-core differs from package to package and jackson-databind, which depends on it, cannot be shared
+        SharedLibraryLayers.Lease lease1 = sharedLibraryLayers.acquire(parent, createPackageWithSpecificJacksonCore("package1"));
+        SharedLibraryLayers.Lease lease2 = sharedLibraryLayers.acquire(parent, createPackageWithSpecificJacksonCore("package2"));
+        try {
+            // Only jackson-annotations, which doesn't depend on anything, is shared
+            Assert.assertNotSame(parent, lease2.getParentClassLoader());
+            Assert.assertEquals(1, ((JavaLibrariesClassLoader) lease2.getParentClassLoader()).getURLs().length);
+            Assert.assertEquals(2, lease2.getPackageJars().length);
+            try (JavaLibrariesClassLoader classLoader = new JavaLibrariesClassLoader(lease2.getPackageJars(), null, lease2.getParentClassLoader())) {
+                useJackson(classLoader);
+            }
+        } finally {
+            lease1.release();
+            lease2.release();
+        }
+    }
+
+    @Test
+    public void testJarWithInvalidClassFiles() throws Exception {
+        SharedLibraryLayers sharedLibraryLayers = new SharedLibraryLayers(null);
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+
+        URL[] package1 = createPackage("package1");
+        URL[] package2 = createPackage("package2");
+        for (URL[] jars : List.of(package1, package2)) {
+            File packageFolder = new File(jars[0].toURI()).getParentFile();
+            try (JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(new File(packageFolder, "invalid.jar")))) {
+                // Unknown constant pool tag
+                outputStream.putNextEntry(new JarEntry("invalid/Garbage.class"));
+                outputStream.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 65, 0, 2, 99, 1, 2, 3});
+                outputStream.closeEntry();
+                // Truncated constant pool
+                outputStream.putNextEntry(new JarEntry("invalid/Truncated.class"));
+                outputStream.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 65, 0, 10, 1, 0});
+                outputStream.closeEntry();
+                outputStream.putNextEntry(new JarEntry("invalid.txt"));
+                outputStream.write("invalid".getBytes());
+                outputStream.closeEntry();
+            }
+        }
+
+        SharedLibraryLayers.Lease lease1 = sharedLibraryLayers.acquire(parent, JavaLibrariesClassLoader.getURLs(new File(folder, "package1"), null));
+        SharedLibraryLayers.Lease lease2 = sharedLibraryLayers.acquire(parent, JavaLibrariesClassLoader.getURLs(new File(folder, "package2"), null));
+        try {
+            // The jar with the invalid class files isn't shared but remains loadable by the package
+            Assert.assertNotSame(parent, lease2.getParentClassLoader());
+            Assert.assertEquals(2, lease2.getPackageJars().length);
+            try (JavaLibrariesClassLoader classLoader = new JavaLibrariesClassLoader(lease2.getPackageJars(), null, lease2.getParentClassLoader())) {
+                Assert.assertNotNull(classLoader.getResource("invalid.txt"));
+                Assert.assertNull(lease2.getParentClassLoader().getResource("invalid.txt"));
+                useJackson(classLoader);
+            }
+        } finally {
+            lease1.release();
+            lease2.release();
+        }
+    }
+
+    @Test
+    public void testConcurrentLayerCreation() throws Exception {
+        SharedLibraryLayers sharedLibraryLayers = new SharedLibraryLayers(null);
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+        List<URL[]> packages = new ArrayList<>();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            packages.add(createPackage("package" + i));
+        }
+        // Register the packages beforehand so that the jackson jars are shared by all of them
+        List<SharedLibraryLayers.Lease> registrations = new ArrayList<>();
+        for (URL[] jars : packages) {
+            registrations.add(sharedLibraryLayers.acquire(parent, jars));
+        }
+        registrations.get(0).release();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(PACKAGE_COUNT);
+        List<SharedLibraryLayers.Lease> leases = new ArrayList<>();
+        try {
+            List<Future<SharedLibraryLayers.Lease>> futures = new ArrayList<>();
+            for (URL[] jars : packages) {
+                futures.add(executorService.submit(() -> sharedLibraryLayers.acquire(parent, jars)));
+            }
+            for (Future<SharedLibraryLayers.Lease> future : futures) {
+                leases.add(future.get(1, TimeUnit.MINUTES));
+            }
+            // All packages use the same layer
+            for (SharedLibraryLayers.Lease lease : leases) {
+                Assert.assertSame(registrations.get(1).getParentClassLoader(), lease.getParentClassLoader());
+            }
+        } finally {
+            executorService.shutdownNow();
+            leases.forEach(SharedLibraryLayers.Lease::release);
+            registrations.forEach(SharedLibraryLayers.Lease::release);
+        }
+    }
+
+    @Test
+    public void testMetaspace() throws Exception {
+        List<URL[]> packages = new ArrayList<>();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            packages.add(createPackage("package" + i));
+        }
+        // Measure the isolated class loaders before any shared layer has been created
+        long isolated = measureMetaspace(packages, null);
+
+        SharedLibraryLayers sharedLibraryLayers = new SharedLibraryLayers(null);
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+        // Register the packages beforehand so that the jackson jars are shared by all of them
+        List<SharedLibraryLayers.Lease> registrations = new ArrayList<>();
+        for (URL[] jars : packages) {
+            registrations.add(sharedLibraryLayers.acquire(parent, jars));
+        }
+        long layered = measureMetaspace(packages, sharedLibraryLayers);
+        logger.info("Metaspace used by {} packages using jackson: {}KB with isolated class loaders, {}KB with a shared library layer",
+                PACKAGE_COUNT, isolated / 1024, layered / 1024);
+
+        registrations.forEach(SharedLibraryLayers.Lease::release);
+    }
+
+    private long measureMetaspace(List<URL[]> packages, SharedLibraryLayers sharedLibraryLayers) throws Exception {
+        List<JavaLibrariesClassLoader> classLoaders = new ArrayList<>();
+        List<SharedLibraryLayers.Lease> leases = new ArrayList<>();
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+        long before = getUsedMetaspace();
+        try {
+            for (URL[] jars : packages) {
+                JavaLibrariesClassLoader classLoader;
+                if (sharedLibraryLayers != null) {
+                    SharedLibraryLayers.Lease lease = sharedLibraryLayers.acquire(parent, jars);
+                    leases.add(lease);
+                    classLoader = new JavaLibrariesClassLoader(lease.getPackageJars(), null, lease.getParentClassLoader());
+                } else {
+                    classLoader = new JavaLibrariesClassLoader(jars, null, parent);
+                }
+                classLoaders.add(classLoader);
+                useJackson(classLoader);
+            }
+            return getUsedMetaspace() - before;
+        } finally {
+            for (JavaLibrariesClassLoader classLoader : classLoaders) {
+                classLoader.close();
+            }
+            leases.forEach(SharedLibraryLayers.Lease::release);
+        }
+    }
+
+    private static void useJackson(ClassLoader classLoader) throws Exception {
+        Class<?> objectMapperClass = classLoader.loadClass(ObjectMapper.class.getName());
+        Object objectMapper = objectMapperClass.getConstructor().newInstance();
+        Object tree = objectMapperClass.getMethod("readTree", String.class).invoke(objectMapper, "{\"key\":[1,2,3]}");
+        Assert.assertEquals("{\"key\":[1,2,3]}", objectMapperClass.getMethod("writeValueAsString", Object.class).invoke(objectMapper, tree));
+    }
+
+    private static long getUsedMetaspace() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getName().equals("Metaspace"))
+                .mapToLong(pool -> pool.getUsage().getUsed()).findFirst().orElse(0);
+    }
+
+    /**
+     * Creates a package made of the jackson jars in which jackson-core is package specific
+     */
+    private URL[] createPackageWithSpecificJacksonCore(String name) throws Exception {
+        File packageFolder = new File(folder, name);
+        packageFolder.mkdirs();
+        for (Class<?> clazz : List.of(ObjectMapper.class, JsonProperty.class)) {
+            File jar = new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+            Files.copy(jar.toPath(), new File(packageFolder, jar.getName()).toPath());
+        }
+        // Add a package specific entry to jackson-core so that its content differs from package to package
+        File coreJar = new File(JsonFactory.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (ZipInputStream inputStream = new ZipInputStream(new FileInputStream(coreJar));
+             ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(new File(packageFolder, coreJar.getName())))) {
+            ZipEntry entry;
+            while ((entry = inputStream.getNextEntry()) != null) {
+                outputStream.putNextEntry(new ZipEntry(entry.getName()));
+                inputStream.transferTo(outputStream);
+                outputStream.closeEntry();
+            }
+            outputStream.putNextEntry(new ZipEntry(name + ".txt"));
+            outputStream.write(name.getBytes());
+            outputStream.closeEntry();
+        }
+        return JavaLibrariesClassLoader.getURLs(packageFolder, null);
+    }
+
+    /**
+     * Creates a package made of the jackson jars and of a package specific jar
+     */
+    private URL[] createPackage(String name) throws Exception {
+        File packageFolder = new File(folder, name);
+        packageFolder.mkdirs();
+        for (Class<?> clazz : List.of(ObjectMapper.class, JsonFactory.class, JsonProperty.class)) {
+            File jar = new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+            Files.copy(jar.toPath(), new File(packageFolder, jar.getName()).toPath());
+        }
+        File specificJar = new File(packageFolder, "specific.jar");
+        try (JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(specificJar))) {
+            outputStream.putNextEntry(new JarEntry(name + ".txt"));
+            outputStream.write(name.getBytes());
+            outputStream.closeEntry();
+        }
+        return JavaLibrariesClassLoader.getURLs(packageFolder, null);
+    }
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.exense.commons.io.FileHelper;
+
+public class DirectoryPackagingTest {
+
+    private File directory;
+    private File zipFile;
+    private File targetDirectory;
+
+    @Before
+    public void before() throws IOException {
+        directory = FileHelper.createTempFolder();
+        zipFile = FileHelper.createTempFile();
+        targetDirectory = FileHelper.createTempFolder();
+
+        new File(directory, "empty").mkdir();
+        new File(directory, "sub/subsub").mkdirs();
+        new File(directory, "emptyFile.txt").createNewFile();
+        Files.writeString(new File(directory, "sub/subsub/file.txt").toPath(), "Test content");
+        // File spanning multiple blocks, with a compressible first half
+        byte[] content = new byte[3 * 1024 * 1024 + 123];
+        new Random(1).nextBytes(content);
+        for (int i = 0; i < content.length / 2; i++) {
+            content[i] = (byte) (i % 17);
+        }
+        Files.write(new File(directory, "sub/large.bin").toPath(), content);
+    }
+
+    @After
+    public void after() throws IOException {
+        FileHelper.deleteFolder(directory);
+        FileHelper.deleteFolder(targetDirectory);
+        zipFile.delete();
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+        testRoundTrip(false);
+    }
+
+    @Test
+    public void testStoreOnly() throws IOException {
+        testRoundTrip(true);
+    }
+
+    private void testRoundTrip(boolean storeOnly) throws IOException {
+        DirectoryPackagingConfiguration configuration = new DirectoryPackagingConfiguration();
+        configuration.setThreads(4);
+        configuration.setStoreOnly(storeOnly);
+        DirectoryPackaging packaging = new DirectoryPackaging(configuration);
+        packaging.zip(directory, zipFile);
+
+        // The package has to be readable as stream
+        TreeMap<String, Long> streamedEntries = new TreeMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zipFile))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                streamedEntries.put(entry.getName(), zipInputStream.transferTo(OutputStream.nullOutputStream()));
+            }
+        }
+        TreeMap<String, Long> entries = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            zip.stream().forEach(e -> entries.put(e.getName(), e.getSize()));
+            Assert.assertEquals(storeOnly ? ZipEntry.STORED : ZipEntry.DEFLATED, zip.getEntry("sub/large.bin").getMethod());
+        }
+        Assert.assertEquals(entries, streamedEntries);
+        Assert.assertEquals(Long.valueOf(0), entries.get("empty/"));
+        Assert.assertEquals(Long.valueOf(0), entries.get("emptyFile.txt"));
+        Assert.assertEquals(Long.valueOf(3 * 1024 * 1024 + 123), entries.get("sub/large.bin"));
+
+        packaging.unzip(zipFile, targetDirectory);
+        assertSameContent(directory.toPath(), targetDirectory.toPath());
+
+        // The package has to be readable by the existing extraction
+        File legacyTarget = FileHelper.createTempFolder();
+        try {
+            FileHelper.unzip(zipFile, legacyTarget);
+            assertSameContent(directory.toPath(), legacyTarget.toPath());
+        } finally {
+            FileHelper.deleteFolder(legacyTarget);
+        }
+    }
+
+    @Test
+    public void testDeflateZip64Entry() throws IOException {
+        File largeDirectory = FileHelper.createTempFolder();
+        try {
+            // Sparse file exceeding the 4GB limit of the sizes without zip64
+            long size = 0xFFFFFFFFL + 1024;
+            try (RandomAccessFile file = new RandomAccessFile(new File(largeDirectory, "a.bin"), "rw")) {
+                file.setLength(size);
+            }
+            Files.writeString(new File(largeDirectory, "b.txt").toPath(), "Test content");
+            DirectoryPackagingConfiguration configuration = new DirectoryPackagingConfiguration();
+            configuration.setThreads(4);
+            configuration.setCompressionLevel(1);
+            new DirectoryPackaging(configuration).zip(largeDirectory, zipFile);
+
+            // The local header announces the 8-byte sizes of the data descriptor with a zip64 extra field
+            ByteBuffer localHeader = ByteBuffer.allocate(30 + 5 + 4).order(ByteOrder.LITTLE_ENDIAN);
+            try (RandomAccessFile file = new RandomAccessFile(zipFile, "r")) {
+                file.readFully(localHeader.array());
+            }
+            Assert.assertEquals(0xFFFFFFFF, localHeader.getInt(18));
+            Assert.assertEquals(0xFFFFFFFF, localHeader.getInt(22));
+            Assert.assertEquals(20, localHeader.getShort(28));
+            Assert.assertEquals(0x0001, localHeader.getShort(30 + 5));
+
+            // The entry following the data descriptor is found when reading the package as stream
+            try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zipFile))) {
+                Assert.assertEquals("a.bin", zipInputStream.getNextEntry().getName());
+                Assert.assertEquals(size, zipInputStream.transferTo(OutputStream.nullOutputStream()));
+                Assert.assertEquals("b.txt", zipInputStream.getNextEntry().getName());
+                Assert.assertEquals("Test content", new String(zipInputStream.readAllBytes()));
+                Assert.assertNull(zipInputStream.getNextEntry());
+            }
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                Assert.assertEquals(size, zip.getEntry("a.bin").getSize());
+            }
+        } finally {
+            FileHelper.deleteFolder(largeDirectory);
+        }
+    }
+
+    @Test
+    public void testZipSlip() throws IOException {
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zipOutputStream.putNextEntry(new ZipEntry("../outside.txt"));
+            zipOutputStream.write(1);
+            zipOutputStream.closeEntry();
+        }
+        DirectoryPackaging packaging = new DirectoryPackaging(new DirectoryPackagingConfiguration());
+        Assert.assertThrows(IOException.class, () -> packaging.unzip(zipFile, targetDirectory));
+        Assert.assertFalse(new File(targetDirectory.getParentFile(), "outside.txt").exists());
+    }
+
+    private static void assertSameContent(Path expected, Path actual) throws IOException {
+        try (Stream<Path> walk = Files.walk(expected)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                Path actualPath = actual.resolve(expected.relativize(path));
+                Assert.assertTrue(actualPath + " is missing", Files.exists(actualPath));
+                if (Files.isDirectory(path)) {
+                    Assert.assertTrue(Files.isDirectory(actualPath));
+                } else {
+                    Assert.assertArrayEquals(Files.readAllBytes(path), Files.readAllBytes(actualPath));
+                }
+            }
+        }
+    }
+}
@@ -21,7 +21,15 @@ package step.grid.filemanager;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
@@ -40,6 +48,9 @@ public class FileManagerClientImplTest {
     protected FileVersionId fileVersionId1;
     protected FileVersion fileVersion1;
     private FileVersionProvider fileProvider;
+    private volatile CountDownLatch downloadLatch;
+    private final AtomicBoolean failNextDownload = new AtomicBoolean();
+    private final AtomicBoolean errorNextDownload = new AtomicBoolean();
 
     @Before
     public void before() throws IOException {
@@ -52,6 +63,20 @@ public class FileManagerClientImplTest {
 
             @Override
             public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File file) throws FileManagerException {
+                CountDownLatch latch = downloadLatch;
+                if (latch != null) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        throw new FileManagerException(fileVersionId, e);
+                    }
+                }
+                if (failNextDownload.getAndSet(false)) {
+                    throw new FileManagerException(fileVersionId, "Simulated download error", null);
+                }
+                if (errorNextDownload.getAndSet(false)) {
+                    throw new LinkageError("Simulated download error");
+                }
                 File target = new File(file.getAbsolutePath() + "/" + fileVersion1.file.getName());
                 try {
                     Files.copy(fileVersion1.file.toPath(), target.toPath());
@@ -90,10 +115,10 @@ public class FileManagerClientImplTest {
     @Test
     public void testFileProvider() throws FileManagerException, IOException, InterruptedException {
         initFileManagerClient(200, 100);
-        Assert.assertEquals(0, fileManagerFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount(fileManagerFolder));
         FileVersion fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
         Assert.assertEquals(1, callCount.get());
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
         Assert.assertNotNull(fileVersionActual1);
 
         fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
@@ -102,17 +127,17 @@ public class FileManagerClientImplTest {
 
         Thread.sleep(300); //give time for cleanup job to run
         //File is used twice (2 calls to requestFileVersion), so usage needs to be decremented to allow cleanup
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
         //Decrement usage and wait rerun of the job
         fileManagerClient.releaseFileVersion(fileVersionActual1);
         fileManagerClient.releaseFileVersion(fileVersionActual1);
         Thread.sleep(300);
-        Assert.assertEquals(0, fileManagerFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount(fileManagerFolder));
 
         fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
         Assert.assertNotNull(fileVersionActual1);
         Assert.assertEquals(2, callCount.get());
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
 
         fileManagerClient.removeFileVersionFromCache(fileVersionId1);
         // assert that the file has been deleted
@@ -129,10 +154,10 @@ public class FileManagerClientImplTest {
     @Test
     public void testFileProviderNoCacheTTL() throws FileManagerException, IOException, InterruptedException {
         initFileManagerClient(0, 3600000);
-        Assert.assertEquals(0, fileManagerFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount(fileManagerFolder));
         FileVersion fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
         Assert.assertEquals(1, callCount.get());
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
         Assert.assertNotNull(fileVersionActual1);
 
         fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
@@ -141,21 +166,204 @@ public class FileManagerClientImplTest {
 
         Thread.sleep(300); //give time for cleanup job to run
         //File is used twice (2 calls to requestFileVersion), so usage needs to be decremented to allow cleanup
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
         //Decrement usage and wait rerun of the job
         fileManagerClient.releaseFileVersion(fileVersionActual1);
         fileManagerClient.releaseFileVersion(fileVersionActual1);
         //No sleep required, with TTL = 0 the file is deleted as soon as the usage is decremented to 0
-        Assert.assertEquals(0, fileManagerFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount(fileManagerFolder));
 
         fileVersionActual1 = fileManagerClient.requestFileVersion(fileVersionId1, true);
         Assert.assertNotNull(fileVersionActual1);
         Assert.assertEquals(2, callCount.get());
-        Assert.assertEquals(1, fileManagerFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
 
         fileManagerClient.removeFileVersionFromCache(fileVersionId1);
         // assert that the file has been deleted
         Assert.assertFalse(fileVersionActual1.getFile().exists());
     }
 
+    @Test
+    public void testConcurrentDownloads() throws Exception {
+        initFileManagerClient(3600000, 3600000);
+        FileVersionId fileVersionId2 = new FileVersionId("f1", "2");
+        // Put a first version of the file in the cache
+        FileVersion cachedFileVersion = fileManagerClient.requestFileVersion(fileVersionId2, true);
+        Assert.assertEquals(1, callCount.get());
+
+        downloadLatch = new CountDownLatch(1);
+        int requesterCount = 10;
+        ExecutorService executorService = Executors.newFixedThreadPool(requesterCount + 1);
+        try {
+            List<Future<FileVersion>> futures = new ArrayList<>();
+            for (int i = 0; i < requesterCount; i++) {
+                futures.add(executorService.submit(() -> fileManagerClient.requestFileVersion(fileVersionId1, true)));
+            }
+
+            // Requests of cached versions of the same file shouldn't wait for the pending download
+            Future<FileVersion> cacheHit = executorService.submit(() -> fileManagerClient.requestFileVersion(fileVersionId2, true));
+            Assert.assertEquals(cachedFileVersion.getFile(), cacheHit.get(5, TimeUnit.SECONDS).getFile());
+            for (Future<FileVersion> future : futures) {
+                Assert.assertFalse(future.isDone());
+            }
+
+            downloadLatch.countDown();
+            for (Future<FileVersion> future : futures) {
+                FileVersion fileVersion = future.get(5, TimeUnit.SECONDS);
+                Assert.assertTrue(fileVersion.getFile().exists());
+                Assert.assertEquals(fileVersionId1, fileVersion.getVersionId());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // All the requesters should have shared a single download
+        Assert.assertEquals(2, callCount.get());
+        // Only the file folder should remain, the staging folder having been moved to the cache
+        Assert.assertEquals(1, getFileFolderCount(fileManagerFolder));
+
+        // Release all usages and ensure the file version can be removed
+        FileVersion fileVersion = fileManagerClient.requestFileVersion(fileVersionId1, true);
+        for (int i = 0; i < requesterCount + 1; i++) {
+            fileManagerClient.releaseFileVersion(fileVersion);
+        }
+        fileManagerClient.removeFileVersionFromCache(fileVersionId1);
+        Assert.assertFalse(fileVersion.getFile().exists());
+    }
+
+    @Test
+    public void testFailedDownloadIsRetried() throws Exception {
+        initFileManagerClient(3600000, 3600000);
+        failNextDownload.set(true);
+        try {
+            fileManagerClient.requestFileVersion(fileVersionId1, true);
+            Assert.fail("The download should have failed");
+        } catch (FileManagerException e) {
+            Assert.assertEquals("Simulated download error", e.getMessage());
+        }
+        // The staging folder of the failed download should have been deleted
+        Assert.assertEquals(0, getFileFolderCount(fileManagerFolder));
+
+        // The failed download shouldn't prevent the next request from downloading the file version
+        FileVersion fileVersion = fileManagerClient.requestFileVersion(fileVersionId1, true);
+        Assert.assertTrue(fileVersion.getFile().exists());
+        Assert.assertEquals(1, callCount.get());
+    }
+
+    @Test
+    public void testDownloadErrorIsPropagatedToWaiters() throws Exception {
+        initFileManagerClient(3600000, 3600000);
+        downloadLatch = new CountDownLatch(1);
+        errorNextDownload.set(true);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<FileVersion> request1 = executorService.submit(() -> fileManagerClient.requestFileVersion(fileVersionId1, true));
+            Future<FileVersion> request2 = executorService.submit(() -> fileManagerClient.requestFileVersion(fileVersionId1, true));
+            // Let the second request wait for the download of the first one
+            Thread.sleep(200);
+            downloadLatch.countDown();
+
+            int errors = 0;
+            for (Future<FileVersion> request : List.of(request1, request2)) {
+                try {
+                    request.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof FileManagerException ? e.getCause().getCause() : e.getCause();
+                    Assert.assertTrue(cause instanceof LinkageError);
+                    errors++;
+                }
+            }
+            Assert.assertTrue(errors > 0);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // The failed download shouldn't prevent the next request from downloading the file version
+        downloadLatch = null;
+        FileVersion fileVersion = fileManagerClient.requestFileVersion(fileVersionId1, true);
+        Assert.assertTrue(fileVersion.getFile().exists());
+    }
+
+    @Test
+    public void testLocalContentReuse() throws Exception {
+        List<FileVersion> localFileVersions = new ArrayList<>();
+        FileVersionProvider provider = new FileVersionProvider() {
+            @Override
+            public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public FileVersion saveFileVersionTo(FileVersionId fileVersionId, File container, LocalContent localContent) throws FileManagerException {
+                // All the versions have the same content
+                localContent.setChecksum("checksum1");
+                localFileVersions.add(localContent.getFileVersion("checksum1"));
+                File target = new File(container, "file");
+                try {
+                    Files.writeString(target.toPath(), "content");
+                } catch (IOException e) {
+                    throw new FileManagerException(fileVersionId, e);
+                }
+                return new FileVersion(target, fileVersionId, false);
+            }
+        };
+        FileManagerConfiguration fileManagerConfiguration = new FileManagerConfiguration();
+        fileManagerConfiguration.setEnableCleanup(false);
+        FileManagerClientImpl client = new FileManagerClientImpl(fileManagerFolder, provider, fileManagerConfiguration);
+
+        FileVersion fileVersion1 = client.requestFileVersion(fileVersionId1, true);
+        Assert.assertNull(localFileVersions.get(0));
+        client.requestFileVersion(new FileVersionId("f2", "1"), true);
+        Assert.assertEquals(fileVersion1, localFileVersions.get(1));
+
+        // The index is restored after restart
+        client = new FileManagerClientImpl(fileManagerFolder, provider, fileManagerConfiguration);
+        client.requestFileVersion(new FileVersionId("f3", "1"), true);
+        Assert.assertNotNull(localFileVersions.get(2));
+        Assert.assertEquals("content", Files.readString(localFileVersions.get(2).getFile().toPath()));
+
+        // Removed file versions aren't provided anymore
+        client.removeFileVersionFromCache(fileVersionId1);
+        client.removeFileVersionFromCache(new FileVersionId("f2", "1"));
+        client.removeFileVersionFromCache(new FileVersionId("f3", "1"));
+        client.requestFileVersion(new FileVersionId("f4", "1"), true);
+        Assert.assertNull(localFileVersions.get(3));
+    }
+
+    @Test
+    public void testLoadCacheIgnoresStagingFolders() throws Exception {
+        initFileManagerClient(3600000, 3600000);
+        FileVersion fileVersion = fileManagerClient.requestFileVersion(fileVersionId1, true);
+        fileManagerClient.close();
+
+        File leftover = new File(fileManagerFolder, AbstractFileManager.STAGING_FOLDER_PREFIX + "leftover");
+        Assert.assertTrue(leftover.mkdirs());
+
+        initFileManagerClient(3600000, 3600000);
+        Assert.assertFalse(leftover.exists());
+        Assert.assertEquals(fileVersion.getFile(), fileManagerClient.requestFileVersion(fileVersionId1, true).getFile());
+        Assert.assertEquals(1, callCount.get());
+    }
+
+    @Test
+    public void testLoadCacheDropsJournalEntriesWithoutContainer() throws Exception {
+        initFileManagerClient(3600000, 3600000);
+        FileVersion fileVersion = fileManagerClient.requestFileVersion(fileVersionId1, true);
+        fileManagerClient.close();
+
+        // The file versions are journaled before their container is created: a crash in between leaves such an entry
+        FileHelper.deleteFolder(fileVersion.getFile().getParentFile());
+
+        initFileManagerClient(3600000, 3600000);
+        // The entry is ignored and the file version downloaded again
+        Assert.assertEquals(fileVersion.getFile(), fileManagerClient.requestFileVersion(fileVersionId1, true).getFile());
+        Assert.assertTrue(fileVersion.getFile().exists());
+        Assert.assertEquals(2, callCount.get());
+    }
+
+    private int getFileFolderCount(File folder) {
+        // Hidden entries like the journal aren't file folders
+        return folder.list((dir, name) -> !name.startsWith(".")).length;
+    }
+
 }
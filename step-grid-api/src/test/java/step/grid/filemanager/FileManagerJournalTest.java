@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.exense.commons.io.FileHelper;
+
+public class FileManagerJournalTest {
+
+    private File folder;
+    private File journalFile;
+
+    @Before
+    public void before() throws IOException {
+        folder = FileHelper.createTempFolder();
+        journalFile = new File(folder, ".journal");
+    }
+
+    @After
+    public void after() {
+        FileHelper.deleteFolder(folder);
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        FileManagerJournal journal = new FileManagerJournal(journalFile);
+        Assert.assertNull(journal.load());
+        journal.reset(List.of());
+        journal.add(entry("file1", "1", "checksum1"));
+        journal.add(entry("file2", "1", null));
+        journal.add(entry("file1", "2", "checksum2"));
+        journal.remove(new FileVersionId("file2", "1"));
+        journal.close();
+
+        List<FileManagerJournal.Entry> entries = new FileManagerJournal(journalFile).load();
+        Assert.assertEquals(2, entries.size());
+        FileManagerJournal.Entry entry = entries.get(0);
+        Assert.assertEquals(new FileVersionId("file1", "1"), entry.getFileVersionId());
+        Assert.assertEquals("data.jar", entry.getDataFileName());
+        Assert.assertTrue(entry.isCleanable());
+        Assert.assertFalse(entry.isDirectory());
+        Assert.assertEquals("/path/to/file1", entry.getRegistryIndex());
+        Assert.assertEquals("checksum1", entry.getChecksum());
+        Assert.assertEquals(new FileVersionId("file1", "2"), entries.get(1).getFileVersionId());
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        FileManagerJournal journal = new FileManagerJournal(journalFile);
+        journal.reset(List.of());
+        journal.add(entry("file1", "1", "checksum1"));
+        journal.add(entry("file2", "1", "checksum2"));
+        journal.close();
+
+        // Simulate a crash while writing the last record
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        journal = new FileManagerJournal(journalFile);
+        List<FileManagerJournal.Entry> entries = journal.load();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(new FileVersionId("file1", "1"), entries.get(0).getFileVersionId());
+
+        // The new records are appended after the last valid record
+        journal.add(entry("file3", "1", "checksum3"));
+        journal.close();
+        Assert.assertEquals(2, new FileManagerJournal(journalFile).load().size());
+    }
+
+    @Test
+    public void testCompaction() {
+        FileManagerJournal journal = new FileManagerJournal(journalFile);
+        journal.reset(List.of());
+        for (int i = 0; i < 2000; i++) {
+            journal.add(entry("file", Integer.toString(i), null));
+            journal.remove(new FileVersionId("file", Integer.toString(i)));
+        }
+        journal.add(entry("file", "last", null));
+        journal.close();
+
+        // The removed file versions have been compacted
+        Assert.assertTrue(journalFile.length() < 1100 * 60);
+        List<FileManagerJournal.Entry> entries = new FileManagerJournal(journalFile).load();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(new FileVersionId("file", "last"), entries.get(0).getFileVersionId());
+    }
+
+    @Test
+    public void testInvalidJournal() throws IOException {
+        Files.writeString(journalFile.toPath(), "invalid");
+        Assert.assertNull(new FileManagerJournal(journalFile).load());
+    }
+
+    private FileManagerJournal.Entry entry(String fileId, String version, String checksum) {
+        return new FileManagerJournal.Entry(new FileVersionId(fileId, version), "data.jar", false, true, "/path/to/" + fileId, checksum);
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AttachmentSerializationTest {
+
+    private static final byte[] CONTENT = "My attachment content".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testBase64Encoding() throws Exception {
+        OutputMessage output = new OutputMessage();
+        output.addAttachment(new BinaryAttachment("attachment.txt", CONTENT));
+
+        String json = mapper.writeValueAsString(output);
+        assertTrue(json.contains(AttachmentDeserializer.BASE64_CONTENT));
+        assertFalse(json.contains("hexContent"));
+
+        Attachment attachment = mapper.readValue(json, OutputMessage.class).getAttachments().get(0);
+        assertTrue(attachment instanceof BinaryAttachment);
+        assertEquals("attachment.txt", attachment.getName());
+        assertArrayEquals(CONTENT, ((BinaryAttachment) attachment).getContent());
+        // The hex content remains available for existing consumers
+        assertEquals(AttachmentHelper.getHex(CONTENT), attachment.getHexContent());
+    }
+
+    @Test
+    public void testHexEncoding() throws Exception {
+        OutputMessage output = new OutputMessage();
+        output.addAttachment(new BinaryAttachment("attachment.txt", CONTENT));
+        Attachment hexAttachment = new Attachment();
+        hexAttachment.setName("hex.txt");
+        hexAttachment.setHexContent(AttachmentHelper.getHex(CONTENT));
+        output.addAttachment(hexAttachment);
+        // Clients that don't support Base64 receive the content as hex
+        output.useHexAttachmentEncoding();
+
+        String json = mapper.writeValueAsString(output);
+        assertFalse(json.contains(AttachmentDeserializer.BASE64_CONTENT));
+
+        OutputMessage deserialized = mapper.readValue(json, OutputMessage.class);
+        for (Attachment attachment : deserialized.getAttachments()) {
+            assertFalse(attachment instanceof BinaryAttachment);
+            assertEquals(AttachmentHelper.getHex(CONTENT), attachment.getHexContent());
+        }
+        assertEquals("hex.txt", deserialized.getAttachments().get(1).getName());
+    }
+}
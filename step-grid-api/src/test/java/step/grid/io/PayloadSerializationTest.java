@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import step.grid.agent.handler.context.OutputMessageBuilder;
+
+public class PayloadSerializationTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testRawPayloadPassthrough() throws Exception {
+        String json = "{\"a\":1.5,\"b\":[1,2,{\"c\":null}],\"s\":\"x\\\"y\"}";
+        InputMessage message = new InputMessage();
+        message.setHandler("handler");
+        message.setPayloadJson(json);
+
+        String serialized = mapper.writeValueAsString(message);
+        assertTrue(serialized.contains("\"payload\":" + json));
+
+        InputMessage deserialized = mapper.readValue(serialized, InputMessage.class);
+        assertEquals("handler", deserialized.getHandler());
+        // The raw JSON is passed through without being parsed
+        assertEquals(json, deserialized.getPayloadJson());
+        // and is parsed lazily on access
+        assertEquals(1.5, deserialized.getPayload().get("a").asDouble(), 0);
+    }
+
+    @Test
+    public void testTreePayload() throws Exception {
+        InputMessage message = new InputMessage();
+        message.setPayloadJson("{\"a\":1}");
+        // Modifications of the tree take precedence over the raw JSON
+        ((ObjectNode) message.getPayload()).put("b", 2);
+        assertEquals("{\"a\":1,\"b\":2}", message.getPayloadJson());
+
+        InputMessage deserialized = mapper.readValue(mapper.writeValueAsString(message), InputMessage.class);
+        assertEquals(2, deserialized.getPayload().get("b").asInt());
+    }
+
+    @Test
+    public void testNullPayload() throws Exception {
+        InputMessage message = new InputMessage();
+        assertNull(message.getPayload());
+        // Explicit nulls are deserialized to NullNode as for JsonNode properties
+        InputMessage deserialized = mapper.readValue(mapper.writeValueAsString(message), InputMessage.class);
+        assertTrue(deserialized.getPayload().isNull());
+        // Missing payloads remain null
+        assertNull(mapper.readValue("{}", InputMessage.class).getPayload());
+    }
+
+    @Test
+    public void testOutputMessageBuilder() throws Exception {
+        OutputMessageBuilder builder = new OutputMessageBuilder();
+        builder.setPayloadJson("{\"Result\":\"OK\"}");
+        OutputMessage output = builder.build();
+        assertEquals("{\"Result\":\"OK\"}", output.getPayloadJson());
+
+        OutputMessage deserialized = mapper.readValue(mapper.writeValueAsString(output), OutputMessage.class);
+        assertEquals("OK", deserialized.getPayload().get("Result").asText());
+
+        output = new OutputMessageBuilder().add("Result", "OK").build();
+        deserialized = mapper.readValue(mapper.writeValueAsString(output), OutputMessage.class);
+        assertEquals("OK", deserialized.getPayload().get("Result").asText());
+    }
+
+    @Test
+    public void testOutputMessageBuilderInvalidPayload() {
+        OutputMessageBuilder builder = new OutputMessageBuilder();
+        for (String invalidJson : new String[]{"{\"Result\":", "{\"Result\":\"OK\"]", "", "OK",
+            // Fields injected into the output message
+            "{\"Result\":\"OK\"},\"agentError\":{\"errorCode\":\"UNEXPECTED\"}"}) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> builder.setPayloadJson(invalidJson));
+            assertEquals("Error while parsing json " + invalidJson, e.getMessage());
+        }
+        assertNull(builder.getPayloadJson());
+
+        builder.setPayloadJson("[1,\"a\",{\"b\":null}]");
+        assertEquals("[1,\"a\",{\"b\":null}]", builder.build().getPayloadJson());
+    }
+}
@@ -18,17 +18,27 @@
  ******************************************************************************/
 package step.grid.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import javax.net.ssl.SSLContext;
@@ -40,6 +50,7 @@ import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.Invocation.Builder;
+import jakarta.ws.rs.core.GenericType;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
@@ -68,7 +79,12 @@ import step.grid.filemanager.FileVersion;
 import step.grid.filemanager.FileVersionId;
 import step.grid.io.InputMessage;
 import step.grid.io.OutputMessage;
+import step.grid.io.PrefetchRequest;
+import step.grid.io.PrefetchStatus;
+import step.grid.threads.NamedThreadFactory;
+import step.grid.tokenpool.Identity;
 import step.grid.tokenpool.Interest;
+import step.grid.tokenpool.affinityevaluator.TokenWrapperAffinityEvaluatorImpl;
 
 import static step.grid.client.security.JwtTokenGenerator.initializeJwtTokenGenerator;
 import static step.grid.client.security.JwtTokenGenerator.withAuthentication;
@@ -95,6 +111,19 @@ public abstract class AbstractGridClientImpl implements GridClient {
     private final Grid grid;
     protected ApplicationContextBuilder applicationContextBuilder;
 
+    private final ConcurrentHashMap<String, LatencyTracker> hedgingLatencyTrackers = new ConcurrentHashMap<>();
+    private final HedgingStatistics hedgingStatistics = new HedgingStatistics();
+    private final ExecutorService hedgingExecutor = Executors.newCachedThreadPool(NamedThreadFactory.create("grid-client-hedging", true));
+
+    private static final int OFFLOADED_PAYLOADS_CACHE_SIZE = 1000;
+    // Content hash of the payloads offloaded to the file manager and their file version
+    private final Map<String, FileVersionId> offloadedPayloads = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileVersionId> eldest) {
+            return size() > OFFLOADED_PAYLOADS_CACHE_SIZE;
+        }
+    });
+
     public AbstractGridClientImpl(GridClientConfiguration gridClientConfiguration,
                                   TokenLifecycleStrategy tokenLifecycleStrategy, Grid grid) {
         super();
@@ -156,6 +185,11 @@ public abstract class AbstractGridClientImpl implements GridClient {
 
         private TokenWrapper tokenWrapper;
         private boolean hasSession;
+        private Map<String, String> attributes;
+        private Map<String, Interest> interests;
+        private TokenWrapperOwner tokenOwner;
+        // The call that lost against a hedged call and might still be running on this token
+        private volatile CompletableFuture<?> pendingCall;
 
         public TokenReservation(TokenWrapper tokenWrapper, boolean hasSession) {
             super();
@@ -163,6 +197,13 @@ public abstract class AbstractGridClientImpl implements GridClient {
             this.hasSession = hasSession;
         }
 
+        public TokenReservation(TokenWrapper tokenWrapper, boolean hasSession, Map<String, String> attributes, Map<String, Interest> interests, TokenWrapperOwner tokenOwner) {
+            this(tokenWrapper, hasSession);
+            this.attributes = attributes;
+            this.interests = interests;
+            this.tokenOwner = tokenOwner;
+        }
+
         public TokenWrapper getTokenWrapper() {
             return tokenWrapper;
         }
@@ -234,6 +275,10 @@ public abstract class AbstractGridClientImpl implements GridClient {
         reservedTokens.put(tokenWrapper.getID(), new TokenReservation(tokenWrapper, hasSession));
     }
 
+    private void trackTokenReservation(TokenWrapper tokenWrapper, boolean hasSession, Map<String, String> attributes, Map<String, Interest> interests, TokenWrapperOwner tokenOwner) {
+        reservedTokens.put(tokenWrapper.getID(), new TokenReservation(tokenWrapper, hasSession, attributes, interests, tokenOwner));
+    }
+
     protected boolean isLocal(TokenWrapper tokenWrapper) {
         return tokenWrapper.getToken().isLocal();
     }
@@ -246,7 +291,7 @@ public abstract class AbstractGridClientImpl implements GridClient {
     @Override
     public TokenWrapper getTokenHandle(Map<String, String> attributes, Map<String, Interest> interests, boolean createSession, TokenWrapperOwner tokenOwner) throws AgentCommunicationException {
         TokenWrapper tokenWrapper = getToken(attributes, interests, tokenOwner);
-        trackTokenReservation(tokenWrapper, createSession);
+        trackTokenReservation(tokenWrapper, createSession, attributes, interests, tokenOwner);
 
         if (createSession) {
             try {
@@ -274,6 +319,7 @@ public abstract class AbstractGridClientImpl implements GridClient {
         }
 
         TokenWrapper tokenWrapper = tokenReservation.getTokenWrapper();
+        awaitPendingCall(tokenReservation);
         try {
             if (tokenReservation.hasSession()) {
                 //tokenWrapper.setHasSession(false);
@@ -302,34 +348,282 @@ public abstract class AbstractGridClientImpl implements GridClient {
 
     @Override
     public OutputMessage call(String tokenId, JsonNode argument, String handler, FileVersionId handlerPackage, Map<String, String> properties, int callTimeout) throws GridClientException, AgentCommunicationException, Exception {
-        TokenReservation tokenReservation = getTokenReservation(tokenId);
+        InputMessage message = newInputMessage(handler, handlerPackage, properties, callTimeout);
+        message.setPayload(argument);
+        return call(tokenId, message);
+    }
 
-        TokenWrapper tokenWrapper = tokenReservation.getTokenWrapper();
-        Token token = tokenWrapper.getToken();
-        AgentRef agent = tokenWrapper.getAgent();
+    @Override
+    public OutputMessage callWithRawPayload(String tokenId, String argumentJson, String handler, FileVersionId handlerPackage, Map<String, String> properties, int callTimeout) throws GridClientException, AgentCommunicationException, Exception {
+        InputMessage message = newInputMessage(handler, handlerPackage, properties, callTimeout);
+        message.setPayloadJson(argumentJson);
+        return call(tokenId, message);
+    }
 
+    private static InputMessage newInputMessage(String handler, FileVersionId handlerPackage, Map<String, String> properties, int callTimeout) {
         InputMessage message = new InputMessage();
-        message.setPayload(argument);
         message.setHandler(handler);
         message.setHandlerPackage(handlerPackage);
         message.setProperties(properties);
         message.setCallTimeout(callTimeout);
+        return message;
+    }
+
+    private OutputMessage call(String tokenId, InputMessage message) throws Exception {
+        TokenReservation tokenReservation = getTokenReservation(tokenId);
+
+        TokenWrapper tokenWrapper = tokenReservation.getTokenWrapper();
+        Token token = tokenWrapper.getToken();
+        AgentRef agent = tokenWrapper.getAgent();
+
+        Map<String, String> properties = message.getProperties();
+        String hedgingGroup = properties != null ? properties.get(HEDGING_GROUP_PROPERTY) : null;
 
         OutputMessage output;
         if (token.isLocal()) {
             output = callLocalToken(token, message);
         } else {
+            awaitPendingCall(tokenReservation);
+            FileVersion offloadedPayload = offloadPayloadIfRequired(message);
             try {
-                output = callAgent(agent, token, message);
+                if (hedgingGroup != null && gridClientConfiguration.getHedging().isEnabled() && !tokenReservation.hasSession()) {
+                    output = callAgentWithHedging(tokenReservation, message, hedgingGroup);
+                } else {
+                    output = callAgent(agent, token, message);
+                }
                 tokenLifecycleStrategy.afterTokenCall(getTokenLifecycleCallback(tokenWrapper), tokenWrapper, output);
             } catch (Exception e) {
                 tokenLifecycleStrategy.afterTokenCallError(getTokenLifecycleCallback(tokenWrapper), tokenWrapper, e);
                 throw e;
+            } finally {
+                if (offloadedPayload != null) {
+                    grid.releaseFile(offloadedPayload);
+                }
             }
         }
         return output;
     }
 
+    /**
+     * Replaces the payload of the message by a reference to a file of the file manager if it exceeds the
+     * configured threshold. The file is identified by the hash of the payload: a payload that has
+     * already been sent is only transferred to the agents that haven't it in their cache.
+     *
+     * @return the {@link FileVersion} of the offloaded payload that has to be released after the call or null
+     * if the payload hasn't been offloaded
+     */
+    private FileVersion offloadPayloadIfRequired(InputMessage message) throws FileManagerException {
+        int threshold = gridClientConfiguration.getPayloadOffloadThreshold();
+        if (threshold < 0) {
+            return null;
+        }
+        String payloadJson = message.getPayloadJson();
+        if (payloadJson == null || payloadJson.length() <= threshold) {
+            // Pass the serialized payload through to avoid serializing it twice
+            message.setPayloadJson(payloadJson);
+            return null;
+        }
+
+        byte[] payloadBytes = payloadJson.getBytes(StandardCharsets.UTF_8);
+        String payloadHash = getPayloadHash(payloadBytes);
+        FileVersion fileVersion = null;
+        FileVersionId fileVersionId = offloadedPayloads.get(payloadHash);
+        if (fileVersionId != null) {
+            // The file might have been cleaned up in the meantime
+            fileVersion = grid.getRegisteredFile(fileVersionId);
+        }
+        if (fileVersion == null) {
+            fileVersion = grid.registerFile(new ByteArrayInputStream(payloadBytes), payloadHash + ".json", false, true);
+            offloadedPayloads.put(payloadHash, fileVersion.getVersionId());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Offloading payload of {} characters to file {}", payloadJson.length(), fileVersion.getVersionId());
+        }
+        message.setPayloadJson(null);
+        message.setPayloadReference(fileVersion.getVersionId());
+        return fileVersion;
+    }
+
+    private static String getPayloadHash(byte[] payload) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(payload));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Calls the agent and dispatches the same message to a second matching token if the call
+     * doesn't complete within the configured percentile of the recent latency of the hedging group.
+     * The first successful response wins and the other call is interrupted.
+     */
+    private OutputMessage callAgentWithHedging(TokenReservation tokenReservation, InputMessage message, String hedgingGroup) throws Exception {
+        HedgingConfiguration hedgingConfiguration = gridClientConfiguration.getHedging();
+        hedgingStatistics.incrementHedgeableCalls();
+        LatencyTracker latencyTracker = hedgingLatencyTrackers.computeIfAbsent(hedgingGroup, g -> new LatencyTracker(hedgingConfiguration.getLatencyWindowSize()));
+
+        long hedgingDelay = -1;
+        if (latencyTracker.getSampleCount() >= hedgingConfiguration.getMinSamples()) {
+            hedgingDelay = Math.max(hedgingConfiguration.getMinDelay(), latencyTracker.getPercentile(hedgingConfiguration.getLatencyPercentile()));
+        }
+
+        long start = System.currentTimeMillis();
+        TokenWrapper primaryToken = tokenReservation.getTokenWrapper();
+
+        OutputMessage output;
+        if (hedgingDelay < 0) {
+            // Not enough samples yet: call the agent synchronously and only record the latency
+            output = callAgent(primaryToken.getAgent(), primaryToken.getToken(), message);
+        } else {
+            CompletableFuture<OutputMessage> primaryCall = callAgentAsync(primaryToken, message);
+            try {
+                output = primaryCall.get(hedgingDelay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                output = hedge(tokenReservation, primaryCall, message, start);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+        latencyTracker.record(System.currentTimeMillis() - start);
+        return output;
+    }
+
+    private OutputMessage hedge(TokenReservation tokenReservation, CompletableFuture<OutputMessage> primaryCall, InputMessage message, long start) throws Exception {
+        long tokenSelectionTimeout = gridClientConfiguration.getHedging().getTokenSelectionTimeout();
+        TokenWrapper hedgeToken;
+        try {
+            hedgeToken = grid.selectToken(tokenReservation.attributes, tokenReservation.interests, tokenSelectionTimeout, tokenSelectionTimeout, tokenReservation.tokenOwner);
+        } catch (TimeoutException e) {
+            hedgeToken = null;
+        }
+        if (hedgeToken == null) {
+            hedgingStatistics.incrementHedgeTokenUnavailable();
+            return getResult(primaryCall);
+        }
+
+        hedgingStatistics.incrementHedgedCalls();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Hedging call to token {} on token {}", tokenReservation.getTokenWrapper().getID(), hedgeToken.getID());
+        }
+        TokenWrapper hedgeTokenWrapper = hedgeToken;
+        String hedgeTokenId = hedgeToken.getID();
+        CompletableFuture<OutputMessage> hedgeCall = callAgentAsync(hedgeToken, message);
+        // The outcome of the hedged call is reported to the token lifecycle strategy like the one of the original call,
+        // before returning the hedge token to the grid as soon as its call has completed
+        hedgeCall.whenComplete((o, e) -> {
+            try {
+                if (e == null) {
+                    tokenLifecycleStrategy.afterTokenCall(getTokenLifecycleCallback(hedgeTokenWrapper), hedgeTokenWrapper, o);
+                } else {
+                    tokenLifecycleStrategy.afterTokenCallError(getTokenLifecycleCallback(hedgeTokenWrapper), hedgeTokenWrapper, toException(e));
+                }
+            } finally {
+                grid.returnToken(hedgeTokenId);
+            }
+        });
+
+        // The first successful call wins. If both calls fail, the error of the original call is reported
+        CompletableFuture<Boolean> hedgeWon = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        primaryCall.whenComplete((o, e) -> {
+            if (e == null || failures.incrementAndGet() == 2) {
+                hedgeWon.complete(false);
+            }
+        });
+        hedgeCall.whenComplete((o, e) -> {
+            if (e == null) {
+                hedgeWon.complete(true);
+            } else if (failures.incrementAndGet() == 2) {
+                hedgeWon.complete(false);
+            }
+        });
+
+        if (getResult(hedgeWon)) {
+            long winTime = System.currentTimeMillis();
+            hedgingStatistics.incrementHedgeWins();
+            tokenReservation.pendingCall = primaryCall;
+            interruptAsync(tokenReservation.getTokenWrapper(), primaryCall);
+            // The latency saved is the time between the completion of the hedged call and the one of the original call. As the
+            // original call is interrupted, its completion time is only used if it completed without error in the meantime.
+            // Otherwise, it is assumed to have run until its timeout
+            long callDeadline = start + message.getCallTimeout();
+            primaryCall.whenComplete((o, e) -> {
+                long primaryEnd = e == null && o != null && o.getAgentError() == null ? System.currentTimeMillis() : callDeadline;
+                hedgingStatistics.addLatencySaved(Math.max(0, primaryEnd - winTime));
+            });
+            if (logger.isDebugEnabled()) {
+                logger.debug("Hedged call on token {} won after {}ms", hedgeTokenId, winTime - start);
+            }
+            return hedgeCall.join();
+        } else {
+            interruptAsync(hedgeToken, hedgeCall);
+            return getResult(primaryCall);
+        }
+    }
+
+    private CompletableFuture<OutputMessage> callAgentAsync(TokenWrapper tokenWrapper, InputMessage message) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return callAgent(tokenWrapper.getAgent(), tokenWrapper.getToken(), message);
+            } catch (AgentCommunicationException e) {
+                throw new CompletionException(e);
+            }
+        }, hedgingExecutor);
+    }
+
+    private void interruptAsync(TokenWrapper tokenWrapper, CompletableFuture<?> call) {
+        if (!call.isDone()) {
+            hedgingExecutor.submit(() -> {
+                try {
+                    interruptTokenExecution(tokenWrapper);
+                } catch (AgentCommunicationException e) {
+                    logger.warn("Error while interrupting the execution of the losing hedged call on token " + tokenWrapper.getID(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the completion of the call that might still be running on this token after having
+     * lost against a hedged call
+     */
+    private void awaitPendingCall(TokenReservation tokenReservation) {
+        CompletableFuture<?> pendingCall = tokenReservation.pendingCall;
+        if (pendingCall != null) {
+            try {
+                pendingCall.get(gridClientConfiguration.getTokenExecutionInterruptionTimeout(), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("The pending call on token " + tokenReservation.getTokenWrapper().getID() + " didn't complete successfully", e);
+                }
+            }
+            tokenReservation.pendingCall = null;
+        }
+    }
+
+    private static <T> T getResult(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private static Exception toException(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new Exception(cause);
+    }
+
+    @Override
+    public HedgingStatistics getHedgingStatistics() {
+        return hedgingStatistics;
+    }
+
     private TokenReservation getTokenReservation(String tokenId) throws GridClientException {
         TokenReservation tokenReservation = reservedTokens.get(tokenId);
         if (tokenReservation == null) {
@@ -372,7 +666,7 @@ public abstract class AbstractGridClientImpl implements GridClient {
     private OutputMessage callAgent(AgentRef agentRef, Token token, InputMessage message) throws AgentCommunicationException {
         return (OutputMessage) call(agentRef, token, "/process", builder -> {
             Entity<InputMessage> entity = Entity.entity(message, MediaType.APPLICATION_JSON);
-            return builder.post(entity);
+            return builder.header(OutputMessage.ATTACHMENT_ENCODING_HEADER, OutputMessage.ATTACHMENT_ENCODING_BASE64).post(entity);
         }, response -> {
             return response.readEntity(OutputMessage.class);
         }, gridClientConfiguration.getReadTimeoutOffset() + message.getCallTimeout());
@@ -381,8 +675,10 @@ public abstract class AbstractGridClientImpl implements GridClient {
     @Override
     public void interruptTokenExecution(String tokenId) throws GridClientException, AgentCommunicationException {
         TokenReservation tokenReservation = getTokenReservation(tokenId);
+        interruptTokenExecution(tokenReservation.getTokenWrapper());
+    }
 
-        TokenWrapper tokenWrapper = tokenReservation.getTokenWrapper();
+    private void interruptTokenExecution(TokenWrapper tokenWrapper) throws AgentCommunicationException {
         Token token = tokenWrapper.getToken();
         AgentRef agent = tokenWrapper.getAgent();
 
@@ -399,6 +695,49 @@ public abstract class AbstractGridClientImpl implements GridClient {
         }, gridClientConfiguration.getReleaseSessionTimeout());
     }
 
+    @Override
+    public List<AgentRef> prefetchPackages(Map<String, String> attributes, Map<String, Interest> selectionCriteria, List<PrefetchRequest> requests) {
+        Identity pretender = new Identity() {
+            @Override
+            public String getID() {
+                return null;
+            }
+
+            @Override
+            public Map<String, String> getAttributes() {
+                return attributes != null ? attributes : Map.of();
+            }
+
+            @Override
+            public Map<String, Interest> getInterests() {
+                return selectionCriteria;
+            }
+        };
+        TokenWrapperAffinityEvaluatorImpl affinityEvaluator = new TokenWrapperAffinityEvaluatorImpl();
+        Map<String, AgentRef> matchingAgents = new LinkedHashMap<>();
+        grid.getTokens().stream().filter(tokenWrapper -> affinityEvaluator.getAffinityScore(pretender, tokenWrapper) >= 0)
+            .forEach(tokenWrapper -> matchingAgents.putIfAbsent(tokenWrapper.getAgent().getAgentId(), tokenWrapper.getAgent()));
+
+        List<AgentRef> prefetchingAgents = new ArrayList<>();
+        for (AgentRef agentRef : matchingAgents.values()) {
+            try {
+                call(agentRef, "/prefetch", builder -> builder.post(Entity.entity(requests, MediaType.APPLICATION_JSON)),
+                    response -> null, gridClientConfiguration.getTokenExecutionInterruptionTimeout());
+                prefetchingAgents.add(agentRef);
+            } catch (AgentCommunicationException e) {
+                logger.warn("Unable to request the prefetch of handler packages to agent {}", agentRef, e);
+            }
+        }
+        return prefetchingAgents;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PrefetchStatus> getPrefetchStatus(AgentRef agentRef) throws AgentCommunicationException {
+        return (List<PrefetchStatus>) call(agentRef, "/prefetch/status", builder -> builder.get(),
+            response -> response.readEntity(new GenericType<List<PrefetchStatus>>() {}), gridClientConfiguration.getTokenExecutionInterruptionTimeout());
+    }
+
     public void shutdownAgent(AgentRef agentRef) throws AgentCommunicationException {
         call(agentRef, "/shutdown", builder -> builder.post(null),
             response -> null, gridClientConfiguration.getTokenExecutionInterruptionTimeout());
@@ -581,6 +920,7 @@ public abstract class AbstractGridClientImpl implements GridClient {
 
     @Override
     public void close() {
+        hedgingExecutor.shutdownNow();
         client.close();
         try {
             localMessageHandlerPool.close();
@@ -31,10 +31,19 @@ import step.grid.TokenWrapperOwner;
 import step.grid.client.AbstractGridClientImpl.AgentCommunicationException;
 import step.grid.filemanager.FileVersionId;
 import step.grid.io.OutputMessage;
+import step.grid.io.PrefetchRequest;
+import step.grid.io.PrefetchStatus;
 import step.grid.tokenpool.Interest;
 
 public interface GridClient extends GridFileService, Closeable {
 
+    /**
+     * Key of the call property flagging a call as hedgeable. The value of the property
+     * defines the group of calls whose latency is tracked together (typically the keyword name).
+     * Only idempotent calls should be flagged as hedgeable. See {@link HedgingConfiguration}
+     */
+    String HEDGING_GROUP_PROPERTY = "$hedgingGroup";
+
     /**
      * @return a local {@link TokenWrapper} that runs in the local JVM
      */
@@ -79,6 +88,23 @@ public interface GridClient extends GridFileService, Closeable {
      */
     OutputMessage call(String tokenId, JsonNode argument, String handler, FileVersionId handlerPackage, Map<String, String> properties, int callTimeout) throws GridClientException, AgentCommunicationException, Exception;
 
+    /**
+     * Runs the specified handler class on a specific token. The argument is passed as raw JSON
+     * and isn't parsed on its way to the handler unless the handler reads it as tree
+     *
+     * @param tokenId        the id of the token to run the handler on
+     * @param argumentJson   the argument to be passed to the handler as valid JSON
+     * @param handler        the classname of the handler
+     * @param handlerPackage the description of the package containing the handler
+     * @param properties     the properties to be passed to the handler in addition to the argument
+     * @param callTimeout    the calltimeout in ms
+     * @return the {@link OutputMessage} returned by the handler after execution
+     * @throws GridClientException
+     * @throws AgentCommunicationException
+     * @throws Exception
+     */
+    OutputMessage callWithRawPayload(String tokenId, String argumentJson, String handler, FileVersionId handlerPackage, Map<String, String> properties, int callTimeout) throws GridClientException, AgentCommunicationException, Exception;
+
     /**
      * Return the token to the pool.
      * The {@link GridClient} implementation might be stateful. A token has therefore to be released by the same instance
@@ -115,4 +141,32 @@ public interface GridClient extends GridFileService, Closeable {
      */
     void pingAgent(AgentRef agentRef) throws AgentCommunicationException;
 
+    /**
+     * Requests the agents owning at least one token matching the selection criteria to fetch the provided handler
+     * packages and build their contexts ahead of their first use. The agents perform the prefetch asynchronously.
+     * Their progress can be queried with {@link #getPrefetchStatus(AgentRef)}
+     * <p>
+     * Unlike the token selection, this method doesn't wait for matching agents: only the agents whose tokens are
+     * registered at the time of the call are targeted. Agents registering later aren't prefetched
+     *
+     * @param attributes        the "pretender" attributes that are matched against the selection criteria of the tokens. This map can be empty in most of the cases.
+     * @param selectionCriteria the token selection criteria used to select the agents
+     * @param requests          the handler packages to be prefetched
+     * @return the agents to which the prefetch has been successfully requested. The registered agents matching the
+     * selection criteria that rejected the request or couldn't be reached are excluded
+     */
+    List<AgentRef> prefetchPackages(Map<String, String> attributes, Map<String, Interest> selectionCriteria, List<PrefetchRequest> requests);
+
+    /**
+     * @param agentRef the reference of the agent. This can be retrieved with the method getAgents
+     * @return the status of the prefetch requests received by the agent
+     * @throws AgentCommunicationException
+     */
+    List<PrefetchStatus> getPrefetchStatus(AgentRef agentRef) throws AgentCommunicationException;
+
+    /**
+     * @return the statistics of the hedged calls performed by this client
+     */
+    HedgingStatistics getHedgingStatistics();
+
 }
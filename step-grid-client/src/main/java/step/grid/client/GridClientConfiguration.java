@@ -19,6 +19,7 @@
 package step.grid.client;
 
 import step.grid.contextbuilder.ExecutionContextCacheConfiguration;
+import step.grid.filemanager.DirectoryPackagingConfiguration;
 import step.grid.security.SymmetricSecurityConfiguration;
 
 public class GridClientConfiguration {
@@ -44,6 +45,14 @@ public class GridClientConfiguration {
 
     private SymmetricSecurityConfiguration gridSecurity;
 
+    private HedgingConfiguration hedging = new HedgingConfiguration();
+
+    // Size in characters above which the payload of remote calls is transferred through the file manager. -1 to disable
+    private int payloadOffloadThreshold = -1;
+
+    // Packaging of the directories registered through the remote grid
+    private DirectoryPackagingConfiguration directoryPackaging = new DirectoryPackagingConfiguration();
+
     public long getNoMatchExistsTimeout() {
         return noMatchExistsTimeout;
     }
@@ -147,4 +156,28 @@ public class GridClientConfiguration {
     public void setGridSecurity(SymmetricSecurityConfiguration gridSecurity) {
         this.gridSecurity = gridSecurity;
     }
+
+    public HedgingConfiguration getHedging() {
+        return hedging;
+    }
+
+    public void setHedging(HedgingConfiguration hedging) {
+        this.hedging = hedging;
+    }
+
+    public int getPayloadOffloadThreshold() {
+        return payloadOffloadThreshold;
+    }
+
+    public void setPayloadOffloadThreshold(int payloadOffloadThreshold) {
+        this.payloadOffloadThreshold = payloadOffloadThreshold;
+    }
+
+    public DirectoryPackagingConfiguration getDirectoryPackaging() {
+        return directoryPackaging;
+    }
+
+    public void setDirectoryPackaging(DirectoryPackagingConfiguration directoryPackaging) {
+        this.directoryPackaging = directoryPackaging;
+    }
 }
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.client;
+
+/**
+ * Configuration of the hedged execution of keyword calls. When enabled, calls that are
+ * flagged as hedgeable (see {@link GridClient#HEDGING_GROUP_PROPERTY}) and that haven't
+ * completed within the configured percentile of the recent latency of their group are
+ * dispatched a second time to another matching token. The first response wins.
+ * <p>
+ * Hedging should only be used for idempotent calls executed on tokens without session.
+ */
+public class HedgingConfiguration {
+
+    private boolean enabled = false;
+
+    /**
+     * The percentile of the recent latency after which a hedged call is dispatched
+     */
+    private double latencyPercentile = 95;
+
+    /**
+     * The minimal delay in ms before dispatching a hedged call
+     */
+    private long minDelay = 50;
+
+    /**
+     * The number of latency samples required before hedging kicks in for a group
+     */
+    private int minSamples = 20;
+
+    /**
+     * The number of recent latency samples kept per group
+     */
+    private int latencyWindowSize = 200;
+
+    /**
+     * The timeout in ms for the selection of the second token. If no token can be
+     * selected within this timeout the call isn't hedged
+     */
+    private long tokenSelectionTimeout = 100;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getLatencyPercentile() {
+        return latencyPercentile;
+    }
+
+    public void setLatencyPercentile(double latencyPercentile) {
+        this.latencyPercentile = latencyPercentile;
+    }
+
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    public void setMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public int getLatencyWindowSize() {
+        return latencyWindowSize;
+    }
+
+    public void setLatencyWindowSize(int latencyWindowSize) {
+        this.latencyWindowSize = latencyWindowSize;
+    }
+
+    public long getTokenSelectionTimeout() {
+        return tokenSelectionTimeout;
+    }
+
+    public void setTokenSelectionTimeout(long tokenSelectionTimeout) {
+        this.tokenSelectionTimeout = tokenSelectionTimeout;
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the hedged execution of calls performed by a {@link GridClient}
+ */
+public class HedgingStatistics {
+
+    private final AtomicLong hedgeableCalls = new AtomicLong();
+    private final AtomicLong hedgedCalls = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgeTokenUnavailable = new AtomicLong();
+    private final AtomicLong latencySaved = new AtomicLong();
+
+    protected void incrementHedgeableCalls() {
+        hedgeableCalls.incrementAndGet();
+    }
+
+    protected void incrementHedgedCalls() {
+        hedgedCalls.incrementAndGet();
+    }
+
+    protected void incrementHedgeWins() {
+        hedgeWins.incrementAndGet();
+    }
+
+    protected void incrementHedgeTokenUnavailable() {
+        hedgeTokenUnavailable.incrementAndGet();
+    }
+
+    protected void addLatencySaved(long latencySavedMs) {
+        latencySaved.addAndGet(latencySavedMs);
+    }
+
+    /**
+     * @return the number of calls flagged as hedgeable
+     */
+    public long getHedgeableCalls() {
+        return hedgeableCalls.get();
+    }
+
+    /**
+     * @return the number of calls for which a hedged call has been dispatched
+     */
+    public long getHedgedCalls() {
+        return hedgedCalls.get();
+    }
+
+    /**
+     * @return the number of hedged calls that completed before the original call
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the number of calls that couldn't be hedged because no second token was available
+     */
+    public long getHedgeTokenUnavailable() {
+        return hedgeTokenUnavailable.get();
+    }
+
+    /**
+     * @return the total latency in ms saved by the hedged calls, measured from the completion of each winning hedged
+     * call to the completion of the original call. As the losing original call is interrupted, its timeout is used
+     * instead of its completion time unless it completed without error
+     */
+    public long getLatencySaved() {
+        return latencySaved.get();
+    }
+}
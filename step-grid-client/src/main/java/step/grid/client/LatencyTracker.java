@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent latencies of a group of calls
+ * and computes percentiles over it
+ */
+public class LatencyTracker {
+
+    private final long[] samples;
+    private int count = 0;
+    private int position = 0;
+
+    public LatencyTracker(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The window size must be greater than 0");
+        }
+        samples = new long[windowSize];
+    }
+
+    public synchronized void record(long latency) {
+        samples[position] = latency;
+        position = (position + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile to be computed (between 0 and 100)
+     * @return the latency at the given percentile or -1 if no sample has been recorded yet
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -39,7 +39,7 @@ public class RemoteGridClientImpl extends AbstractGridClientImpl {
     }
 
     public RemoteGridClientImpl(GridClientConfiguration gridClientConfiguration, TokenLifecycleStrategy tokenLifecycleStrategy, String gridHost, SymmetricSecurityConfiguration gridSecurityConfiguration) {
-        super(gridClientConfiguration, tokenLifecycleStrategy, new RemoteGridImpl(gridHost, gridSecurityConfiguration));
+        super(gridClientConfiguration, tokenLifecycleStrategy, new RemoteGridImpl(gridHost, gridSecurityConfiguration, gridClientConfiguration.getDirectoryPackaging()));
     }
 
 }
@@ -18,7 +18,8 @@
  ******************************************************************************/
 package step.grid.client;
 
-import ch.exense.commons.io.FileHelper;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.NotSupportedException;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
@@ -29,6 +30,8 @@ import jakarta.ws.rs.core.GenericType;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.NewCookie;
 import jakarta.ws.rs.core.Response;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.glassfish.jersey.jackson.internal.jackson.jaxrs.json.JacksonJsonProvider;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.MultiPart;
@@ -37,24 +40,34 @@ import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
 import org.glassfish.jersey.media.multipart.file.StreamDataBodyPart;
 import step.grid.*;
 import step.grid.client.security.JwtTokenGenerator;
+import step.grid.filemanager.DirectoryPackaging;
+import step.grid.filemanager.DirectoryPackagingConfiguration;
 import step.grid.filemanager.FileManagerException;
 import step.grid.filemanager.FileVersion;
 import step.grid.filemanager.FileVersionId;
 import step.grid.security.SymmetricSecurityConfiguration;
+import step.grid.threads.NamedThreadFactory;
 import step.grid.tokenpool.Interest;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
 
 public class RemoteGridImpl implements Grid {
 
+    private static final int PIPE_SIZE = 1024 * 1024;
+
     private final JwtTokenGenerator jwtTokenGenerator;
     private final SymmetricSecurityConfiguration gridSecurityConfiguration;
     protected String gridHost;
@@ -65,9 +78,19 @@ public class RemoteGridImpl implements Grid {
 
     int connectionTimeout;
 
+    private final DirectoryPackaging directoryPackaging;
+
+    // If the grid accepts raw uploads on /grid/file/register, null until checked. See isRawUploadSupported()
+    private volatile Boolean rawUploadSupported;
+
     protected RemoteGridImpl(String gridHost, SymmetricSecurityConfiguration gridSecurityConfiguration) {
+        this(gridHost, gridSecurityConfiguration, new DirectoryPackagingConfiguration());
+    }
+
+    protected RemoteGridImpl(String gridHost, SymmetricSecurityConfiguration gridSecurityConfiguration, DirectoryPackagingConfiguration directoryPackagingConfiguration) {
         this.gridHost = gridHost;
         this.gridSecurityConfiguration = gridSecurityConfiguration;
+        this.directoryPackaging = new DirectoryPackaging(directoryPackagingConfiguration);
 
         client = ClientBuilder.newClient();
         client.register(GridObjectMapperResolver.class);
@@ -186,24 +209,75 @@ public class RemoteGridImpl implements Grid {
 
     @Override
     public FileVersion registerFile(File file, boolean cleanable) throws FileManagerException {
-        File fileToBeSent;
-        boolean isDirectory;
         if (file.isDirectory()) {
-            File tempFile;
+            return registerDirectory(file, cleanable);
+        } else if (isRawUploadSupported()) {
+            return registerFile(Entity.entity(file, MediaType.APPLICATION_OCTET_STREAM_TYPE), file.getName(), false, cleanable);
+        } else {
+            return registerFile(new FileDataBodyPart("file", file, MediaType.APPLICATION_OCTET_STREAM_TYPE), false, cleanable);
+        }
+    }
+
+    /**
+     * Streams the zip of the directory to the grid while it is being created, without intermediate file
+     */
+    private FileVersion registerDirectory(File directory, boolean cleanable) throws FileManagerException {
+        PipedInputStream pipedInputStream = new PipedInputStream(PIPE_SIZE);
+        FutureTask<Void> packaging;
+        try {
+            PipedOutputStream pipedOutputStream = new PipedOutputStream(pipedInputStream);
+            packaging = new FutureTask<>(() -> {
+                try (pipedOutputStream) {
+                    directoryPackaging.zip(directory, pipedOutputStream);
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new FileManagerException(null, "Error while creating zip of directory " + directory.getAbsolutePath(), e);
+        }
+        NamedThreadFactory.create("grid-client-directory-packaging", true).newThread(packaging).start();
+
+        // Fail the upload instead of sending a truncated zip if the packaging fails
+        InputStream inputStream = new FilterInputStream(pipedInputStream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    checkPackaging();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read < 0) {
+                    checkPackaging();
+                }
+                return read;
+            }
+
+            private void checkPackaging() throws IOException {
+                try {
+                    packaging.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException("Error while creating zip of directory " + directory.getAbsolutePath(), e.getCause());
+                }
+            }
+        };
+        try {
+            return registerFile(inputStream, directory.getName(), true, cleanable);
+        } finally {
+            // Unblocks the packaging if the upload has been aborted
             try {
-                tempFile = Files.createTempFile(file.getName(), "").toFile();
-                FileHelper.zip(file, tempFile);
+                pipedInputStream.close();
             } catch (IOException e) {
-                throw new FileManagerException(null, "Error while creating zip of directory " + file.getAbsolutePath(), e);
             }
-            fileToBeSent = tempFile;
-            isDirectory = true;
-        } else {
-            fileToBeSent = file;
-            isDirectory = false;
+            packaging.cancel(true);
         }
-        FileDataBodyPart fileDataBodyPart = new FileDataBodyPart("file", fileToBeSent, MediaType.APPLICATION_OCTET_STREAM_TYPE);
-        return registerFile(fileDataBodyPart, isDirectory, cleanable);
     }
 
     @Override
@@ -221,9 +295,51 @@ public class RemoteGridImpl implements Grid {
         queryParams.put("type", isDirectory ? "dir" : "file");
         queryParams.put("cleanable", Boolean.toString(cleanable));
         Builder b = requestBuilder("/grid/file/register", queryParams);
+        // Stream the content instead of buffering it entirely before sending
+        b.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
         return executeRequest(() -> b.post(Entity.entity(multiPart, multiPart.getMediaType()), FileVersion.class));
     }
 
+    /**
+     * Registers the content as raw request body, allowing the grid to store it in a single pass without buffering it
+     */
+    protected FileVersion registerFile(Entity<?> content, String fileName, boolean isDirectory, boolean cleanable) {
+        HashMap<String, String> queryParams = new HashMap<>();
+        queryParams.put("fileName", fileName);
+        queryParams.put("type", isDirectory ? "dir" : "file");
+        queryParams.put("cleanable", Boolean.toString(cleanable));
+        Builder b = requestBuilder("/grid/file/register", queryParams);
+        // Stream the content instead of buffering it entirely before sending
+        b.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+        return executeRequest(() -> {
+            try {
+                return b.post(content, FileVersion.class);
+            } catch (NotFoundException | NotSupportedException e) {
+                // The grid has been replaced by a version without raw uploads: the next registrations use multipart uploads
+                rawUploadSupported = false;
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Checks once if the grid accepts raw uploads. The grids older than the raw uploads only accept multipart uploads
+     * on /grid/file/register and reject other content types with 415, or 404 without file service. As a request
+     * without file name, the check is rejected by the newer grids too, without registering anything
+     */
+    private boolean isRawUploadSupported() {
+        Boolean supported = rawUploadSupported;
+        if (supported == null) {
+            Builder b = requestBuilder("/grid/file/register");
+            try (Response response = b.post(Entity.entity(new byte[0], MediaType.APPLICATION_OCTET_STREAM_TYPE))) {
+                int status = response.getStatus();
+                supported = status != Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode() && status != Response.Status.NOT_FOUND.getStatusCode();
+            }
+            rawUploadSupported = supported;
+        }
+        return supported;
+    }
+
     @Override
     public FileVersion getRegisteredFile(FileVersionId fileVersionId) throws FileManagerException {
         throw new RuntimeException("Not supported");
@@ -237,8 +353,11 @@ public class RemoteGridImpl implements Grid {
 
     @Override
     public FileVersion registerFile(InputStream inputStream, String fileName, boolean isDirectory, boolean cleanable) throws FileManagerException {
-        StreamDataBodyPart bodyPart = new StreamDataBodyPart("file", inputStream, fileName);
-        return registerFile(bodyPart, isDirectory, cleanable);
+        if (isRawUploadSupported()) {
+            return registerFile(Entity.entity(inputStream, MediaType.APPLICATION_OCTET_STREAM_TYPE), fileName, isDirectory, cleanable);
+        } else {
+            return registerFile(new StreamDataBodyPart("file", inputStream, fileName), isDirectory, cleanable);
+        }
     }
 
     @Override
@@ -22,6 +22,7 @@ import step.grid.AgentRef;
 import step.grid.TokenWrapper;
 import step.grid.TokenWrapperOwner;
 import step.grid.client.GridClient;
+import step.grid.client.HedgingStatistics;
 import step.grid.tokenpool.Interest;
 
 import java.util.*;
@@ -107,4 +108,8 @@ public class GridReportBuilder {
         }
         return tokens;
     }
+
+    public HedgingStatistics getHedgingStatistics() {
+        return gridClient.getHedgingStatistics();
+    }
 }
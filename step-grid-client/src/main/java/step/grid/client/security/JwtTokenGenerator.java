@@ -35,14 +35,54 @@ import java.util.Date;
 public class JwtTokenGenerator {
 
     private static final Logger logger = LoggerFactory.getLogger(JwtTokenGenerator.class);
-    private final String jwtSecret;
+
+    public static final long TOKEN_VALIDITY_SECONDS = 3600;
+    // Cached tokens are renewed this amount of time before their expiration
+    public static final long TOKEN_REFRESH_MARGIN_SECONDS = 300;
+
+    private final byte[] jwtSecret;
+
+    private volatile CachedToken cachedToken;
 
     public JwtTokenGenerator(String jwtSecretKey) {
-        this.jwtSecret = jwtSecretKey;
+        this.jwtSecret = jwtSecretKey.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class CachedToken {
+
+        private final String token;
+        private final long refreshTime;
+
+        private CachedToken(String token, long refreshTime) {
+            this.token = token;
+            this.refreshTime = refreshTime;
+        }
+    }
+
+    /**
+     * @return a valid token. The token is cached and shared across requests. It is renewed pre-emptively
+     * {@link #TOKEN_REFRESH_MARGIN_SECONDS} before its expiration
+     */
+    public String getToken() {
+        CachedToken current = cachedToken;
+        if (current == null || System.currentTimeMillis() >= current.refreshTime) {
+            synchronized (this) {
+                current = cachedToken;
+                if (current == null || System.currentTimeMillis() >= current.refreshTime) {
+                    long refreshTime = System.currentTimeMillis() + (TOKEN_VALIDITY_SECONDS - TOKEN_REFRESH_MARGIN_SECONDS) * 1000;
+                    current = new CachedToken(generateToken(TOKEN_VALIDITY_SECONDS), refreshTime);
+                    cachedToken = current;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Generated new JWT token");
+                    }
+                }
+            }
+        }
+        return current.token;
     }
 
     public String generateToken() {
-        return generateToken(3600); // 1 hour default
+        return generateToken(TOKEN_VALIDITY_SECONDS); // 1 hour default
     }
 
     public String generateToken(long expirationSeconds) {
@@ -52,7 +92,7 @@ public class JwtTokenGenerator {
         return Jwts.builder()
             .setIssuedAt(Date.from(now))
             .setExpiration(Date.from(expiration))
-            .signWith(SignatureAlgorithm.HS256, jwtSecret.getBytes(StandardCharsets.UTF_8))
+            .signWith(SignatureAlgorithm.HS256, jwtSecret)
             .compact();
     }
 
@@ -70,7 +110,7 @@ public class JwtTokenGenerator {
 
     public static Invocation.Builder withAuthentication(JwtTokenGenerator jwtTokenGenerator, Invocation.Builder requestBuilder) {
         if (jwtTokenGenerator != null) {
-            String token = jwtTokenGenerator.generateToken();
+            String token = jwtTokenGenerator.getToken();
             requestBuilder = requestBuilder.header(HttpHeaders.AUTHORIZATION, "Bearer " + token);
         }
         return requestBuilder;
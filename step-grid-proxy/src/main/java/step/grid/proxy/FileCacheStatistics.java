@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.proxy;
+
+/**
+ * Snapshot of the metrics of the file cache of the grid proxy. See {@link GridProxyFileCache}
+ */
+public class FileCacheStatistics {
+
+    private long hits;
+    private long misses;
+    private long coalescedMisses;
+    private long bypassedRequests;
+    private long evictions;
+    private long fetchedBytes;
+    private int cachedFileVersions;
+    private long cachedBytes;
+    private double hitRatio;
+
+    public FileCacheStatistics() {
+        super();
+    }
+
+    /**
+     * @return the number of requests served from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    /**
+     * @return the number of requests that triggered the fetch of the file version from the grid
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+
+    /**
+     * @return the number of requests that waited for the fetch of the file version triggered by another request
+     */
+    public long getCoalescedMisses() {
+        return coalescedMisses;
+    }
+
+    public void setCoalescedMisses(long coalescedMisses) {
+        this.coalescedMisses = coalescedMisses;
+    }
+
+    /**
+     * @return the number of requests forwarded to the grid because the fetch of the file version failed or didn't
+     * complete in time
+     */
+    public long getBypassedRequests() {
+        return bypassedRequests;
+    }
+
+    public void setBypassedRequests(long bypassedRequests) {
+        this.bypassedRequests = bypassedRequests;
+    }
+
+    /**
+     * @return the number of file versions evicted from the cache
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public void setEvictions(long evictions) {
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return the number of bytes fetched from the grid to populate the cache
+     */
+    public long getFetchedBytes() {
+        return fetchedBytes;
+    }
+
+    public void setFetchedBytes(long fetchedBytes) {
+        this.fetchedBytes = fetchedBytes;
+    }
+
+    /**
+     * @return the number of file versions currently cached
+     */
+    public int getCachedFileVersions() {
+        return cachedFileVersions;
+    }
+
+    public void setCachedFileVersions(int cachedFileVersions) {
+        this.cachedFileVersions = cachedFileVersions;
+    }
+
+    /**
+     * @return the size in bytes of the file versions currently cached
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public void setCachedBytes(long cachedBytes) {
+        this.cachedBytes = cachedBytes;
+    }
+
+    /**
+     * @return the ratio of the requests served from the cache to all the requests received by the cache
+     */
+    public double getHitRatio() {
+        return hitRatio;
+    }
+
+    public void setHitRatio(double hitRatio) {
+        this.hitRatio = hitRatio;
+    }
+}
@@ -20,11 +20,13 @@ package step.grid.proxy;
 
 import ch.exense.commons.app.ArgumentParser;
 import ch.exense.commons.io.FileHelper;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
@@ -39,6 +41,9 @@ import step.grid.agent.RegistrationMessage;
 import step.grid.app.configuration.ConfigurationParser;
 import step.grid.app.server.BaseServer;
 import step.grid.client.security.JwtTokenGenerator;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.FileChecksum;
+import step.grid.filemanager.FileVersionId;
 import step.grid.io.InputMessage;
 import step.grid.io.OutputMessage;
 import step.grid.proxy.conf.GridProxyConfiguration;
@@ -49,6 +54,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -75,6 +81,7 @@ public class GridProxy extends BaseServer implements AutoCloseable {
     private final Integer agentReserveTimeout;
     private final Integer agentReleaseTimeout;
     private JwtTokenGenerator jwtTokenGenerator;
+    private GridProxyFileCache fileCache;
 
     public static void main(String[] args) throws Exception {
         GridProxy gridProxy = new GridProxy(args);
@@ -153,6 +160,11 @@ public class GridProxy extends BaseServer implements AutoCloseable {
         agentReserveTimeout = gridProxyConfiguration.getAgentReserveTimeout();
         agentReleaseTimeout = gridProxyConfiguration.getAgentReleaseTimeout();
 
+        if (gridProxyConfiguration.getFileCache().isEnabled()) {
+            fileCache = new GridProxyFileCache(gridProxyConfiguration.getFileCache(), this::requestFileFromGrid);
+            logger.info("File cache enabled in " + gridProxyConfiguration.getFileCache().getCacheFolder());
+        }
+
         afterStart();
     }
 
@@ -192,6 +204,8 @@ public class GridProxy extends BaseServer implements AutoCloseable {
         // replace by proxyfied url (proxy base url + context root) and maintain the mapping
         message.getAgentRef().setAgentUrl(gridProxyUrl + "/" + getContextRoot(agentUrl));
         message.getAgentRef().setLocalAgentUrl(agentUrl);
+        // The file versions of the agents cannot be downloaded by their peers through the proxy
+        message.setFileVersions(null);
         // adding the name of the proxy to the token attributes in order to allow token selection by proxy name
         Optional.ofNullable(message.getTokens()).ifPresent(tokens -> tokens.forEach(token ->
             Optional.ofNullable(token.getAttributes()).ifPresent(attributes -> attributes.put(TOKEN_ATTRIBUTE_GRID_PROXY_NAME, gridProxyName))));
@@ -235,12 +249,48 @@ public class GridProxy extends BaseServer implements AutoCloseable {
         return contextRoot;
     }
 
-    public Response forwardGetFileRequest(String fileId, String version) throws IOException {
+    /**
+     * Forwards a file request to the grid including its range and conditional headers. The status and headers
+     * of the response of the grid (partial content, not modified...) are returned as is.
+     */
+    public Response forwardGetFileRequest(String fileId, String version, String range, String ifRange, String ifNoneMatch) throws IOException {
+        return forwardGetFileRequest(fileId, version, range, ifRange, ifNoneMatch, null);
+    }
+
+    /**
+     * Serves a file request from the file cache if enabled, or forwards it to the grid otherwise. The requests
+     * that cannot be served from the cache are forwarded to the grid. See {@link GridProxyFileCache}
+     *
+     * @param servletResponse the current servlet response used to write cached content without copy. Can be null
+     */
+    public Response forwardGetFileRequest(String fileId, String version, String range, String ifRange, String ifNoneMatch,
+                                          HttpServletResponse servletResponse) throws IOException {
+        if (fileCache != null) {
+            try {
+                GridProxyFileCache.CachedContent cachedContent = fileCache.get(new FileVersionId(fileId, version));
+                if (cachedContent != null) {
+                    return buildCachedFileResponse(cachedContent, range, ifRange, ifNoneMatch, servletResponse);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the file " + fileId + " with version " + version, e);
+            }
+        }
+
         Response fromGrid = null;
         try {
             fromGrid = withAuthentication(client.target(gridUrl + "/grid/file/" + fileId + "/" + version).request().property(ClientProperties.READ_TIMEOUT, gridReadTimeout))
+                .header(ByteRange.RANGE_HEADER, range)
+                .header(ByteRange.IF_RANGE_HEADER, ifRange)
+                .header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch)
                 .property(ClientProperties.CONNECT_TIMEOUT, gridConnectTimeout).get();
 
+            if (fromGrid.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                Response notModified = Response.fromResponse(fromGrid).build();
+                fromGrid.close();
+                return notModified;
+            }
+
             //Shallow copy to properly clean up the resources of the invocation to the grid server
             final InputStream inputStream = fromGrid.readEntity(InputStream.class);
 
@@ -264,6 +314,66 @@ public class GridProxy extends BaseServer implements AutoCloseable {
         }
     }
 
+    private Response requestFileFromGrid(FileVersionId fileVersionId) {
+        return withAuthentication(client.target(gridUrl + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion()).request()
+            .property(ClientProperties.READ_TIMEOUT, gridReadTimeout))
+            .property(ClientProperties.CONNECT_TIMEOUT, gridConnectTimeout).get();
+    }
+
+    /**
+     * Builds the response to a file request from the cached content, with the same status and headers as the grid
+     */
+    private Response buildCachedFileResponse(GridProxyFileCache.CachedContent cachedContent, String range, String ifRange,
+                                             String ifNoneMatch, HttpServletResponse servletResponse) throws IOException {
+        GridProxyFileCache.Entry entry = cachedContent.getEntry();
+        boolean channelPassed = false;
+        try {
+            String entityTag = entry.getEntityTag();
+            if (ifNoneMatch != null && entityTag != null && Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim).anyMatch(tag -> tag.equals("*") || tag.equals(entityTag))) {
+                return Response.notModified().header(HttpHeaders.ETAG, entityTag).build();
+            }
+
+            long fileLength = entry.getLength();
+            // Only serve the requested range if the representation hasn't changed, which is always the case for a given version
+            String effectiveRange = (ifRange == null || ifRange.equals(entityTag)) ? range : null;
+            ByteRange byteRange;
+            try {
+                byteRange = ByteRange.parse(effectiveRange, fileLength);
+            } catch (ByteRange.UnsatisfiableRangeException e) {
+                return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).entity(e.getMessage()).type(MediaType.TEXT_PLAIN)
+                    .header(ByteRange.CONTENT_RANGE_HEADER, ByteRange.toUnsatisfiedContentRange(fileLength)).build();
+            }
+            Response.ResponseBuilder responseBuilder;
+            if (byteRange != null) {
+                responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .header(ByteRange.CONTENT_RANGE_HEADER, byteRange.toContentRange(fileLength));
+            } else {
+                byteRange = new ByteRange(0, fileLength);
+                responseBuilder = Response.ok();
+            }
+            StreamingOutput fileStream = cachedContent.newStreamingOutput(byteRange.getOffset(), byteRange.getLength(), servletResponse);
+            channelPassed = true;
+            return responseBuilder.entity(fileStream).type(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength())
+                .header(ByteRange.ACCEPT_RANGES_HEADER, ByteRange.BYTES_UNIT)
+                .header("content-disposition", entry.getContentDisposition())
+                .header(FileChecksum.CHECKSUM_HEADER, entry.getChecksum())
+                .header(HttpHeaders.ETAG, entityTag).build();
+        } finally {
+            if (!channelPassed) {
+                cachedContent.getChannel().close();
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of the file cache or null if the cache is disabled
+     */
+    public FileCacheStatistics getFileCacheStatistics() {
+        return fileCache != null ? fileCache.getStatistics() : null;
+    }
+
     public void reserveToken(String agentContext, String tokenId) {
         forwardToAgent(agentContext, "reserve", tokenId, agentReserveTimeout);
     }
@@ -273,9 +383,15 @@ public class GridProxy extends BaseServer implements AutoCloseable {
     }
 
     public OutputMessage forwardMessageToAgent(String agentContext, String operation, String tokenId, InputMessage message) {
+        return forwardMessageToAgent(agentContext, operation, tokenId, message, null);
+    }
+
+    public OutputMessage forwardMessageToAgent(String agentContext, String operation, String tokenId, InputMessage message, String attachmentEncoding) {
         String agentUrl = contextRootToAgentUrl.get(agentContext);
         if (agentUrl != null) {
+            // Forward the attachment encodings supported by the caller
             try (Response response = withAuthentication(client.target(agentUrl + "/token/" + tokenId + "/" + operation).request())
+                .header(OutputMessage.ATTACHMENT_ENCODING_HEADER, attachmentEncoding)
                 .property(ClientProperties.READ_TIMEOUT, agentConnectTimeout + message.getCallTimeout())
                 .property(ClientProperties.CONNECT_TIMEOUT, agentConnectTimeout).post(Entity.entity(message, MediaType.APPLICATION_JSON))) {
                 return response.readEntity(OutputMessage.class);
@@ -309,6 +425,9 @@ public class GridProxy extends BaseServer implements AutoCloseable {
         if (server != null && !server.isStopped()) {
             server.stop();
         }
+        if (fileCache != null) {
+            fileCache.close();
+        }
     }
 
 }
@@ -0,0 +1,489 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.proxy;
+
+import ch.exense.commons.io.FileHelper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.app.server.ZeroCopyFileStreamingOutput;
+import step.grid.filemanager.FileChecksum;
+import step.grid.filemanager.FileVersionId;
+import step.grid.proxy.conf.FileCacheConfiguration;
+import step.grid.threads.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of the file versions served by the grid proxy. As file versions are immutable, their content
+ * is fetched once from the grid and served to all the agents of the proxy from the local disk.
+ * <p>Concurrent requests for a file version that isn't cached share a single fetch from the grid. They are served
+ * from the file being fetched as soon as the grid starts returning the content, each of them waiting for the
+ * part of the content it requires. The requests for which the grid doesn't start returning the content within
+ * {@link FileCacheConfiguration#getMaxFetchWaitMs()}, or whose fetch fails before they are served, are
+ * forwarded to the grid by the caller. The last byte of the content is only served once the content is verified
+ * against the checksum returned by the grid, so that corrupted content is never served completely.</p>
+ * <p>The file versions exceeding {@link FileCacheConfiguration#getMaxCacheSizeBytes()} aren't cached.</p>
+ */
+public class GridProxyFileCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GridProxyFileCache.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Performs the request for the complete content of a file version to the grid
+     */
+    @FunctionalInterface
+    public interface GridFileFetcher {
+        Response fetch(FileVersionId fileVersionId) throws IOException;
+    }
+
+    private final File cacheFolder;
+    private final long maxCacheSizeBytes;
+    private final long maxFetchWaitMs;
+    private final GridFileFetcher fetcher;
+    private final ExecutorService fetchExecutor = Executors.newCachedThreadPool(NamedThreadFactory.create("grid-proxy-file-fetch", true));
+
+    // Entries in access order. Guarded by this
+    private final LinkedHashMap<FileVersionId, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    // Files that couldn't be deleted yet. Guarded by this
+    private final Set<File> undeletedFiles = new HashSet<>();
+    // Completed with the fetch once the grid starts returning the content, or with null once the file version is cached
+    private final ConcurrentHashMap<FileVersionId, CompletableFuture<Fetch>> pendingFetches = new ConcurrentHashMap<>();
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalescedMisses = new AtomicLong();
+    private final AtomicLong bypassedRequests = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+
+    public GridProxyFileCache(FileCacheConfiguration configuration, GridFileFetcher fetcher) throws IOException {
+        this.cacheFolder = new File(configuration.getCacheFolder());
+        this.maxCacheSizeBytes = configuration.getMaxCacheSizeBytes();
+        this.maxFetchWaitMs = configuration.getMaxFetchWaitMs();
+        this.fetcher = fetcher;
+        // The cache isn't persisted across restarts: it is populated again from the grid
+        if (cacheFolder.exists()) {
+            FileHelper.deleteFolder(cacheFolder);
+        }
+        Files.createDirectories(cacheFolder.toPath());
+    }
+
+    /**
+     * Metadata of a cached file version. The headers are the ones returned by the grid for the complete content
+     */
+    public static class Entry {
+
+        private final File file;
+        private final long length;
+        private final String entityTag;
+        private final String contentDisposition;
+        private final String checksum;
+
+        private Entry(File file, long length, String entityTag, String contentDisposition, String checksum) {
+            this.file = file;
+            this.length = length;
+            this.entityTag = entityTag;
+            this.contentDisposition = contentDisposition;
+            this.checksum = checksum;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getEntityTag() {
+            return entityTag;
+        }
+
+        public String getContentDisposition() {
+            return contentDisposition;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * A cached file version together with the channel opened to read its content. The channel remains readable
+     * if the file version is evicted in the meantime and has to be closed by the caller, either directly or by
+     * writing the output returned by {@link #newStreamingOutput}
+     */
+    public static class CachedContent {
+
+        private final Entry entry;
+        private final FileChannel channel;
+        // The fetch of the content if it is still being fetched
+        private final Fetch fetch;
+
+        private CachedContent(Entry entry, FileChannel channel, Fetch fetch) {
+            this.entry = entry;
+            this.channel = channel;
+            this.fetch = fetch;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Creates the output writing a range of the content and closing the channel. If the content is still being
+         * fetched, the output waits for the range to be fetched and fails if the fetch fails
+         *
+         * @param servletResponse the current servlet response used to write the content without copy. Can be null
+         */
+        public StreamingOutput newStreamingOutput(long offset, long length, HttpServletResponse servletResponse) {
+            if (fetch == null) {
+                return new ZeroCopyFileStreamingOutput(channel, offset, length, servletResponse);
+            }
+            return output -> {
+                try (channel) {
+                    WritableByteChannel target = Channels.newChannel(output);
+                    long position = offset;
+                    long end = offset + length;
+                    while (position < end) {
+                        long readableEnd = Math.min(fetch.awaitReadable(position), end);
+                        while (position < readableEnd) {
+                            position += channel.transferTo(position, readableEnd - position, target);
+                        }
+                    }
+                    output.flush();
+                }
+            };
+        }
+    }
+
+    /**
+     * Fetch of a file version from the grid, whose content can be read by concurrent requests while it is written
+     */
+    private static class Fetch {
+
+        private final Entry entry;
+        // Guarded by this
+        private long fetchedLength;
+        private boolean completed;
+        private Throwable failure;
+
+        private Fetch(Entry entry) {
+            this.entry = entry;
+        }
+
+        private synchronized void setFetchedLength(long fetchedLength) {
+            this.fetchedLength = fetchedLength;
+            notifyAll();
+        }
+
+        private synchronized void complete() {
+            completed = true;
+            notifyAll();
+        }
+
+        private synchronized void fail(Throwable failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /**
+         * @return the channel to read the content being fetched or null if the fetch is completed or failed
+         */
+        private synchronized FileChannel openChannel() throws IOException {
+            // Opened under the lock, as the file is deleted under the same lock once the fetch failed
+            return !completed && failure == null ? FileChannel.open(entry.file.toPath(), StandardOpenOption.READ) : null;
+        }
+
+        /**
+         * Waits for the byte at the given position to be readable
+         *
+         * @return the end of the readable content
+         * @throws IOException if the fetch failed
+         */
+        private synchronized long awaitReadable(long position) throws IOException {
+            // The last byte is only readable once the content has been verified
+            while (failure == null && !completed && fetchedLength - 1 <= position) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the content of " + entry.file);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("The fetch of the content from the grid failed", failure);
+            }
+            return completed ? fetchedLength : fetchedLength - 1;
+        }
+    }
+
+    /**
+     * Returns the cached content of the file version, fetching it from the grid if it isn't cached yet
+     *
+     * @param fileVersionId the id of the file version
+     * @return the cached content or null if the file version couldn't be fetched in time, in which case the request
+     * has to be forwarded to the grid
+     * @throws IOException if the cached file cannot be opened
+     */
+    public CachedContent get(FileVersionId fileVersionId) throws IOException, InterruptedException {
+        CachedContent cachedContent = openCachedContent(fileVersionId);
+        if (cachedContent != null) {
+            hits.incrementAndGet();
+            return cachedContent;
+        }
+
+        CompletableFuture<Fetch> newFetch = new CompletableFuture<>();
+        CompletableFuture<Fetch> pendingFetch = pendingFetches.putIfAbsent(fileVersionId, newFetch);
+        if (pendingFetch == null) {
+            misses.incrementAndGet();
+            pendingFetch = newFetch;
+            fetchExecutor.submit(() -> {
+                try {
+                    fetchAndCache(fileVersionId, newFetch);
+                    newFetch.complete(null);
+                } catch (Throwable e) {
+                    newFetch.completeExceptionally(e);
+                } finally {
+                    pendingFetches.remove(fileVersionId, newFetch);
+                }
+            });
+        } else {
+            coalescedMisses.incrementAndGet();
+        }
+
+        Fetch fetch;
+        try {
+            fetch = pendingFetch.get(maxFetchWaitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("The grid didn't start returning the file version " + fileVersionId + " within " + maxFetchWaitMs + "ms. Forwarding the request to the grid");
+            }
+            bypassedRequests.incrementAndGet();
+            return null;
+        } catch (ExecutionException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unable to fetch the file version " + fileVersionId + ". Forwarding the request to the grid", e.getCause());
+            }
+            bypassedRequests.incrementAndGet();
+            return null;
+        }
+        if (fetch != null) {
+            FileChannel channel = fetch.openChannel();
+            if (channel != null) {
+                return new CachedContent(fetch.entry, channel, fetch);
+            }
+        }
+        // The fetch completed or failed in the meantime. The file version might also already have been evicted
+        // again, in which case the request is forwarded
+        cachedContent = openCachedContent(fileVersionId);
+        if (cachedContent == null) {
+            bypassedRequests.incrementAndGet();
+        }
+        return cachedContent;
+    }
+
+    private synchronized CachedContent openCachedContent(FileVersionId fileVersionId) throws IOException {
+        // Opened under the lock, as evicted files are deleted under the same lock
+        Entry entry = entries.get(fileVersionId);
+        return entry != null ? new CachedContent(entry, FileChannel.open(entry.file.toPath(), StandardOpenOption.READ), null) : null;
+    }
+
+    /**
+     * Fetches the file version from the grid and caches it
+     *
+     * @param pendingFetch completed with the fetch once the grid starts returning the content, if its length is known
+     */
+    private void fetchAndCache(FileVersionId fileVersionId, CompletableFuture<Fetch> pendingFetch) throws IOException {
+        synchronized (this) {
+            // The file version might have been cached by a concurrent fetch after the lookup of the caller
+            if (entries.containsKey(fileVersionId)) {
+                return;
+            }
+        }
+        try (Response response = fetcher.fetch(fileVersionId)) {
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                throw new IOException("Unexpected status " + response.getStatus() + " returned by the grid for the file version " + fileVersionId);
+            }
+            // Response.getLength() is limited to int
+            String contentLengthHeader = response.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+            long contentLength = contentLengthHeader != null ? Long.parseLong(contentLengthHeader) : -1;
+            if (contentLength > maxCacheSizeBytes) {
+                throw new IOException("The file version " + fileVersionId + " of " + contentLength + " bytes exceeds the maximum cache size");
+            }
+            String entityTag = response.getHeaderString(HttpHeaders.ETAG);
+            String contentDisposition = response.getHeaderString("content-disposition");
+            String expectedChecksum = response.getHeaderString(FileChecksum.CHECKSUM_HEADER);
+            File file = new File(cacheFolder, Long.toString(fileSequence.incrementAndGet()));
+            Fetch fetch = new Fetch(new Entry(file, contentLength, entityTag, contentDisposition, expectedChecksum));
+            try {
+                MessageDigest messageDigest = FileChecksum.newMessageDigest();
+                long length = 0;
+                try (InputStream inputStream = new DigestInputStream(response.readEntity(InputStream.class), messageDigest);
+                     OutputStream outputStream = Files.newOutputStream(file.toPath())) {
+                    if (contentLength >= 0) {
+                        // The concurrent requests are served from the file while it is written
+                        pendingFetch.complete(fetch);
+                    }
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        length += read;
+                        if (length > maxCacheSizeBytes) {
+                            throw new IOException("The file version " + fileVersionId + " exceeds the maximum cache size");
+                        }
+                        if (contentLength >= 0 && length > contentLength) {
+                            throw new IOException("The grid returned more than the " + contentLength + " bytes announced for the file version " + fileVersionId);
+                        }
+                        outputStream.write(buffer, 0, read);
+                        fetch.setFetchedLength(length);
+                    }
+                } finally {
+                    fetchedBytes.addAndGet(length);
+                }
+                if (contentLength >= 0 && length != contentLength) {
+                    throw new IOException("The grid returned " + length + " bytes instead of the " + contentLength + " announced for the file version " + fileVersionId);
+                }
+                String checksum = FileChecksum.toString(messageDigest);
+                if (expectedChecksum != null && !expectedChecksum.equals(checksum)) {
+                    throw new IOException("The checksum of the file version " + fileVersionId + " fetched from the grid doesn't match. Expected " + expectedChecksum + " but was " + checksum);
+                }
+                Entry entry = new Entry(file, length, entityTag, contentDisposition, expectedChecksum);
+                // Cached under the lock of the fetch, so that no channel is opened on the file once it can be evicted
+                synchronized (fetch) {
+                    put(fileVersionId, entry);
+                    fetch.complete();
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Cached the file version " + fileVersionId + " of " + length + " bytes");
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (fetch) {
+                    fetch.fail(e);
+                    deleteFile(file);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private synchronized void put(FileVersionId fileVersionId, Entry entry) {
+        retryFileDeletions();
+        // Evict the least recently used entries before adding the new one, so that a failure cannot leave it in the cache
+        Iterator<Map.Entry<FileVersionId, Entry>> iterator = entries.entrySet().iterator();
+        while (cachedBytes + entry.length > maxCacheSizeBytes && iterator.hasNext()) {
+            Map.Entry<FileVersionId, Entry> eldest = iterator.next();
+            iterator.remove();
+            cachedBytes -= eldest.getValue().length;
+            evictions.incrementAndGet();
+            deleteFile(eldest.getValue().file);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Evicted the file version " + eldest.getKey() + " from the cache");
+            }
+        }
+        entries.put(fileVersionId, entry);
+        cachedBytes += entry.length;
+    }
+
+    /**
+     * Deletes a file that isn't referenced by the cache anymore. If the file cannot be deleted, for instance as it is
+     * still open on Windows, its deletion is retried with the next additions to the cache
+     */
+    private synchronized void deleteFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.warn("Unable to delete the file " + file + " of the cache. Retrying later", e);
+            undeletedFiles.add(file);
+        }
+    }
+
+    private void retryFileDeletions() {
+        Iterator<File> iterator = undeletedFiles.iterator();
+        while (iterator.hasNext()) {
+            File file = iterator.next();
+            try {
+                Files.deleteIfExists(file.toPath());
+                iterator.remove();
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Unable to delete the file " + file + " of the cache", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of the cache. See {@link FileCacheStatistics}
+     */
+    public FileCacheStatistics getStatistics() {
+        FileCacheStatistics statistics = new FileCacheStatistics();
+        statistics.setHits(hits.get());
+        statistics.setMisses(misses.get());
+        statistics.setCoalescedMisses(coalescedMisses.get());
+        statistics.setBypassedRequests(bypassedRequests.get());
+        statistics.setEvictions(evictions.get());
+        statistics.setFetchedBytes(fetchedBytes.get());
+        synchronized (this) {
+            statistics.setCachedFileVersions(entries.size());
+            statistics.setCachedBytes(cachedBytes);
+        }
+        long requests = statistics.getHits() + statistics.getMisses() + statistics.getCoalescedMisses();
+        statistics.setHitRatio(requests > 0 ? (double) statistics.getHits() / requests : 0);
+        return statistics;
+    }
+
+    @Override
+    public void close() {
+        fetchExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.proxy.conf;
+
+/**
+ * Configuration of the cache of the file versions served by the grid proxy to its agents
+ */
+public class FileCacheConfiguration {
+
+    /**
+     * If the file versions downloaded from the grid should be cached by the proxy. As file versions are immutable,
+     * each of them is then transferred only once from the grid, whatever the number of agents downloading it
+     */
+    private boolean enabled = false;
+    /**
+     * The folder in which the cached file versions are stored. It is cleared when the proxy starts
+     */
+    private String cacheFolder = "filecache";
+    /**
+     * The maximum size in bytes of the cached file versions. The least recently used ones are evicted beyond it
+     */
+    private long maxCacheSizeBytes = 10L * 1024 * 1024 * 1024;
+    /**
+     * The maximum time in ms a request for a file version that isn't cached waits for the grid to start returning it.
+     * The request is forwarded to the grid afterwards. Once the grid started returning the file version, the request
+     * is served from the content being fetched. It should be lower than the read timeout of the agents
+     */
+    private long maxFetchWaitMs = 2000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getCacheFolder() {
+        return cacheFolder;
+    }
+
+    public void setCacheFolder(String cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    public long getMaxCacheSizeBytes() {
+        return maxCacheSizeBytes;
+    }
+
+    public void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
+        this.maxCacheSizeBytes = maxCacheSizeBytes;
+    }
+
+    public long getMaxFetchWaitMs() {
+        return maxFetchWaitMs;
+    }
+
+    public void setMaxFetchWaitMs(long maxFetchWaitMs) {
+        this.maxFetchWaitMs = maxFetchWaitMs;
+    }
+}
@@ -35,6 +35,8 @@ public class GridProxyConfiguration extends AppConfiguration {
     private Integer agentReserveTimeout = 3000;
     private Integer agentReleaseTimeout = 3000;
 
+    private FileCacheConfiguration fileCache = new FileCacheConfiguration();
+
     public GridProxyConfiguration() {
         super();
     }
@@ -103,6 +105,14 @@ public class GridProxyConfiguration extends AppConfiguration {
         this.agentReleaseTimeout = agentReleaseTimeout;
     }
 
+    public FileCacheConfiguration getFileCache() {
+        return fileCache;
+    }
+
+    public void setFileCache(FileCacheConfiguration fileCache) {
+        this.fileCache = fileCache;
+    }
+
     public SymmetricSecurityConfiguration getGridSecurity() {
         return gridSecurity;
     }
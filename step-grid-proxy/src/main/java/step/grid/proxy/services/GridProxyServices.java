@@ -21,16 +21,20 @@ package step.grid.proxy.services;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import step.grid.agent.RegistrationMessage;
+import step.grid.filemanager.ByteRange;
 import step.grid.io.AbstractGridServices;
 import step.grid.io.InputMessage;
 import step.grid.io.OutputMessage;
+import step.grid.proxy.FileCacheStatistics;
 import step.grid.proxy.GridProxy;
 import step.grid.security.Secured;
 
@@ -64,24 +68,41 @@ public class GridProxyServices extends AbstractGridServices {
     @Secured
     @GET
     @Path("/grid/file/{id}/{version}")
-    public Response getFile(@PathParam("id") String id, @PathParam("version") String version) throws GridProxyException {
+    public Response getFile(@PathParam("id") String id, @PathParam("version") String version, @HeaderParam(ByteRange.RANGE_HEADER) String range,
+                            @HeaderParam(ByteRange.IF_RANGE_HEADER) String ifRange, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                            @Context HttpServletResponse servletResponse) throws GridProxyException {
         try {
-            return gridProxy.forwardGetFileRequest(id, version);
+            return gridProxy.forwardGetFileRequest(id, version, range, ifRange, ifNoneMatch, servletResponse);
         } catch (Exception e) {
             throw new GridProxyException("Unable to get file with id '" + id + "' and version '" + version + "'", e);
         }
     }
 
+    /**
+     * Returns the metrics of the file cache of the proxy. See {@link FileCacheStatistics}
+     */
+    @Secured
+    @GET
+    @Path("/file/cache/statistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public FileCacheStatistics getFileCacheStatistics() {
+        FileCacheStatistics statistics = gridProxy.getFileCacheStatistics();
+        if (statistics == null) {
+            throw new NotFoundException("The file cache is disabled");
+        }
+        return statistics;
+    }
+
     @Secured
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path("{agentContext}/token/{id}/process")
-    public OutputMessage process(@PathParam("agentContext") String agentContext, @PathParam("id") String tokenId, final InputMessage message) throws GridProxyException {
+    public OutputMessage process(@PathParam("agentContext") String agentContext, @PathParam("id") String tokenId, @HeaderParam(OutputMessage.ATTACHMENT_ENCODING_HEADER) String attachmentEncoding, final InputMessage message) throws GridProxyException {
         try {
-            return gridProxy.forwardMessageToAgent(agentContext, "process", tokenId, message);
+            return gridProxy.forwardMessageToAgent(agentContext, "process", tokenId, message, attachmentEncoding);
         } catch (Exception e) {
-            return handleUnexpectedError(e);
+            return handleUnexpectedError(e, attachmentEncoding);
         }
     }
 
@@ -1,12 +1,22 @@
 package step.grid.proxy;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.ws.rs.client.Client;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import step.grid.AgentRef;
 import step.grid.agent.RegistrationMessage;
+import step.grid.filemanager.FileVersionId;
+import step.grid.io.AgentErrorCode;
+import step.grid.io.AttachmentDeserializer;
+import step.grid.io.InputMessage;
+import step.grid.io.OutputMessage;
+import step.grid.proxy.services.GridProxyServices;
 
+import java.lang.reflect.Field;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,10 +38,13 @@ public class GridProxyTest {
         //Prepare and send registration message
         RegistrationMessage registrationMessage = new RegistrationMessage();
         registrationMessage.setAgentRef(new AgentRef("agentId1", "http://agenturl:1234", "default"));
+        registrationMessage.setFileVersions(List.of(new FileVersionId("file1", "1")));
         assertThrows("http://localhost:8081/grid/register", ProxyTestException.class, () -> gridProxy.handleRegistrationMessage(registrationMessage));
 
         //validate URL forwarded to the grid server is the proxyfied one
         String proxifiedAgentUrl = registrationMessage.getAgentRef().getAgentUrl();
+        //the file versions of proxied agents aren't advertised to their peers
+        assertNull(registrationMessage.getFileVersions());
         assertTrue(proxifiedAgentUrl.startsWith("http://localhost:8082"));
         Pattern pattern = Pattern.compile("^http://localhost:8082/([^/]+)$");
         Matcher matcher = pattern.matcher(proxifiedAgentUrl);
@@ -42,4 +55,32 @@ public class GridProxyTest {
         assertThrows("http://agenturl:1234/token/sometokenId/reserve", ProxyTestException.class, () -> gridProxy.reserveToken(agentContextRoot, "sometokenId"));
     }
 
+    @Test
+    public void processFailureAttachmentEncodingTest() throws Exception {
+        Client mock = Mockito.mock(Client.class);
+        Mockito.when(mock.target(anyString())).thenAnswer((InvocationOnMock invocationOnMock) -> {
+            throw new ProxyTestException(invocationOnMock.getArgument(0));
+        });
+        String[] args = {"-config=src/test/resources/GridProxyConf.yaml"};
+        GridProxy gridProxy = new GridProxy(args);
+        gridProxy.overrideRestClient(mock);
+        GridProxyServices services = new GridProxyServices();
+        Field gridProxyField = GridProxyServices.class.getDeclaredField("gridProxy");
+        gridProxyField.setAccessible(true);
+        gridProxyField.set(services, gridProxy);
+        ObjectMapper mapper = new ObjectMapper();
+
+        // Clients not sending the attachment encoding header only support hex
+        OutputMessage output = services.process("unknownAgentContext", "sometokenId", null, new InputMessage());
+        assertEquals(AgentErrorCode.UNEXPECTED, output.getAgentError().getErrorCode());
+        JsonNode attachment = mapper.valueToTree(output).get("attachments").get(0);
+        assertTrue(attachment.hasNonNull("hexContent"));
+        assertFalse(attachment.has(AttachmentDeserializer.BASE64_CONTENT));
+
+        output = services.process("unknownAgentContext", "sometokenId", OutputMessage.ATTACHMENT_ENCODING_BASE64, new InputMessage());
+        attachment = mapper.valueToTree(output).get("attachments").get(0);
+        assertTrue(attachment.hasNonNull(AttachmentDeserializer.BASE64_CONTENT));
+        assertFalse(attachment.has("hexContent"));
+    }
+
 }
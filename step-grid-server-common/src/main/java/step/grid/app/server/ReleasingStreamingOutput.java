@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.app.server;
+
+import jakarta.ws.rs.core.StreamingOutput;
+import org.glassfish.jersey.server.CloseableService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link StreamingOutput} releasing the resources held for a response, like a file channel or a transfer slot, once
+ * the response has been written.
+ * <p>Jersey doesn't write the entity of some responses, typically for HEAD requests or if the request fails before
+ * the response is written. The output has therefore to be registered to the {@link CloseableService} of the request,
+ * which closes it once the request is completed. The resources are released once, by the first of both.</p>
+ */
+public class ReleasingStreamingOutput implements StreamingOutput, Closeable {
+
+    private final StreamingOutput output;
+    private final Closeable resources;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * @param output    the output writing the response
+     * @param resources the resources to be released once the response is written or the request completed
+     */
+    public ReleasingStreamingOutput(StreamingOutput output, Closeable resources) {
+        this.output = output;
+        this.resources = resources;
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+        try {
+            output.write(outputStream);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (released.compareAndSet(false, true)) {
+            resources.close();
+        }
+    }
+}
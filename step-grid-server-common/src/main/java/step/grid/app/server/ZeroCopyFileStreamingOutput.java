@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.app.server;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link StreamingOutput} writing a region of a file to the HTTP response while avoiding copies through user-space buffers
+ * for the bulk of the region.
+ * <p>The head of the region (64KB) is written to the stream provided by Jersey in order to commit the status and
+ * headers of the response. When running in Jetty, the rest of the region is then read in chunks of at most 1MB into a
+ * direct buffer, which is written by Jetty directly to the socket and reused for the next chunk.
+ * The head of the region, as well as the whole region in other containers or if the response hasn't been committed
+ * after writing the head, is written with {@link FileChannel#transferTo} to a channel wrapping the output stream,
+ * which copies the content through a user-space buffer.</p>
+ * <p>The channel is opened by the caller and closed by this output once written. The file isn't memory mapped, as
+ * mapped regions are only unmapped when garbage collected and would prevent the deletion or replacement of the file
+ * on platforms like Windows meanwhile.</p>
+ */
+public class ZeroCopyFileStreamingOutput implements StreamingOutput {
+
+    // Size of the head of the region written to the stream provided by Jersey. It has to exceed the buffer of this stream
+    private static final long HEAD_SIZE = 64 * 1024;
+    // Size of the direct buffer the rest of the region is read into, allocated once per transfer
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final HttpServletResponse servletResponse;
+
+    /**
+     * @param channel         the channel of the file to be written
+     * @param offset          the position of the first byte of the region to be written
+     * @param length          the number of bytes to be written
+     * @param servletResponse the current servlet response. Can be null, in which case the region is transferred to the output stream
+     */
+    public ZeroCopyFileStreamingOutput(FileChannel channel, long offset, long length, HttpServletResponse servletResponse) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.servletResponse = servletResponse;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (channel) {
+            long end = offset + length;
+            // The head of the region is written to the stream provided by Jersey, which commits the status and headers
+            // of the response once its buffer is exceeded
+            long position = transfer(offset, Math.min(length, HEAD_SIZE), output);
+            if (position < end) {
+                if (servletResponse != null && servletResponse.isCommitted() && servletResponse.getOutputStream() instanceof HttpOutput) {
+                    output.flush();
+                    HttpOutput httpOutput = (HttpOutput) servletResponse.getOutputStream();
+                    ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(end - position, CHUNK_SIZE));
+                    while (position < end) {
+                        buffer.clear().limit((int) Math.min(end - position, buffer.capacity()));
+                        while (buffer.hasRemaining()) {
+                            int read = channel.read(buffer, position + buffer.position());
+                            if (read < 0) {
+                                throw new EOFException("Unexpected end of file at position " + (position + buffer.position()));
+                            }
+                        }
+                        buffer.flip();
+                        position += buffer.remaining();
+                        // The write is blocking: the buffer has been consumed once it returns
+                        httpOutput.write(buffer);
+                    }
+                } else {
+                    transfer(position, end - position, output);
+                }
+            }
+            output.flush();
+        }
+    }
+
+    private long transfer(long position, long count, OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        long end = position + count;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred == 0 && position >= channel.size()) {
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += transferred;
+        }
+        return position;
+    }
+}
@@ -1,6 +1,8 @@
 package step.grid.security;
 
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.Keys;
 import jakarta.ws.rs.container.ContainerRequestContext;
@@ -13,6 +15,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 @Secured
@@ -21,10 +28,16 @@ public class JwtAuthenticationFilter implements ContainerRequestFilter {
     private static final Logger logger = LoggerFactory.getLogger(JwtAuthenticationFilter.class);
     private static final String BEARER_PREFIX = "Bearer ";
 
-    private final SecretKey jwtSecret;
+    // Maximum number of verified tokens kept in the cache
+    public static final int VERIFIED_TOKEN_CACHE_SIZE = 1000;
+
+    private final JwtParser jwtParser;
+    // Expiration time of the successfully verified tokens, by hash of the token
+    private final ConcurrentHashMap<String, Long> verifiedTokens = new ConcurrentHashMap<>();
 
     public JwtAuthenticationFilter(String jwtSecretKey) {
-        this.jwtSecret = Keys.hmacShaKeyFor(jwtSecretKey.getBytes(StandardCharsets.UTF_8));
+        SecretKey jwtSecret = Keys.hmacShaKeyFor(jwtSecretKey.getBytes(StandardCharsets.UTF_8));
+        this.jwtParser = Jwts.parser().verifyWith(jwtSecret).build();
     }
 
     @Override
@@ -37,13 +50,21 @@ public class JwtAuthenticationFilter implements ContainerRequestFilter {
         }
 
         String token = authHeader.substring(BEARER_PREFIX.length());
+        String tokenHash = hash(token);
+
+        Long expiration = verifiedTokens.get(tokenHash);
+        if (expiration != null) {
+            if (expiration > System.currentTimeMillis()) {
+                // The token has already been verified and is still valid
+                return;
+            } else {
+                verifiedTokens.remove(tokenHash);
+            }
+        }
 
         try {
-            Jwts.parser()
-                .verifyWith(jwtSecret)
-                .build()
-                .parseSignedClaims(token)
-                .getPayload();
+            Claims claims = jwtParser.parseSignedClaims(token).getPayload();
+            cacheVerifiedToken(tokenHash, claims.getExpiration());
 
             logger.debug("Successfully validated JWT");
         } catch (JwtException e) {
@@ -52,6 +73,29 @@ public class JwtAuthenticationFilter implements ContainerRequestFilter {
         }
     }
 
+    private void cacheVerifiedToken(String tokenHash, Date expiration) {
+        // Tokens without expiration are verified on each request
+        if (expiration != null) {
+            if (verifiedTokens.size() >= VERIFIED_TOKEN_CACHE_SIZE) {
+                long now = System.currentTimeMillis();
+                verifiedTokens.values().removeIf(e -> e <= now);
+                if (verifiedTokens.size() >= VERIFIED_TOKEN_CACHE_SIZE) {
+                    verifiedTokens.clear();
+                }
+            }
+            verifiedTokens.put(tokenHash, expiration.getTime());
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void abortWithUnauthorized(ContainerRequestContext requestContext, String message) {
         logger.warn("Authentication failed: {}", message);
         requestContext.abortWith(
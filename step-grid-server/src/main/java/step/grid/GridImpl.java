@@ -45,6 +45,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeoutException;
 
@@ -68,6 +69,10 @@ public class GridImpl implements Grid {
 
     private final GridImplConfig gridConfig;
 
+    private final PeerFileRegistry peerFileRegistry;
+
+    private final FileServingController fileServingController;
+
     private final List<RegistrationCallback<AgentRef>> agentRegistrationCallbacks = new CopyOnWriteArrayList<>();
 
     private boolean acceptRegistrationMessages = false;
@@ -87,6 +92,8 @@ public class GridImpl implements Grid {
         FileManagerImplConfig config = gridConfig.getFileManagerImplConfig();
         this.fileManager = new FileManagerImpl(fileManagerFolder, config);
         this.gridConfig = gridConfig;
+        this.peerFileRegistry = new PeerFileRegistry(gridConfig.getMaxPeersPerDownload());
+        this.fileServingController = new FileServingController(gridConfig.getFileServing());
         this.acceptRegistrationMessages = !gridConfig.deferAcceptingRegistrationMessages;
     }
 
@@ -104,6 +111,19 @@ public class GridImpl implements Grid {
 
         SymmetricSecurityConfiguration security;
 
+        /**
+         * If the grid should hint the agents downloading a file version to the agents already holding it.
+         * Only the agents with peer downloads enabled advertise and serve their file versions
+         */
+        boolean enablePeerFileDistribution = false;
+
+        /**
+         * The maximum number of peers hinted to an agent downloading a file version
+         */
+        int maxPeersPerDownload = 3;
+
+        FileServingConfiguration fileServing = new FileServingConfiguration();
+
         public GridImplConfig() {
             super();
         }
@@ -160,6 +180,30 @@ public class GridImpl implements Grid {
         public void setSecurity(SymmetricSecurityConfiguration security) {
             this.security = security;
         }
+
+        public boolean isEnablePeerFileDistribution() {
+            return enablePeerFileDistribution;
+        }
+
+        public void setEnablePeerFileDistribution(boolean enablePeerFileDistribution) {
+            this.enablePeerFileDistribution = enablePeerFileDistribution;
+        }
+
+        public int getMaxPeersPerDownload() {
+            return maxPeersPerDownload;
+        }
+
+        public void setMaxPeersPerDownload(int maxPeersPerDownload) {
+            this.maxPeersPerDownload = maxPeersPerDownload;
+        }
+
+        public FileServingConfiguration getFileServing() {
+            return fileServing;
+        }
+
+        public void setFileServing(FileServingConfiguration fileServing) {
+            this.fileServing = fileServing;
+        }
     }
 
     public void addAgentRegistrationCallback(RegistrationCallback<AgentRef> callback) {
@@ -210,6 +254,7 @@ public class GridImpl implements Grid {
             logger.debug("Unregistering agents with {} callbacks: {}", agentRegistrationCallbacks.size(), expired);
         }
         agentRegistrationCallbacks.forEach(callback -> callback.afterUnregistering(expired));
+        peerFileRegistry.remove(expired);
     }
 
     private void initializeTokenPool() throws Exception {
@@ -254,6 +299,7 @@ public class GridImpl implements Grid {
             protected void configure() {
                 bind(grid).to(GridImpl.class);
                 bind(fileManager).to(FileManager.class);
+                bind(fileServingController).to(FileServingController.class);
             }
         });
         ServletContainer servletContainer = new ServletContainer(resourceConfig);
@@ -296,6 +342,9 @@ public class GridImpl implements Grid {
             for (Token token : message.getTokens()) {
                 tokenPool.offerToken(new TokenWrapper(token, agentRef));
             }
+            if (gridConfig.isEnablePeerFileDistribution() && message.getFileVersions() != null) {
+                peerFileRegistry.update(agentRef, message.getFileVersions());
+            }
         } else {
             if (agentRefs.remove(agentRef.getAgentId()) != null) {
                 unregisterAgents(List.of(agentRef));
@@ -389,6 +438,33 @@ public class GridImpl implements Grid {
         return new ArrayList<>(agentRefs.values());
     }
 
+    /**
+     * @param fileVersionId the file version to be downloaded by an agent
+     * @return the checksum of the file version and the agents from which it can be downloaded. The list of peers is
+     * empty if the peer distribution is disabled or if the checksum of the file version isn't computed yet. Null if the
+     * file version doesn't exist
+     */
+    public FileVersionPeers getFileVersionPeers(FileVersionId fileVersionId) {
+        CompletableFuture<String> checksumFuture = fileManager.getFileVersionChecksumAsync(fileVersionId);
+        if (checksumFuture == null) {
+            return null;
+        }
+        String checksum = checksumFuture.getNow(null);
+        if (checksum == null) {
+            // Without checksum to verify the content against, the agent downloads it from the grid
+            return new FileVersionPeers(null, List.of());
+        }
+        List<String> peerUrls = gridConfig.isEnablePeerFileDistribution() ? peerFileRegistry.selectPeers(fileVersionId, agentRefs::containsKey) : List.of();
+        return new FileVersionPeers(checksum, peerUrls);
+    }
+
+    /**
+     * @return the metrics of the serving of the file versions to the agents
+     */
+    public FileServingStatistics getFileServingStatistics() {
+        return fileServingController.getStatistics();
+    }
+
     public int getServerPort() {
         return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
     }
@@ -18,25 +18,42 @@
  ******************************************************************************/
 package step.grid;
 
-import ch.exense.commons.io.FileHelper;
 import io.swagger.v3.oas.annotations.Hidden;
 import jakarta.inject.Inject;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
+import org.glassfish.jersey.server.CloseableService;
+import step.grid.agent.AgentTypes;
 import step.grid.agent.RegistrationMessage;
+import step.grid.app.server.ReleasingStreamingOutput;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.FileChecksum;
 import step.grid.filemanager.FileManager;
 import step.grid.filemanager.FileManagerException;
+import step.grid.filemanager.FileServingController;
+import step.grid.filemanager.FileServingStatistics;
+import step.grid.filemanager.FileTransferAdmission;
 import step.grid.filemanager.FileVersion;
 import step.grid.filemanager.FileVersionId;
+import step.grid.filemanager.FileVersionPeers;
+import step.grid.filemanager.ZipManifest;
 import step.grid.security.Secured;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
 @Path("/grid")
@@ -49,6 +66,9 @@ public class GridServices {
     @Inject
     FileManager fileManager;
 
+    @Inject
+    FileServingController fileServingController;
+
     @Secured
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
@@ -57,34 +77,56 @@ public class GridServices {
         grid.handleRegistrationMessage(message);
     }
 
+    /**
+     * Serves the content of a file version. As file versions are immutable, the version id is used as strong
+     * entity tag, allowing conditional requests with "If-None-Match". Single byte ranges are supported.
+     * The checksum of the complete content is returned in the header {@link FileChecksum#CHECKSUM_HEADER}.
+     * <p>The transfers are admitted by the {@link FileServingController}. The requests that cannot be admitted
+     * in time are rejected with the status 503.</p>
+     */
     @Secured
     @GET
     @Path("/file/{id}/{version}")
-    public Response getFile(@PathParam("id") String id, @PathParam("version") String version) throws IOException, FileManagerException {
+    public Response getFile(@PathParam("id") String id, @PathParam("version") String version, @Context Request request,
+                            @Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse,
+                            @Context CloseableService closeableService,
+                            @HeaderParam(ByteRange.RANGE_HEADER) String range, @HeaderParam(ByteRange.IF_RANGE_HEADER) String ifRange,
+                            @HeaderParam(AgentTypes.AGENT_ID_HEADER) String agentId) throws IOException, FileManagerException, InterruptedException {
         FileVersionId versionId = new FileVersionId(id, version);
         FileVersion fileVersion = null;
         try {
             fileVersion = fileManager.getFileVersion(versionId);
 
-            File file = fileVersion.getFile();
-            FileInputStream inputStream = new FileInputStream(file);
-
-            StreamingOutput fileStream = new StreamingOutput() {
+            EntityTag entityTag = getEntityTag(versionId);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified.build();
+            }
 
-                @Override
-                public void write(OutputStream output) throws IOException, WebApplicationException {
-                    try {
-                        // This buffer size doesn't seem to have a significant effect on the performance
-                        FileHelper.copy(inputStream, output, 2048);
-                        output.flush();
-                    } finally {
-                        inputStream.close();
-                    }
+            try {
+                fileServingController.admit(agentId != null ? agentId : servletRequest.getRemoteAddr());
+            } catch (FileTransferAdmission.RejectedException e) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).type(MediaType.TEXT_PLAIN)
+                    .header(HttpHeaders.RETRY_AFTER, 1).build();
+            }
+            boolean admissionPassed = false;
+            try {
+                File file = fileVersion.getFile();
+                String contentDisposition = "attachment; filename = " + file.getName() + "; type = " + (fileVersion.isDirectory() ? "dir" : "file");
+                // Only serve the requested range if the representation hasn't changed, which is always the case for a given version
+                String effectiveRange = (ifRange == null || ifRange.equals(entityTag.toString())) ? range : null;
+                // The checksum header is omitted rather than computing the checksum of the versions registered without it
+                CompletableFuture<String> checksumFuture = fileManager.getFileVersionChecksumAsync(versionId);
+                String checksum = checksumFuture != null ? checksumFuture.getNow(null) : null;
+                Response response = buildFileResponse(versionId, file, entityTag, checksum, contentDisposition, effectiveRange, servletResponse, closeableService, true);
+                // The admission is released by the response once written or the request completed
+                admissionPassed = response.hasEntity() && response.getEntity() instanceof StreamingOutput;
+                return response;
+            } finally {
+                if (!admissionPassed) {
+                    fileServingController.release();
                 }
-            };
-
-            return Response.ok(fileStream, MediaType.APPLICATION_OCTET_STREAM)
-                .header("content-disposition", "attachment; filename = " + file.getName() + "; type = " + (fileVersion.isDirectory() ? "dir" : "file")).build();
+            }
         } finally {
             if (fileVersion != null) {
                 fileManager.releaseFileVersion(fileVersion);
@@ -92,6 +134,93 @@ public class GridServices {
         }
     }
 
+    /**
+     * Returns the metrics of the serving of the file versions. See {@link FileServingStatistics}
+     */
+    @Secured
+    @GET
+    @Path("/file/statistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public FileServingStatistics getFileServingStatistics() {
+        return grid.getFileServingStatistics();
+    }
+
+    /**
+     * Returns the manifest of a file version stored as zip, listing its entries and the hashes of their content.
+     * It allows agents holding a previous version of the file to only download the entries that changed, using range
+     * requests on {@link #getFile}. See {@link ZipManifest}
+     */
+    @Secured
+    @GET
+    @Path("/file/{id}/{version}/manifest")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ZipManifest getFileManifest(@PathParam("id") String id, @PathParam("version") String version) throws FileManagerException {
+        FileVersionId versionId = new FileVersionId(id, version);
+        ZipManifest manifest = fileManager.getFileVersionManifest(versionId);
+        if (manifest == null) {
+            throw new NotFoundException("No manifest available for " + versionId);
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the agents from which an agent can download a file version instead of calling {@link #getFile}, together
+     * with the checksum against which the content downloaded from them has to be verified. See {@link PeerFileRegistry}
+     */
+    @Secured
+    @GET
+    @Path("/file/{id}/{version}/peers")
+    @Produces(MediaType.APPLICATION_JSON)
+    public FileVersionPeers getFilePeers(@PathParam("id") String id, @PathParam("version") String version) {
+        FileVersionId versionId = new FileVersionId(id, version);
+        FileVersionPeers peers = grid.getFileVersionPeers(versionId);
+        if (peers == null) {
+            throw new NotFoundException("The file version " + versionId + " doesn't exist");
+        }
+        return peers;
+    }
+
+    private static EntityTag getEntityTag(FileVersionId fileVersionId) {
+        return new EntityTag(fileVersionId.getFileId() + "_" + fileVersionId.getVersion());
+    }
+
+    private Response buildFileResponse(FileVersionId fileVersionId, File file, EntityTag entityTag, String checksum, String contentDisposition,
+                                       String range, HttpServletResponse servletResponse, CloseableService closeableService,
+                                       boolean admitted) throws IOException {
+        // The channel is opened before returning, so that the file version can be released before the response is written
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileLength = channel.size();
+            ByteRange byteRange = ByteRange.parse(range, fileLength);
+            Response.ResponseBuilder responseBuilder;
+            if (byteRange != null) {
+                responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .header(ByteRange.CONTENT_RANGE_HEADER, byteRange.toContentRange(fileLength));
+            } else {
+                byteRange = new ByteRange(0, fileLength);
+                responseBuilder = Response.ok();
+            }
+            ReleasingStreamingOutput fileStream = fileServingController.newFileStream(fileVersionId, channel, byteRange.getOffset(), byteRange.getLength(), servletResponse, admitted);
+            // Releases the channel and the admission if the response isn't written, for instance for HEAD requests
+            closeableService.add(fileStream);
+            return responseBuilder.entity(fileStream).type(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength())
+                .header(ByteRange.ACCEPT_RANGES_HEADER, ByteRange.BYTES_UNIT)
+                .header("content-disposition", contentDisposition)
+                .header(FileChecksum.CHECKSUM_HEADER, checksum)
+                .tag(entityTag).build();
+        } catch (ByteRange.UnsatisfiableRangeException e) {
+            long fileLength = channel.size();
+            channel.close();
+            // The response has an entity as Jersey would otherwise send it as error, discarding its headers
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).entity(e.getMessage()).type(MediaType.TEXT_PLAIN)
+                .header(ByteRange.CONTENT_RANGE_HEADER, ByteRange.toUnsatisfiedContentRange(fileLength)).build();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
     @Secured
     @GET
     @Path("/agent/list")
@@ -170,6 +299,25 @@ public class GridServices {
             Boolean.parseBoolean(cleanable));
     }
 
+    /**
+     * Registers the content of the request body as is. Unlike multipart uploads, the content isn't buffered by the
+     * server before being passed to the file manager
+     */
+    @Secured
+    @POST
+    @Path("/file/register")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public FileVersion registerFile(InputStream inputStream, @QueryParam("fileName") String fileName, @QueryParam("type") String contentType,
+                                    @QueryParam("cleanable") String cleanable) throws FileManagerException {
+        if (fileName == null)
+            // Also answers the probe of the clients checking the support of raw uploads
+            throw new BadRequestException("The query parameter fileName is required");
+
+        return grid.registerFile(inputStream, fileName, contentType != null && contentType.equals("dir"),
+            Boolean.parseBoolean(cleanable));
+    }
+
     @Secured
     @POST
     @Path("/file/release")
@@ -182,20 +330,12 @@ public class GridServices {
     @POST
     @Path("/file/content")
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response getRegisteredFile(FileVersionId fileVersionId) throws FileManagerException {
+    public Response getRegisteredFile(FileVersionId fileVersionId, @Context HttpServletResponse servletResponse,
+                                      @Context CloseableService closeableService) throws FileManagerException, IOException {
         FileVersion registeredFile = grid.getRegisteredFile(fileVersionId);
-        StreamingOutput fileStream = new StreamingOutput() {
-            @Override
-            public void write(java.io.OutputStream output) throws IOException {
-                Files.copy(registeredFile.getFile().toPath(), output);
-            }
-        };
-
         String resourceName = registeredFile.getFile().getName();
-        String mimeType = "application/octet-stream";
-        String contentDisposition = "attachment";
-        String headerValue = String.format(contentDisposition + "; filename=\"%s\"", resourceName);
-        return Response.ok(fileStream, mimeType).header("content-disposition", headerValue).build();
+        String contentDisposition = String.format("attachment; filename=\"%s\"", resourceName);
+        return buildFileResponse(fileVersionId, registeredFile.getFile(), getEntityTag(fileVersionId), null, contentDisposition, null, servletResponse, closeableService, false);
     }
 
     @Secured
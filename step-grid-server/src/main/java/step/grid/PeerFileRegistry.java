@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid;
+
+import step.grid.filemanager.FileVersionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Registry of the file versions advertised by the agents taking part in the peer distribution of the file versions.
+ * The peers hinted to a downloading agent are bounded and rotated: the peers that have been hinted the least are
+ * preferred, spreading the downloads over all the holders of a file version.
+ */
+public class PeerFileRegistry {
+
+    private final int maxPeersPerDownload;
+
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final Map<FileVersionId, Set<String>> holders = new HashMap<>();
+
+    /**
+     * @param maxPeersPerDownload the maximum number of peers hinted to a downloading agent
+     */
+    public PeerFileRegistry(int maxPeersPerDownload) {
+        this.maxPeersPerDownload = maxPeersPerDownload;
+    }
+
+    private static class Peer {
+
+        private final String agentUrl;
+        private final Set<FileVersionId> fileVersions;
+        private long hintCount;
+
+        private Peer(String agentUrl, Set<FileVersionId> fileVersions) {
+            this.agentUrl = agentUrl;
+            this.fileVersions = fileVersions;
+        }
+    }
+
+    /**
+     * Replaces the file versions advertised by an agent
+     *
+     * @param agentRef     the advertising agent
+     * @param fileVersions the file versions currently held by the agent
+     */
+    public synchronized void update(AgentRef agentRef, List<FileVersionId> fileVersions) {
+        Set<FileVersionId> newFileVersions = new HashSet<>(fileVersions);
+        Peer previous = peers.get(agentRef.getAgentId());
+        if (previous != null && previous.agentUrl.equals(agentRef.getAgentUrl()) && previous.fileVersions.equals(newFileVersions)) {
+            return;
+        }
+        Peer peer = new Peer(agentRef.getAgentUrl(), newFileVersions);
+        if (previous != null) {
+            peer.hintCount = previous.hintCount;
+            removeHolder(agentRef.getAgentId(), previous);
+        }
+        peers.put(agentRef.getAgentId(), peer);
+        newFileVersions.forEach(fileVersionId -> holders.computeIfAbsent(fileVersionId, k -> new HashSet<>()).add(agentRef.getAgentId()));
+    }
+
+    /**
+     * Removes the agents and their advertised file versions
+     */
+    public synchronized void remove(List<AgentRef> agentRefs) {
+        for (AgentRef agentRef : agentRefs) {
+            Peer peer = peers.remove(agentRef.getAgentId());
+            if (peer != null) {
+                removeHolder(agentRef.getAgentId(), peer);
+            }
+        }
+    }
+
+    private void removeHolder(String agentId, Peer peer) {
+        for (FileVersionId fileVersionId : peer.fileVersions) {
+            Set<String> agentIds = holders.get(fileVersionId);
+            if (agentIds != null) {
+                agentIds.remove(agentId);
+                if (agentIds.isEmpty()) {
+                    holders.remove(fileVersionId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects the peers to be hinted to an agent downloading a file version
+     *
+     * @param fileVersionId the downloaded file version
+     * @param isAvailable   filters the agents that are currently registered
+     * @return the URLs of at most maxPeersPerDownload agents holding the file version
+     */
+    public synchronized List<String> selectPeers(FileVersionId fileVersionId, Predicate<String> isAvailable) {
+        Set<String> agentIds = holders.get(fileVersionId);
+        if (agentIds == null) {
+            return List.of();
+        }
+        List<String> candidates = agentIds.stream().filter(isAvailable).collect(Collectors.toList());
+        // Shuffle first to break the ties randomly
+        Collections.shuffle(candidates);
+        candidates.sort(Comparator.comparingLong(agentId -> peers.get(agentId).hintCount));
+        List<String> peerUrls = new ArrayList<>();
+        for (String agentId : candidates.subList(0, Math.min(maxPeersPerDownload, candidates.size()))) {
+            Peer peer = peers.get(agentId);
+            peer.hintCount++;
+            peerUrls.add(peer.agentUrl);
+        }
+        return peerUrls;
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import ch.exense.commons.io.FileHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.threads.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the last modification date of registered directories. The last modification date of a directory
+ * is computed recursively on first request and kept until a change is reported by the {@link WatchService} for the
+ * directory or one of its sub-directories. All the directories are scanned again if change events have been lost.
+ * The parent of each registered directory is watched too, to detect the replacement of the directory itself.
+ * <p>Changes are reported asynchronously: a modification immediately followed by a request might not be seen
+ * until its event has been delivered.</p>
+ */
+class DirectoryModificationTracker implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryModificationTracker.class);
+
+    private final WatchService watchService;
+    private final Thread watchThread;
+    private final int maxTrackedDirectories;
+    private final Map<Path, TrackedDirectory> trackedDirectories = new ConcurrentHashMap<>();
+
+    DirectoryModificationTracker(int maxTrackedDirectories) throws IOException {
+        this.maxTrackedDirectories = maxTrackedDirectories;
+        watchService = FileSystems.getDefault().newWatchService();
+        watchThread = NamedThreadFactory.create("file-manager-watch", true).newThread(this::processEvents);
+        watchThread.start();
+    }
+
+    /**
+     * @param directory the directory
+     * @return the last modification date of the directory and its content. See {@link FileHelper#getLastModificationDateRecursive(File)}
+     */
+    long getLastModificationDateRecursive(File directory) {
+        Path path = directory.toPath().toAbsolutePath().normalize();
+        TrackedDirectory trackedDirectory = trackedDirectories.get(path);
+        if (trackedDirectory == null) {
+            if (trackedDirectories.size() >= maxTrackedDirectories) {
+                return FileHelper.getLastModificationDateRecursive(directory);
+            }
+            trackedDirectory = trackedDirectories.computeIfAbsent(path, p -> new TrackedDirectory());
+        }
+        Long lastModification = trackedDirectory.lastModification;
+        if (lastModification != null) {
+            return lastModification;
+        }
+        synchronized (trackedDirectory) {
+            lastModification = trackedDirectory.lastModification;
+            if (lastModification != null) {
+                return lastModification;
+            }
+            long modificationCount = trackedDirectory.modificationCount.get();
+            // The directories are watched before being scanned to not miss the changes performed during the scan
+            boolean watched = watch(path);
+            long lastModificationDate = FileHelper.getLastModificationDateRecursive(directory);
+            // The result of the scan is only kept if no change has been reported in the meantime
+            if (watched && trackedDirectory.modificationCount.get() == modificationCount) {
+                trackedDirectory.lastModification = lastModificationDate;
+            }
+            return lastModificationDate;
+        }
+    }
+
+    private boolean watch(Path root) {
+        try {
+            // The watch of the root doesn't report its deletion or renaming, which is reported to its parent
+            Path parent = root.getParent();
+            if (parent != null) {
+                register(parent);
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Typically when the limit of watches of the OS has been reached. The directory is then scanned on each request
+            logger.warn("Unable to watch the directory " + root + ". Its modifications will be detected by scanning it", e);
+            return false;
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        // Registering an already watched directory returns its existing key. The kinds of events are always the same,
+        // as registering a directory again replaces them
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        // Creation, deletion or renaming of a registered directory, reported to its parent
+                        Path changedPath = dir.resolve((Path) event.context());
+                        TrackedDirectory trackedDirectory = trackedDirectories.get(changedPath);
+                        if (trackedDirectory != null) {
+                            invalidate(trackedDirectory, changedPath);
+                        }
+                    }
+                }
+                if (overflow) {
+                    logger.warn("Directory change events have been lost. All the tracked directories will be scanned again");
+                    trackedDirectories.values().forEach(TrackedDirectory::invalidate);
+                } else {
+                    trackedDirectories.forEach((root, trackedDirectory) -> {
+                        if (dir.startsWith(root)) {
+                            invalidate(trackedDirectory, dir);
+                        }
+                    });
+                }
+                if (!key.reset()) {
+                    // The watched directory has been deleted. If it is a registered directory, it is watched again once recreated
+                    TrackedDirectory trackedDirectory = trackedDirectories.get(dir);
+                    if (trackedDirectory != null) {
+                        invalidate(trackedDirectory, dir);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The tracker has been closed
+        }
+    }
+
+    private void invalidate(TrackedDirectory trackedDirectory, Path changedPath) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Change detected in {}", changedPath);
+        }
+        trackedDirectory.invalidate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private static class TrackedDirectory {
+
+        private final AtomicLong modificationCount = new AtomicLong();
+        private volatile Long lastModification;
+
+        private void invalidate() {
+            modificationCount.incrementAndGet();
+            lastModification = null;
+        }
+    }
+}
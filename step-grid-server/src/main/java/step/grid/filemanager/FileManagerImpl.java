@@ -18,20 +18,30 @@
  ******************************************************************************/
 package step.grid.filemanager;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +51,7 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
 import ch.exense.commons.io.FileHelper;
+import step.grid.threads.NamedThreadFactory;
 
 /**
  * Default implementation of {@link FileManager} which stores registered {@link FileVersion} objects
@@ -51,8 +62,19 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
 
     private static final Logger logger = LoggerFactory.getLogger(FileManagerImpl.class);
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BLOB_FOLDER = ".blobs";
+
     protected ConcurrentHashMap<String, String> fileIdRegistry = new ConcurrentHashMap<>();
     private LoadingCache<File, Long> fileModificationCache;
+    private final DirectoryModificationTracker directoryModificationTracker;
+    private final DirectoryPackaging directoryPackaging;
+    private final boolean useHardLinks;
+    private final BlobStore blobStore;
+    // The checksum of the blob referenced by each file version
+    private final Map<FileVersionId, String> versionBlobs = new ConcurrentHashMap<>();
+    // Computes the checksum of the file versions registered before it was computed at registration
+    private final ExecutorService checksumExecutor = Executors.newSingleThreadExecutor(NamedThreadFactory.create("file-manager-checksum", true));
 
     public FileManagerImpl(File cacheFolder) {
         this(cacheFolder, new FileManagerImplConfig());
@@ -60,7 +82,12 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
 
     public FileManagerImpl(File cacheFolder, FileManagerImplConfig config) {
         super(cacheFolder, config);
+        directoryPackaging = new DirectoryPackaging(config.getDirectoryPackagingConfiguration());
+        useHardLinks = config.isUseHardLinks();
+        blobStore = new BlobStore(new File(cacheFolder, BLOB_FOLDER));
+        deleteStagingFolders();
         loadCache();
+        loadBlobReferences();
 
         fileModificationCache = CacheBuilder.newBuilder()
             .concurrencyLevel(config.getFileLastModificationCacheConcurrencyLevel())
@@ -71,6 +98,28 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
                     return FileHelper.getLastModificationDateRecursive(file);
                 }
             });
+        directoryModificationTracker = config.isWatchRegisteredDirectories() ? createDirectoryModificationTracker(config) : null;
+    }
+
+    private DirectoryModificationTracker createDirectoryModificationTracker(FileManagerImplConfig config) {
+        try {
+            return new DirectoryModificationTracker(config.getMaxWatchedDirectories());
+        } catch (IOException e) {
+            logger.error("Unable to watch the registered directories. Their modifications will be detected by scanning them", e);
+            return null;
+        }
+    }
+
+    private void loadBlobReferences() {
+        fileHandleCache.values().forEach(versions -> versions.values().forEach(cachedFileVersion -> {
+            // The file versions stored before the introduction of the blob store don't have a checksum
+            String checksum = cachedFileVersion.getKnownChecksum();
+            if (checksum != null) {
+                blobStore.retain(checksum);
+                versionBlobs.put(cachedFileVersion.getFileVersion().getVersionId(), checksum);
+            }
+        }));
+        blobStore.deleteUnreferencedBlobs();
     }
 
     @Override
@@ -103,36 +152,36 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
         String registryIndex = fileName;
 
         String fileId = fileIdRegistry.computeIfAbsent(registryIndex, f -> UUID.randomUUID().toString());
-        String version;
 
-        Path tempFile;
+        // The content is written once to a staging file of the cache folder, its version and checksum being computed on the fly
+        File stagingFile = newStagingFile();
         try {
-            tempFile = Files.createTempFile(fileName, "");
-            Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
-            try (FileInputStream is = new FileInputStream(tempFile.toFile())) {
-                version = getMD5Checksum(is);
-            }
-        } catch (IOException e) {
-            throw new FileManagerException(null, "Error while getting MD5 checksum for resource " + fileName, e);
-        }
-
-        final FileVersionId fileVersionId = new FileVersionId(fileId, version);
-        FileVersion fileVersion = registerFileVersion(deletePreviousVersions, registryIndex, fileId, fileVersionId, () -> {
-            try {
-                return storeStream(tempFile.toFile(), fileName, fileVersionId, isDirectory, cleanable);
-            } catch (FileManagerException | IOException e) {
-                throw new RuntimeException(e);
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            MessageDigest sha256 = FileChecksum.newMessageDigest();
+            try (InputStream digestInputStream = new DigestInputStream(new DigestInputStream(inputStream, md5), sha256);
+                 OutputStream outputStream = new FileOutputStream(stagingFile)) {
+                FileHelper.copy(digestInputStream, outputStream, BUFFER_SIZE);
+            } catch (IOException e) {
+                throw new FileManagerException(null, "Error while receiving resource " + fileName, e);
             }
-        });
-        try {
-            Files.deleteIfExists(tempFile);
-        } catch (IOException e) {
-            logger.error("Error while deleting temp file " + tempFile);
+            String version = Hex.encodeHexString(md5.digest());
+            String checksum = FileChecksum.toString(sha256);
+
+            final FileVersionId fileVersionId = new FileVersionId(fileId, version);
+            // If the same content is registered concurrently, the staging file of the first registration is kept
+            // and the other ones are discarded
+            return registerFileVersion(deletePreviousVersions, registryIndex, fileId, fileVersionId, () -> {
+                try {
+                    return storeStream(stagingFile, fileName, fileVersionId, isDirectory, cleanable, checksum);
+                } catch (FileManagerException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } finally {
+            deleteStagingFile(stagingFile);
         }
-        return fileVersion;
     }
 
-
     private FileVersion registerFileVersion(boolean deletePreviousVersions, String filePath, String fileId,
                                             FileVersionId fileVersionId, Supplier<CachedFileVersion> storeFunction) throws FileManagerException {
         if (logger.isDebugEnabled()) {
@@ -146,6 +195,8 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
                     if (logger.isDebugEnabled()) {
                         logger.debug("Removing previous versions for file '{}'", filePath);
                     }
+                    // Release the blobs of the previous versions
+                    versionCache.keySet().forEach(this::deleteFileVersionContainer);
                     versionCache.clear();
                     FileHelper.deleteFolder(getFileCacheFolder(fileId));
                 }
@@ -178,25 +229,62 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
         File container = getFileVersionCacheFolder(fileVersionId);
         container.mkdirs();
 
-        File target;
-        boolean isDirectory;
-        if (!source.isDirectory()) {
-            target = new File(container.getPath() + "/" + source.getName());
-            Files.copy(source.toPath(), target.toPath());
-            isDirectory = false;
-        } else {
-            target = new File(container.getPath() + "/" + source.getName() + ".zip");
-            FileHelper.zip(source, target);
-            isDirectory = true;
+        File stagingFile = newStagingFile();
+        try {
+            File target;
+            boolean isDirectory;
+            String checksum;
+            if (!source.isDirectory()) {
+                target = new File(container.getPath() + "/" + source.getName());
+                if (useHardLinks && link(source, stagingFile)) {
+                    checksum = FileChecksum.compute(stagingFile);
+                } else {
+                    checksum = copy(source, stagingFile);
+                }
+                isDirectory = false;
+            } else {
+                target = new File(container.getPath() + "/" + source.getName() + ".zip");
+                MessageDigest sha256 = FileChecksum.newMessageDigest();
+                try (OutputStream outputStream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(stagingFile), BUFFER_SIZE), sha256)) {
+                    directoryPackaging.zip(source, outputStream);
+                }
+                checksum = FileChecksum.toString(sha256);
+                isDirectory = true;
+            }
+            return storeContent(stagingFile, checksum, target, fileVersionId, isDirectory, cleanable, source.getAbsolutePath());
+        } finally {
+            deleteStagingFile(stagingFile);
         }
+    }
 
-        FileVersion fileVersion = new FileVersion(target, fileVersionId, isDirectory);
-        CachedFileVersion cachedFileVersion = new CachedFileVersion(fileVersion, cleanable);
-        createMetaFile(source.getAbsolutePath(), cachedFileVersion);
-        return cachedFileVersion;
+    private boolean link(File source, File target) {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Typically if the file is located on another file system
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unable to link {}. Copying it instead", source, e);
+            }
+            return false;
+        }
     }
 
-    private CachedFileVersion storeStream(File tempFileFromStream, String fileName, FileVersionId fileVersionId, boolean isDirectory, boolean cleanable) throws FileManagerException, IOException {
+    /**
+     * Copies the file computing the checksum of its content in the same pass
+     *
+     * @return the checksum of the content
+     */
+    private String copy(File source, File target) throws IOException {
+        MessageDigest sha256 = FileChecksum.newMessageDigest();
+        try (InputStream inputStream = new DigestInputStream(new FileInputStream(source), sha256);
+             OutputStream outputStream = new FileOutputStream(target)) {
+            FileHelper.copy(inputStream, outputStream, BUFFER_SIZE);
+        }
+        return FileChecksum.toString(sha256);
+    }
+
+    private CachedFileVersion storeStream(File stagingFile, String fileName, FileVersionId fileVersionId, boolean isDirectory, boolean cleanable, String checksum) throws FileManagerException, IOException {
         File container = getFileVersionCacheFolder(fileVersionId);
         container.mkdirs();
 
@@ -206,16 +294,61 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
         } else {
             target = new File(container.getPath() + "/" + fileName + ".zip");
         }
-        Files.move(tempFileFromStream.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return storeContent(stagingFile, checksum, target, fileVersionId, isDirectory, cleanable, fileName);
+    }
 
+    /**
+     * Moves the staged content to the blob store, or discards it if the same content is already stored,
+     * and links the file version to the blob
+     */
+    private CachedFileVersion storeContent(File stagingFile, String checksum, File target, FileVersionId fileVersionId,
+                                           boolean isDirectory, boolean cleanable, String registryIndex) throws FileManagerException, IOException {
+        File blob = blobStore.add(stagingFile, checksum);
         FileVersion fileVersion = new FileVersion(target, fileVersionId, isDirectory);
         CachedFileVersion cachedFileVersion = new CachedFileVersion(fileVersion, cleanable);
-        createMetaFile(fileName, cachedFileVersion);
-        return cachedFileVersion;
+        cachedFileVersion.setChecksum(checksum);
+        addToJournal(registryIndex, cachedFileVersion);
+        try {
+            BlobStore.link(blob, target);
+            createMetaFile(registryIndex, cachedFileVersion);
+            versionBlobs.put(fileVersionId, checksum);
+            return cachedFileVersion;
+        } catch (FileManagerException | IOException | RuntimeException e) {
+            target.delete();
+            removeFromJournal(fileVersionId);
+            blobStore.release(checksum);
+            throw e;
+        }
     }
 
+    @Override
+    protected File evictFileVersionContainer(FileVersionId fileVersionId) {
+        File evictedFolder = super.evictFileVersionContainer(fileVersionId);
+        if (evictedFolder != null) {
+            String checksum = versionBlobs.remove(fileVersionId);
+            if (checksum != null) {
+                blobStore.release(checksum);
+            }
+        }
+        return evictedFolder;
+    }
+
+    private File newStagingFile() {
+        return new File(cacheFolder, STAGING_FOLDER_PREFIX + UUID.randomUUID());
+    }
+
+    private void deleteStagingFile(File stagingFile) {
+        try {
+            Files.deleteIfExists(stagingFile.toPath());
+        } catch (IOException e) {
+            logger.error("Error while deleting staging file " + stagingFile, e);
+        }
+    }
 
     private String computeFileVersion(File file) {
+        if (directoryModificationTracker != null && file.isDirectory()) {
+            return Long.toString(directoryModificationTracker.getLastModificationDateRecursive(file));
+        }
         try {
             return Long.toString(fileModificationCache.get(file));
         } catch (ExecutionException e) {
@@ -242,6 +375,52 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
         }
     }
 
+    private CachedFileVersion getCachedFileVersion(FileVersionId fileVersionId) {
+        try {
+            fileHandleCacheLock.readLock().lock();
+            Map<FileVersionId, CachedFileVersion> versionCache = getVersionMap(fileVersionId.getFileId());
+            synchronized (versionCache) {
+                return versionCache.get(fileVersionId);
+            }
+        } finally {
+            fileHandleCacheLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getFileVersionChecksum(FileVersionId fileVersionId) throws FileManagerException {
+        CachedFileVersion cachedFileVersion = getCachedFileVersion(fileVersionId);
+        if (cachedFileVersion == null) {
+            return null;
+        }
+        // The checksum is computed outside of the locks
+        try {
+            return cachedFileVersion.getChecksum();
+        } catch (IOException e) {
+            throw new FileManagerException(fileVersionId, "Error while computing the checksum of " + fileVersionId, e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> getFileVersionChecksumAsync(FileVersionId fileVersionId) {
+        CachedFileVersion cachedFileVersion = getCachedFileVersion(fileVersionId);
+        return cachedFileVersion != null ? cachedFileVersion.getChecksumAsync(checksumExecutor) : null;
+    }
+
+    @Override
+    public ZipManifest getFileVersionManifest(FileVersionId fileVersionId) throws FileManagerException {
+        CachedFileVersion cachedFileVersion = getCachedFileVersion(fileVersionId);
+        if (cachedFileVersion == null) {
+            return null;
+        }
+        // The manifest is computed outside of the locks
+        try {
+            return cachedFileVersion.getManifest();
+        } catch (IOException e) {
+            throw new FileManagerException(fileVersionId, "Error while computing the manifest of " + fileVersionId, e);
+        }
+    }
+
     @Override
     public void unregisterFileVersion(FileVersionId fileVersionId) {
         removeFileVersion(fileVersionId);
@@ -252,7 +431,12 @@ public class FileManagerImpl extends AbstractFileManager implements FileManager
         releaseFileVersionFromCache(fileVersion);
     }
 
-    private String getMD5Checksum(InputStream is) throws IOException {
-        return DigestUtils.md5Hex(is);
+    @Override
+    public void close() throws Exception {
+        super.close();
+        checksumExecutor.shutdownNow();
+        if (directoryModificationTracker != null) {
+            directoryModificationTracker.close();
+        }
     }
 }
@@ -23,6 +23,10 @@ public class FileManagerImplConfig extends FileManagerConfiguration {
     int fileLastModificationCacheConcurrencyLevel = 4;
     int fileLastModificationCacheMaximumsize = 1000;
     int fileLastModificationCacheExpireAfter = 500;
+    DirectoryPackagingConfiguration directoryPackagingConfiguration = new DirectoryPackagingConfiguration();
+    boolean useHardLinks = false;
+    boolean watchRegisteredDirectories = false;
+    int maxWatchedDirectories = 1000;
 
     public FileManagerImplConfig() {
         super();
@@ -56,4 +60,58 @@ public class FileManagerImplConfig extends FileManagerConfiguration {
     public void setFileLastModificationCacheExpireAfter(int fileLastModificationCacheExpireAfter) {
         this.fileLastModificationCacheExpireAfter = fileLastModificationCacheExpireAfter;
     }
+
+    public DirectoryPackagingConfiguration getDirectoryPackagingConfiguration() {
+        return directoryPackagingConfiguration;
+    }
+
+    /**
+     * @param directoryPackagingConfiguration the configuration of the packaging of the registered directories
+     */
+    public void setDirectoryPackagingConfiguration(DirectoryPackagingConfiguration directoryPackagingConfiguration) {
+        this.directoryPackagingConfiguration = directoryPackagingConfiguration;
+    }
+
+    public boolean isUseHardLinks() {
+        return useHardLinks;
+    }
+
+    /**
+     * Specifies if the registered local files should be hard linked into the cache instead of being copied when they
+     * are located on the same file system. As the linked files share their content with the registered files,
+     * this should only be enabled if the registered files are replaced instead of being modified in place.
+     *
+     * @param useHardLinks true to link the registered files when possible
+     */
+    public void setUseHardLinks(boolean useHardLinks) {
+        this.useHardLinks = useHardLinks;
+    }
+
+    public boolean isWatchRegisteredDirectories() {
+        return watchRegisteredDirectories;
+    }
+
+    /**
+     * Specifies if the changes of the registered directories should be detected with a {@link java.nio.file.WatchService}
+     * instead of scanning them recursively at each registration. As the changes are reported asynchronously, a directory
+     * registered immediately after being modified might still be served in its previous version for a short period
+     * of time. The delay depends on the platform and can reach several seconds where the changes are polled.
+     *
+     * @param watchRegisteredDirectories true to watch the registered directories
+     */
+    public void setWatchRegisteredDirectories(boolean watchRegisteredDirectories) {
+        this.watchRegisteredDirectories = watchRegisteredDirectories;
+    }
+
+    public int getMaxWatchedDirectories() {
+        return maxWatchedDirectories;
+    }
+
+    /**
+     * @param maxWatchedDirectories the maximum number of registered directories to be watched. The directories registered
+     *                              beyond this limit are scanned at each registration
+     */
+    public void setMaxWatchedDirectories(int maxWatchedDirectories) {
+        this.maxWatchedDirectories = maxWatchedDirectories;
+    }
 }
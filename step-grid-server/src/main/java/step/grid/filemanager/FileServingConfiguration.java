@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+/**
+ * Configuration of the serving of the file versions by the grid to the agents
+ */
+public class FileServingConfiguration {
+
+    /**
+     * The maximum number of file transfers performed concurrently. The requests exceeding it are queued and admitted
+     * in round-robin order across the requesting agents. 0 means unlimited
+     */
+    int maxConcurrentTransfers = 0;
+    /**
+     * The maximum number of queued requests. The requests exceeding it are rejected with the status 503
+     */
+    int maxQueueLength = 100;
+    /**
+     * The maximum time in ms a request waits in the queue before being rejected with the status 503. It should be
+     * lower than the read timeout of the agents
+     */
+    long maxQueueWaitMs = 2000;
+    /**
+     * If concurrent requests for the same range of the same file version should be served from a single read of the
+     * file. The ranges are then copied through the heap instead of being transferred from the file without copy,
+     * including the ranges requested once. It is therefore only worth enabling if the file versions are mostly requested
+     * by many agents at the same time from storage slower than the network
+     */
+    boolean enableCoalescing = false;
+    /**
+     * The maximum length in bytes of the ranges served from a shared read. At most 4MB of each shared read are held
+     * in memory. Larger ranges are transferred directly from the file
+     */
+    long maxCoalescedLength = 16 * 1024 * 1024;
+
+    public int getMaxConcurrentTransfers() {
+        return maxConcurrentTransfers;
+    }
+
+    public void setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public long getMaxQueueWaitMs() {
+        return maxQueueWaitMs;
+    }
+
+    public void setMaxQueueWaitMs(long maxQueueWaitMs) {
+        this.maxQueueWaitMs = maxQueueWaitMs;
+    }
+
+    public boolean isEnableCoalescing() {
+        return enableCoalescing;
+    }
+
+    public void setEnableCoalescing(boolean enableCoalescing) {
+        this.enableCoalescing = enableCoalescing;
+    }
+
+    public long getMaxCoalescedLength() {
+        return maxCoalescedLength;
+    }
+
+    public void setMaxCoalescedLength(long maxCoalescedLength) {
+        this.maxCoalescedLength = maxCoalescedLength;
+    }
+}
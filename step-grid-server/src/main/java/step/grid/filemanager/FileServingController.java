@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.app.server.ReleasingStreamingOutput;
+import step.grid.app.server.ZeroCopyFileStreamingOutput;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls the transfer of the file versions served by the grid:
+ * <ul>
+ * <li>The number of concurrent transfers is bounded, see {@link FileTransferAdmission}</li>
+ * <li>If enabled, concurrent requests for the same range of the same file version share a single read of the file.
+ * The last blocks read by the fastest request are kept in memory and written to the responses of all the requests.
+ * The requests lagging behind read the blocks that aren't kept anymore themselves. Otherwise, and for the ranges
+ * larger than {@link FileServingConfiguration#getMaxCoalescedLength()}, the ranges are transferred from the file
+ * without copy</li>
+ * <li>The transfers are measured, see {@link FileServingStatistics}</li>
+ * </ul>
+ */
+public class FileServingController {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileServingController.class);
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    // Maximum number of blocks kept in memory per shared read
+    private static final int MAX_RETAINED_BLOCKS = 4;
+
+    private final FileServingConfiguration configuration;
+    private final FileTransferAdmission admission;
+
+    private final Map<SharedReadKey, SharedRead> sharedReads = new HashMap<>();
+
+    private final AtomicLong admittedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final RateMeter transferredBytes = new RateMeter();
+    private final RateMeter readBytes = new RateMeter();
+
+    public FileServingController(FileServingConfiguration configuration) {
+        this.configuration = configuration;
+        this.admission = new FileTransferAdmission(configuration.getMaxConcurrentTransfers(), configuration.getMaxQueueLength(), configuration.getMaxQueueWaitMs());
+    }
+
+    /**
+     * Waits for the admission of a file transfer. The admission has to be passed to
+     * {@link #newFileStream} or released with {@link #release()} if the transfer doesn't take place
+     *
+     * @param requester the identifier of the requester, used to order the queued requests fairly
+     * @throws FileTransferAdmission.RejectedException if the transfer couldn't be admitted
+     */
+    public void admit(String requester) throws FileTransferAdmission.RejectedException, InterruptedException {
+        try {
+            admission.acquire(requester);
+            admittedRequests.incrementAndGet();
+        } catch (FileTransferAdmission.RejectedException e) {
+            rejectedRequests.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Rejected the file transfer requested by {}: {}", requester, e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases an admission for a transfer that doesn't take place
+     */
+    public void release() {
+        admission.release();
+    }
+
+    /**
+     * Creates the output writing a range of a file version to a response. The channel and the admission are released
+     * once the output is written or closed. The output has therefore to be closed if it might not be written, see
+     * {@link ReleasingStreamingOutput}
+     *
+     * @param fileVersionId   the file version
+     * @param channel         the channel of the file of the file version, opened by the caller. It is closed by the returned output
+     * @param offset          the position of the first byte of the range
+     * @param length          the length of the range
+     * @param servletResponse the current servlet response. Can be null
+     * @param admitted        if the transfer has been admitted with {@link #admit(String)}
+     */
+    public ReleasingStreamingOutput newFileStream(FileVersionId fileVersionId, FileChannel channel, long offset, long length,
+                                                  HttpServletResponse servletResponse, boolean admitted) throws IOException {
+        StreamingOutput fileStream;
+        Closeable resources;
+        SharedReadKey key = new SharedReadKey(fileVersionId, offset, length);
+        SharedRead sharedRead = configuration.isEnableCoalescing() && length <= configuration.getMaxCoalescedLength() ? subscribe(key, channel) : null;
+        if (sharedRead != null) {
+            fileStream = output -> {
+                byte[] block;
+                for (int i = 0; (block = sharedRead.getBlock(i)) != null; i++) {
+                    output.write(block);
+                }
+                output.flush();
+            };
+            resources = () -> unsubscribe(key, sharedRead);
+        } else {
+            ZeroCopyFileStreamingOutput zeroCopyOutput = new ZeroCopyFileStreamingOutput(channel, offset, length, servletResponse);
+            fileStream = output -> {
+                zeroCopyOutput.write(output);
+                readBytes.add(length);
+            };
+            resources = channel;
+        }
+        return new ReleasingStreamingOutput(output -> {
+            fileStream.write(output);
+            transferredBytes.add(length);
+        }, () -> {
+            try {
+                resources.close();
+            } finally {
+                if (admitted) {
+                    admission.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the shared read of the range or null if the range has to be read by the caller, as the shared read
+     * of the range doesn't hold its first blocks anymore
+     */
+    private SharedRead subscribe(SharedReadKey key, FileChannel channel) throws IOException {
+        synchronized (sharedReads) {
+            SharedRead sharedRead = sharedReads.get(key);
+            if (sharedRead != null) {
+                if (!sharedRead.isJoinable()) {
+                    return null;
+                }
+                // The channel opened by the caller isn't required
+                channel.close();
+                coalescedRequests.incrementAndGet();
+            } else {
+                sharedRead = new SharedRead(channel, key.offset, key.length);
+                sharedReads.put(key, sharedRead);
+            }
+            sharedRead.subscribers++;
+            return sharedRead;
+        }
+    }
+
+    private void unsubscribe(SharedReadKey key, SharedRead sharedRead) throws IOException {
+        synchronized (sharedReads) {
+            if (--sharedRead.subscribers > 0) {
+                return;
+            }
+            sharedReads.remove(key, sharedRead);
+        }
+        sharedRead.channel.close();
+    }
+
+    public FileServingStatistics getStatistics() {
+        FileServingStatistics statistics = new FileServingStatistics();
+        statistics.setActiveTransfers(admission.getActiveTransfers());
+        statistics.setQueueLength(admission.getQueueLength());
+        statistics.setAdmittedRequests(admittedRequests.get());
+        statistics.setRejectedRequests(rejectedRequests.get());
+        statistics.setCoalescedRequests(coalescedRequests.get());
+        statistics.setTransferredBytes(transferredBytes.getTotal());
+        statistics.setTransferRate(transferredBytes.getRate());
+        statistics.setReadBytes(readBytes.getTotal());
+        statistics.setReadRate(readBytes.getRate());
+        return statistics;
+    }
+
+    private static class SharedReadKey {
+
+        private final FileVersionId fileVersionId;
+        private final long offset;
+        private final long length;
+
+        private SharedReadKey(FileVersionId fileVersionId, long offset, long length) {
+            this.fileVersionId = fileVersionId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SharedReadKey that = (SharedReadKey) o;
+            return offset == that.offset && length == that.length && fileVersionId.equals(that.fileVersionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileVersionId, offset, length);
+        }
+    }
+
+    /**
+     * Read of a range of a file shared by concurrent requests. The blocks are read by the first request requiring them.
+     * Only the last {@link #MAX_RETAINED_BLOCKS} blocks read are kept, the requests lagging behind read the older
+     * blocks themselves
+     */
+    private class SharedRead {
+
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+        private final Object readLock = new Object();
+        // Guarded by this
+        private final byte[][] blocks;
+        private int readBlockCount;
+        private int firstRetainedBlock;
+        // Guarded by sharedReads
+        private int subscribers;
+
+        private SharedRead(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.blocks = new byte[(int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE)][];
+        }
+
+        /**
+         * @return true if a new request can share this read, which is the case until its first block is dropped
+         */
+        private synchronized boolean isJoinable() {
+            return firstRetainedBlock == 0;
+        }
+
+        private synchronized byte[] getRetainedBlock(int index) {
+            return index >= firstRetainedBlock && index < readBlockCount ? blocks[index] : null;
+        }
+
+        /**
+         * @return the block at the given index or null if the end of the range is reached. The blocks have to be
+         * requested in order
+         */
+        private byte[] getBlock(int index) throws IOException {
+            long position = (long) index * BLOCK_SIZE;
+            if (position >= length) {
+                return null;
+            }
+            byte[] block = getRetainedBlock(index);
+            if (block != null) {
+                return block;
+            }
+            synchronized (readLock) {
+                boolean dropped;
+                synchronized (this) {
+                    block = getRetainedBlock(index);
+                    if (block != null) {
+                        // Read by another request in the meantime
+                        return block;
+                    }
+                    dropped = index < firstRetainedBlock;
+                }
+                if (!dropped) {
+                    block = read(position);
+                    synchronized (this) {
+                        blocks[index] = block;
+                        readBlockCount = index + 1;
+                        while (readBlockCount - firstRetainedBlock > MAX_RETAINED_BLOCKS) {
+                            blocks[firstRetainedBlock++] = null;
+                        }
+                    }
+                    return block;
+                }
+            }
+            // The block isn't kept anymore for this request lagging behind
+            return read(position);
+        }
+
+        private byte[] read(long position) throws IOException {
+            byte[] block = new byte[(int) Math.min(BLOCK_SIZE, length - position)];
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at position " + (offset + position + buffer.position()));
+                }
+            }
+            readBytes.add(block.length);
+            return block;
+        }
+    }
+
+    /**
+     * Counts bytes and computes their rate over the last seconds
+     */
+    private static class RateMeter {
+
+        private static final int WINDOW_SECONDS = 10;
+
+        private final AtomicLong total = new AtomicLong();
+        private final long[] buckets = new long[WINDOW_SECONDS];
+        private final long[] bucketSeconds = new long[WINDOW_SECONDS];
+
+        private void add(long bytes) {
+            total.addAndGet(bytes);
+            long second = System.currentTimeMillis() / 1000;
+            int index = (int) (second % WINDOW_SECONDS);
+            synchronized (this) {
+                if (bucketSeconds[index] != second) {
+                    bucketSeconds[index] = second;
+                    buckets[index] = 0;
+                }
+                buckets[index] += bytes;
+            }
+        }
+
+        private long getTotal() {
+            return total.get();
+        }
+
+        private synchronized long getRate() {
+            long second = System.currentTimeMillis() / 1000;
+            long sum = 0;
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                if (second - bucketSeconds[i] < WINDOW_SECONDS) {
+                    sum += buckets[i];
+                }
+            }
+            return sum / WINDOW_SECONDS;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounds the number of concurrent file transfers. The requests exceeding the limit wait in one queue per requester.
+ * When a transfer completes, the next request is taken from the queues in round-robin order, so that a requester
+ * issuing many requests cannot delay the requests of the other ones.
+ */
+public class FileTransferAdmission {
+
+    public static class RejectedException extends Exception {
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private final int maxConcurrentTransfers;
+    private final int maxQueueLength;
+    private final long maxQueueWaitMs;
+
+    // The queues of the requesters in round-robin order
+    private final LinkedHashMap<String, ArrayDeque<CompletableFuture<Void>>> queues = new LinkedHashMap<>();
+    private int activeTransfers;
+    private int queueLength;
+
+    /**
+     * @param maxConcurrentTransfers the maximum number of concurrent transfers. 0 means unlimited
+     * @param maxQueueLength         the maximum number of waiting requests
+     * @param maxQueueWaitMs         the maximum time in ms a request waits for admission
+     */
+    public FileTransferAdmission(int maxConcurrentTransfers, int maxQueueLength, long maxQueueWaitMs) {
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+        this.maxQueueLength = maxQueueLength;
+        this.maxQueueWaitMs = maxQueueWaitMs;
+    }
+
+    /**
+     * Waits until a transfer can be started for the requester. Each successful call has to be followed by a call to
+     * {@link #release()} once the transfer is completed
+     *
+     * @param requester the identifier of the requester
+     * @throws RejectedException if the queue is full or the request couldn't be admitted in time
+     */
+    public void acquire(String requester) throws RejectedException, InterruptedException {
+        CompletableFuture<Void> admission;
+        synchronized (this) {
+            if (maxConcurrentTransfers <= 0 || (activeTransfers < maxConcurrentTransfers && queueLength == 0)) {
+                activeTransfers++;
+                return;
+            }
+            if (queueLength >= maxQueueLength) {
+                throw new RejectedException("The maximum number of queued file transfers is reached");
+            }
+            admission = new CompletableFuture<>();
+            queues.computeIfAbsent(requester, k -> new ArrayDeque<>()).add(admission);
+            queueLength++;
+        }
+        try {
+            admission.get(maxQueueWaitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            synchronized (this) {
+                // The admission might have been granted in the meantime
+                if (!admission.isDone()) {
+                    ArrayDeque<CompletableFuture<Void>> queue = queues.get(requester);
+                    queue.remove(admission);
+                    if (queue.isEmpty()) {
+                        queues.remove(requester);
+                    }
+                    queueLength--;
+                    if (e instanceof InterruptedException) {
+                        throw (InterruptedException) e;
+                    }
+                    throw new RejectedException("The file transfer hasn't been admitted within " + maxQueueWaitMs + "ms");
+                }
+            }
+            if (e instanceof InterruptedException) {
+                // Restore the interruption flag as the admission is granted
+                Thread.currentThread().interrupt();
+            }
+        } catch (ExecutionException e) {
+            // The admissions are never completed exceptionally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Marks a transfer as completed, handing its slot over to the next queued request
+     */
+    public synchronized void release() {
+        Iterator<Map.Entry<String, ArrayDeque<CompletableFuture<Void>>>> iterator = queues.entrySet().iterator();
+        if (iterator.hasNext()) {
+            Map.Entry<String, ArrayDeque<CompletableFuture<Void>>> next = iterator.next();
+            iterator.remove();
+            ArrayDeque<CompletableFuture<Void>> queue = next.getValue();
+            CompletableFuture<Void> admission = queue.poll();
+            if (!queue.isEmpty()) {
+                // The requester moves to the end of the round
+                queues.put(next.getKey(), queue);
+            }
+            queueLength--;
+            admission.complete(null);
+        } else {
+            activeTransfers--;
+        }
+    }
+
+    public synchronized int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    public synchronized int getQueueLength() {
+        return queueLength;
+    }
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid;
+
+import ch.exense.commons.io.FileHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.filemanager.FileVersion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class FileServingBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileServingBenchmarkTest.class);
+
+    private static final int FILE_SIZE = 20 * 1024 * 1024;
+    private static final int CONCURRENT_DOWNLOADS = 32;
+    private static final int DOWNLOADS_PER_CLIENT = 2;
+
+    private File fileManagerFolder;
+    private File testFile;
+    private byte[] content;
+    private GridImpl grid;
+    private HttpClient httpClient;
+    private String fileUrl;
+
+    @Before
+    public void before() throws Exception {
+        fileManagerFolder = FileHelper.createTempFolder("filemanager");
+        testFile = File.createTempFile("FileServingBenchmarkTest", ".bin");
+        content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        Files.write(testFile.toPath(), content);
+
+        grid = new GridImpl(fileManagerFolder, 0, new GridImpl.GridImplConfig());
+        grid.start();
+        FileVersion fileVersion = grid.registerFile(testFile, true);
+        fileUrl = "http://localhost:" + grid.getServerPort() + "/grid/file/" + fileVersion.getFileId() + "/" + fileVersion.getVersionId().getVersion();
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @After
+    public void after() throws Exception {
+        grid.stop();
+        testFile.delete();
+        FileHelper.deleteFolder(fileManagerFolder);
+    }
+
+    @Test
+    public void testConditionalAndRangeRequests() throws Exception {
+        HttpResponse<byte[]> response = get(HttpRequest.newBuilder(URI.create(fileUrl)));
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+        assertEquals("bytes", response.headers().firstValue("Accept-Ranges").orElse(null));
+        assertTrue(response.headers().firstValue("content-disposition").orElse("").contains("type = file"));
+        String eTag = response.headers().firstValue("ETag").orElseThrow();
+
+        // The version id is immutable: the content doesn't have to be transferred again
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("If-None-Match", eTag));
+        assertEquals(304, response.statusCode());
+        assertEquals(0, response.body().length);
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("If-None-Match", "\"other\""));
+        assertEquals(200, response.statusCode());
+
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=100-199"));
+        assertEquals(206, response.statusCode());
+        assertEquals("bytes 100-199/" + FILE_SIZE, response.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.body());
+
+        // Open range
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=" + (FILE_SIZE - 10) + "-"));
+        assertEquals(206, response.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE), response.body());
+
+        // Suffix range
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=-20"));
+        assertEquals(206, response.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 20, FILE_SIZE), response.body());
+
+        // Range spanning several chunks
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=1-" + (FILE_SIZE - 2)));
+        assertEquals(206, response.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 1, FILE_SIZE - 1), response.body());
+
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=" + FILE_SIZE + "-"));
+        assertEquals(416, response.statusCode());
+        assertEquals("bytes */" + FILE_SIZE, response.headers().firstValue("Content-Range").orElse(null));
+
+        // The range is ignored if the representation has changed
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=100-199").header("If-Range", "\"other\""));
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=100-199").header("If-Range", eTag));
+        assertEquals(206, response.statusCode());
+
+        // Multiple ranges aren't supported: the whole file is served
+        response = get(HttpRequest.newBuilder(URI.create(fileUrl)).header("Range", "bytes=0-1,5-6"));
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+    }
+
+    @Ignore("Benchmark transferring about 1.3GB over loopback. To be run manually")
+    @Test
+    public void benchmark() throws Exception {
+        // Warm-up
+        runConcurrentDownloads(1);
+
+        long start = System.nanoTime();
+        long bytes = runConcurrentDownloads(DOWNLOADS_PER_CLIENT);
+        long durationNs = System.nanoTime() - start;
+        logger.info("Served {} downloads of {}MB with {} concurrent clients in {}ms: {}MB/s", CONCURRENT_DOWNLOADS * DOWNLOADS_PER_CLIENT,
+            FILE_SIZE / (1024 * 1024), CONCURRENT_DOWNLOADS, durationNs / 1000000, (bytes * 1000000000L / durationNs) / (1024 * 1024));
+        assertEquals((long) FILE_SIZE * CONCURRENT_DOWNLOADS * DOWNLOADS_PER_CLIENT, bytes);
+    }
+
+    private long runConcurrentDownloads(int downloadsPerClient) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(CONCURRENT_DOWNLOADS);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT_DOWNLOADS; i++) {
+                futures.add(executorService.submit(() -> {
+                    long total = 0;
+                    for (int j = 0; j < downloadsPerClient; j++) {
+                        total += download();
+                    }
+                    return total;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private long download() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = httpClient.send(HttpRequest.newBuilder(URI.create(fileUrl)).build(), HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, response.statusCode());
+        long total = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = response.body()) {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    private HttpResponse<byte[]> get(HttpRequest.Builder requestBuilder) throws IOException, InterruptedException {
+        return httpClient.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+}
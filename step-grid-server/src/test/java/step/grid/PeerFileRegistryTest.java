@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid;
+
+import org.junit.Test;
+import step.grid.filemanager.FileVersionId;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PeerFileRegistryTest {
+
+    private final FileVersionId fileVersion1 = new FileVersionId("f1", "1");
+    private final FileVersionId fileVersion2 = new FileVersionId("f2", "1");
+
+    @Test
+    public void testSelectPeers() {
+        PeerFileRegistry registry = new PeerFileRegistry(2);
+        for (int i = 0; i < 4; i++) {
+            registry.update(agentRef(i), List.of(fileVersion1));
+        }
+        registry.update(agentRef(4), List.of(fileVersion2));
+
+        // The peers are rotated: each holder is hinted once within 2 selections
+        Map<String, Integer> hints = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            List<String> peers = registry.selectPeers(fileVersion1, agentId -> true);
+            assertEquals(2, peers.size());
+            peers.forEach(peer -> hints.merge(peer, 1, Integer::sum));
+        }
+        assertEquals(Set.of("http://agent0", "http://agent1", "http://agent2", "http://agent3"), hints.keySet());
+        assertTrue(hints.values().stream().allMatch(count -> count == 1));
+
+        assertEquals(List.of("http://agent4"), registry.selectPeers(fileVersion2, agentId -> true));
+        assertEquals(List.of(), registry.selectPeers(new FileVersionId("f3", "1"), agentId -> true));
+        // Only the available agents are selected
+        assertEquals(List.of(), registry.selectPeers(fileVersion2, agentId -> !agentId.equals("agent4")));
+    }
+
+    @Test
+    public void testUpdateAndRemove() {
+        PeerFileRegistry registry = new PeerFileRegistry(3);
+        registry.update(agentRef(0), List.of(fileVersion1, fileVersion2));
+        registry.update(agentRef(1), List.of(fileVersion1));
+        assertEquals(2, registry.selectPeers(fileVersion1, agentId -> true).size());
+
+        // The file version 1 has been removed from the cache of the agent 0
+        registry.update(agentRef(0), List.of(fileVersion2));
+        assertEquals(List.of("http://agent1"), registry.selectPeers(fileVersion1, agentId -> true));
+        assertEquals(List.of("http://agent0"), registry.selectPeers(fileVersion2, agentId -> true));
+
+        registry.remove(List.of(agentRef(0), agentRef(1)));
+        assertEquals(List.of(), registry.selectPeers(fileVersion1, agentId -> true));
+        assertEquals(List.of(), registry.selectPeers(fileVersion2, agentId -> true));
+    }
+
+    private static AgentRef agentRef(int i) {
+        return new AgentRef("agent" + i, "http://agent" + i, "default");
+    }
+}
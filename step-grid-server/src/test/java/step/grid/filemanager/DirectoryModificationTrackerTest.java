@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.exense.commons.io.FileHelper;
+
+public class DirectoryModificationTrackerTest {
+
+    private File directory;
+    private DirectoryModificationTracker tracker;
+
+    @Before
+    public void before() throws IOException {
+        directory = FileHelper.createTempFolder();
+        new File(directory, "sub").mkdirs();
+        Files.writeString(new File(directory, "sub/file.txt").toPath(), "content");
+        tracker = new DirectoryModificationTracker(10);
+    }
+
+    @After
+    public void after() throws IOException {
+        tracker.close();
+        FileHelper.deleteFolder(directory);
+    }
+
+    @Test
+    public void testModificationDetection() throws Exception {
+        Assert.assertEquals(FileHelper.getLastModificationDateRecursive(directory), tracker.getLastModificationDateRecursive(directory));
+
+        // Modification of a file of a sub-directory
+        File file = new File(directory, "sub/file.txt");
+        long lastModification = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(file.setLastModified(lastModification));
+        waitForLastModification(lastModification);
+
+        // Modification of a file of a new sub-directory
+        File newFile = new File(directory, "newSub/file.txt");
+        newFile.getParentFile().mkdirs();
+        Files.writeString(newFile.toPath(), "content");
+        lastModification += 60000;
+        Assert.assertTrue(newFile.getParentFile().setLastModified(lastModification));
+        waitForLastModification(lastModification);
+        lastModification += 60000;
+        Assert.assertTrue(newFile.setLastModified(lastModification));
+        waitForLastModification(lastModification);
+    }
+
+    @Test
+    public void testReplacedDirectory() throws Exception {
+        Assert.assertEquals(FileHelper.getLastModificationDateRecursive(directory), tracker.getLastModificationDateRecursive(directory));
+
+        // Directory renamed over by another one
+        File replacement = FileHelper.createTempFolder();
+        long lastModification = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(replacement.setLastModified(lastModification));
+        File renamedDirectory = new File(directory.getPath() + ".old");
+        try {
+            Files.move(directory.toPath(), renamedDirectory.toPath());
+            Files.move(replacement.toPath(), directory.toPath());
+            waitForLastModification(lastModification);
+        } finally {
+            FileHelper.deleteFolder(renamedDirectory);
+        }
+
+        // Directory deleted and recreated
+        FileHelper.deleteFolder(directory);
+        Assert.assertTrue(directory.mkdirs());
+        lastModification += 60000;
+        Assert.assertTrue(directory.setLastModified(lastModification));
+        waitForLastModification(lastModification);
+
+        // The modifications of the recreated directory are detected
+        File newFile = new File(directory, "file.txt");
+        Files.writeString(newFile.toPath(), "content");
+        lastModification += 60000;
+        Assert.assertTrue(newFile.setLastModified(lastModification));
+        waitForLastModification(lastModification);
+    }
+
+    @Test
+    public void testMaxTrackedDirectories() throws Exception {
+        tracker.close();
+        tracker = new DirectoryModificationTracker(0);
+        // The directories beyond the limit are scanned at each request
+        long lastModification = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(new File(directory, "sub/file.txt").setLastModified(lastModification));
+        Assert.assertEquals(lastModification / 1000, tracker.getLastModificationDateRecursive(directory) / 1000);
+    }
+
+    private void waitForLastModification(long expected) throws InterruptedException {
+        // The changes are reported asynchronously
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tracker.getLastModificationDateRecursive(directory) / 1000 != expected / 1000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected / 1000, tracker.getLastModificationDateRecursive(directory) / 1000);
+    }
+}
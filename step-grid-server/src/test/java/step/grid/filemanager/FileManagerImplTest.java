@@ -18,10 +18,13 @@
  ******************************************************************************/
 package step.grid.filemanager;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -31,7 +34,9 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -184,6 +189,11 @@ public class FileManagerImplTest {
         Assert.assertNull(fileManager.getFileVersion(version1));
     }
 
+    private int getFileFolderCount() {
+        // Hidden entries like the blob store aren't file folders
+        return registryFolder.list((dir, name) -> !name.startsWith(".")).length;
+    }
+
     private void writeFileContent(File testFile, String content) throws IOException {
         // Sleep 100ms to ensure that the file lastmodification's date get updated
         try {
@@ -220,19 +230,52 @@ public class FileManagerImplTest {
         fileManager.releaseFileVersion(fileVersion);
         fileManager.releaseFileVersion(fileVersion1);
 
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(2);
         fileManager.cleanupCache();
-        Assert.assertEquals(0, registryFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount());
 
         fileVersion = fileManager.registerFileVersion(testFile, false, true);
         fileVersion1 = fileManager.registerFileVersion(testFile2, false, false);
         fileManager.releaseFileVersion(fileVersion);
         fileManager.releaseFileVersion(fileVersion1);
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(2);
         fileManager.cleanupCache();
-        Assert.assertEquals(1, registryFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount());
+    }
+
+    @Test
+    public void testDiskQuota() throws Exception {
+        config.setMaxCacheSizeBytes(2500);
+        config.setCleanupBatchSize(1);
+
+        List<FileVersion> fileVersions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File testFile = FileHelper.createTempFile();
+            Files.write(testFile.toPath(), new byte[1000]);
+            // Distinct content to prevent the deduplication
+            Files.writeString(testFile.toPath(), Integer.toString(i), StandardOpenOption.WRITE);
+            FileVersion fileVersion = fileManager.registerFileVersion(testFile, false, true);
+            fileManager.releaseFileVersion(fileVersion);
+            fileVersions.add(fileVersion);
+            Thread.sleep(2);
+        }
+        // The first file version becomes the most recently used
+        fileManager.releaseFileVersion(fileManager.getFileVersion(fileVersions.get(0).getVersionId()));
+        // The second file version is in use
+        fileManager.getFileVersion(fileVersions.get(1).getVersionId());
+        Thread.sleep(2);
+
+        fileManager.enforceDiskQuota();
+        Assert.assertNotNull(fileManager.getFileVersion(fileVersions.get(0).getVersionId()));
+        Assert.assertNotNull(fileManager.getFileVersion(fileVersions.get(1).getVersionId()));
+        Assert.assertNull(fileManager.getFileVersion(fileVersions.get(2).getVersionId()));
+        Assert.assertFalse(fileVersions.get(2).getFile().exists());
+        Assert.assertNull(fileManager.getFileVersion(fileVersions.get(3).getVersionId()));
+        Assert.assertEquals(2, getFileFolderCount());
+        // No evicted folder is left
+        Assert.assertEquals(0, registryFolder.list((dir, name) -> name.startsWith(AbstractFileManager.EVICTED_FOLDER_PREFIX)).length);
     }
 
     @Test
@@ -251,21 +294,21 @@ public class FileManagerImplTest {
         fileManager.releaseFileVersion(fileVersion);
         fileManager.releaseFileVersion(fileVersion1);
 
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(100);//last access threshold is 200ms, files should still be in
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(250);//job run every 100ms + 200 ms last access threshold, file should be cleaned up
-        Assert.assertEquals(0, registryFolder.list().length);
+        Assert.assertEquals(0, getFileFolderCount());
 
         fileVersion = fileManager.registerFileVersion(testFile, false, true);
         fileVersion1 = fileManager.registerFileVersion(testFile2, false, false);
         fileManager.releaseFileVersion(fileVersion);
         fileManager.releaseFileVersion(fileVersion1);
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(100);//last access threshold is 200ms, files should still be in
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         Thread.sleep(250); // following check occasionally (seldom) fails when 200, so give it just a tad more time
-        Assert.assertEquals(1, registryFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount());
     }
 
     @Test
@@ -305,12 +348,12 @@ public class FileManagerImplTest {
             future.get();
         }
 
-        Assert.assertEquals(2, registryFolder.list().length);
+        Assert.assertEquals(2, getFileFolderCount());
         int fileStoreCount = fileManager.getStoreCount().get();
         //depends on the perf of the system, should be at least 2 and way below 5*500
         Assert.assertTrue(fileStoreCount >= 2 && fileStoreCount < 50);
         Thread.sleep(300);
-        Assert.assertEquals(1, registryFolder.list().length);
+        Assert.assertEquals(1, getFileFolderCount());
     }
 
     @Test
@@ -329,6 +372,134 @@ public class FileManagerImplTest {
         Assert.assertEquals(fileVersion2, fileVersionActual2);
     }
 
+    @Test
+    public void testCacheReloadWithoutJournal() throws Exception {
+        File testFile = FileHelper.createTempFile();
+        File testFolder = FileHelper.createTempFolder();
+
+        FileVersion fileVersion1 = fileManager.registerFileVersion(testFile, false, true);
+        FileVersion fileVersion2 = fileManager.registerFileVersion(testFolder, false, true);
+        fileManager.close();
+
+        // The cache folder is scanned if the journal is missing
+        File journal = new File(registryFolder, AbstractFileManager.JOURNAL_FILENAME);
+        Assert.assertTrue(journal.delete());
+        fileManager = new TestFileManagerImpl(registryFolder, config);
+        Assert.assertEquals(fileVersion1, fileManager.getFileVersion(fileVersion1.getVersionId()));
+        Assert.assertEquals(fileVersion2, fileManager.getFileVersion(fileVersion2.getVersionId()));
+        // and the journal is rewritten
+        Assert.assertTrue(journal.exists());
+        fileManager.close();
+
+        // The file versions whose container has been deleted are ignored
+        FileHelper.deleteFolder(fileVersion1.getFile().getParentFile());
+        fileManager = new TestFileManagerImpl(registryFolder, config);
+        Assert.assertNull(fileManager.getFileVersion(fileVersion1.getVersionId()));
+        Assert.assertEquals(fileVersion2, fileManager.getFileVersion(fileVersion2.getVersionId()));
+    }
+
+    @Test
+    public void testStreamIngest() throws Exception {
+        byte[] content = "Dummy content".getBytes();
+        int registrationCount = 10;
+        ExecutorService threadPool = Executors.newFixedThreadPool(registrationCount);
+        List<Future<FileVersion>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < registrationCount; i++) {
+                futures.add(threadPool.submit(() -> fileManager.registerFileVersion(new ByteArrayInputStream(content), "TestFile", false, false, true)));
+            }
+            FileVersion fileVersion = futures.get(0).get();
+            for (Future<FileVersion> future : futures) {
+                Assert.assertEquals(fileVersion, future.get());
+            }
+
+            // The version and checksum are computed while receiving the content
+            Assert.assertEquals(DigestUtils.md5Hex(content), fileVersion.getVersionId().getVersion());
+            Assert.assertEquals(FileChecksum.compute(fileVersion.getFile()), fileManager.getFileVersionChecksum(fileVersion.getVersionId()));
+            Assert.assertArrayEquals(content, Files.readAllBytes(fileVersion.getFile().toPath()));
+            // The concurrent registrations of the same content are stored once and no staging file is left
+            Assert.assertEquals(1, fileVersion.getFile().getParentFile().getParentFile().list().length);
+            Assert.assertEquals(1, getFileFolderCount());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDirectoryChecksum() throws IOException, FileManagerException {
+        File testFolder = FileHelper.createTempFolder();
+        writeFileContent(new File(testFolder, "file.txt"), "content");
+
+        FileVersion fileVersion = fileManager.registerFileVersion(testFolder, false, true);
+        Assert.assertEquals(FileChecksum.compute(fileVersion.getFile()), fileManager.getFileVersionChecksum(fileVersion.getVersionId()));
+        Assert.assertEquals(1, getFileFolderCount());
+    }
+
+    @Test
+    public void testContentDeduplication() throws Exception {
+        byte[] content = "Dummy content".getBytes();
+        FileVersion fileVersion1 = fileManager.registerFileVersion(new ByteArrayInputStream(content), "TestFile", false, false, true);
+        FileVersion fileVersion2 = fileManager.registerFileVersion(new ByteArrayInputStream(content), "AnotherName", false, false, true);
+        File testFile = FileHelper.createTempFile();
+        Files.write(testFile.toPath(), content);
+        FileVersion fileVersion3 = fileManager.registerFileVersion(testFile, false, true);
+        Assert.assertNotEquals(fileVersion1.getVersionId(), fileVersion2.getVersionId());
+
+        // The content is stored once
+        String checksum = FileChecksum.compute(fileVersion1.getFile());
+        Assert.assertEquals(1, getBlobCount());
+        Assert.assertTrue(Files.isSameFile(fileVersion1.getFile().toPath(), fileVersion2.getFile().toPath()));
+        Assert.assertTrue(Files.isSameFile(fileVersion1.getFile().toPath(), fileVersion3.getFile().toPath()));
+        Assert.assertEquals(checksum, fileManager.getFileVersionChecksum(fileVersion3.getVersionId()));
+
+        // The references are restored after restart
+        fileManager.close();
+        fileManager = new TestFileManagerImpl(registryFolder, config);
+        Assert.assertEquals(1, getBlobCount());
+
+        // The content is deleted with the last file version referencing it
+        fileManager.unregisterFileVersion(fileVersion1.getVersionId());
+        fileManager.unregisterFileVersion(fileVersion2.getVersionId());
+        Assert.assertEquals(1, getBlobCount());
+        Assert.assertArrayEquals(content, Files.readAllBytes(fileManager.getFileVersion(fileVersion3.getVersionId()).getFile().toPath()));
+        fileManager.unregisterFileVersion(fileVersion3.getVersionId());
+        Assert.assertEquals(0, getBlobCount());
+    }
+
+    private long getBlobCount() throws IOException {
+        try (Stream<Path> blobs = Files.walk(new File(registryFolder, ".blobs").toPath())) {
+            return blobs.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void testHardLinks() throws Exception {
+        config.setUseHardLinks(true);
+        fileManager.close();
+        fileManager = new TestFileManagerImpl(registryFolder, config);
+
+        File testFile = new File(registryFolder.getParentFile(), "hardLinkTest-" + System.nanoTime());
+        writeFileContent(testFile, "content");
+        try {
+            FileVersion fileVersion = fileManager.registerFileVersion(testFile, false, true);
+            Assert.assertTrue(Files.isSameFile(testFile.toPath(), fileVersion.getFile().toPath()) ||
+                // Hard links aren't supported by all file systems
+                Files.readAllLines(fileVersion.getFile().toPath()).get(0).equals("content"));
+        } finally {
+            testFile.delete();
+        }
+    }
+
+    @Test
+    public void testStagingFilesDeletedAtStartup() throws Exception {
+        File leftover = new File(registryFolder, AbstractFileManager.STAGING_FOLDER_PREFIX + "leftover");
+        Assert.assertTrue(leftover.createNewFile());
+
+        fileManager.close();
+        fileManager = new TestFileManagerImpl(registryFolder, config);
+        Assert.assertFalse(leftover.exists());
+    }
+
     public static class TestFileManagerImpl extends FileManagerImpl {
         private AtomicInteger storeCount = new AtomicInteger(0);
 
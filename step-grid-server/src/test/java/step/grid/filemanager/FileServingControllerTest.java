@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import ch.exense.commons.io.FileHelper;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import step.grid.app.server.ReleasingStreamingOutput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileServingControllerTest {
+
+    private static final int LENGTH = 3 * 1024 * 1024 + 100;
+
+    private final FileVersionId fileVersionId = new FileVersionId("f1", "1");
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void before() throws IOException {
+        content = new byte[LENGTH];
+        new Random(0).nextBytes(content);
+        file = FileHelper.createTempFile();
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        FileServingController controller = new FileServingController(newCoalescingConfiguration());
+        controller.admit("agent1");
+        controller.admit("agent2");
+        StreamingOutput stream1 = controller.newFileStream(fileVersionId, openChannel(), 100, LENGTH - 200, null, true);
+        StreamingOutput stream2 = controller.newFileStream(fileVersionId, openChannel(), 100, LENGTH - 200, null, true);
+        assertEquals(2, controller.getStatistics().getActiveTransfers());
+
+        ByteArrayOutputStream output1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream output2 = new ByteArrayOutputStream();
+        stream1.write(output1);
+        stream2.write(output2);
+        byte[] expected = Arrays.copyOfRange(content, 100, LENGTH - 100);
+        assertArrayEquals(expected, output1.toByteArray());
+        assertArrayEquals(expected, output2.toByteArray());
+
+        // The range has been read once and transferred twice
+        FileServingStatistics statistics = controller.getStatistics();
+        assertEquals(0, statistics.getActiveTransfers());
+        assertEquals(2, statistics.getAdmittedRequests());
+        assertEquals(1, statistics.getCoalescedRequests());
+        assertEquals(LENGTH - 200, statistics.getReadBytes());
+        assertEquals(2L * (LENGTH - 200), statistics.getTransferredBytes());
+        assertTrue(statistics.getTransferRate() > 0);
+
+        // The shared read is discarded once completed
+        controller.newFileStream(fileVersionId, openChannel(), 100, LENGTH - 200, null, false).write(new ByteArrayOutputStream());
+        assertEquals(1, controller.getStatistics().getCoalescedRequests());
+        assertEquals(2L * (LENGTH - 200), controller.getStatistics().getReadBytes());
+    }
+
+    @Test
+    public void testRangeLargerThanCoalescingLimit() throws Exception {
+        FileServingConfiguration configuration = newCoalescingConfiguration();
+        configuration.setMaxCoalescedLength(1024 * 1024);
+        FileServingController controller = new FileServingController(configuration);
+        StreamingOutput stream1 = controller.newFileStream(fileVersionId, openChannel(), 0, LENGTH, null, false);
+        StreamingOutput stream2 = controller.newFileStream(fileVersionId, openChannel(), 0, LENGTH, null, false);
+        ByteArrayOutputStream output1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream output2 = new ByteArrayOutputStream();
+        stream1.write(output1);
+        stream2.write(output2);
+        assertArrayEquals(content, output1.toByteArray());
+        assertArrayEquals(content, output2.toByteArray());
+        assertEquals(0, controller.getStatistics().getCoalescedRequests());
+        assertEquals(2L * LENGTH, controller.getStatistics().getReadBytes());
+    }
+
+    @Test
+    public void testCoalescingDisabledByDefault() throws Exception {
+        FileServingController controller = new FileServingController(new FileServingConfiguration());
+        StreamingOutput stream1 = controller.newFileStream(fileVersionId, openChannel(), 0, LENGTH, null, false);
+        StreamingOutput stream2 = controller.newFileStream(fileVersionId, openChannel(), 0, LENGTH, null, false);
+        ByteArrayOutputStream output1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream output2 = new ByteArrayOutputStream();
+        stream1.write(output1);
+        stream2.write(output2);
+        assertArrayEquals(content, output1.toByteArray());
+        assertArrayEquals(content, output2.toByteArray());
+        assertEquals(0, controller.getStatistics().getCoalescedRequests());
+        assertEquals(2L * LENGTH, controller.getStatistics().getReadBytes());
+    }
+
+    @Test
+    public void testLaggingRequest() throws Exception {
+        // Larger than the blocks kept in memory by a shared read
+        int length = 6 * 1024 * 1024 + 100;
+        byte[] largeContent = new byte[length];
+        new Random(1).nextBytes(largeContent);
+        Files.write(file.toPath(), largeContent);
+
+        FileServingController controller = new FileServingController(newCoalescingConfiguration());
+        StreamingOutput stream1 = controller.newFileStream(fileVersionId, openChannel(), 0, length, null, false);
+        StreamingOutput stream2 = controller.newFileStream(fileVersionId, openChannel(), 0, length, null, false);
+        ByteArrayOutputStream output1 = new ByteArrayOutputStream();
+        stream1.write(output1);
+        assertArrayEquals(largeContent, output1.toByteArray());
+        assertEquals(1, controller.getStatistics().getCoalescedRequests());
+
+        // The shared read doesn't hold its first blocks anymore and cannot be joined
+        ByteArrayOutputStream output3 = new ByteArrayOutputStream();
+        controller.newFileStream(fileVersionId, openChannel(), 0, length, null, false).write(output3);
+        assertArrayEquals(largeContent, output3.toByteArray());
+        assertEquals(1, controller.getStatistics().getCoalescedRequests());
+        assertEquals(2L * length, controller.getStatistics().getReadBytes());
+
+        // The request lagging behind reads the blocks that aren't kept anymore itself
+        ByteArrayOutputStream output2 = new ByteArrayOutputStream();
+        stream2.write(output2);
+        assertArrayEquals(largeContent, output2.toByteArray());
+        long readBytes = controller.getStatistics().getReadBytes();
+        assertTrue(readBytes > 2L * length);
+        assertTrue(readBytes < 3L * length);
+    }
+
+    @Test
+    public void testReleaseWithoutWrite() throws Exception {
+        FileServingController controller = new FileServingController(newCoalescingConfiguration());
+        controller.admit("agent1");
+        controller.admit("agent2");
+        FileChannel channel = openChannel();
+        ReleasingStreamingOutput stream1 = controller.newFileStream(fileVersionId, channel, 0, LENGTH, null, true);
+        ReleasingStreamingOutput stream2 = controller.newFileStream(fileVersionId, openChannel(), 0, LENGTH, null, true);
+        assertEquals(2, controller.getStatistics().getActiveTransfers());
+
+        // The response of a HEAD request isn't written
+        stream1.close();
+        stream1.close();
+        assertEquals(1, controller.getStatistics().getActiveTransfers());
+        assertTrue(channel.isOpen());
+
+        // Closing after writing doesn't release the admission twice
+        stream2.write(new ByteArrayOutputStream());
+        stream2.close();
+        assertEquals(0, controller.getStatistics().getActiveTransfers());
+        assertFalse(channel.isOpen());
+        assertEquals(LENGTH, controller.getStatistics().getTransferredBytes());
+    }
+
+    private static FileServingConfiguration newCoalescingConfiguration() {
+        FileServingConfiguration configuration = new FileServingConfiguration();
+        configuration.setEnableCoalescing(true);
+        return configuration;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.filemanager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class FileTransferAdmissionTest {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testFairOrdering() throws Exception {
+        FileTransferAdmission admission = new FileTransferAdmission(1, 100, 10000);
+        admission.acquire("agent1");
+
+        // The agent 1 queues 3 requests before the agent 2 queues its request
+        List<String> admissionOrder = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        for (String requester : List.of("agent1", "agent1", "agent1", "agent2")) {
+            futures.add(executorService.submit(() -> {
+                admission.acquire(requester);
+                admissionOrder.add(requester);
+                return null;
+            }));
+            waitForQueueLength(admission, futures.size());
+        }
+        assertEquals(1, admission.getActiveTransfers());
+
+        for (int i = 0; i < 4; i++) {
+            admission.release();
+            waitForQueueLength(admission, 3 - i);
+            while (admissionOrder.size() < i + 1) {
+                Thread.sleep(1);
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        // The request of the agent 2 is admitted right after the first request of the agent 1
+        assertEquals(List.of("agent1", "agent2", "agent1", "agent1"), admissionOrder);
+        admission.release();
+        assertEquals(0, admission.getActiveTransfers());
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        FileTransferAdmission admission = new FileTransferAdmission(1, 1, 100);
+        admission.acquire("agent1");
+        Future<?> queued = executorService.submit(() -> {
+            admission.acquire("agent2");
+            return null;
+        });
+        waitForQueueLength(admission, 1);
+        // The queue is full
+        assertThrows(FileTransferAdmission.RejectedException.class, () -> admission.acquire("agent3"));
+        // The queued request isn't admitted in time
+        Exception exception = assertThrows(Exception.class, queued::get);
+        assertTrue(exception.getCause() instanceof FileTransferAdmission.RejectedException);
+        assertEquals(0, admission.getQueueLength());
+
+        admission.release();
+        assertEquals(0, admission.getActiveTransfers());
+        admission.acquire("agent2");
+        assertEquals(1, admission.getActiveTransfers());
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        FileTransferAdmission admission = new FileTransferAdmission(0, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            admission.acquire("agent1");
+        }
+        assertEquals(10, admission.getActiveTransfers());
+    }
+
+    private static void waitForQueueLength(FileTransferAdmission admission, int queueLength) throws InterruptedException {
+        while (admission.getQueueLength() != queueLength) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid;
+
+import ch.exense.commons.io.FileHelper;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import step.grid.GridImpl.GridImplConfig;
+import step.grid.agent.Agent;
+import step.grid.agent.conf.AgentConf;
+import step.grid.filemanager.ByteRange;
+import step.grid.filemanager.FileManagerConfiguration;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+import step.grid.proxy.FileCacheStatistics;
+import step.grid.proxy.GridProxy;
+import step.grid.proxy.conf.GridProxyConfiguration;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class GridProxyFileCacheTest {
+
+    private GridImpl grid;
+    private GridProxy gridProxy;
+    private Client client;
+    private final List<File> folders = new ArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        grid = new GridImpl(newFolder(), 0, new GridImplConfig());
+        grid.start();
+
+        GridProxyConfiguration conf = new GridProxyConfiguration();
+        conf.setGridProxyPort(0);
+        conf.setGridUrl("http://localhost:" + grid.getServerPort());
+        conf.getFileCache().setEnabled(true);
+        conf.getFileCache().setCacheFolder(newFolder().getAbsolutePath());
+        conf.getFileCache().setMaxCacheSizeBytes(3 * 1024 * 1024);
+        conf.getFileCache().setMaxFetchWaitMs(10000);
+        gridProxy = new GridProxy(conf);
+
+        client = ClientBuilder.newClient();
+    }
+
+    @After
+    public void after() throws Exception {
+        client.close();
+        gridProxy.close();
+        grid.stop();
+        folders.forEach(FileHelper::deleteFolder);
+    }
+
+    @Test
+    public void testConcurrentDownloadsThroughProxy() throws Exception {
+        byte[] content = randomContent(2 * 1024 * 1024, 0);
+        FileVersionId fileVersionId = registerFile(content);
+
+        List<Agent> agents = new ArrayList<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 3; i++) {
+                AgentConf agentConf = new AgentConf(gridProxy.getGridProxyUrl(), 0, null, 100);
+                agentConf.setGracefulShutdownTimeout(100L);
+                agentConf.setWorkingDir(newFolder().getAbsolutePath());
+                agentConf.setFileManagerConfiguration(new FileManagerConfiguration());
+                agents.add(new Agent(agentConf));
+            }
+            List<Future<FileVersion>> downloads = new ArrayList<>();
+            for (Agent agent : agents) {
+                downloads.add(executorService.submit(() -> agent.getAgentTokenServices().getFileManagerClient().requestFileVersion(fileVersionId, true)));
+            }
+            for (Future<FileVersion> download : downloads) {
+                assertArrayEquals(content, Files.readAllBytes(download.get().getFile().toPath()));
+            }
+        } finally {
+            executorService.shutdown();
+            for (Agent agent : agents) {
+                agent.close();
+            }
+        }
+
+        // The file version has been transferred once from the grid
+        FileCacheStatistics statistics = gridProxy.getFileCacheStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(2, statistics.getHits() + statistics.getCoalescedMisses());
+        assertEquals(0, statistics.getBypassedRequests());
+        assertEquals(content.length, statistics.getFetchedBytes());
+        assertEquals(1, statistics.getCachedFileVersions());
+    }
+
+    @Test
+    public void testRangeAndConditionalRequests() throws Exception {
+        byte[] content = randomContent(100 * 1024, 1);
+        FileVersionId fileVersionId = registerFile(content);
+
+        String entityTag;
+        try (Response response = requestFile(fileVersionId, null, null)) {
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(content, response.readEntity(byte[].class));
+            entityTag = response.getHeaderString(HttpHeaders.ETAG);
+        }
+
+        try (Response response = requestFile(fileVersionId, "bytes=1000-1999", null)) {
+            assertEquals(206, response.getStatus());
+            assertEquals("bytes 1000-1999/" + content.length, response.getHeaderString(ByteRange.CONTENT_RANGE_HEADER));
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), response.readEntity(byte[].class));
+        }
+
+        try (Response response = requestFile(fileVersionId, null, entityTag)) {
+            assertEquals(304, response.getStatus());
+        }
+
+        try (Response response = requestFile(fileVersionId, "bytes=" + content.length + "-", null)) {
+            assertEquals(416, response.getStatus());
+        }
+
+        FileCacheStatistics statistics = gridProxy.getFileCacheStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(3, statistics.getHits());
+        assertEquals(0.75, statistics.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testEvictionAndBypass() throws Exception {
+        byte[] content1 = randomContent(2 * 1024 * 1024, 2);
+        byte[] content2 = randomContent(2 * 1024 * 1024, 3);
+        FileVersionId fileVersionId1 = registerFile(content1);
+        FileVersionId fileVersionId2 = registerFile(content2);
+
+        try (Response response = requestFile(fileVersionId1, null, null)) {
+            assertArrayEquals(content1, response.readEntity(byte[].class));
+        }
+        try (Response response = requestFile(fileVersionId2, null, null)) {
+            assertArrayEquals(content2, response.readEntity(byte[].class));
+        }
+        // The least recently used file version has been evicted to respect the maximum cache size
+        FileCacheStatistics statistics = gridProxy.getFileCacheStatistics();
+        assertEquals(1, statistics.getEvictions());
+        assertEquals(1, statistics.getCachedFileVersions());
+        assertEquals(content2.length, statistics.getCachedBytes());
+
+        // Unknown file versions aren't cached and the error of the grid is returned as is
+        try (Response response = requestFile(new FileVersionId("unknown", "1"), null, null)) {
+            assertNotEquals(200, response.getStatus());
+        }
+        assertEquals(1, gridProxy.getFileCacheStatistics().getBypassedRequests());
+    }
+
+    private Response requestFile(FileVersionId fileVersionId, String range, String ifNoneMatch) {
+        return client.target(gridProxy.getGridProxyUrl() + "/grid/file/" + fileVersionId.getFileId() + "/" + fileVersionId.getVersion())
+            .request().header(ByteRange.RANGE_HEADER, range).header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch).get();
+    }
+
+    private FileVersionId registerFile(byte[] content) throws Exception {
+        File file = new File(newFolder(), "package.jar");
+        Files.write(file.toPath(), content);
+        return grid.registerFile(file, true).getVersionId();
+    }
+
+    private static byte[] randomContent(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private File newFolder() throws Exception {
+        File folder = FileHelper.createTempFolder();
+        folders.add(folder);
+        return folder;
+    }
+}
@@ -18,10 +18,16 @@
  ******************************************************************************/
 package step.grid.agent;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 import java.util.regex.Pattern;
 
 import org.junit.Assert;
@@ -31,14 +37,21 @@ import org.junit.Test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import step.grid.AgentRef;
 import step.grid.TokenWrapper;
 import step.grid.agent.conf.AgentForkerConfiguration;
+import step.grid.agent.handler.MessageHandler;
+import step.grid.agent.handler.MessageHandlerPool;
 import step.grid.client.AbstractGridClientImpl;
 import step.grid.client.GridClientConfiguration;
 import step.grid.client.GridClientException;
 import step.grid.client.LocalGridClientImpl;
+import step.grid.contextbuilder.ApplicationContextBuilder;
+import step.grid.filemanager.FileVersionId;
 import step.grid.io.AgentErrorCode;
 import step.grid.io.OutputMessage;
+import step.grid.io.PrefetchRequest;
+import step.grid.io.PrefetchStatus;
 import step.grid.tokenpool.Interest;
 
 public class AgentTest extends AbstractGridTest {
@@ -153,6 +166,115 @@ public class AgentTest extends AbstractGridTest {
         ;
     }
 
+    @Test
+    public void testPayloadOffload() throws Exception {
+        client.close();
+        GridClientConfiguration gridClientConfiguration = new GridClientConfiguration();
+        gridClientConfiguration.setReadTimeoutOffset(10000);
+        gridClientConfiguration.setPayloadOffloadThreshold(10);
+        client = new LocalGridClientImpl(gridClientConfiguration, grid);
+
+        Map<String, Interest> interests = new HashMap<>();
+        interests.put("att1", new Interest(Pattern.compile("val.*"), true));
+        TokenWrapper token = client.getTokenHandle(null, interests, true);
+
+        JsonNode largePayload = new ObjectMapper().createObjectNode().put("content", "a".repeat(10000));
+        // The second call reuses the payload already registered and cached by the agent
+        for (int i = 0; i < 2; i++) {
+            OutputMessage outputMessage = client.call(token.getID(), largePayload, TestTokenHandler.class.getName(), null, null, 5000);
+            Assert.assertNull(outputMessage.getAgentError());
+            Assert.assertEquals(largePayload, outputMessage.getPayload());
+        }
+
+        // Payloads below the threshold are sent inline
+        JsonNode smallPayload = new ObjectMapper().createObjectNode();
+        OutputMessage outputMessage = client.call(token.getID(), smallPayload, TestTokenHandler.class.getName(), null, null, 5000);
+        Assert.assertEquals(smallPayload, outputMessage.getPayload());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        File handlerPackage = File.createTempFile("handlerPackage", ".jar");
+        String handlerClassFile = TestTokenHandler.class.getName().replace('.', '/') + ".class";
+        try (JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(handlerPackage));
+             InputStream inputStream = TestTokenHandler.class.getClassLoader().getResourceAsStream(handlerClassFile)) {
+            outputStream.putNextEntry(new JarEntry(handlerClassFile));
+            inputStream.transferTo(outputStream);
+            outputStream.closeEntry();
+        }
+        try {
+            FileVersionId handlerPackageId = client.registerFile(handlerPackage, false).getVersionId();
+            Map<String, Interest> interests = new HashMap<>();
+            interests.put("att1", new Interest(Pattern.compile("val.*"), true));
+            // Unlike the token selection, the prefetch only targets the agents that are already registered
+            AgentRef agentRef = waitForAgentRegistration();
+
+            // No agent matches the selection criteria
+            Assert.assertTrue(client.prefetchPackages(null, Map.of("att1", new Interest(Pattern.compile("other"), true)),
+                List.of(new PrefetchRequest(handlerPackageId, TestTokenHandler.class.getName()))).isEmpty());
+
+            List<AgentRef> agents = client.prefetchPackages(null, interests, List.of(
+                new PrefetchRequest(handlerPackageId, TestTokenHandler.class.getName()),
+                new PrefetchRequest(handlerPackageId, "invalid.Handler")));
+            Assert.assertEquals(1, agents.size());
+            Assert.assertEquals(agentRef.getAgentId(), agents.get(0).getAgentId());
+
+            List<PrefetchStatus> statuses = waitForPrefetch(agentRef);
+            Assert.assertEquals(2, statuses.size());
+            PrefetchStatus handlerStatus = statuses.stream().filter(s -> TestTokenHandler.class.getName().equals(s.getHandler())).findFirst().orElseThrow();
+            Assert.assertEquals(PrefetchStatus.State.COMPLETED, handlerStatus.getState());
+            Assert.assertEquals(handlerPackageId, handlerStatus.getHandlerPackage());
+            PrefetchStatus invalidHandlerStatus = statuses.stream().filter(s -> "invalid.Handler".equals(s.getHandler())).findFirst().orElseThrow();
+            Assert.assertEquals(PrefetchStatus.State.FAILED, invalidHandlerStatus.getState());
+            Assert.assertNotNull(invalidHandlerStatus.getError());
+
+            // The prefetch built the context of the package and instantiated the handler in it
+            ApplicationContextBuilder contextBuilder = agent.getAgentTokenServices().getApplicationContextBuilder();
+            String contextKey = handlerPackageId.getFileId() + "_" + handlerPackageId.getVersion();
+            contextBuilder.resetContext();
+            ApplicationContextBuilder.ApplicationContext prefetchedContext = contextBuilder.getCurrentContext().getChildContext(contextKey);
+            Assert.assertNotNull(prefetchedContext);
+            MessageHandlerPool prefetchedHandlerPool = (MessageHandlerPool) prefetchedContext.get("handlerPool");
+            Assert.assertNotNull(prefetchedHandlerPool);
+            MessageHandler prefetchedHandler = prefetchedHandlerPool.get(TestTokenHandler.class.getName(), prefetchedContext.getClassLoader());
+
+            JsonNode o = newDummyJson();
+            TokenWrapper token = client.getTokenHandle(null, interests, true);
+            OutputMessage outputMessage = client.call(token.getID(), o, TestTokenHandler.class.getName(), handlerPackageId, null, 5000);
+            Assert.assertNull(outputMessage.getAgentError());
+            Assert.assertEquals(o, outputMessage.getPayload());
+
+            // The call used the prefetched context and handler instance
+            Assert.assertSame(prefetchedContext, contextBuilder.getCurrentContext().getChildContext(contextKey));
+            Assert.assertSame(prefetchedHandlerPool, prefetchedContext.get("handlerPool"));
+            Assert.assertSame(prefetchedHandler, prefetchedHandlerPool.get(TestTokenHandler.class.getName(), prefetchedContext.getClassLoader()));
+        } finally {
+            handlerPackage.delete();
+        }
+    }
+
+    protected AgentRef waitForAgentRegistration() throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (grid.getTokens().isEmpty()) {
+            if (System.currentTimeMillis() > timeout) {
+                Assert.fail("The agent didn't register its tokens in time");
+            }
+            Thread.sleep(50);
+        }
+        return grid.getTokens().get(0).getAgent();
+    }
+
+    private List<PrefetchStatus> waitForPrefetch(AgentRef agentRef) throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+        List<PrefetchStatus> statuses;
+        do {
+            Thread.sleep(50);
+            statuses = client.getPrefetchStatus(agentRef);
+        } while (statuses.stream().anyMatch(s -> s.getState() == PrefetchStatus.State.PENDING || s.getState() == PrefetchStatus.State.RUNNING)
+            && System.currentTimeMillis() < timeout);
+        return statuses;
+    }
+
     @Test
     public void testInterruption() throws Exception {
         testInterruption(true);
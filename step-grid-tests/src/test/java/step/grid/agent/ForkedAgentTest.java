@@ -18,8 +18,15 @@
  ******************************************************************************/
 package step.grid.agent;
 
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
 import org.junit.Before;
+import step.grid.AgentRef;
 import step.grid.agent.conf.AgentForkerConfiguration;
+import step.grid.filemanager.FileVersionId;
+import step.grid.io.PrefetchRequest;
 
 public class ForkedAgentTest extends AgentTest {
 
@@ -65,4 +72,12 @@ public class ForkedAgentTest extends AgentTest {
     public void testInterruption() throws Exception {
         super.testInterruption();
     }
+
+    @Override
+    public void testPrefetch() throws Exception {
+        AgentRef agentRef = waitForAgentRegistration();
+        // The forked agents use their own context builder: prefetch requests are rejected
+        Assert.assertTrue(client.prefetchPackages(null, Map.of(), List.of(new PrefetchRequest(new FileVersionId("id", "version"), null))).isEmpty());
+        Assert.assertTrue(client.getPrefetchStatus(agentRef).isEmpty());
+    }
 }
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (C) 2020, exense GmbH
+ *
+ * This file is part of STEP
+ *
+ * STEP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * STEP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with STEP.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package step.grid.agent;
+
+import ch.exense.commons.io.FileHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import step.grid.GridImpl;
+import step.grid.GridImpl.GridImplConfig;
+import step.grid.agent.conf.AgentConf;
+import step.grid.filemanager.FileManagerConfiguration;
+import step.grid.filemanager.FileVersion;
+import step.grid.filemanager.FileVersionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeerDistributionTest {
+
+    private GridImpl grid;
+    private final List<Agent> agents = new ArrayList<>();
+    private final List<File> folders = new ArrayList<>();
+    private byte[] content;
+    private FileVersionId fileVersionId;
+
+    @Before
+    public void before() throws Exception {
+        GridImplConfig gridConfig = new GridImplConfig();
+        gridConfig.setEnablePeerFileDistribution(true);
+        grid = new GridImpl(newFolder(), 0, gridConfig);
+        grid.start();
+        for (int i = 0; i < 3; i++) {
+            AgentConf agentConf = new AgentConf("http://localhost:" + grid.getServerPort(), 0, null, 100);
+            agentConf.setGracefulShutdownTimeout(100L);
+            agentConf.setWorkingDir(newFolder().getAbsolutePath());
+            agentConf.setFileManagerConfiguration(new FileManagerConfiguration());
+            agentConf.getFileDownloadConfiguration().setEnablePeerDownloads(true);
+            agents.add(new Agent(agentConf));
+        }
+
+        content = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(content);
+        File file = new File(newFolder(), "package.jar");
+        Files.write(file.toPath(), content);
+        fileVersionId = grid.registerFile(file, true).getVersionId();
+    }
+
+    @After
+    public void after() throws Exception {
+        for (Agent agent : agents) {
+            agent.close();
+        }
+        grid.stop();
+        folders.forEach(FileHelper::deleteFolder);
+    }
+
+    @Test
+    public void testDownloadFromPeer() throws Exception {
+        // The first agent downloads the file version from the grid
+        assertDownloaded(requestFileVersion(agents.get(0)));
+        waitForAdvertisement();
+
+        // The other agents download it from the first one and advertise it in turn
+        assertDownloaded(requestFileVersion(agents.get(1)));
+        assertEquals(1, agents.get(0).getPeerFileServer().getUploadCount());
+        assertEquals(0, agents.get(1).getPeerFileServer().getUploadCount());
+    }
+
+    @Test
+    public void testFallbackToGrid() throws Exception {
+        FileVersion fileVersion = requestFileVersion(agents.get(0));
+        waitForAdvertisement();
+        // Corrupt the content held by the peer
+        byte[] corruptedContent = content.clone();
+        corruptedContent[1000]++;
+        Files.write(fileVersion.getFile().toPath(), corruptedContent);
+
+        // The content downloaded from the peer is rejected and downloaded again from the grid
+        assertDownloaded(requestFileVersion(agents.get(1)));
+        assertEquals(1, agents.get(0).getPeerFileServer().getUploadCount());
+        // Only the downloaded file remains in the cache folder of the file version
+        assertEquals(1, fileVersionFolderCount(agents.get(1)));
+    }
+
+    private FileVersion requestFileVersion(Agent agent) throws Exception {
+        FileVersion fileVersion = agent.getAgentTokenServices().getFileManagerClient().requestFileVersion(fileVersionId, true);
+        agent.getAgentTokenServices().getFileManagerClient().releaseFileVersion(fileVersion);
+        return fileVersion;
+    }
+
+    private long fileVersionFolderCount(Agent agent) throws Exception {
+        File container = requestFileVersion(agent).getFile().getParentFile();
+        return Files.list(container.toPath()).filter(path -> !path.getFileName().toString().equals("filemanager.meta")).count();
+    }
+
+    private void waitForAdvertisement() throws Exception {
+        long start = System.currentTimeMillis();
+        while (grid.getFileVersionPeers(fileVersionId).getPeerUrls().isEmpty()) {
+            if (System.currentTimeMillis() - start > 5000) {
+                fail("The file version hasn't been advertised to the grid");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private void assertDownloaded(FileVersion fileVersion) throws Exception {
+        assertEquals("package.jar", fileVersion.getFile().getName());
+        assertArrayEquals(content, Files.readAllBytes(fileVersion.getFile().toPath()));
+    }
+
+    private File newFolder() throws Exception {
+        File folder = FileHelper.createTempFolder();
+        folders.add(folder);
+        return folder;
+    }
+}
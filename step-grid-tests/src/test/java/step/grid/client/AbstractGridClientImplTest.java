@@ -1,18 +1,33 @@
 package step.grid.client;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Test;
 import step.grid.*;
 import step.grid.filemanager.FileManagerException;
 import step.grid.filemanager.FileVersion;
 import step.grid.filemanager.FileVersionId;
+import step.grid.io.OutputMessage;
 import step.grid.security.SymmetricSecurityConfiguration;
 import step.grid.tokenpool.Interest;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -53,7 +68,111 @@ public class AbstractGridClientImplTest {
         assertTrue(exception.getMessage().startsWith("Failed to establish a connection to http://127.0.0.1:1/token/test/release after 3 retries: jakarta.ws.rs.ProcessingException: java.net.ConnectException: Connection refused"));
     }
 
+    @Test
+    public void testHedging() throws Exception {
+        CountDownLatch slowCallInterrupted = new CountDownLatch(1);
+        HttpServer agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        agent.createContext("/token/slow/process", exchange -> {
+            try {
+                // Simulate a slow agent that only returns when interrupted
+                slowCallInterrupted.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            respond(exchange, "{\"payload\":{\"Result\":\"slow\"}}");
+        });
+        agent.createContext("/token/fast/process", exchange -> respond(exchange, "{\"payload\":{\"Result\":\"fast\"}}"));
+        agent.createContext("/token/slow/interrupt-execution", exchange -> {
+            slowCallInterrupted.countDown();
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        ExecutorService agentExecutor = Executors.newCachedThreadPool();
+        agent.setExecutor(agentExecutor);
+        agent.start();
+        try {
+            String agentUrl = "http://127.0.0.1:" + agent.getAddress().getPort();
+            ConcurrentLinkedQueue<String> availableTokens = new ConcurrentLinkedQueue<>(List.of("slow", "fast"));
+            ConcurrentLinkedQueue<String> returnedTokens = new ConcurrentLinkedQueue<>();
+            Grid grid = newGridMock(() -> newTokenWrapper(availableTokens.poll(), agentUrl), returnedTokens::add);
+
+            GridClientConfiguration gridClientConfiguration = new GridClientConfiguration();
+            HedgingConfiguration hedging = gridClientConfiguration.getHedging();
+            hedging.setEnabled(true);
+            hedging.setMinSamples(0);
+            hedging.setMinDelay(100);
+            ConcurrentLinkedQueue<String> calledTokens = new ConcurrentLinkedQueue<>();
+            TokenLifecycleStrategy tokenLifecycleStrategy = new DefaultTokenLifecycleStrategy() {
+                @Override
+                public void afterTokenCall(TokenLifecycleStrategyCallback callback, TokenWrapper tokenWrapper, OutputMessage outputMessage) {
+                    calledTokens.add(tokenWrapper.getID());
+                    super.afterTokenCall(callback, tokenWrapper, outputMessage);
+                }
+            };
+            try (AbstractGridClientImpl client = new LocalGridClientImpl(gridClientConfiguration, tokenLifecycleStrategy, grid)) {
+                TokenWrapper token = client.getTokenHandle(Map.of(), Map.of(), false);
+                assertEquals("slow", token.getID());
+
+                OutputMessage output = client.call(token.getID(), new ObjectMapper().createObjectNode(), "handler", null,
+                    Map.of(GridClient.HEDGING_GROUP_PROPERTY, "test"), 10000);
+                assertEquals("fast", output.getPayload().get("Result").asText());
+                // The losing call on the original token should have been interrupted
+                assertTrue(slowCallInterrupted.await(5, TimeUnit.SECONDS));
+
+                client.returnTokenHandle(token.getID());
+                assertTrue(returnedTokens.containsAll(List.of("slow", "fast")));
+                // The hedge token has been passed to the token lifecycle strategy before being returned
+                assertTrue(calledTokens.containsAll(List.of("slow", "fast")));
+
+                HedgingStatistics statistics = client.getHedgingStatistics();
+                assertEquals(1, statistics.getHedgeableCalls());
+                assertEquals(1, statistics.getHedgedCalls());
+                assertEquals(1, statistics.getHedgeWins());
+                assertEquals(0, statistics.getHedgeTokenUnavailable());
+            }
+        } finally {
+            agent.stop(0);
+            agentExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLatencyTracker() {
+        LatencyTracker latencyTracker = new LatencyTracker(10);
+        assertEquals(-1, latencyTracker.getPercentile(95));
+        for (int i = 1; i <= 20; i++) {
+            latencyTracker.record(i);
+        }
+        // Only the 10 most recent samples (11..20) are kept
+        assertEquals(10, latencyTracker.getSampleCount());
+        assertEquals(11, latencyTracker.getPercentile(0));
+        assertEquals(15, latencyTracker.getPercentile(50));
+        assertEquals(20, latencyTracker.getPercentile(95));
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static TokenWrapper newTokenWrapper(String tokenId, String agentUrl) {
+        Token token = new Token();
+        token.setId(tokenId);
+        token.setAgentid("test");
+        AgentRef agent = new AgentRef();
+        agent.setAgentUrl(agentUrl);
+        return new TokenWrapper(token, agent);
+    }
+
     private static Grid newGridMock(String agentUrl) {
+        return newGridMock(() -> newTokenWrapper("test", agentUrl), id -> {
+        });
+    }
+
+    private static Grid newGridMock(Supplier<TokenWrapper> tokenSupplier, Consumer<String> tokenReturnListener) {
         return new Grid() {
 
             @Override
@@ -83,17 +202,12 @@ public class AbstractGridClientImplTest {
 
             @Override
             public TokenWrapper selectToken(Map<String, String> attributes, Map<String, Interest> interests, long matchTimeout, long noMatchTimeout, TokenWrapperOwner tokenOwner) throws TimeoutException, InterruptedException {
-                Token token = new Token();
-                token.setId("test");
-                token.setAgentid("test");
-                AgentRef agent = new AgentRef();
-                agent.setAgentUrl(agentUrl);
-                return new TokenWrapper(token, agent);
+                return tokenSupplier.get();
             }
 
             @Override
             public void returnToken(String id) {
-
+                tokenReturnListener.accept(id);
             }
 
             @Override
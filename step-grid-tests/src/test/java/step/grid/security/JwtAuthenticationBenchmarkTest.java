@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2025, exense GmbH
+ *
+ * This file is part of Step
+ *
+ * Step is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Step is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Step.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package step.grid.security;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import step.grid.client.security.JwtTokenGenerator;
+
+import javax.crypto.SecretKey;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static step.grid.agent.SecurityTest.GRID_SECRET;
+
+public class JwtAuthenticationBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(JwtAuthenticationBenchmarkTest.class);
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void testTokenCaching() {
+        JwtTokenGenerator jwtTokenGenerator = new JwtTokenGenerator(GRID_SECRET);
+        String token = jwtTokenGenerator.getToken();
+        // The token should be reused until it gets refreshed
+        assertSame(token, jwtTokenGenerator.getToken());
+
+        JwtAuthenticationFilter filter = new JwtAuthenticationFilter(GRID_SECRET);
+        // First call: full verification. Second call: served from the verified token cache
+        assertAuthorized(filter, token);
+        assertAuthorized(filter, token);
+
+        // Tokens signed with another key must still be rejected
+        String invalidToken = new JwtTokenGenerator("AnotherSecretAnotherSecretAnotherSecret=").getToken();
+        assertUnauthorized(filter, invalidToken);
+        assertUnauthorized(filter, invalidToken);
+
+        // Expired tokens must be rejected
+        assertUnauthorized(filter, jwtTokenGenerator.generateToken(-1));
+    }
+
+    @Ignore("Benchmark of the JWT verification with and without cache. To be run manually")
+    @Test
+    public void benchmark() {
+        SecretKey secretKey = Keys.hmacShaKeyFor(GRID_SECRET.getBytes(StandardCharsets.UTF_8));
+        JwtTokenGenerator jwtTokenGenerator = new JwtTokenGenerator(GRID_SECRET);
+        JwtAuthenticationFilter filter = new JwtAuthenticationFilter(GRID_SECRET);
+        AtomicInteger aborted = new AtomicInteger();
+
+        // Warm-up
+        runUncached(jwtTokenGenerator, secretKey, ITERATIONS);
+        runCached(jwtTokenGenerator, filter, aborted, ITERATIONS);
+
+        long uncached = runUncached(jwtTokenGenerator, secretKey, ITERATIONS);
+        long cached = runCached(jwtTokenGenerator, filter, aborted, ITERATIONS);
+        logger.info("JWT issuance and verification per request: {}ns without caching, {}ns with caching",
+            uncached / ITERATIONS, cached / ITERATIONS);
+
+        assertEquals(0, aborted.get());
+    }
+
+    private static long runUncached(JwtTokenGenerator jwtTokenGenerator, SecretKey secretKey, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // Former behavior: a new token is signed and a new parser built for each request
+            String token = jwtTokenGenerator.generateToken();
+            Jwts.parser().verifyWith(secretKey).build().parseSignedClaims(token).getPayload();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runCached(JwtTokenGenerator jwtTokenGenerator, JwtAuthenticationFilter filter, AtomicInteger aborted, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String token = jwtTokenGenerator.getToken();
+            filter.filter(newRequestContext("Bearer " + token, aborted));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Lightweight {@link ContainerRequestContext} to avoid measuring the overhead of mocks
+     */
+    private static ContainerRequestContext newRequestContext(String authorizationHeader, AtomicInteger aborted) {
+        return (ContainerRequestContext) Proxy.newProxyInstance(JwtAuthenticationBenchmarkTest.class.getClassLoader(),
+            new Class[]{ContainerRequestContext.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getHeaderString")) {
+                    return authorizationHeader;
+                } else if (method.getName().equals("abortWith")) {
+                    aborted.incrementAndGet();
+                }
+                return null;
+            });
+    }
+
+    private static void assertAuthorized(JwtAuthenticationFilter filter, String token) {
+        ContainerRequestContext requestContext = mock(ContainerRequestContext.class);
+        when(requestContext.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + token);
+        filter.filter(requestContext);
+        verify(requestContext, never()).abortWith(any(Response.class));
+    }
+
+    private static void assertUnauthorized(JwtAuthenticationFilter filter, String token) {
+        ContainerRequestContext requestContext = mock(ContainerRequestContext.class);
+        when(requestContext.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + token);
+        filter.filter(requestContext);
+        verify(requestContext).abortWith(any(Response.class));
+    }
+}